@@ -0,0 +1,39 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Implemented by platform persistence which can make its writes durable asynchronously, in group commits, so that the
+ * server can hold the response to a message until everything the message stored is durable instead of forcing each write.
+ */
+public interface IGroupCommitPersistence {
+  /**
+   * @return True if writes are made durable in group commits (if false, each write is as durable as it will get when it
+   * returns)
+   */
+  boolean isCommittingInGroups();
+
+  /**
+   * @return A Future which completes once everything stored so far is durable
+   */
+  CompletableFuture<Void> getDurabilityBarrier();
+}
@@ -0,0 +1,34 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import org.terracotta.entity.EntityResponse;
+import org.terracotta.exception.EntityException;
+
+
+/**
+ * Defines the callback invoked when an invoke has finished running on the server.  Like IFetchResult, this is a callback
+ * and not a simple call-return structure since the invoke may be handed off to an execution lane, instead of being run
+ * directly on the server thread.
+ */
+public interface IInvokeResult {
+  public void onInvokeComplete(byte[] response, EntityException error);
+  // Called, instead, when a successful invoke came in on the object lane:  the response is handed back as-is.
+  public void onInvokeCompleteWithObject(EntityResponse response);
+}
@@ -0,0 +1,43 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+
+/**
+ * Describes what a PassthroughServerProcess does with a message sent by a client when its inbound queue is already at
+ * capacity.
+ * Note that this only applies to messages from client connections:  messages the server sends itself, or which come from
+ * the active as replication or passive sync, are always accepted since blocking or dropping them could deadlock the
+ * servers or lose state.
+ */
+public enum PassthroughBackpressurePolicy {
+  /**
+   * The sending client thread blocks until the queue drops below capacity.
+   */
+  BLOCK,
+  /**
+   * The send fails immediately with an IllegalStateException.
+   */
+  FAIL_FAST,
+  /**
+   * Invokes which aren't replicated to passives are refused with an IllegalStateException while all other messages are
+   * accepted, even over capacity.
+   */
+  SHED_NON_REPLICATED_INVOKES,
+}
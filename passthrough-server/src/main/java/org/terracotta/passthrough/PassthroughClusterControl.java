@@ -238,10 +238,8 @@ public class PassthroughClusterControl implements IClusterControl {
 
   private void startTerminatedServer(PassthroughServer lastTerminatedServer) {
     if(this.activeServer != null) {
-      boolean isActive = false;
-      boolean shouldStorageLoaded = false;
-      lastTerminatedServer.start(isActive, shouldStorageLoaded, Collections.<Long>emptySet());
-      this.activeServer.attachDownstreamPassive(lastTerminatedServer);
+      // The passive is caught up from its storage, if the active still has everything it missed, else fully synchronized.
+      this.activeServer.startAndAttachRestartedPassive(lastTerminatedServer);
     } else {
       boolean isActive = true;
       boolean shouldStorageLoaded = true;
@@ -0,0 +1,67 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * The Future returned by the platform persistence implementations, whose fastStoreSequence() completes before returning.
+ * Successful stores all share DONE so that nothing is allocated per call.
+ */
+class PassthroughCompletedFuture implements Future<Void> {
+  public static final Future<Void> DONE = new PassthroughCompletedFuture(null);
+
+  private final Exception error;
+
+  public PassthroughCompletedFuture(Exception error) {
+    this.error = error;
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  @Override
+  public boolean isDone() {
+    return true;
+  }
+
+  @Override
+  public Void get() throws InterruptedException, ExecutionException {
+    if (null != this.error) {
+      throw new ExecutionException(this.error);
+    }
+    return null;
+  }
+
+  @Override
+  public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    return get();
+  }
+}
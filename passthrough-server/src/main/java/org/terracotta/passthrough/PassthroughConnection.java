@@ -28,6 +28,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.terracotta.connection.Connection;
 import org.terracotta.connection.entity.Entity;
@@ -60,11 +62,16 @@ public class PassthroughConnection implements Connection {
   private final long uniqueConnectionID;
   private final PassthroughEndpointConnector endpointConnector;
   private final String readerThreadName;
+  private PassthroughMessageFidelity messageFidelity = PassthroughMessageFidelity.VERIFY_CODECS;
   
   // ivars related to message passing and client thread.
   private volatile State state = State.INIT;
   private Thread clientThread;
   private final List<ServerToClientMessageRecord> messageQueue;
+  // The reader thread waits on this lock, not the monitor, so that it doesn't pin a virtual thread.  It guards the messageQueue
+  // and the transition to CLOSED.
+  private final ReentrantLock messageQueueLock;
+  private final Condition messageQueueChanged;
   // NOTE:  this queue exists to carry any Futures pushed in when the server-side injects a message to the client.
   // This approach is an ugly work-around for limitations imposed by running the server message processing and server
   // execution on a single thread.  Ideally, we would send another message to the server, in this case, to better emulate
@@ -92,13 +99,34 @@ public class PassthroughConnection implements Connection {
     this.endpointConnector = endpointConnector;
     this.readerThreadName = readerThreadName;
     this.messageQueue = new Vector<ServerToClientMessageRecord>();
+    this.messageQueueLock = new ReentrantLock();
+    this.messageQueueChanged = this.messageQueueLock.newCondition();
     this.clientResponseWaitQueue = new Vector<Waiter>();
   }
 
+  /**
+   * Must be called before startProcessingRequests().
+   * 
+   * @param messageFidelity How invokes sent over this connection are carried to the server
+   */
+  public void setMessageFidelity(PassthroughMessageFidelity messageFidelity) {
+    Assert.assertTrue(State.INIT == this.state);
+    this.messageFidelity = messageFidelity;
+  }
+
+  /**
+   * @return True if invokes should be handed to the server by reference, skipping the entity's MessageCodec
+   */
+  public boolean isUsingObjectLane() {
+    return (PassthroughMessageFidelity.OBJECT_LANE == this.messageFidelity);
+  }
+
   public void startProcessingRequests() {
-    this.clientThread = new Thread(() -> runClientThread());
-    this.clientThread.setName(readerThreadName);
-    this.clientThread.setUncaughtExceptionHandler(PassthroughUncaughtExceptionHandler.sharedInstance);
+    startProcessingRequests(PassthroughThreadFactory.PLATFORM_THREADS);
+  }
+
+  public void startProcessingRequests(PassthroughThreadFactory threadFactory) {
+    this.clientThread = threadFactory.newThread(() -> runClientThread(), readerThreadName);
     this.state = State.RUNNING;
     this.clientThread.start();
   }
@@ -146,7 +174,7 @@ public class PassthroughConnection implements Connection {
   /**
    * This entry-point is specifically used for entity-defined action messages.
    */
-  public Future<byte[]> invokeActionAndWaitForAcks(PassthroughMessage message, boolean shouldWaitForSent, boolean shouldWaitForReceived, boolean shouldWaitForCompleted, boolean shouldWaitForRetired, boolean forceGetToBlockOnRetire, boolean deferred, PassthroughMonitor monitor) {
+  public PassthroughWait invokeActionAndWaitForAcks(PassthroughMessage message, boolean shouldWaitForSent, boolean shouldWaitForReceived, boolean shouldWaitForCompleted, boolean shouldWaitForRetired, boolean forceGetToBlockOnRetire, boolean deferred, PassthroughMonitor monitor) {
     return invokeAndWait(message, shouldWaitForSent, shouldWaitForReceived, shouldWaitForCompleted, shouldWaitForRetired, forceGetToBlockOnRetire, deferred, monitor);
   }
 
@@ -175,30 +203,39 @@ public class PassthroughConnection implements Connection {
   }
 
   @SuppressWarnings({ "unchecked" })
-  public <T, U> T createEntityInstance(Class<T> cls, String name, final long clientInstanceID, long clientSideVersion, byte[] config, U userData) {
+  public <T, U> T createEntityInstance(Class<T> cls, String name, final long clientInstanceID, long entityHandle, long clientSideVersion, byte[] config, U userData) {
     EntityClientService<?, ?, ? extends EntityMessage, ? extends EntityResponse, U> service = (EntityClientService<?, ?, ? extends EntityMessage, ? extends EntityResponse, U>) getEntityClientService(cls);
-    return (T) storeNewEndpointAndCreateInstance(cls, name, clientInstanceID, config, service, userData);
+    return (T) storeNewEndpointAndCreateInstance(cls, name, clientInstanceID, entityHandle, config, service, userData);
   }
 
   // Exists to create a generic type context for M and R.
-  private <M extends EntityMessage, R extends EntityResponse, U> Entity storeNewEndpointAndCreateInstance(Class<?> cls, String name, final long clientInstanceID, byte[] config, EntityClientService<?, ?, M, R, U> service, U userData) {
+  private <M extends EntityMessage, R extends EntityResponse, U> Entity storeNewEndpointAndCreateInstance(Class<?> cls, String name, final long clientInstanceID, long entityHandle, byte[] config, EntityClientService<?, ?, M, R, U> service, U userData) {
     Runnable onClose = new Runnable() {
       @Override
       public void run() {
         localEndpoints.remove(clientInstanceID);
       }
     };
-    PassthroughEntityClientEndpoint<M, R> endpoint = new PassthroughEntityClientEndpoint<M, R>(this, cls, name, clientInstanceID, config, service.getMessageCodec(), onClose);
+    PassthroughEntityClientEndpoint<M, R> endpoint = new PassthroughEntityClientEndpoint<M, R>(this, cls, name, clientInstanceID, entityHandle, config, service.getMessageCodec(), onClose);
     this.localEndpoints.put(clientInstanceID, endpoint);
     return this.endpointConnector.connect(endpoint, service, userData);
   }
 
-  public synchronized void sendMessageToClient(PassthroughServerProcess sender, byte[] payload) {
+  public void sendMessageToClient(PassthroughServerProcess sender, byte[] payload) {
+    sendMessageToClient(sender, payload, null);
+  }
+
+  public void sendMessageToClient(PassthroughServerProcess sender, byte[] payload, Object attachment) {
     // The sender is used to determine if this is a message coming in from a stale connection - checked on dequeue to avoid race conditions.
     if (this.connectionState.isConnected(sender)) {
-      ServerToClientMessageRecord record = new ServerToClientMessageRecord(sender, payload);
-      this.messageQueue.add(record);
-      notifyAll();
+      ServerToClientMessageRecord record = new ServerToClientMessageRecord(sender, payload, attachment);
+      this.messageQueueLock.lock();
+      try {
+        this.messageQueue.add(record);
+        this.messageQueueChanged.signalAll();
+      } finally {
+        this.messageQueueLock.unlock();
+      }
     }
   }
   
@@ -212,7 +249,7 @@ public class PassthroughConnection implements Connection {
     ServerToClientMessageRecord message = getNextClientMessage();
     if (message != null) {
       if (this.connectionState.isConnected(message.sender)) {
-        clientThreadHandleMessage(message.sender, message.payload);
+        clientThreadHandleMessage(message.sender, message.payload, message.attachment);
       }
       return true;
     } else {
@@ -220,22 +257,27 @@ public class PassthroughConnection implements Connection {
     }
   }
   
-  private synchronized ServerToClientMessageRecord getNextClientMessage() {
-    while (state == State.RUNNING) {
-      if (!this.messageQueue.isEmpty()) {
-        return this.messageQueue.remove(0);
-      } else {
-        try {
-          this.wait();
-        } catch (InterruptedException e) {
-          Assert.unexpected(e);
+  private ServerToClientMessageRecord getNextClientMessage() {
+    this.messageQueueLock.lock();
+    try {
+      while (state == State.RUNNING) {
+        if (!this.messageQueue.isEmpty()) {
+          return this.messageQueue.remove(0);
+        } else {
+          try {
+            this.messageQueueChanged.await();
+          } catch (InterruptedException e) {
+            Assert.unexpected(e);
+          }
         }
       }
+      return null;
+    } finally {
+      this.messageQueueLock.unlock();
     }
-    return null;
   }
 
-  private void clientThreadHandleMessage(final PassthroughServerProcess sender, byte[] message) {
+  private void clientThreadHandleMessage(final PassthroughServerProcess sender, byte[] message, final Object attachment) {
     PassthroughMessageCodec.Decoder<Void> decoder = new PassthroughMessageCodec.Decoder<Void>() {
       @Override
       public Void decode(Type type, boolean shouldReplicate, long transactionID, long oldestTransactionID, DataInputStream input) throws IOException {
@@ -264,7 +306,7 @@ public class PassthroughConnection implements Connection {
             } else {
               error = PassthroughMessageCodec.deserializeExceptionFromArray(bytes);
             }
-            handleComplete(sender, transactionID, result, error);
+            handleComplete(sender, transactionID, result, attachment, error);
             break;
           }
           case RETIRE_FROM_SERVER:
@@ -317,11 +359,11 @@ public class PassthroughConnection implements Connection {
     }
   }
 
-  private void handleComplete(PassthroughServerProcess sender, long transactionID, byte[] result, EntityException error) {
+  private void handleComplete(PassthroughServerProcess sender, long transactionID, byte[] result, Object resultObject, EntityException error) {
     PassthroughWait waiter = this.connectionState.getWaiterForTransaction(sender, transactionID);
     // Note that we may fail because this server may be dead.
     if (null != waiter) {
-      waiter.handleComplete(result, error);
+      waiter.handleComplete(result, resultObject, error);
     }
   }
 
@@ -368,9 +410,12 @@ public class PassthroughConnection implements Connection {
       this.connectionState.forceClose();
       
       // We are going to stop processing messages so set us not running and stop our thread.
-      synchronized (this) {
+      this.messageQueueLock.lock();
+      try {
         this.state = State.CLOSED;
-        this.notifyAll();
+        this.messageQueueChanged.signalAll();
+      } finally {
+        this.messageQueueLock.unlock();
       }
       try {
         this.clientThread.join();
@@ -511,6 +556,13 @@ public class PassthroughConnection implements Connection {
       boolean forceGetToBlockOnRetire = true;
       PassthroughWait waiter = this.connectionState.sendAsReconnect(this, message, shouldWaitForSent, shouldWaitForReceived, shouldWaitForCompleted, shouldWaitForRetired, forceGetToBlockOnRetire);
       waiter.waitForAck();
+      // The response is the handle the end-point must now use on the new server.
+      try {
+        endpoint.setEntityHandle(PassthroughMessageCodec.decodeEntityHandleFromResponse(waiter.get()));
+      } catch (InterruptedException | ExecutionException e) {
+        // Reconnect isn't permitted to fail.
+        Assert.unexpected(e);
+      }
     }
   }
 
@@ -524,6 +576,7 @@ public class PassthroughConnection implements Connection {
     for (Map.Entry<Long, PassthroughWait> entry : this.waitersToResend.entrySet()) {
       long transactionID = entry.getKey();
       PassthroughWait waiter = entry.getValue();
+      refreshEntityHandleForResend(waiter);
       this.connectionState.sendAsResend(this, transactionID, waiter);
       // NOTE:  We cannot block on the get since the server won't send any acks until ALL re-sent messages are
       // received.
@@ -534,6 +587,21 @@ public class PassthroughConnection implements Connection {
     this.waitersToResend = null;
   }
 
+  private void refreshEntityHandleForResend(PassthroughWait waiter) {
+    // Any invoke we sent with an entity handle used the handle from the old server so update it to the one we got from the
+    // reconnect.
+    byte[] raw = waiter.getRawMessageForResend();
+    if ((Type.INVOKE_ON_SERVER == PassthroughMessageCodec.decodeTypeFromRawMessage(raw))
+        && (PassthroughMessageCodec.NO_ENTITY_HANDLE != PassthroughMessageCodec.decodeEntityHandleFromRawInvoke(raw))) {
+      long clientInstanceID = PassthroughMessageCodec.decodeClientInstanceIDFromRawHandleInvoke(raw);
+      PassthroughEntityClientEndpoint<?, ?> endpoint = this.localEndpoints.get(clientInstanceID);
+      // If the end-point has since been closed, the re-send will fail on the server, as it would have on the old one.
+      if (null != endpoint) {
+        waiter.saveRawMessageForResend(PassthroughMessageCodec.replaceEntityHandleInRawInvoke(raw, endpoint.getEntityHandle()));
+      }
+    }
+  }
+
   public void disconnect() {
     this.connectionState.enterDisconnectedState();
   }
@@ -541,10 +609,12 @@ public class PassthroughConnection implements Connection {
   private static class ServerToClientMessageRecord {
     public final PassthroughServerProcess sender;
     public final byte[] payload;
+    public final Object attachment;
     
-    public ServerToClientMessageRecord(PassthroughServerProcess sender, byte[] payload) {
+    public ServerToClientMessageRecord(PassthroughServerProcess sender, byte[] payload, Object attachment) {
       this.sender = sender;
       this.payload = payload;
+      this.attachment = attachment;
     }
   }
 
@@ -20,17 +20,21 @@ package org.terracotta.passthrough;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Maintains the association that a connection has to its server and the in-flight messages associated with it.
  * The reason why this is managed out-of-line is that reconnect represents very specific ordering concerns and thread
  * interaction concerns, which are far more easily managed within a distinct object.
- * Note that all the methods in this object are synchronized so they can not block for any reason other than waiting.  That
- * is to say that nothing can perform a blocking operation while holding the monitor.
+ * Note that all the methods in this object hold the lock so they can not block for any reason other than waiting.  That
+ * is to say that nothing can perform a blocking operation while holding the lock.
+ * This uses a ReentrantLock, instead of the monitor, so that a client waiting here doesn't pin a virtual thread.
  */
 public class PassthroughConnectionState {
-  private PassthroughServerProcess serverProcess;
+  // This is volatile since sendNormal reads it, without the lock, to wait for inbound queue capacity.
+  private volatile PassthroughServerProcess serverProcess;
   private final Map<Long, PassthroughWait> inFlightMessages;
   // We store the reconnecting server just to assert details of correct usage.
   private PassthroughServerProcess reconnectingServerProcess;
@@ -38,35 +42,52 @@ public class PassthroughConnectionState {
   // Transaction IDs are managed here, as well.
   private long nextTransactionID;
   
+  private final ReentrantLock lock;
+  // Signalled when the serverProcess becomes available, again.
+  private final Condition serverAvailable;
+  
   public PassthroughConnectionState(PassthroughServerProcess initialServerProcess) {
     this.serverProcess = initialServerProcess;
     this.inFlightMessages = new HashMap<Long, PassthroughWait>();
     this.nextTransactionID = 1;
+    this.lock = new ReentrantLock();
+    this.serverAvailable = this.lock.newCondition();
   }
   
   public boolean isServerThread() {
     return serverProcess.isServerThread();
   }
 
-  public synchronized PassthroughWait sendNormal(PassthroughConnection sender, PassthroughMessage message, boolean shouldWaitForSent, boolean shouldWaitForReceived, boolean shouldWaitForCompleted, boolean shouldWaitForRetired, boolean forceGetToBlockOnRetire, boolean deferred, PassthroughMonitor monitor) {
-    // This uses the normal server process so wait for it to become available.
-    while (null == this.serverProcess) {
-      try {
-        wait();
-      } catch (InterruptedException e) {
-        // The only reason we would interrupt is to kill the test.
-        throw new RuntimeException(e);
-      }
+  public PassthroughWait sendNormal(PassthroughConnection sender, PassthroughMessage message, boolean shouldWaitForSent, boolean shouldWaitForReceived, boolean shouldWaitForCompleted, boolean shouldWaitForRetired, boolean forceGetToBlockOnRetire, boolean deferred, PassthroughMonitor monitor) {
+    // If the server's inbound queue is full, this is where we block.  We do that before taking the lock since the server
+    // thread needs it to deliver acks and completions to us, which is what lets the queue drain.
+    PassthroughServerProcess currentServerProcess = this.serverProcess;
+    if (null != currentServerProcess) {
+      currentServerProcess.waitForInboundCapacity();
     }
-    long oldestTransactionID = this.nextTransactionID;
-    for (long oneID : this.inFlightMessages.keySet()) {
-      if (oneID < oldestTransactionID) {
-        oldestTransactionID = oneID;
+    this.lock.lock();
+    try {
+      // This uses the normal server process so wait for it to become available.
+      while (null == this.serverProcess) {
+        try {
+          this.serverAvailable.await();
+        } catch (InterruptedException e) {
+          // The only reason we would interrupt is to kill the test.
+          throw new RuntimeException(e);
+        }
       }
+      long oldestTransactionID = this.nextTransactionID;
+      for (long oneID : this.inFlightMessages.keySet()) {
+        if (oneID < oldestTransactionID) {
+          oldestTransactionID = oneID;
+        }
+      }
+      return createAndSend(this.serverProcess, this.inFlightMessages, sender, message, 
+          oldestTransactionID, shouldWaitForSent, shouldWaitForReceived, shouldWaitForCompleted, 
+          shouldWaitForRetired, forceGetToBlockOnRetire, deferred, monitor);
+    } finally {
+      this.lock.unlock();
     }
-    return createAndSend(this.serverProcess, this.inFlightMessages, sender, message, 
-        oldestTransactionID, shouldWaitForSent, shouldWaitForReceived, shouldWaitForCompleted, 
-        shouldWaitForRetired, forceGetToBlockOnRetire, deferred, monitor);
   }
 
   private PassthroughWait createAndSend(PassthroughServerProcess target, Map<Long, PassthroughWait> tracker, 
@@ -85,73 +106,125 @@ public class PassthroughConnectionState {
     }
     byte[] raw = message.asSerializedBytes();
     waiter.saveRawMessageForResend(raw);
-    target.sendMessageToServer(sender, raw);
+    waiter.saveAttachmentForResend(message.getAttachment());
+    try {
+      target.sendMessageToServer(sender, raw, message.getAttachment());
+    } catch (RuntimeException e) {
+      // The server refused the message (shut down or inbound queue full) so it is no longer in-flight.
+      tracker.remove(transactionID);
+      throw e;
+    }
     return waiter;
   }
 
-  public synchronized boolean isConnected(PassthroughServerProcess sender) {
-    return (sender == this.serverProcess) || (sender == this.reconnectingServerProcess);
+  public boolean isConnected(PassthroughServerProcess sender) {
+    this.lock.lock();
+    try {
+      return (sender == this.serverProcess) || (sender == this.reconnectingServerProcess);
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized PassthroughWait sendAsReconnect(PassthroughConnection sender, PassthroughMessage message, boolean shouldWaitForSent, boolean shouldWaitForReceived, boolean shouldWaitForCompleted, boolean shouldWaitForRetired, boolean forceGetToBlockOnRetire) {
-    // This is similar to the normal send but only happens in the reconnect state and creates a waiter in that in-flight set.
-    Assert.assertTrue(null != this.reconnectingServerProcess);
-    // We won't bother clearing transactions on re-send.
-    long oldestTransactionID = 0;
-    return createAndSend(this.reconnectingServerProcess, this.inFlightMessages, sender, message, oldestTransactionID, shouldWaitForSent, shouldWaitForReceived, shouldWaitForCompleted, shouldWaitForRetired, forceGetToBlockOnRetire, false, null);
+  public PassthroughWait sendAsReconnect(PassthroughConnection sender, PassthroughMessage message, boolean shouldWaitForSent, boolean shouldWaitForReceived, boolean shouldWaitForCompleted, boolean shouldWaitForRetired, boolean forceGetToBlockOnRetire) {
+    this.lock.lock();
+    try {
+      // This is similar to the normal send but only happens in the reconnect state and creates a waiter in that in-flight set.
+      Assert.assertTrue(null != this.reconnectingServerProcess);
+      // We won't bother clearing transactions on re-send.
+      long oldestTransactionID = 0;
+      return createAndSend(this.reconnectingServerProcess, this.inFlightMessages, sender, message, oldestTransactionID, shouldWaitForSent, shouldWaitForReceived, shouldWaitForCompleted, shouldWaitForRetired, forceGetToBlockOnRetire, false, null);
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized Map<Long, PassthroughWait> enterReconnectState(PassthroughServerProcess newServerProcess) {
-    Assert.assertTrue(null == this.serverProcess);
-    Assert.assertTrue(null == this.reconnectingServerProcess);
-    Assert.assertTrue(null != this.inFlightMessages);
+  public Map<Long, PassthroughWait> enterReconnectState(PassthroughServerProcess newServerProcess) {
+    this.lock.lock();
+    try {
+      Assert.assertTrue(null == this.serverProcess);
+      Assert.assertTrue(null == this.reconnectingServerProcess);
+      Assert.assertTrue(null != this.inFlightMessages);
     
-    this.reconnectingServerProcess = newServerProcess;
-    return this.inFlightMessages;
+      this.reconnectingServerProcess = newServerProcess;
+      return this.inFlightMessages;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void sendAsResend(PassthroughConnection sender, long transactionID, PassthroughWait waiter) {
-    // This is similar to the normal send but only happens in the reconnect state and creates a waiter in that in-flight set.
-    Assert.assertTrue(null != this.reconnectingServerProcess);
-    byte[] raw = waiter.resetAndGetMessageForResend();
-    this.inFlightMessages.put(transactionID, waiter);
-    // We always want to block on retire, when doing a re-send.
-    waiter.blockGetOnRetire();
-    this.reconnectingServerProcess.sendMessageToServer(sender, raw);
+  public void sendAsResend(PassthroughConnection sender, long transactionID, PassthroughWait waiter) {
+    this.lock.lock();
+    try {
+      // This is similar to the normal send but only happens in the reconnect state and creates a waiter in that in-flight set.
+      Assert.assertTrue(null != this.reconnectingServerProcess);
+      byte[] raw = waiter.resetAndGetMessageForResend();
+      this.inFlightMessages.put(transactionID, waiter);
+      // We always want to block on retire, when doing a re-send.
+      waiter.blockGetOnRetire();
+      this.reconnectingServerProcess.sendMessageToServer(sender, raw, waiter.getAttachmentForResend());
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized PassthroughWait getWaiterForTransaction(PassthroughServerProcess sender, long transactionID) {
-    PassthroughWait waiter = this.inFlightMessages.get(transactionID);
-    Assert.assertTrue(null != waiter);
-    return waiter;
+  public PassthroughWait getWaiterForTransaction(PassthroughServerProcess sender, long transactionID) {
+    this.lock.lock();
+    try {
+      PassthroughWait waiter = this.inFlightMessages.get(transactionID);
+      Assert.assertTrue(null != waiter);
+      return waiter;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized PassthroughWait removeWaiterForTransaction(PassthroughServerProcess sender, long transactionID) {
-    PassthroughWait waiter = this.inFlightMessages.remove(transactionID);
-    Assert.assertTrue(null != waiter);
-    return waiter;
+  public PassthroughWait removeWaiterForTransaction(PassthroughServerProcess sender, long transactionID) {
+    this.lock.lock();
+    try {
+      PassthroughWait waiter = this.inFlightMessages.remove(transactionID);
+      Assert.assertTrue(null != waiter);
+      return waiter;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void finishReconnectState() {
-    Assert.assertTrue(null == this.serverProcess);
-    Assert.assertTrue(null != this.reconnectingServerProcess);
+  public void finishReconnectState() {
+    this.lock.lock();
+    try {
+      Assert.assertTrue(null == this.serverProcess);
+      Assert.assertTrue(null != this.reconnectingServerProcess);
     
-    this.serverProcess = this.reconnectingServerProcess;
-    this.reconnectingServerProcess = null;
-    notifyAll();
+      this.serverProcess = this.reconnectingServerProcess;
+      this.reconnectingServerProcess = null;
+      this.serverAvailable.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void enterDisconnectedState() {
-    Assert.assertTrue(null != this.serverProcess);
-    Assert.assertTrue(null != this.inFlightMessages);
+  public void enterDisconnectedState() {
+    this.lock.lock();
+    try {
+      Assert.assertTrue(null != this.serverProcess);
+      Assert.assertTrue(null != this.inFlightMessages);
     
-    this.serverProcess = null;
+      this.serverProcess = null;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void forceClose() {
-    Assert.assertTrue(null != this.inFlightMessages);
-    for (PassthroughWait waiter : this.inFlightMessages.values()) {
-      waiter.forceDisconnect();
+  public void forceClose() {
+    this.lock.lock();
+    try {
+      Assert.assertTrue(null != this.inFlightMessages);
+      for (PassthroughWait waiter : this.inFlightMessages.values()) {
+        waiter.forceDisconnect();
+      }
+    } finally {
+      this.lock.unlock();
     }
   }
 }
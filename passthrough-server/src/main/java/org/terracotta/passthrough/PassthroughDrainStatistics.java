@@ -0,0 +1,95 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Records how many messages the server thread takes from its inbound queue, each time it wakes up to drain it.
+ * This is only updated by the server thread but can be read from any thread.
+ * The histogram is bucketed by powers of 2:  bucket i counts the drains which returned between 2^i and (2^(i+1) - 1)
+ * messages (the last bucket also counts anything larger).
+ */
+public class PassthroughDrainStatistics {
+  private static final int HISTOGRAM_BUCKETS = 16;
+
+  private final AtomicLong drainCount = new AtomicLong();
+  private final AtomicLong messageCount = new AtomicLong();
+  private final AtomicLong largestDrain = new AtomicLong();
+  private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+  void recordDrain(int drainSize) {
+    Assert.assertTrue(drainSize > 0);
+    this.drainCount.incrementAndGet();
+    this.messageCount.addAndGet(drainSize);
+    if (drainSize > this.largestDrain.get()) {
+      // Only the server thread writes this so we don't need to loop.
+      this.largestDrain.set(drainSize);
+    }
+    int bucket = Math.min(HISTOGRAM_BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(drainSize));
+    this.histogram.incrementAndGet(bucket);
+  }
+
+  /**
+   * @return The number of times the server thread drained at least one message from its queue
+   */
+  public long getDrainCount() {
+    return this.drainCount.get();
+  }
+
+  /**
+   * @return The total number of messages drained from the queue
+   */
+  public long getMessageCount() {
+    return this.messageCount.get();
+  }
+
+  /**
+   * @return The largest number of messages taken in a single drain
+   */
+  public long getLargestDrain() {
+    return this.largestDrain.get();
+  }
+
+  /**
+   * @return The average number of messages taken in a single drain (0.0 if nothing has been drained)
+   */
+  public double getAverageDrainSize() {
+    long drains = this.drainCount.get();
+    return (drains > 0) ? ((double)this.messageCount.get() / (double)drains) : 0.0;
+  }
+
+  /**
+   * @return A copy of the power-of-2 drain size histogram
+   */
+  public long[] getDrainSizeHistogram() {
+    long[] copy = new long[HISTOGRAM_BUCKETS];
+    for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+      copy[i] = this.histogram.get(i);
+    }
+    return copy;
+  }
+
+  @Override
+  public String toString() {
+    return "PassthroughDrainStatistics{drains=" + getDrainCount() + ", messages=" + getMessageCount() + ", largest=" + getLargestDrain() + "}";
+  }
+}
@@ -44,17 +44,20 @@ public class PassthroughEntityClientEndpoint<M extends EntityMessage, R extends
   private final Class<?> entityClass;
   private final String entityName;
   private final long clientInstanceID;
+  // The handle the server gave us for this entity.  This changes when we reconnect to a new server.
+  private volatile long entityHandle;
   private final byte[] config;
   private final MessageCodec<M, R> messageCodec;
   private final Runnable onClose;
   private EndpointDelegate delegate;
   private boolean isOpen;
   
-  public PassthroughEntityClientEndpoint(PassthroughConnection passthroughConnection, Class<?> entityClass, String entityName, long clientInstanceID, byte[] config, MessageCodec<M, R> messageCodec, Runnable onClose) {
+  public PassthroughEntityClientEndpoint(PassthroughConnection passthroughConnection, Class<?> entityClass, String entityName, long clientInstanceID, long entityHandle, byte[] config, MessageCodec<M, R> messageCodec, Runnable onClose) {
     this.connection = passthroughConnection;
     this.entityClass = entityClass;
     this.entityName = entityName;
     this.clientInstanceID = clientInstanceID;
+    this.entityHandle = entityHandle;
     this.config = config;
     this.messageCodec = messageCodec;
     this.onClose = onClose;
@@ -81,7 +84,18 @@ public class PassthroughEntityClientEndpoint<M extends EntityMessage, R extends
   public InvocationBuilder<M, R> beginInvoke() {
     // We can't create new invocations when the endpoint is closed.
     checkEndpointOpen();
-    return new PassthroughInvocationBuilder<M, R>(this.connection, this.entityClass.getCanonicalName(), this.entityName, this.clientInstanceID, messageCodec);
+    return new PassthroughInvocationBuilder<M, R>(this.connection, this::getEntityHandle, this.clientInstanceID, messageCodec);
+  }
+
+  public long getEntityHandle() {
+    return this.entityHandle;
+  }
+
+  /**
+   * Called when we reconnect to a new server, since the handle is only meaningful to the server which issued it.
+   */
+  public void setEntityHandle(long entityHandle) {
+    this.entityHandle = entityHandle;
   }
 
   @Override
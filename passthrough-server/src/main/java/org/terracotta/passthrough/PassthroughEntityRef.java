@@ -80,7 +80,10 @@ public class PassthroughEntityRef<T extends Entity, C, U> implements EntityRef<T
     } catch (InterruptedException e) {
       Assert.unexpected(e);
     }
-    return this.passthroughConnection.createEntityInstance(this.clazz, this.name, clientInstanceID, this.version, rawConfig, userData);
+    // The response is the entity handle, which we will use for all our invokes, followed by the config.
+    long entityHandle = PassthroughMessageCodec.decodeEntityHandleFromResponse(rawConfig);
+    byte[] config = PassthroughMessageCodec.decodeConfigurationFromResponse(rawConfig);
+    return this.passthroughConnection.createEntityInstance(this.clazz, this.name, clientInstanceID, entityHandle, this.version, config, userData);
   }
 
   @Override
@@ -0,0 +1,191 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.terracotta.exception.EntityAlreadyExistsException;
+import org.terracotta.exception.EntityConfigurationException;
+import org.terracotta.exception.EntityException;
+import org.terracotta.exception.EntityNotFoundException;
+import org.terracotta.exception.EntityNotProvidedException;
+import org.terracotta.exception.EntityServerException;
+
+
+/**
+ * Encodes the EntityExceptions sent back to clients.
+ * The common exception types are written compactly as a type byte, class name, entity name, description, and optional
+ * cause, then rebuilt through their constructors on the client.  Anything else (including subclasses of those types and
+ * exceptions with descriptions too long for writeUTF) falls back to Java serialization.
+ * Note that a compactly-encoded exception gets a new stack trace when it is rebuilt but its cause, if it has one, is still
+ * Java-serialized so its stack trace is preserved.
+ */
+public class PassthroughExceptionCodec {
+  private static final byte TYPE_SERIALIZED = 0;
+  private static final byte TYPE_NOT_FOUND = 1;
+  private static final byte TYPE_ALREADY_EXISTS = 2;
+  private static final byte TYPE_NOT_PROVIDED = 3;
+  private static final byte TYPE_CONFIGURATION = 4;
+  private static final byte TYPE_SERVER = 5;
+
+  public static byte[] encode(EntityException exception) {
+    byte[] encoded = null;
+    byte type = compactTypeOf(exception);
+    if (TYPE_SERIALIZED != type) {
+      try {
+        encoded = encodeCompact(type, exception);
+      } catch (IOException e) {
+        // Only possible if one of the strings is too long for writeUTF so just use the fallback.
+        encoded = null;
+      }
+    }
+    if (null == encoded) {
+      byte[] serialized = javaSerialize(exception);
+      encoded = new byte[1 + serialized.length];
+      encoded[0] = TYPE_SERIALIZED;
+      System.arraycopy(serialized, 0, encoded, 1, serialized.length);
+    }
+    return encoded;
+  }
+
+  public static EntityException decode(byte[] bytes) {
+    EntityException exception = null;
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      byte type = input.readByte();
+      if (TYPE_SERIALIZED == type) {
+        exception = (EntityException) javaDeserialize(input);
+      } else {
+        String className = readNullableString(input);
+        String entityName = readNullableString(input);
+        String description = readNullableString(input);
+        Throwable cause = input.readBoolean() ? (Throwable) javaDeserialize(input) : null;
+        switch (type) {
+          case TYPE_NOT_FOUND:
+            exception = new EntityNotFoundException(className, entityName);
+            break;
+          case TYPE_ALREADY_EXISTS:
+            exception = new EntityAlreadyExistsException(className, entityName);
+            break;
+          case TYPE_NOT_PROVIDED:
+            exception = new EntityNotProvidedException(className, entityName);
+            break;
+          case TYPE_CONFIGURATION:
+            exception = new EntityConfigurationException(className, entityName, cause);
+            break;
+          case TYPE_SERVER:
+            exception = new EntityServerException(className, entityName, description, cause);
+            break;
+          default:
+            Assert.unreachable();
+            break;
+        }
+      }
+    } catch (IOException e) {
+      // Can't happen with a byte array.
+      Assert.unexpected(e);
+    }
+    return exception;
+  }
+
+
+  private static byte compactTypeOf(EntityException exception) {
+    // We check the exact class since a subclass may carry state we wouldn't preserve.
+    Class<?> exceptionClass = exception.getClass();
+    // The server only ever creates the simple "not found", "already exists", and "not provided" exceptions without a cause.
+    boolean hasCause = (null != exception.getCause());
+    byte type = TYPE_SERIALIZED;
+    if ((EntityNotFoundException.class == exceptionClass) && !hasCause) {
+      type = TYPE_NOT_FOUND;
+    } else if ((EntityAlreadyExistsException.class == exceptionClass) && !hasCause) {
+      type = TYPE_ALREADY_EXISTS;
+    } else if ((EntityNotProvidedException.class == exceptionClass) && !hasCause) {
+      type = TYPE_NOT_PROVIDED;
+    } else if (EntityConfigurationException.class == exceptionClass) {
+      type = TYPE_CONFIGURATION;
+    } else if (EntityServerException.class == exceptionClass) {
+      type = TYPE_SERVER;
+    }
+    return type;
+  }
+
+  private static byte[] encodeCompact(byte type, EntityException exception) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeByte(type);
+    writeNullableString(output, exception.getClassName());
+    writeNullableString(output, exception.getEntityName());
+    // Only EntityServerException takes the description in its constructor but it is cheap enough to always write.
+    writeNullableString(output, exception.getDescription());
+    Throwable cause = exception.getCause();
+    output.writeBoolean(null != cause);
+    if (null != cause) {
+      output.write(javaSerialize(cause));
+    }
+    output.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void writeNullableString(DataOutputStream output, String string) throws IOException {
+    output.writeBoolean(null != string);
+    if (null != string) {
+      output.writeUTF(string);
+    }
+  }
+
+  private static String readNullableString(DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+
+  private static byte[] javaSerialize(Object object) {
+    ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+    try {
+      ObjectOutputStream objectOutput = new ObjectOutputStream(byteOutput);
+      try {
+        objectOutput.writeObject(object);
+      } finally {
+        objectOutput.close();
+      }
+    } catch (IOException e) {
+      // Can't happen with a byte array.
+      Assert.unexpected(e);
+    }
+    return byteOutput.toByteArray();
+  }
+
+  private static Object javaDeserialize(DataInputStream input) throws IOException {
+    Object object = null;
+    ObjectInputStream objectInput = new ObjectInputStream(input);
+    try {
+      object = objectInput.readObject();
+    } catch (ClassNotFoundException e) {
+      // We control this entire system so we should never fail to find the class.
+      Assert.unexpected(e);
+    } finally {
+      objectInput.close();
+    }
+    return object;
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * The optional pool of execution lanes used by PassthroughServerProcess to run invokes in parallel.
+ * Each lane is a single thread with its own FIFO so all the work for a given concurrency key is always run in the order it
+ * was enqueued, on the same thread, while work for different keys can run concurrently.
+ * The server thread uses waitForIdle() as a barrier before running anything which can't overlap with invokes (life-cycle
+ * messages, sync messages, MANAGEMENT_KEY/UNIVERSAL_KEY invokes, etc).
+ * The lane threads come from the server's PassthroughThreadFactory and all waits use ReentrantLocks, instead of monitors, so
+ * that they don't pin virtual threads.
+ */
+public class PassthroughExecutionLanes {
+  private final String serverName;
+  private final PassthroughThreadFactory threadFactory;
+  private final Lane[] lanes;
+  private final ReentrantLock idleLock;
+  private final Condition becameIdle;
+  // The number of tasks enqueued, across all lanes, which haven't yet finished running.  Only accessed under idleLock.
+  private int outstandingTasks;
+
+  public PassthroughExecutionLanes(String serverName, PassthroughThreadFactory threadFactory, int laneCount) {
+    Assert.assertTrue(laneCount > 0);
+    this.serverName = serverName;
+    this.threadFactory = threadFactory;
+    this.idleLock = new ReentrantLock();
+    this.becameIdle = this.idleLock.newCondition();
+    this.lanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; ++i) {
+      this.lanes[i] = new Lane();
+    }
+  }
+
+  public void start() {
+    for (int i = 0; i < this.lanes.length; ++i) {
+      Thread thread = this.threadFactory.newThread(this.lanes[i], "Server execution lane " + i + " (" + this.serverName + ")");
+      this.lanes[i].start(thread);
+    }
+  }
+
+  /**
+   * Stops all the lanes, after they have finished any tasks already enqueued.
+   */
+  public void stop() {
+    waitForIdle();
+    for (Lane lane : this.lanes) {
+      lane.stop();
+    }
+  }
+
+  /**
+   * @return True if the calling thread is one of the lane threads.
+   */
+  public boolean isLaneThread() {
+    Thread currentThread = Thread.currentThread();
+    boolean isLane = false;
+    for (Lane lane : this.lanes) {
+      if (lane.thread == currentThread) {
+        isLane = true;
+        break;
+      }
+    }
+    return isLane;
+  }
+
+  /**
+   * Enqueues the given task on the lane which owns the given concurrency key.
+   *
+   * @param concurrencyKey The key used to select the lane (any int is acceptable, including negatives)
+   * @param task The task to run
+   */
+  public void execute(int concurrencyKey, Runnable task) {
+    this.idleLock.lock();
+    try {
+      this.outstandingTasks += 1;
+    } finally {
+      this.idleLock.unlock();
+    }
+    this.lanes[Math.floorMod(concurrencyKey, this.lanes.length)].enqueue(task);
+  }
+
+  /**
+   * Blocks the caller until every task enqueued so far has finished running.
+   */
+  public void waitForIdle() {
+    this.idleLock.lock();
+    try {
+      while (this.outstandingTasks > 0) {
+        try {
+          this.becameIdle.await();
+        } catch (InterruptedException e) {
+          // We don't interrupt the server thread.
+          Assert.unexpected(e);
+        }
+      }
+    } finally {
+      this.idleLock.unlock();
+    }
+  }
+
+  private void taskDone() {
+    this.idleLock.lock();
+    try {
+      this.outstandingTasks -= 1;
+      if (0 == this.outstandingTasks) {
+        this.becameIdle.signalAll();
+      }
+    } finally {
+      this.idleLock.unlock();
+    }
+  }
+
+
+  private class Lane implements Runnable {
+    private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queueChanged = this.lock.newCondition();
+    private boolean isRunning;
+    private volatile Thread thread;
+
+    public void start(Thread thread) {
+      this.lock.lock();
+      try {
+        this.thread = thread;
+        this.isRunning = true;
+      } finally {
+        this.lock.unlock();
+      }
+      thread.start();
+    }
+
+    public void stop() {
+      this.lock.lock();
+      try {
+        this.isRunning = false;
+        this.queueChanged.signalAll();
+      } finally {
+        this.lock.unlock();
+      }
+      try {
+        this.thread.join();
+      } catch (InterruptedException e) {
+        Assert.unexpected(e);
+      }
+    }
+
+    public void enqueue(Runnable task) {
+      this.lock.lock();
+      try {
+        this.queue.add(task);
+        this.queueChanged.signalAll();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    @Override
+    public void run() {
+      Runnable task = getNextTask();
+      while (null != task) {
+        try {
+          task.run();
+        } finally {
+          taskDone();
+        }
+        task = getNextTask();
+      }
+    }
+
+    private Runnable getNextTask() {
+      this.lock.lock();
+      try {
+        while (this.isRunning && this.queue.isEmpty()) {
+          try {
+            this.queueChanged.await();
+          } catch (InterruptedException e) {
+            Assert.unexpected(e);
+          }
+        }
+        return this.queue.poll();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import org.terracotta.persistence.IPlatformPersistence;
+
+
+/**
+ * A file-backed IPlatformPersistence, for one consumer, so that restart tests go through real I/O.
+ * Each data element is serialized to its own file.  Every store writes a new version of the file under a temporary name and
+ * renames it into place before deleting the previous version, so a crash leaves either the old or the new element, never a
+ * partial one.  Sequences are kept in a PassthroughSequenceJournal, in a sub-directory.
+ * When and what is forced to the disk is decided by the PassthroughFsyncPolicy.
+ * With GROUP_COMMIT, stored elements are held in memory (where loads find them) and journal appends aren't forced until a
+ * PassthroughGroupCommitWriter commits them, on its own thread:  it writes the elements, outside of our monitor, and then
+ * forces the journal.
+ */
+public class PassthroughFilePlatformPersistentStorage implements IPlatformPersistence, IGroupCommitPersistence, Closeable {
+  private static final String ELEMENT_SUFFIX = ".element";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String JOURNAL_DIRECTORY_NAME = "sequences";
+
+  private final File directory;
+  private final PassthroughFsyncPolicy fsyncPolicy;
+  private final PassthroughSequenceJournal journal;
+  // The current version of each element on disk.
+  private final Map<String, Long> elementVersions = new HashMap<String, Long>();
+  // Only used with GROUP_COMMIT:  the serialized elements (null for a delete) stored since the running commit started and
+  // those being written by that commit.
+  private final PassthroughGroupCommitWriter groupCommitWriter;
+  private Map<String, byte[]> pendingElements = new LinkedHashMap<String, byte[]>();
+  private Map<String, byte[]> committingElements = Collections.emptyMap();
+
+  public PassthroughFilePlatformPersistentStorage(File directory, PassthroughFsyncPolicy fsyncPolicy, int journalSegmentSize) throws IOException {
+    this(directory, fsyncPolicy, journalSegmentSize, PassthroughThreadFactory.PLATFORM_THREADS);
+  }
+
+  /**
+   * @param threadFactory The factory used to create the group commit writer (only used with GROUP_COMMIT)
+   */
+  public PassthroughFilePlatformPersistentStorage(File directory, PassthroughFsyncPolicy fsyncPolicy, int journalSegmentSize, PassthroughThreadFactory threadFactory) throws IOException {
+    this.directory = directory;
+    this.fsyncPolicy = fsyncPolicy;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create storage directory: " + directory);
+    }
+    findElementVersions();
+    this.journal = new PassthroughSequenceJournal(new File(directory, JOURNAL_DIRECTORY_NAME), journalSegmentSize, (PassthroughFsyncPolicy.ALWAYS == fsyncPolicy));
+    if (PassthroughFsyncPolicy.GROUP_COMMIT == fsyncPolicy) {
+      this.groupCommitWriter = new PassthroughGroupCommitWriter(this::commitGroup);
+      this.groupCommitWriter.start(threadFactory, "Group commit writer: " + directory.getName());
+    } else {
+      this.groupCommitWriter = null;
+    }
+  }
+
+  @Override
+  public synchronized Serializable loadDataElement(String name) throws IOException {
+    return loadDataElementInLoader(name, null);
+  }
+
+  @Override
+  public synchronized Serializable loadDataElementInLoader(String name, final ClassLoader loader) throws IOException {
+    Serializable element = null;
+    byte[] serialized = null;
+    if (this.pendingElements.containsKey(name)) {
+      serialized = this.pendingElements.get(name);
+    } else if (this.committingElements.containsKey(name)) {
+      serialized = this.committingElements.get(name);
+    } else {
+      Long version = this.elementVersions.get(name);
+      if (null != version) {
+        serialized = Files.readAllBytes(elementFile(name, version, ELEMENT_SUFFIX).toPath());
+      }
+    }
+    if (null != serialized) {
+      try (ObjectInputStream input = new LoaderObjectInputStream(new ByteArrayInputStream(serialized), loader)) {
+        element = (Serializable) input.readObject();
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      }
+    }
+    return element;
+  }
+
+  @Override
+  public synchronized void storeDataElement(String name, Serializable element) throws IOException {
+    byte[] serialized = null;
+    if (null != element) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+        output.writeObject(element);
+      }
+      serialized = bytes.toByteArray();
+    }
+    if (null != this.groupCommitWriter) {
+      this.pendingElements.put(name, serialized);
+      this.groupCommitWriter.didWrite();
+    } else {
+      writeElement(name, serialized, (PassthroughFsyncPolicy.NEVER != this.fsyncPolicy));
+    }
+  }
+
+  @Override
+  public synchronized Future<Void> fastStoreSequence(long sequenceIndex, SequenceTuple newEntry, long oldestValidSequenceID) {
+    Future<Void> result = PassthroughCompletedFuture.DONE;
+    try {
+      this.journal.store(sequenceIndex, newEntry, oldestValidSequenceID);
+      if (null != this.groupCommitWriter) {
+        result = this.groupCommitWriter.didWrite();
+      }
+    } catch (IOException e) {
+      result = new PassthroughCompletedFuture(e);
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized List<SequenceTuple> loadSequence(long sequenceIndex) {
+    return this.journal.load(sequenceIndex);
+  }
+
+  @Override
+  public synchronized void deleteSequence(long sequenceIndex) throws IOException {
+    this.journal.delete(sequenceIndex);
+    if (null != this.groupCommitWriter) {
+      this.groupCommitWriter.didWrite();
+    }
+  }
+
+  @Override
+  public boolean isCommittingInGroups() {
+    return (null != this.groupCommitWriter);
+  }
+
+  @Override
+  public CompletableFuture<Void> getDurabilityBarrier() {
+    return (null != this.groupCommitWriter)
+        ? this.groupCommitWriter.getDurabilityBarrier()
+        : CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * @return The number of group commits run so far (always 0 unless the policy is GROUP_COMMIT)
+   */
+  public long getGroupCommitCount() {
+    return (null != this.groupCommitWriter) ? this.groupCommitWriter.getCommitCount() : 0L;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // Note that the writer's final commit needs our monitor so we can't hold it while waiting for that.
+    if (null != this.groupCommitWriter) {
+      this.groupCommitWriter.shutdown();
+    }
+    synchronized (this) {
+      this.journal.close();
+    }
+  }
+
+
+  /**
+   * Run by the group commit writer to make everything stored since the last commit durable.
+   */
+  private void commitGroup() throws IOException {
+    Map<String, byte[]> toWrite;
+    Runnable forceJournal;
+    synchronized (this) {
+      toWrite = this.pendingElements;
+      this.committingElements = toWrite;
+      this.pendingElements = new LinkedHashMap<String, byte[]>();
+      forceJournal = this.journal.getCurrentSegmentForcer();
+    }
+    Map<String, byte[]> unwritten = new LinkedHashMap<String, byte[]>(toWrite);
+    try {
+      for (Map.Entry<String, byte[]> entry : toWrite.entrySet()) {
+        writeElement(entry.getKey(), entry.getValue(), true);
+        unwritten.remove(entry.getKey());
+      }
+      forceJournal.run();
+    } finally {
+      // If the commit failed, the elements it didn't write go back to be written by the next one so that loads still see
+      // them.  Anything stored since then is newer so it wins (note that a pending delete is a null value).
+      synchronized (this) {
+        for (Map.Entry<String, byte[]> entry : unwritten.entrySet()) {
+          if (!this.pendingElements.containsKey(entry.getKey())) {
+            this.pendingElements.put(entry.getKey(), entry.getValue());
+          }
+        }
+        this.committingElements = Collections.emptyMap();
+      }
+    }
+  }
+
+  /**
+   * Writes a new version of the element (or deletes it, if serialized is null).  The version map is only touched under our
+   * monitor but the files are written without it so that a group commit doesn't block stores.
+   */
+  private void writeElement(String name, byte[] serialized, boolean shouldSync) throws IOException {
+    Long oldVersion;
+    synchronized (this) {
+      oldVersion = this.elementVersions.get(name);
+    }
+    Long newVersion = null;
+    if (null != serialized) {
+      newVersion = (null != oldVersion) ? (oldVersion + 1) : 1L;
+      File temp = elementFile(name, newVersion, TEMP_SUFFIX);
+      try (FileOutputStream file = new FileOutputStream(temp)) {
+        file.write(serialized);
+        if (shouldSync) {
+          file.getFD().sync();
+        }
+      }
+      Files.move(temp.toPath(), elementFile(name, newVersion, ELEMENT_SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+      if (shouldSync) {
+        PassthroughSequenceJournal.forceDirectory(this.directory);
+      }
+    }
+    synchronized (this) {
+      if (null != newVersion) {
+        this.elementVersions.put(name, newVersion);
+      } else {
+        this.elementVersions.remove(name);
+      }
+    }
+    if (null != oldVersion) {
+      Files.delete(elementFile(name, oldVersion, ELEMENT_SUFFIX).toPath());
+    }
+  }
+
+
+  /**
+   * Finds the newest version of each element, removing any older versions and temporary files left by a crash.
+   */
+  private void findElementVersions() throws IOException {
+    File[] files = this.directory.listFiles();
+    if (null != files) {
+      Map<String, File> newestFiles = new HashMap<String, File>();
+      for (File file : files) {
+        String fileName = file.getName();
+        if (fileName.endsWith(TEMP_SUFFIX)) {
+          Files.delete(file.toPath());
+        } else if (fileName.endsWith(ELEMENT_SUFFIX)) {
+          String base = fileName.substring(0, fileName.length() - ELEMENT_SUFFIX.length());
+          int versionStart = base.lastIndexOf('.');
+          String name = URLDecoder.decode(base.substring(0, versionStart), "UTF-8");
+          long version = Long.parseLong(base.substring(versionStart + 1));
+          Long newest = this.elementVersions.get(name);
+          if ((null == newest) || (version > newest)) {
+            if (null != newest) {
+              Files.delete(newestFiles.get(name).toPath());
+            }
+            this.elementVersions.put(name, version);
+            newestFiles.put(name, file);
+          } else {
+            Files.delete(file.toPath());
+          }
+        }
+      }
+    }
+  }
+
+  private File elementFile(String name, long version, String suffix) throws UnsupportedEncodingException {
+    return new File(this.directory, URLEncoder.encode(name, "UTF-8") + "." + version + suffix);
+  }
+
+
+  private static class LoaderObjectInputStream extends ObjectInputStream {
+    private final ClassLoader loader;
+
+    public LoaderObjectInputStream(InputStream input, ClassLoader loader) throws IOException {
+      super(input);
+      this.loader = loader;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+      return (null != this.loader)
+          ? Class.forName(description.getName(), false, this.loader)
+          : super.resolveClass(description);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.File;
+
+import org.terracotta.entity.ServiceProvider;
+import org.terracotta.entity.ServiceProviderConfiguration;
+
+
+/**
+ * The configuration of PassthroughFilePlatformStorageServiceProvider:  where the servers keep their files and how often the
+ * writes are forced to the disk.
+ * Each server stores its files in a sub-directory named for the server so the same configuration can be registered with
+ * every server in a stripe.  Note that the directory isn't cleared when a server is first started so tests should give each
+ * run its own directory.
+ */
+public class PassthroughFilePlatformStorageConfiguration implements ServiceProviderConfiguration {
+  // The default size of each memory-mapped journal segment.
+  public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 1024 * 1024;
+
+  private final File directory;
+  private final PassthroughFsyncPolicy fsyncPolicy;
+  private final int journalSegmentSize;
+
+  public PassthroughFilePlatformStorageConfiguration(File directory) {
+    this(directory, PassthroughFsyncPolicy.DATA_ELEMENTS, DEFAULT_JOURNAL_SEGMENT_SIZE);
+  }
+
+  public PassthroughFilePlatformStorageConfiguration(File directory, PassthroughFsyncPolicy fsyncPolicy, int journalSegmentSize) {
+    Assert.assertTrue(null != directory);
+    Assert.assertTrue(null != fsyncPolicy);
+    Assert.assertTrue(journalSegmentSize >= PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    this.directory = directory;
+    this.fsyncPolicy = fsyncPolicy;
+    this.journalSegmentSize = journalSegmentSize;
+  }
+
+  public File getDirectory() {
+    return this.directory;
+  }
+
+  public PassthroughFsyncPolicy getFsyncPolicy() {
+    return this.fsyncPolicy;
+  }
+
+  public int getJournalSegmentSize() {
+    return this.journalSegmentSize;
+  }
+
+  @Override
+  public Class<? extends ServiceProvider> getServiceProviderType() {
+    return PassthroughFilePlatformStorageServiceProvider.class;
+  }
+}
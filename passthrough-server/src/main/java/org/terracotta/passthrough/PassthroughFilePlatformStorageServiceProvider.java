@@ -0,0 +1,131 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.terracotta.entity.PlatformConfiguration;
+import org.terracotta.entity.ServiceConfiguration;
+import org.terracotta.entity.ServiceProvider;
+import org.terracotta.entity.ServiceProviderCleanupException;
+import org.terracotta.entity.ServiceProviderConfiguration;
+import org.terracotta.persistence.IPlatformPersistence;
+
+
+/**
+ * Provides a PassthroughFilePlatformPersistentStorage to each consumer, in its own sub-directory of the server's directory.
+ * Register this with a PassthroughFilePlatformStorageConfiguration, through registerServiceProvider, and the server will use
+ * it instead of the in-memory PassthroughNullPlatformStorageServiceProvider.
+ * Since this is Closeable, the passthrough server closes it (forcing any outstanding writes) when it is stopped.
+ */
+public class PassthroughFilePlatformStorageServiceProvider implements ServiceProvider, Closeable {
+  private final Map<Long, PassthroughFilePlatformPersistentStorage> providers = new HashMap<Long, PassthroughFilePlatformPersistentStorage>();
+  private PassthroughFilePlatformStorageConfiguration configuration;
+  private File serverDirectory;
+  private PassthroughThreadFactory threadFactory;
+
+  @Override
+  public boolean initialize(ServiceProviderConfiguration serviceProviderConfiguration, PlatformConfiguration platformConfiguration) {
+    this.configuration = (PassthroughFilePlatformStorageConfiguration) serviceProviderConfiguration;
+    String serverName = platformConfiguration.getServerName();
+    this.serverDirectory = new File(this.configuration.getDirectory(), (null != serverName) ? serverName : "server");
+    // The group commit writers are threads of the server so they come from its factory.
+    this.threadFactory = (platformConfiguration instanceof PassthroughPlatformConfiguration)
+        ? ((PassthroughPlatformConfiguration) platformConfiguration).getThreadFactory()
+        : PassthroughThreadFactory.PLATFORM_THREADS;
+    return true;
+  }
+
+  @Override
+  public synchronized <T> T getService(long consumerID, ServiceConfiguration<T> serviceConfiguration) {
+    PassthroughFilePlatformPersistentStorage storage = this.providers.get(consumerID);
+    if (null == storage) {
+      try {
+        storage = new PassthroughFilePlatformPersistentStorage(new File(this.serverDirectory, "consumer-" + consumerID), this.configuration.getFsyncPolicy(), this.configuration.getJournalSegmentSize(), this.threadFactory);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      this.providers.put(consumerID, storage);
+    }
+    return serviceConfiguration.getServiceType().cast(storage);
+  }
+
+  @Override
+  public Collection<Class<?>> getProvidedServiceTypes() {
+    Set<Class<?>> set = new HashSet<Class<?>>();
+    set.add(IPlatformPersistence.class);
+    return set;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (PassthroughFilePlatformPersistentStorage storage : this.providers.values()) {
+      storage.close();
+    }
+    this.providers.clear();
+  }
+
+  /**
+   * Called when this server is about to be synchronized from the active, as a new passive, so everything it had stored is
+   * deleted.
+   */
+  @Override
+  public synchronized void prepareForSynchronization() throws ServiceProviderCleanupException {
+    try {
+      close();
+      if (this.serverDirectory.exists()) {
+        deleteRecursively(this.serverDirectory.toPath());
+      }
+    } catch (IOException e) {
+      throw new ServiceProviderCleanupException("Could not delete " + this.serverDirectory + ": " + e.getMessage());
+    }
+  }
+
+
+  private static void deleteRecursively(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path directory, IOException exception) throws IOException {
+        if (null != exception) {
+          throw exception;
+        }
+        Files.delete(directory);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+
+/**
+ * Describes when PassthroughFilePlatformPersistentStorage forces its writes to the disk.
+ * Regardless of the policy, everything is forced when the storage is closed (on clean shutdown of the server).
+ */
+public enum PassthroughFsyncPolicy {
+  /**
+   * Individual writes are never forced:  the OS decides when they reach the disk.  The journal still forces each segment
+   * when it fills up and always fsyncs its snapshot, since the snapshot replaces the segments it covers.
+   */
+  NEVER,
+  /**
+   * Each data element file is forced before it replaces the previous version but journal appends (the transaction order
+   * sequences) are left to the OS until their segment is full.
+   */
+  DATA_ELEMENTS,
+  /**
+   * Every data element write and journal append is forced before the call returns.
+   */
+  ALWAYS,
+  /**
+   * Nothing is forced on the calling thread:  a background writer forces everything stored since its last commit in one
+   * group commit.  Stored data elements are kept in memory until then.  The Future returned by fastStoreSequence completes
+   * once the commit covering it is durable and the active server holds each client message's complete and retire until
+   * everything the message stored is durable.
+   */
+  GROUP_COMMIT,
+}
@@ -0,0 +1,77 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.function.Consumer;
+
+import org.terracotta.entity.EntityMessage;
+
+
+/**
+ * Used by the active, when its platform persistence commits in groups, to hold the complete and retire of each client
+ * message until everything the message stored (its transaction order entry, life-cycle record, entity catalog change, ...)
+ * is durable.
+ * The durability barrier is taken when the message sends its complete, so it covers everything the message stored, and the
+ * retire is held in the retirement manager until that barrier completes.  Since commits are made in order, this doesn't
+ * change the order of responses.
+ */
+public class PassthroughGroupCommitGate {
+  private final PassthroughRetirementManager retirementManager;
+  private final Consumer<EntityMessage> retireReadyItems;
+  private final IGroupCommitPersistence persistence;
+
+  /**
+   * @param retirementManager The retirement manager of the active
+   * @param retireReadyItems Called to release any retires which were waiting on the given message
+   * @param persistence The platform persistence of the active
+   */
+  public PassthroughGroupCommitGate(PassthroughRetirementManager retirementManager, Consumer<EntityMessage> retireReadyItems, IGroupCommitPersistence persistence) {
+    this.retirementManager = retirementManager;
+    this.retireReadyItems = retireReadyItems;
+    this.persistence = persistence;
+  }
+
+  /**
+   * Called on the active server thread before the message is run.
+   *
+   * @param sender The sender of the message
+   * @return The sender to use to run the message
+   */
+  public IMessageSenderWrapper holdUntilDurable(IMessageSenderWrapper sender) {
+    return new DurableSender(sender);
+  }
+
+
+  /**
+   * Stands in for the message's sender while it runs, holding its complete and retire until the commit covering the message
+   * is durable.
+   */
+  private class DurableSender extends PassthroughHeldResponseSender {
+    public DurableSender(IMessageSenderWrapper sender) {
+      super(sender, PassthroughGroupCommitGate.this.retirementManager, PassthroughGroupCommitGate.this.retireReadyItems);
+    }
+
+    @Override
+    protected void barrierNeeded() {
+      // Note that this runs right away, on this thread, if everything is already durable.  We release the message even if
+      // the commit failed since the writer already reported that and the client would otherwise hang.
+      PassthroughGroupCommitGate.this.persistence.getDurabilityBarrier().whenComplete((ignored, error) -> release());
+    }
+  }
+}
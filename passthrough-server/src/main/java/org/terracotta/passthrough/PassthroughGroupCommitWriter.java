@@ -0,0 +1,189 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * The background writer of a storage which commits in groups.
+ * The storage makes its writes without forcing them and then calls didWrite() to get the Future of the commit which will
+ * cover them.  This thread waits for a write, runs the storage's commit (which forces everything written since the last
+ * one) and completes that Future.  Anything written while a commit is running joins the next one so the number of commits
+ * only depends on how long each one takes, not on the number of writes.
+ */
+public class PassthroughGroupCommitWriter implements Runnable {
+  private static final CompletableFuture<Void> NOTHING_TO_COMMIT = CompletableFuture.completedFuture(null);
+
+  private final Committer committer;
+  // Guards everything below.  The condition is signalled whenever shouldRun or nextCommit changes.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition stateChanged = this.lock.newCondition();
+  private boolean shouldRun = true;
+  // The commit which will cover the next write or null, if nothing has been written since the running commit started.
+  private CompletableFuture<Void> nextCommit;
+  // The commit currently running, if any.
+  private CompletableFuture<Void> runningCommit;
+  // The last commit to finish, if it failed.  What it didn't write is only retried by the next commit so, until something
+  // else is written, the barrier must still report the failure.
+  private CompletableFuture<Void> failedCommit;
+  private long commitCount;
+  private Thread thread;
+
+  public PassthroughGroupCommitWriter(Committer committer) {
+    this.committer = committer;
+  }
+
+  public void start(PassthroughThreadFactory threadFactory, String name) {
+    Assert.assertTrue(null == this.thread);
+    this.thread = threadFactory.newThread(this, name);
+    this.thread.start();
+  }
+
+  /**
+   * Called by the storage after making a write (while still holding whatever lock its commit takes to collect the writes).
+   *
+   * @return The Future of the commit which will make the write durable
+   */
+  public CompletableFuture<Void> didWrite() {
+    this.lock.lock();
+    try {
+      if (null == this.nextCommit) {
+        this.nextCommit = new CompletableFuture<Void>();
+        this.stateChanged.signalAll();
+      }
+      return this.nextCommit;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * @return The Future of the commit which will make everything written so far durable (already complete if it is, or
+   * failed if the last commit failed and nothing has been written since)
+   */
+  public CompletableFuture<Void> getDurabilityBarrier() {
+    this.lock.lock();
+    try {
+      CompletableFuture<Void> barrier = NOTHING_TO_COMMIT;
+      if (null != this.nextCommit) {
+        barrier = this.nextCommit;
+      } else if (null != this.runningCommit) {
+        barrier = this.runningCommit;
+      } else if (null != this.failedCommit) {
+        barrier = this.failedCommit;
+      }
+      return barrier;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of commits run so far (a commit is counted before its Future is completed)
+   */
+  public long getCommitCount() {
+    this.lock.lock();
+    try {
+      return this.commitCount;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Stops the writer, after it commits anything already written, and waits for it to terminate.
+   */
+  public void shutdown() {
+    this.lock.lock();
+    try {
+      this.shouldRun = false;
+      this.stateChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+    try {
+      this.thread.join();
+    } catch (InterruptedException e) {
+      // We never interrupt this, internally.
+      Assert.unexpected(e);
+    }
+  }
+
+  @Override
+  public void run() {
+    CompletableFuture<Void> commit = waitForNextCommit();
+    while (null != commit) {
+      try {
+        this.committer.commit();
+        countCommit();
+        commit.complete(null);
+      } catch (IOException e) {
+        System.err.println("Group commit failed (writes since the last commit may not be durable)");
+        e.printStackTrace();
+        countCommit();
+        commit.completeExceptionally(e);
+      }
+      commit = waitForNextCommit();
+    }
+  }
+
+
+  private void countCommit() {
+    this.lock.lock();
+    try {
+      this.commitCount += 1;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until something has been written, making its commit the running one, or returns null if we were shut down with
+   * nothing left to commit.
+   */
+  private CompletableFuture<Void> waitForNextCommit() {
+    this.lock.lock();
+    try {
+      if (null != this.runningCommit) {
+        this.failedCommit = this.runningCommit.isCompletedExceptionally() ? this.runningCommit : null;
+        this.runningCommit = null;
+      }
+      while (this.shouldRun && (null == this.nextCommit)) {
+        this.stateChanged.awaitUninterruptibly();
+      }
+      this.runningCommit = this.nextCommit;
+      this.nextCommit = null;
+      return this.runningCommit;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+
+  /**
+   * Makes everything the storage has written since the last commit durable.  Called on the writer thread.
+   */
+  public interface Committer {
+    void commit() throws IOException;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.function.Consumer;
+
+import org.terracotta.entity.EntityMessage;
+
+
+/**
+ * Stands in for a message's sender while it runs, holding its complete and retire until something else has happened (the
+ * passives completing a pipelined invoke, the group commit covering the message becoming durable, etc).  The subclass
+ * calls release() once that has happened.
+ * The retire is held by deferring the message in the retirement manager on a barrier which release() then passes to
+ * retireReadyItems, so later retires still wait for this one.
+ */
+public abstract class PassthroughHeldResponseSender implements IMessageSenderWrapper {
+  private final IMessageSenderWrapper sender;
+  private final PassthroughRetirementManager retirementManager;
+  private final Consumer<EntityMessage> retireReadyItems;
+  // The retirement manager blocks the retire on this until we are released.  It is just an identity.
+  private final EntityMessage barrier = new EntityMessage() {};
+  // Everything below is guarded by the monitor which is also held while passing things on to the sender so that the
+  // complete and retire can't be passed on out of order or race with the release.
+  private boolean didNeedBarrier;
+  private boolean isReleased;
+  private PassthroughMessage heldComplete;
+  private boolean didDeferRetire;
+  // We track open/close, ourselves, instead of passing it on, so that the retire always reaches the sender on the thread
+  // where we deferred it in the retirement manager.
+  private int openCount;
+  private PassthroughMessage retireAfterClose;
+
+  /**
+   * @param sender The sender of the message
+   * @param retirementManager The retirement manager of the server running the message
+   * @param retireReadyItems Called to release any retires which were waiting on the given message
+   */
+  protected PassthroughHeldResponseSender(IMessageSenderWrapper sender, PassthroughRetirementManager retirementManager, Consumer<EntityMessage> retireReadyItems) {
+    this.sender = sender;
+    this.retirementManager = retirementManager;
+    this.retireReadyItems = retireReadyItems;
+  }
+
+  /**
+   * Called once, under the monitor, when the message first sends its last complete or its retire, so everything it did
+   * happens before this.  It may call release() before returning.
+   */
+  protected void barrierNeeded() {
+  }
+
+  /**
+   * Passes on the held complete and retire, and anything sent after this.  Called once, on any thread.
+   */
+  protected synchronized void release() {
+    Assert.assertTrue(!this.isReleased);
+    this.isReleased = true;
+    if (null != this.heldComplete) {
+      this.sender.sendComplete(this.heldComplete, true);
+      this.heldComplete = null;
+    }
+    if (this.didDeferRetire) {
+      this.retireReadyItems.accept(this.barrier);
+    }
+  }
+
+  @Override
+  public synchronized void open() {
+    this.openCount += 1;
+  }
+
+  @Override
+  public void sendAck(PassthroughMessage ack) {
+    this.sender.sendAck(ack);
+  }
+
+  @Override
+  public synchronized void sendComplete(PassthroughMessage complete, boolean last) {
+    // Only the last complete is held:  anything before it is a monitor message from an invoke channel.
+    if (last) {
+      needBarrier();
+    }
+    if (last && !this.isReleased) {
+      this.heldComplete = complete;
+    } else {
+      this.sender.sendComplete(complete, last);
+    }
+  }
+
+  @Override
+  public synchronized void sendRetire(PassthroughMessage retire) {
+    if (0 == this.openCount) {
+      passOnRetire(retire);
+    } else {
+      this.retireAfterClose = retire;
+    }
+  }
+
+  @Override
+  public PassthroughClientDescriptor clientDescriptorForID(long clientInstanceID) {
+    return this.sender.clientDescriptorForID(clientInstanceID);
+  }
+
+  @Override
+  public long getClientOriginID() {
+    return this.sender.getClientOriginID();
+  }
+
+  @Override
+  public synchronized void close() {
+    this.openCount -= 1;
+    if ((0 == this.openCount) && (null != this.retireAfterClose)) {
+      passOnRetire(this.retireAfterClose);
+      this.retireAfterClose = null;
+    }
+  }
+
+  private void needBarrier() {
+    if (!this.didNeedBarrier) {
+      this.didNeedBarrier = true;
+      barrierNeeded();
+    }
+  }
+
+  private void passOnRetire(PassthroughMessage retire) {
+    // The retirement manager associates deferrals with the current thread so we defer and pass on the retire together.
+    needBarrier();
+    if (!this.isReleased) {
+      this.retirementManager.deferCurrentMessage(this.barrier);
+      this.didDeferRetire = true;
+    }
+    this.sender.sendRetire(retire);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Describes the inbound message queue of a server process and how often its capacity was hit, so that it can be sized.
+ * This can be read from any thread.
+ */
+public class PassthroughInboundQueueStatistics {
+  private final PassthroughMessageQueue queue;
+  private final int capacity;
+  private final PassthroughBackpressurePolicy policy;
+  private final AtomicLong blockedSends = new AtomicLong();
+  private final AtomicLong rejectedSends = new AtomicLong();
+  private final AtomicLong shedInvokes = new AtomicLong();
+
+  PassthroughInboundQueueStatistics(PassthroughMessageQueue queue, int capacity, PassthroughBackpressurePolicy policy) {
+    this.queue = queue;
+    this.capacity = capacity;
+    this.policy = policy;
+  }
+
+  void recordBlockedSend() {
+    this.blockedSends.incrementAndGet();
+  }
+
+  void recordRejectedSend() {
+    this.rejectedSends.incrementAndGet();
+  }
+
+  void recordShedInvoke() {
+    this.shedInvokes.incrementAndGet();
+  }
+
+  /**
+   * @return The configured capacity of the queue (0 if it is unbounded)
+   */
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   * @return The policy applied to client sends when the queue is at capacity
+   */
+  public PassthroughBackpressurePolicy getPolicy() {
+    return this.policy;
+  }
+
+  /**
+   * @return The number of messages currently in the queue
+   */
+  public int getCurrentDepth() {
+    return this.queue.size();
+  }
+
+  /**
+   * @return The largest number of messages which have been in the queue at once
+   */
+  public int getMaxDepth() {
+    return this.queue.getLargestSize();
+  }
+
+  /**
+   * @return The number of client sends which had to wait for space (BLOCK policy)
+   */
+  public long getBlockedSends() {
+    return this.blockedSends.get();
+  }
+
+  /**
+   * @return The number of client sends refused because the queue was full (FAIL_FAST policy)
+   */
+  public long getRejectedSends() {
+    return this.rejectedSends.get();
+  }
+
+  /**
+   * @return The number of non-replicated invokes refused because the queue was full (SHED_NON_REPLICATED_INVOKES policy)
+   */
+  public long getShedInvokes() {
+    return this.shedInvokes.get();
+  }
+
+  @Override
+  public String toString() {
+    return "PassthroughInboundQueueStatistics{capacity=" + this.capacity + ", policy=" + this.policy + ", depth=" + getCurrentDepth() + ", maxDepth=" + getMaxDepth()
+        + ", blocked=" + getBlockedSends() + ", rejected=" + getRejectedSends() + ", shed=" + getShedInvokes() + "}";
+  }
+}
@@ -18,40 +18,82 @@
  */
 package org.terracotta.passthrough;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
 /**
  * In the case where we are an active sending a message to a downstream passive, we use this implementation to provide the
  * basic interlock across the 2 threads.
+ * Note that this uses a ReentrantLock, instead of the monitor, so that an active waiting for its passives doesn't pin a
+ * virtual server thread.
  */
 public class PassthroughInterserverInterlock implements IMessageSenderWrapper {
   private final IMessageSenderWrapper sender;
+  // Run, on the passive's thread, when the passive completes the message.  Null if the active is waiting, instead.
+  private final Runnable onComplete;
+  // Told when the passive completes a replicated message (null for messages which aren't counted, like sync messages).
+  private final PassthroughReplicationStatistics statistics;
+  private final long replicatedNanos;
+  // The state below is guarded by this lock and any change to it signals stateChanged.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition stateChanged = this.lock.newCondition();
   private boolean isComplete = false;
   private boolean didSucceed = false;
   private boolean isRetired = false;
 
   public PassthroughInterserverInterlock(IMessageSenderWrapper sender) {
+    this(sender, null);
+  }
+
+  public PassthroughInterserverInterlock(IMessageSenderWrapper sender, Runnable onComplete) {
+    this(sender, onComplete, null);
+  }
+
+  /**
+   * Creates the interlock for a message replicated to a passive, counting it in the passive's replication statistics until
+   * it is completed.
+   */
+  public PassthroughInterserverInterlock(IMessageSenderWrapper sender, Runnable onComplete, PassthroughReplicationStatistics statistics) {
     this.sender = sender;
+    this.onComplete = onComplete;
+    this.statistics = statistics;
+    this.replicatedNanos = (null != statistics) ? System.nanoTime() : 0L;
+    if (null != statistics) {
+      statistics.recordReplicated();
+    }
   }
 
-  public synchronized boolean waitForComplete() {
-    while (!this.isComplete) {
-      try {
-        wait();
-      } catch (InterruptedException e) {
-        Assert.unexpected(e);
+  public boolean waitForComplete() {
+    this.lock.lock();
+    try {
+      while (!this.isComplete) {
+        try {
+          this.stateChanged.await();
+        } catch (InterruptedException e) {
+          Assert.unexpected(e);
+        }
       }
+      return this.didSucceed;
+    } finally {
+      this.lock.unlock();
     }
-    return this.didSucceed;
   }
 
-  public synchronized boolean waitForRetired() {
-    while (!this.isRetired) {
-      try {
-        wait();
-      } catch (InterruptedException e) {
-        Assert.unexpected(e);
+  public boolean waitForRetired() {
+    this.lock.lock();
+    try {
+      while (!this.isRetired) {
+        try {
+          this.stateChanged.await();
+        } catch (InterruptedException e) {
+          Assert.unexpected(e);
+        }
       }
+      return this.didSucceed;
+    } finally {
+      this.lock.unlock();
     }
-    return this.didSucceed;
   }
 
   @Override
@@ -59,16 +101,32 @@ public class PassthroughInterserverInterlock implements IMessageSenderWrapper {
   }
 
   @Override
-  public synchronized void sendComplete(PassthroughMessage complete, boolean last) {
-    this.isComplete = last;
-    this.didSucceed = (complete.type != PassthroughMessage.Type.MONITOR_EXCEPTION);
-    notifyAll();
+  public void sendComplete(PassthroughMessage complete, boolean last) {
+    this.lock.lock();
+    try {
+      this.isComplete = last;
+      this.didSucceed = (complete.type != PassthroughMessage.Type.MONITOR_EXCEPTION);
+      this.stateChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+    if (last && (null != this.statistics)) {
+      this.statistics.recordCompleted(this.replicatedNanos);
+    }
+    if (last && (null != this.onComplete)) {
+      this.onComplete.run();
+    }
   }
 
   @Override
-  public synchronized void sendRetire(PassthroughMessage retire) {
-    this.isRetired = true;
-    notifyAll();
+  public void sendRetire(PassthroughMessage retire) {
+    this.lock.lock();
+    try {
+      this.isRetired = true;
+      this.stateChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   @Override
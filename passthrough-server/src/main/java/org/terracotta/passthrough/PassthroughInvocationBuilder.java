@@ -20,7 +20,6 @@ package org.terracotta.passthrough;
 
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Future;
 import org.terracotta.entity.InvocationBuilder;
 import org.terracotta.entity.InvokeFuture;
 import org.terracotta.entity.EntityMessage;
@@ -31,6 +30,8 @@ import org.terracotta.exception.EntityException;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
 import org.terracotta.entity.InvokeMonitor;
 import org.terracotta.exception.EntityServerException;
 
@@ -41,9 +42,10 @@ import org.terracotta.exception.EntityServerException;
  * mechanism (by requesting it in the underlying PassthroughConnection).
  */
 public class PassthroughInvocationBuilder<M extends EntityMessage, R extends EntityResponse> implements InvocationBuilder<M, R> {
+  private static final byte[] NO_PAYLOAD = new byte[0];
+
   private final PassthroughConnection connection;
-  private final String entityClassName;
-  private final String entityName;
+  private final LongSupplier entityHandle;
   private final long clientInstanceID;
   private final MessageCodec<M, R> messageCodec;
   
@@ -58,10 +60,9 @@ public class PassthroughInvocationBuilder<M extends EntityMessage, R extends Ent
   private InvokeMonitor monitor;
   private Executor executor;
   
-  public PassthroughInvocationBuilder(PassthroughConnection connection, String entityClassName, String entityName, long clientInstanceID, MessageCodec<M, R> messageCodec) {
+  public PassthroughInvocationBuilder(PassthroughConnection connection, LongSupplier entityHandle, long clientInstanceID, MessageCodec<M, R> messageCodec) {
     this.connection = connection;
-    this.entityClassName = entityClassName;
-    this.entityName = entityName;
+    this.entityHandle = entityHandle;
     this.clientInstanceID = clientInstanceID;
     this.messageCodec = messageCodec;
     
@@ -140,8 +141,15 @@ public class PassthroughInvocationBuilder<M extends EntityMessage, R extends Ent
 
   @Override
   public InvokeFuture<R> invoke() throws MessageCodecException {
-    final PassthroughMessage message = PassthroughMessageCodec.createInvokeMessage(this.entityClassName, this.entityName, this.clientInstanceID, messageCodec.encodeMessage(this.request), this.shouldReplicate);
-    final Future<byte[]> invokeFuture = this.connection.invokeActionAndWaitForAcks(message, 
+    // On the object lane, the message goes to the server by reference and the response comes back the same way.  Deferred
+    // responses are delivered through the monitor, as encoded bytes, so they always use the codec.
+    final boolean isObjectLane = this.connection.isUsingObjectLane() && !this.deferredResponse;
+    byte[] payload = isObjectLane ? NO_PAYLOAD : messageCodec.encodeMessage(this.request);
+    final PassthroughMessage message = PassthroughMessageCodec.createInvokeMessage(this.entityHandle, this.clientInstanceID, payload, this.shouldReplicate);
+    if (isObjectLane) {
+      message.setAttachment(this.request);
+    }
+    final PassthroughWait invokeFuture = this.connection.invokeActionAndWaitForAcks(message, 
         this.shouldWaitForSent, this.shouldWaitForReceived, this.shouldWaitForCompleted, 
         this.shouldWaitForRetired, this.shouldBlockGetUntilRetire, this.deferredResponse, new PassthroughMonitor(messageCodec, monitor, executor));
     return new InvokeFuture<R>() {
@@ -153,7 +161,7 @@ public class PassthroughInvocationBuilder<M extends EntityMessage, R extends Ent
       @Override
       public R get() throws InterruptedException, EntityException {
         try {
-          return messageCodec.decodeResponse(invokeFuture.get());
+          return decodeResponse(invokeFuture, invokeFuture.get());
         } catch (MessageCodecException e) {
           throw new EntityServerException(null, null, null, e);
         } catch (ExecutionException e) {
@@ -164,7 +172,7 @@ public class PassthroughInvocationBuilder<M extends EntityMessage, R extends Ent
       @Override
       public R getWithTimeout(long timeout, TimeUnit unit) throws InterruptedException, EntityException, TimeoutException {
         try {
-          return messageCodec.decodeResponse(invokeFuture.get(timeout, unit));
+          return decodeResponse(invokeFuture, invokeFuture.get(timeout, unit));
         } catch (MessageCodecException e) {
           throw new EntityServerException(null, null, null, e);
         } catch (ExecutionException e) {
@@ -176,6 +184,13 @@ public class PassthroughInvocationBuilder<M extends EntityMessage, R extends Ent
       public void interrupt() {
         invokeFuture.cancel(true);
       }
+
+      @SuppressWarnings("unchecked")
+      private R decodeResponse(PassthroughWait waiter, byte[] rawResponse) throws MessageCodecException {
+        return isObjectLane
+            ? (R) waiter.getResponseObject()
+            : messageCodec.decodeResponse(rawResponse);
+      }
     };
   }
 
@@ -20,9 +20,13 @@ package org.terracotta.passthrough;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.terracotta.exception.EntityException;
 import org.terracotta.passthrough.PassthroughServerMessageDecoder.LifeCycleMessageHandler;
@@ -30,49 +34,43 @@ import org.terracotta.persistence.IPlatformPersistence;
 
 
 /**
- * This implementation has 2 different modes (may be worth splitting this into a few classes if it ever becomes complex but much of the code is the same):
- * 1) Backed by KeyValueStorage.
- * 2) Backed by Map.
- * The core logic which manipulates the data stored in either of these is the same, only how it is loaded or written-back.
+ * Records the outcome of each life-cycle message so that a re-sent message gets the same answer as the original.
+ * The records are indexed by client and then by transaction ID so that lookups don't scan the records and the records a
+ * client no longer needs (those older than its oldest transaction ID) can be dropped as a sorted range.
+ * The records are stored in a PassthroughPersistentMap so that each message only stores the change it makes.
  */
 public class PassthroughLifeCycleHandler implements LifeCycleMessageHandler {
   private static final String LIFE_CYCLE_RECORD_FILE_NAME = "life_cycle_record.map";
 
-  private final IPlatformPersistence platformPersistence;
-  private final HashMap<Long, List<LifeCycleRecord>> lifeCycleRecordByClientIDMap;
+  private final PassthroughPersistentMap<LifeCycleRecordKey, LifeCycleRecord> storedRecords;
+  private final HashMap<Long, TreeMap<Long, LifeCycleRecord>> lifeCycleRecordByClientIDMap;
 
-  @SuppressWarnings({ "unchecked", })
   public PassthroughLifeCycleHandler(IPlatformPersistence platformPersistence, boolean shouldLoadStorage) {
     Assert.assertTrue(null != platformPersistence);
-    this.platformPersistence = platformPersistence;
-    HashMap<Long, List<LifeCycleRecord>> loadedMap = null;
+    this.storedRecords = new PassthroughPersistentMap<LifeCycleRecordKey, LifeCycleRecord>(platformPersistence, LIFE_CYCLE_RECORD_FILE_NAME);
+    this.lifeCycleRecordByClientIDMap = new HashMap<Long, TreeMap<Long, LifeCycleRecord>>();
+    LinkedHashMap<LifeCycleRecordKey, LifeCycleRecord> loadedRecords = null;
     try {
-      loadedMap = (HashMap<Long, List<LifeCycleRecord>>) (shouldLoadStorage ? this.platformPersistence.loadDataElement(LIFE_CYCLE_RECORD_FILE_NAME) : null);
+      loadedRecords = this.storedRecords.load(shouldLoadStorage, PassthroughLifeCycleHandler::convertLegacyRecords);
     } catch (IOException e) {
       Assert.unexpected(e);
     }
-    if (null == loadedMap) {
-      loadedMap = new HashMap<Long, List<LifeCycleRecord>>();
+    for (Map.Entry<LifeCycleRecordKey, LifeCycleRecord> entry : loadedRecords.entrySet()) {
+      getOrCreateClient(entry.getKey().clientOriginID).put(entry.getKey().transactionID, entry.getValue());
     }
-    this.lifeCycleRecordByClientIDMap = loadedMap;
   }
 
   @Override
   public boolean didAlreadyHandle(long clientOriginID, long transactionID) throws EntityException {
     boolean didHandle = false;
-    List<LifeCycleRecord> records = loadClient(clientOriginID);
-    if (null != records) {
-      for (LifeCycleRecord record : records) {
-        if (record.transactionID == transactionID) {
-          if (null == record.error) {
-            // Success.
-            didHandle = true;
-            break;
-          } else {
-            // We know about this but it was a failure.
-            throw record.error;
-          }
-        }
+    LifeCycleRecord record = findRecord(clientOriginID, transactionID);
+    if (null != record) {
+      if (null == record.error) {
+        // Success.
+        didHandle = true;
+      } else {
+        // We know about this but it was a failure.
+        throw record.error;
       }
     }
     return didHandle;
@@ -81,20 +79,15 @@ public class PassthroughLifeCycleHandler implements LifeCycleMessageHandler {
   @Override
   public byte[] didAlreadyHandleResult(long clientOriginID, long transactionID) throws EntityException {
     byte[] result = null;
-    List<LifeCycleRecord> records = loadClient(clientOriginID);
-    if (null != records) {
-      for (LifeCycleRecord record : records) {
-        if (record.transactionID == transactionID) {
-          if (null == record.error) {
-            // Success.
-            Assert.assertTrue(null != record.reconfigureResult);
-            result = record.reconfigureResult;
-            break;
-          } else {
-            // We know about this but it was a failure.
-            throw record.error;
-          }
-        }
+    LifeCycleRecord record = findRecord(clientOriginID, transactionID);
+    if (null != record) {
+      if (null == record.error) {
+        // Success.
+        Assert.assertTrue(null != record.reconfigureResult);
+        result = record.reconfigureResult;
+      } else {
+        // We know about this but it was a failure.
+        throw record.error;
       }
     }
     return result;
@@ -114,39 +107,75 @@ public class PassthroughLifeCycleHandler implements LifeCycleMessageHandler {
 
 
   private void addNewRecord(long clientOriginID, long transactionID, long oldestTransactionID, byte[] reconfigureResult, EntityException error) {
-    List<LifeCycleRecord> newRecords = filteredRecords(clientOriginID, oldestTransactionID);
-    LifeCycleRecord newRecord = new LifeCycleRecord();
-    newRecord.transactionID = transactionID;
-    newRecord.reconfigureResult = reconfigureResult;
-    newRecord.error = error;
-    newRecords.add(newRecord);
-    storeClient(clientOriginID, newRecords);
+    TreeMap<Long, LifeCycleRecord> records = getOrCreateClient(clientOriginID);
+    // The client has given up on everything below its oldest transaction ID so drop those records (normally none or a
+    // few, at the start of the map).
+    SortedMap<Long, LifeCycleRecord> obsoleteRecords = records.headMap(oldestTransactionID);
+    List<LifeCycleRecordKey> keysToRemove = new ArrayList<LifeCycleRecordKey>(obsoleteRecords.size());
+    for (long obsoleteTransactionID : obsoleteRecords.keySet()) {
+      keysToRemove.add(new LifeCycleRecordKey(clientOriginID, obsoleteTransactionID));
+    }
+    obsoleteRecords.clear();
+    LifeCycleRecord newRecord = new LifeCycleRecord(transactionID, reconfigureResult, error);
+    records.put(transactionID, newRecord);
+    try {
+      this.storedRecords.removeAllAndPut(keysToRemove, new LifeCycleRecordKey(clientOriginID, transactionID), newRecord);
+    } catch (IOException e) {
+      Assert.unexpected(e);
+    }
   }
 
-  private List<LifeCycleRecord> filteredRecords(long clientOriginID, long oldestTransactionID) {
-    List<LifeCycleRecord> records = loadClient(clientOriginID);
+  private LifeCycleRecord findRecord(long clientOriginID, long transactionID) {
+    TreeMap<Long, LifeCycleRecord> records = this.lifeCycleRecordByClientIDMap.get(clientOriginID);
+    return (null != records) ? records.get(transactionID) : null;
+  }
+
+  private TreeMap<Long, LifeCycleRecord> getOrCreateClient(long clientOriginID) {
+    TreeMap<Long, LifeCycleRecord> records = this.lifeCycleRecordByClientIDMap.get(clientOriginID);
     if (null == records) {
-      records = new Vector<LifeCycleRecord>();
+      records = new TreeMap<Long, LifeCycleRecord>();
+      this.lifeCycleRecordByClientIDMap.put(clientOriginID, records);
     }
-    List<LifeCycleRecord> newRecords = new Vector<LifeCycleRecord>();
-    for (LifeCycleRecord record : records) {
-      if (record.transactionID >= oldestTransactionID) {
-        newRecords.add(record);
+    return records;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<LifeCycleRecordKey, LifeCycleRecord> convertLegacyRecords(Object legacy) {
+    // This used to be stored as a list of records for each client.
+    Map<LifeCycleRecordKey, LifeCycleRecord> converted = new LinkedHashMap<LifeCycleRecordKey, LifeCycleRecord>();
+    for (Map.Entry<Long, List<LifeCycleRecord>> entry : ((Map<Long, List<LifeCycleRecord>>) legacy).entrySet()) {
+      for (LifeCycleRecord record : entry.getValue()) {
+        converted.put(new LifeCycleRecordKey(entry.getKey(), record.transactionID), record);
       }
     }
-    return newRecords;
+    return converted;
   }
 
-  private List<LifeCycleRecord> loadClient(long clientOriginID) {
-    return this.lifeCycleRecordByClientIDMap.get(clientOriginID);
-  }
 
-  private void storeClient(long clientOriginID, List<LifeCycleRecord> data) {
-    this.lifeCycleRecordByClientIDMap.put(clientOriginID, data);
-    try {
-      this.platformPersistence.storeDataElement(LIFE_CYCLE_RECORD_FILE_NAME, this.lifeCycleRecordByClientIDMap);
-    } catch (IOException e) {
-      Assert.unexpected(e);
+  private static class LifeCycleRecordKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final long clientOriginID;
+    public final long transactionID;
+
+    public LifeCycleRecordKey(long clientOriginID, long transactionID) {
+      this.clientOriginID = clientOriginID;
+      this.transactionID = transactionID;
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * Long.hashCode(this.clientOriginID)) + Long.hashCode(this.transactionID);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      boolean isEqual = (obj == this);
+      if (!isEqual && (obj instanceof LifeCycleRecordKey)) {
+        LifeCycleRecordKey other = (LifeCycleRecordKey) obj;
+        isEqual = (this.clientOriginID == other.clientOriginID) && (this.transactionID == other.transactionID);
+      }
+      return isEqual;
     }
   }
 
@@ -154,8 +183,14 @@ public class PassthroughLifeCycleHandler implements LifeCycleMessageHandler {
   private static class LifeCycleRecord implements Serializable {
     private static final long serialVersionUID = 1L;
     
-    public long transactionID;
-    public byte[] reconfigureResult;
-    public EntityException error;
+    public final long transactionID;
+    public final byte[] reconfigureResult;
+    public final EntityException error;
+
+    public LifeCycleRecord(long transactionID, byte[] reconfigureResult, EntityException error) {
+      this.transactionID = transactionID;
+      this.reconfigureResult = reconfigureResult;
+      this.error = error;
+    }
   }
 }
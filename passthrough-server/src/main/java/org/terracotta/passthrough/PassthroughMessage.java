@@ -18,9 +18,8 @@
  */
 package org.terracotta.passthrough;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.DataOutput;
 import java.io.IOException;
 
 
@@ -62,6 +61,8 @@ public abstract class PassthroughMessage {
   public final boolean shouldReplicateToPassives;
   public long transactionID;
   public long oldestTransactionID;
+  // Used by the object lane to pass an object, by reference, alongside the serialized message.  It is never serialized.
+  private Object attachment;
   
   public PassthroughMessage(Type type, boolean shouldReplicateToPassives) {
     this.shouldReplicateToPassives = shouldReplicateToPassives;
@@ -73,22 +74,34 @@ public abstract class PassthroughMessage {
     this.oldestTransactionID = oldestTransactionID;
   }
 
+  public void setAttachment(Object attachment) {
+    this.attachment = attachment;
+  }
+
+  public Object getAttachment() {
+    return this.attachment;
+  }
+
   public byte[] asSerializedBytes() {
-    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    return PassthroughMessageEncoder.encode(this);
+  }
+
+  /**
+   * Writes the header and then the message-specific body.  Called twice per serialization (once to size and once to write)
+   * by PassthroughMessageEncoder so it must write the same bytes, both times.
+   */
+  void writeTo(DataOutput output) {
     try {
-      DataOutputStream output = new DataOutputStream(bytes);
       output.writeInt(this.type.ordinal());
       output.writeBoolean(this.shouldReplicateToPassives);
       output.writeLong(this.transactionID);
       output.writeLong(this.oldestTransactionID);
       this.populateStream(output);
-      output.close();
-    } catch (IOException e) { 
-      // Can't happen with a byte array.
+    } catch (IOException e) {
+      // Can't happen with an in-memory encoder (other than an over-long UTF string, which is a bug).
       Assert.unexpected(e);
     }
-    return bytes.toByteArray();
   }
   
-  protected abstract void populateStream(DataOutputStream output) throws IOException;
+  protected abstract void populateStream(DataOutput output) throws IOException;
 }
@@ -19,12 +19,12 @@
 package org.terracotta.passthrough;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
 
 import org.terracotta.exception.EntityException;
 import org.terracotta.passthrough.PassthroughMessage.Type;
@@ -37,11 +37,25 @@ import org.terracotta.passthrough.PassthroughMessage.Type;
  * the same process).  Serializing them ensures that there are no invalid assumptions being made on either side, however.
  */
 public class PassthroughMessageCodec {
+  /**
+   * Written in place of an entity handle, at the start of an INVOKE_ON_SERVER body, when the entity is instead described by
+   * its class and name (used for internally-generated invokes and when sending to a server which didn't issue the handle).
+   */
+  public static final long NO_ENTITY_HANDLE = -1L;
+  // The size of the common header:  type ordinal, shouldReplicate, transactionID, oldestTransactionID.
+  // The fixed layout of the header written by PassthroughMessage (type ordinal, shouldReplicate, transactionID,
+  // oldestTransactionID) so that the common header questions can be answered by reading the raw bytes in place.
+  private static final int TYPE_OFFSET = 0;
+  private static final int SHOULD_REPLICATE_OFFSET = TYPE_OFFSET + Integer.BYTES;
+  private static final int TRANSACTION_ID_OFFSET = SHOULD_REPLICATE_OFFSET + 1;
+  private static final int OLDEST_TRANSACTION_ID_OFFSET = TRANSACTION_ID_OFFSET + Long.BYTES;
+  private static final int HEADER_SIZE = OLDEST_TRANSACTION_ID_OFFSET + Long.BYTES;
+
   public static PassthroughMessage createFetchMessage(final String entityClassName, final String entityName, final long clientInstanceID, final long version) {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.FETCH_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(clientInstanceID);
@@ -53,7 +67,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.RELEASE_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(clientInstanceID);
@@ -64,7 +78,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.UNEXPECTED_RELEASE, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(clientInstanceID);
@@ -75,7 +89,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.DOES_ENTITY_EXIST, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(version);
@@ -86,7 +100,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.DESTROY_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
       }};
@@ -96,7 +110,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.CREATE_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(version);
@@ -109,7 +123,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = true;
     return new PassthroughMessage(Type.RECONFIGURE_ENTITY, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(version);
@@ -121,7 +135,8 @@ public class PassthroughMessageCodec {
   public static PassthroughMessage createInvokeMessage(final String entityClassName, final String entityName, final long clientInstanceID, final byte[] payload, final boolean shouldReplicateToPassives) {
     return new PassthroughMessage(Type.INVOKE_ON_SERVER, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
+        output.writeLong(NO_ENTITY_HANDLE);
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(clientInstanceID);
@@ -130,12 +145,31 @@ public class PassthroughMessageCodec {
       }};
   }
 
+  /**
+   * Creates an invoke which refers to its entity by the handle returned by the server from FETCH_ENTITY (or RECONNECT),
+   * instead of by name.
+   * Note that the handle is only read when the message is serialized, not when it is created, since a reconnect between
+   * the two will have changed it.
+   */
+  public static PassthroughMessage createInvokeMessage(final LongSupplier entityHandle, final long clientInstanceID, final byte[] payload, final boolean shouldReplicateToPassives) {
+    return new PassthroughMessage(Type.INVOKE_ON_SERVER, shouldReplicateToPassives) {
+      @Override
+      protected void populateStream(DataOutput output) throws IOException {
+        long handle = entityHandle.getAsLong();
+        Assert.assertTrue(NO_ENTITY_HANDLE != handle);
+        output.writeLong(handle);
+        output.writeLong(clientInstanceID);
+        output.writeInt(payload.length);
+        output.write(payload);
+      }};
+  }
+
   public static PassthroughMessage createAckMessage() {
     // Replication ignored in this context.
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.ACK_FROM_SERVER, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeInt(Type.ACK_FROM_SERVER.ordinal());
       }};
   }
@@ -144,9 +178,11 @@ public class PassthroughMessageCodec {
     // Replication ignored in this context.
     boolean shouldReplicateToPassives = false;
     boolean isSuccess = (null == error);
+    // Serialize the exception once, up-front, since the encoder writes the message body twice (sizing and then writing).
+    final byte[] serializedException = isSuccess ? null : PassthroughMessageCodec.serializeExceptionToArray(error);
     return new PassthroughMessage(isSuccess ? Type.MONITOR_MESSAGE : Type.MONITOR_EXCEPTION, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         if (isSuccess) {
           if (null != response) {
             output.writeInt(response.length);
@@ -155,7 +191,6 @@ public class PassthroughMessageCodec {
             output.writeInt(-1);
           }
         } else {
-          byte[] serializedException = PassthroughMessageCodec.serializeExceptionToArray(error);
           output.writeInt(serializedException.length);
           output.write(serializedException);
         }
@@ -166,9 +201,11 @@ public class PassthroughMessageCodec {
     // Replication ignored in this context.
     boolean shouldReplicateToPassives = false;
     boolean isSuccess = (null == error);
+    // Serialize the exception once, up-front, since the encoder writes the message body twice (sizing and then writing).
+    final byte[] serializedException = isSuccess ? null : PassthroughMessageCodec.serializeExceptionToArray(error);
     return new PassthroughMessage(isSuccess ? Type.COMPLETE_FROM_SERVER : Type.EXCEPTION_FROM_SERVER, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         if (isSuccess) {
           if (null != response) {
             output.writeInt(response.length);
@@ -177,7 +214,6 @@ public class PassthroughMessageCodec {
             output.writeInt(-1);
           }
         } else {
-          byte[] serializedException = PassthroughMessageCodec.serializeExceptionToArray(error);
           output.writeInt(serializedException.length);
           output.write(serializedException);
         }
@@ -189,7 +225,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.RETIRE_FROM_SERVER, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeInt(Type.RETIRE_FROM_SERVER.ordinal());
       }};
   }
@@ -199,7 +235,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.INVOKE_ON_CLIENT, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeLong(clientInstanceID);
         output.writeInt(payload.length);
         output.write(payload);
@@ -212,7 +248,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.RECONNECT, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(clientInstanceID);
@@ -226,7 +262,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.SYNC_ENTITY_START, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeLong(version);
@@ -240,7 +276,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.SYNC_ENTITY_END, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
       }};
@@ -251,7 +287,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.SYNC_ENTITY_KEY_START, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeInt(concurrencyKey);
@@ -263,7 +299,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.SYNC_ENTITY_KEY_END, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeInt(concurrencyKey);
@@ -275,7 +311,7 @@ public class PassthroughMessageCodec {
     boolean shouldReplicateToPassives = false;
     return new PassthroughMessage(Type.SYNC_ENTITY_PAYLOAD, shouldReplicateToPassives) {
       @Override
-      protected void populateStream(DataOutputStream output) throws IOException {
+      protected void populateStream(DataOutput output) throws IOException {
         output.writeUTF(entityClassName);
         output.writeUTF(entityName);
         output.writeInt(concurrencyKey);
@@ -289,14 +325,128 @@ public class PassthroughMessageCodec {
   }
   
   public static long decodeTransactionIDFromRawMessage(byte[] rawMessage) {
-    Decoder<Long> decoder = new Decoder<Long>() {
+    return readLongAt(rawMessage, TRANSACTION_ID_OFFSET);
+  }
+  
+  public static Type decodeTypeFromRawMessage(byte[] rawMessage) {
+    return Type.values()[readIntAt(rawMessage, TYPE_OFFSET)];
+  }
+  
+  public static boolean decodeShouldReplicateFromRawMessage(byte[] rawMessage) {
+    return (0 != rawMessage[SHOULD_REPLICATE_OFFSET]);
+  }
+  
+  /**
+   * @param rawInvoke A serialized INVOKE_ON_SERVER message
+   * @return The entity handle it was sent with or NO_ENTITY_HANDLE if it names its entity
+   */
+  public static long decodeEntityHandleFromRawInvoke(byte[] rawInvoke) {
+    Assert.assertTrue(Type.INVOKE_ON_SERVER == decodeTypeFromRawMessage(rawInvoke));
+    return readLongAt(rawInvoke, HEADER_SIZE);
+  }
+
+  /**
+   * @param rawInvoke A serialized INVOKE_ON_SERVER message, which was sent with an entity handle
+   * @return The client instance ID of the end-point which sent it
+   */
+  public static long decodeClientInstanceIDFromRawHandleInvoke(byte[] rawInvoke) {
+    Assert.assertTrue(NO_ENTITY_HANDLE != decodeEntityHandleFromRawInvoke(rawInvoke));
+    return readLongAt(rawInvoke, HEADER_SIZE + Long.BYTES);
+  }
+
+  /**
+   * @param rawMessage A serialized message, as it is replicated to passives (so an invoke must be in its named form)
+   * @return The entity the message is for
+   */
+  public static PassthroughEntityTuple decodeEntityTupleFromReplicatedMessage(byte[] rawMessage) {
+    return decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      if (Type.INVOKE_ON_SERVER == type) {
+        Assert.assertTrue(NO_ENTITY_HANDLE == input.readLong());
+      }
+      return new PassthroughEntityTuple(input.readUTF(), input.readUTF());
+    }, rawMessage);
+  }
+
+  /**
+   * @param rawInvoke A serialized INVOKE_ON_SERVER message, in its named form
+   * @return The payload of the invoke
+   */
+  public static byte[] decodePayloadFromRawNamedInvoke(byte[] rawInvoke) {
+    return decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      Assert.assertTrue(Type.INVOKE_ON_SERVER == type);
+      Assert.assertTrue(NO_ENTITY_HANDLE == input.readLong());
+      input.readUTF();
+      input.readUTF();
+      input.readLong();
+      byte[] payload = new byte[input.readInt()];
+      input.readFully(payload);
+      return payload;
+    }, rawInvoke);
+  }
+
+  /**
+   * Used when re-sending an invoke to a new server:  returns a copy of the given serialized INVOKE_ON_SERVER with its
+   * entity handle replaced.
+   */
+  public static byte[] replaceEntityHandleInRawInvoke(byte[] rawInvoke, long newEntityHandle) {
+    byte[] copy = Arrays.copyOf(rawInvoke, rawInvoke.length);
+    // The handle is always the first thing in the body.
+    ByteBuffer.wrap(copy).putLong(HEADER_SIZE, newEntityHandle);
+    return copy;
+  }
+
+  /**
+   * Used when replicating an invoke to a passive, since entity handles are only meaningful to the server which issued
+   * them:  returns the given serialized INVOKE_ON_SERVER, re-encoded to describe its entity by class and name.
+   */
+  public static byte[] convertRawInvokeToNameForm(byte[] rawInvoke, final String entityClassName, final String entityName) {
+    return convertRawInvokeToNameForm(rawInvoke, entityClassName, entityName, null);
+  }
+
+  /**
+   * Like convertRawInvokeToNameForm but also replaces the payload (used for invokes from the object lane, which are sent
+   * without one).  A null replacementPayload keeps the original.
+   */
+  public static byte[] convertRawInvokeToNameForm(byte[] rawInvoke, final String entityClassName, final String entityName, final byte[] replacementPayload) {
+    Decoder<byte[]> decoder = new Decoder<byte[]>() {
 
       @Override
-      public Long decode(Type type, boolean shouldReplicate, long transactionID, long oldestTransactionID, DataInputStream input) throws IOException {
-        return transactionID;
+      public byte[] decode(Type type, boolean shouldReplicate, long transactionID, long oldestTransactionID, DataInputStream input) throws IOException {
+        Assert.assertTrue(Type.INVOKE_ON_SERVER == type);
+        Assert.assertTrue(NO_ENTITY_HANDLE != input.readLong());
+        long clientInstanceID = input.readLong();
+        byte[] payload = new byte[input.readInt()];
+        input.readFully(payload);
+        if (null != replacementPayload) {
+          payload = replacementPayload;
+        }
+        PassthroughMessage message = createInvokeMessage(entityClassName, entityName, clientInstanceID, payload, shouldReplicate);
+        message.setTransactionTracking(transactionID, oldestTransactionID);
+        return message.asSerializedBytes();
       }
     };
-    return runRawDecoder(decoder, rawMessage);
+    return runRawDecoder(decoder, rawInvoke);
+  }
+
+  /**
+   * Builds the response to FETCH_ENTITY or RECONNECT:  the entity handle followed by any entity configuration.
+   */
+  public static byte[] encodeEntityHandleResponse(long entityHandle, byte[] configuration) {
+    int configurationLength = (null != configuration) ? configuration.length : 0;
+    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + configurationLength);
+    buffer.putLong(entityHandle);
+    if (null != configuration) {
+      buffer.put(configuration);
+    }
+    return buffer.array();
+  }
+
+  public static long decodeEntityHandleFromResponse(byte[] response) {
+    return ByteBuffer.wrap(response).getLong();
+  }
+
+  public static byte[] decodeConfigurationFromResponse(byte[] response) {
+    return Arrays.copyOfRange(response, Long.BYTES, response.length);
   }
   
   public static Type decodeTransactionTypeFromRawMessage(byte[] rawMessage) {
@@ -314,45 +464,28 @@ public class PassthroughMessageCodec {
   }
   
   public static byte[] serializeExceptionToArray(EntityException exception) {
-    // We need to manually serialize the exception using Java serialization.
-    ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-    try {
-      ObjectOutputStream objectOutput = new ObjectOutputStream(byteOutput);
-      try {
-        objectOutput.writeObject(exception);
-      } finally {
-        objectOutput.close();
-      }
-    } catch (IOException e) {
-      // Can't happen with a byte array.
-      Assert.unexpected(e);
-    }
-    return byteOutput.toByteArray();
+    // Common exceptions are encoded compactly, only falling back to Java serialization for the others.
+    return PassthroughExceptionCodec.encode(exception);
   }
   
   public static EntityException deserializeExceptionFromArray(byte[] bytes) {
-    EntityException exception = null;
-    ByteArrayInputStream byteInput = new ByteArrayInputStream(bytes);
-    try {
-      ObjectInputStream objectInput = new ObjectInputStream(byteInput);
-      try {
-        Object object = objectInput.readObject();
-        exception = (EntityException) object;
-      } finally {
-        objectInput.close();
-      }
-    } catch (ClassNotFoundException e) {
-      // We control this entire system so we should never fail to find the class.
-      Assert.unexpected(e);
-    } catch (IOException e) {
-      // Can't happen with a byte array.
-      Assert.unexpected(e);
-    }
-    return exception;
+    return PassthroughExceptionCodec.decode(bytes);
   }
 
 
 
+  private static int readIntAt(byte[] raw, int offset) {
+    // Big-endian, as written by DataOutput.
+    return ((raw[offset] & 0xff) << 24)
+        | ((raw[offset + 1] & 0xff) << 16)
+        | ((raw[offset + 2] & 0xff) << 8)
+        | (raw[offset + 3] & 0xff);
+  }
+
+  private static long readLongAt(byte[] raw, int offset) {
+    return (((long) readIntAt(raw, offset)) << 32) | (readIntAt(raw, offset + Integer.BYTES) & 0xffffffffL);
+  }
+
   private static <R> R runRawDecoder(Decoder<R> decoder, byte[] rawMessage) {
     DataInputStream input = new DataInputStream(new ByteArrayInputStream(rawMessage));
     R result = null;
@@ -18,6 +18,8 @@
  */
 package org.terracotta.passthrough;
 
+import java.util.List;
+
 
 /**
  * A class which ties together information related to a message.
@@ -26,4 +28,13 @@ package org.terracotta.passthrough;
 public class PassthroughMessageContainer {
   public IMessageSenderWrapper sender;
   public byte[] message;
+  // The object passed by reference alongside the message, when it came in on the object lane.
+  public Object attachment;
+  // Set, instead of the message, when this is a frame of consecutive messages replicated from the active.  They are run
+  // back-to-back, in order, each with its own sender.
+  public List<PassthroughMessageContainer> replicatedBatch;
+  // Set, instead of the message, when this is internal work which must be run on the server thread between messages.
+  public Runnable task;
+  // When replicated from an active which keeps a replication log, the sequence number of the message in that log (else 0).
+  public long replicationSequence;
 }
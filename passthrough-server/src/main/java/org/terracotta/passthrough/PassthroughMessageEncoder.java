@@ -0,0 +1,204 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.DataOutput;
+import java.io.UTFDataFormatException;
+
+
+/**
+ * The DataOutput used to serialize a PassthroughMessage without any intermediate buffers.
+ * A message is encoded in two passes:  the first only counts the bytes the message would write, so that the second can write
+ * them directly into a byte[] of exactly the right length.  This avoids the ByteArrayOutputStream growth copies and the
+ * final toByteArray() copy.  Note that the bytes written are identical to what a DataOutputStream would produce (including
+ * the modified UTF-8 of writeUTF) so everything is still read with DataInputStream.
+ * Each thread reuses its own encoder, so the only allocation per message is the resulting byte[].  That array can't be
+ * pooled since it is retained after the send (for re-send, replication to passives, and in the receiver's queue) and there
+ * is no point at which ownership comes back.
+ */
+public class PassthroughMessageEncoder implements DataOutput {
+  private static final ThreadLocal<PassthroughMessageEncoder> threadEncoder = ThreadLocal.withInitial(PassthroughMessageEncoder::new);
+
+  /**
+   * Serializes the given message into an exactly-sized byte[].
+   * 
+   * @param message The message to serialize
+   * @return The serialized message
+   */
+  public static byte[] encode(PassthroughMessage message) {
+    PassthroughMessageEncoder encoder = threadEncoder.get();
+    // Serializing a message shouldn't cause another to be serialized but we don't want to corrupt the state if it ever does.
+    if (encoder.isInUse) {
+      encoder = new PassthroughMessageEncoder();
+    }
+    encoder.isInUse = true;
+    try {
+      encoder.beginSizing();
+      message.writeTo(encoder);
+      byte[] bytes = new byte[encoder.position];
+      encoder.beginWriting(bytes);
+      message.writeTo(encoder);
+      // The message must write the same thing both times.
+      Assert.assertTrue(encoder.position == bytes.length);
+      return bytes;
+    } finally {
+      encoder.target = null;
+      encoder.isInUse = false;
+    }
+  }
+
+
+  // When null, we are only counting.
+  private byte[] target;
+  private int position;
+  private boolean isInUse;
+
+  private void beginSizing() {
+    this.target = null;
+    this.position = 0;
+  }
+
+  private void beginWriting(byte[] target) {
+    this.target = target;
+    this.position = 0;
+  }
+
+  @Override
+  public void write(int b) {
+    if (null != this.target) {
+      this.target[this.position] = (byte) b;
+    }
+    this.position += 1;
+  }
+
+  @Override
+  public void write(byte[] b) {
+    write(b, 0, b.length);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    if (null != this.target) {
+      System.arraycopy(b, off, this.target, this.position, len);
+    }
+    this.position += len;
+  }
+
+  @Override
+  public void writeBoolean(boolean v) {
+    write(v ? 1 : 0);
+  }
+
+  @Override
+  public void writeByte(int v) {
+    write(v);
+  }
+
+  @Override
+  public void writeShort(int v) {
+    write(v >>> 8);
+    write(v);
+  }
+
+  @Override
+  public void writeChar(int v) {
+    writeShort(v);
+  }
+
+  @Override
+  public void writeInt(int v) {
+    if (null != this.target) {
+      this.target[this.position] = (byte) (v >>> 24);
+      this.target[this.position + 1] = (byte) (v >>> 16);
+      this.target[this.position + 2] = (byte) (v >>> 8);
+      this.target[this.position + 3] = (byte) v;
+    }
+    this.position += Integer.BYTES;
+  }
+
+  @Override
+  public void writeLong(long v) {
+    writeInt((int) (v >>> 32));
+    writeInt((int) v);
+  }
+
+  @Override
+  public void writeFloat(float v) {
+    writeInt(Float.floatToIntBits(v));
+  }
+
+  @Override
+  public void writeDouble(double v) {
+    writeLong(Double.doubleToLongBits(v));
+  }
+
+  @Override
+  public void writeBytes(String s) {
+    int length = s.length();
+    for (int i = 0; i < length; ++i) {
+      write(s.charAt(i));
+    }
+  }
+
+  @Override
+  public void writeChars(String s) {
+    int length = s.length();
+    for (int i = 0; i < length; ++i) {
+      writeChar(s.charAt(i));
+    }
+  }
+
+  @Override
+  public void writeUTF(String s) throws UTFDataFormatException {
+    // This is the same modified UTF-8 written by DataOutputStream.writeUTF:  a 2-byte length then 1-3 bytes per char.
+    int length = s.length();
+    int encodedLength = 0;
+    for (int i = 0; i < length; ++i) {
+      char c = s.charAt(i);
+      if ((c >= 0x0001) && (c <= 0x007F)) {
+        encodedLength += 1;
+      } else if (c > 0x07FF) {
+        encodedLength += 3;
+      } else {
+        encodedLength += 2;
+      }
+    }
+    if (encodedLength > 65535) {
+      throw new UTFDataFormatException("encoded string too long: " + encodedLength + " bytes");
+    }
+    writeShort(encodedLength);
+    if (null == this.target) {
+      this.position += encodedLength;
+    } else {
+      for (int i = 0; i < length; ++i) {
+        char c = s.charAt(i);
+        if ((c >= 0x0001) && (c <= 0x007F)) {
+          write(c);
+        } else if (c > 0x07FF) {
+          write(0xE0 | ((c >> 12) & 0x0F));
+          write(0x80 | ((c >> 6) & 0x3F));
+          write(0x80 | (c & 0x3F));
+        } else {
+          write(0xC0 | ((c >> 6) & 0x1F));
+          write(0x80 | (c & 0x3F));
+        }
+      }
+    }
+  }
+}
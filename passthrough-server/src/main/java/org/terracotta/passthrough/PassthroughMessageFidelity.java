@@ -0,0 +1,40 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+
+/**
+ * Describes how faithfully entity messages and responses are carried between the client and the server.
+ * Since both sides live in the same VM, nothing requires that they actually be encoded, but encoding them is the only way
+ * to verify the entity's MessageCodec.
+ */
+public enum PassthroughMessageFidelity {
+  /**
+   * Every invoke and its response is run through the entity's MessageCodec, exactly as it would be on a real wire.
+   */
+  VERIFY_CODECS,
+  /**
+   * Invokes and their responses are handed between the client and the active by reference, never touching the
+   * MessageCodec.  Only the small message header is still serialized, since that is what acks, re-sends, and ordering are
+   * built on.
+   * Invokes replicated to passives are still encoded, on the active, since the passive must run its own copy of the
+   * message.  Deferred responses, monitor messages, and exceptions are also still encoded.
+   */
+  OBJECT_LANE,
+}
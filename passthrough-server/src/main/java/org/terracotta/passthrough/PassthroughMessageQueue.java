@@ -0,0 +1,260 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+
+/**
+ * The inbound message queue of a PassthroughServerProcess.
+ * This is a lock-free multi-producer/single-consumer linked queue:  any number of threads (client connections, the active
+ * replicating to us, internal services) can offer containers concurrently, but only the server thread may poll.
+ * When the queue is empty, the consumer parks and the next producer to link a node unparks it.
+ * The queue also tracks its size so that producers can be throttled:  a producer can wait for the size to drop below some
+ * capacity, in which case the consumer will wake it as it removes containers.  Note that the queue itself never refuses an
+ * offer so any capacity is enforced by the caller.
+ */
+public class PassthroughMessageQueue {
+  // Producers swing the tail, atomically, and then link the previous tail to their new node.
+  private final AtomicReference<Node> tail;
+  // The head is a "stub" node only ever touched by the consumer.  The next message is always head.next.
+  private Node head;
+  // Set by the consumer only while it is parked (or about to park).
+  private volatile Thread waitingConsumer;
+  // Incremented before a node is linked and decremented after it is consumed so it is never less than the number of
+  // reachable containers.
+  private final AtomicInteger size;
+  private final AtomicInteger largestSize;
+  // Producers waiting for space register themselves so that the consumer only takes the lock when someone is waiting.
+  private final AtomicInteger waitingProducers;
+  private final ReentrantLock spaceLock;
+  private final Condition spaceAvailable;
+
+  public PassthroughMessageQueue() {
+    Node stub = new Node(null);
+    this.tail = new AtomicReference<Node>(stub);
+    this.head = stub;
+    this.size = new AtomicInteger();
+    this.largestSize = new AtomicInteger();
+    this.waitingProducers = new AtomicInteger();
+    this.spaceLock = new ReentrantLock();
+    this.spaceAvailable = this.spaceLock.newCondition();
+  }
+
+  /**
+   * Adds a container to the end of the queue.  Can be called from any thread.
+   *
+   * @param container The container to add
+   */
+  public void offer(PassthroughMessageContainer container) {
+    Node node = new Node(container);
+    int newSize = this.size.incrementAndGet();
+    int largest = this.largestSize.get();
+    while ((newSize > largest) && !this.largestSize.compareAndSet(largest, newSize)) {
+      largest = this.largestSize.get();
+    }
+    Node previous = this.tail.getAndSet(node);
+    // Note that there is a short window where the node is in the tail but not yet reachable from the head.  The consumer
+    // just sees that as empty and we will unpark it, below.
+    previous.next = node;
+    Thread waiter = this.waitingConsumer;
+    if (null != waiter) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+  /**
+   * Removes the next container from the head of the queue.  Can only be called by the consumer thread.
+   *
+   * @return The next container or null, if the queue is empty
+   */
+  public PassthroughMessageContainer poll() {
+    PassthroughMessageContainer container = null;
+    Node next = this.head.next;
+    if (null != next) {
+      container = next.container;
+      // The node we just consumed becomes the new stub so clear it to avoid holding the message.
+      next.container = null;
+      this.head = next;
+      this.size.decrementAndGet();
+      if (this.waitingProducers.get() > 0) {
+        signalProducers();
+      }
+    }
+    return container;
+  }
+
+  /**
+   * Removes up to maxElements containers from the head of the queue, adding them to the given list in queue order.  Can
+   * only be called by the consumer thread.
+   *
+   * @param target The list where the removed containers are added
+   * @param maxElements The most containers to remove
+   * @return The number of containers removed (0 if the queue was empty)
+   */
+  public int drainTo(List<PassthroughMessageContainer> target, int maxElements) {
+    int drained = 0;
+    while (drained < maxElements) {
+      PassthroughMessageContainer container = poll();
+      if (null == container) {
+        break;
+      }
+      target.add(container);
+      drained += 1;
+    }
+    return drained;
+  }
+
+  /**
+   * Can only be called by the consumer thread.
+   *
+   * @return True if there are no containers reachable from the head of the queue
+   */
+  public boolean isEmpty() {
+    return (null == this.head.next);
+  }
+
+  /**
+   * Parks the consumer thread while the queue is empty and shouldWait still returns true.  Can only be called by the
+   * consumer thread.
+   * Anything which changes the answer of shouldWait must call wakeConsumer(), after doing so.
+   *
+   * @param shouldWait Checked after every wake-up to see if the consumer should keep waiting for a message
+   */
+  public void waitWhileEmpty(BooleanSupplier shouldWait) {
+    this.waitingConsumer = Thread.currentThread();
+    try {
+      // We need to re-check the queue AFTER publishing ourselves as the waiter to avoid missing an unpark.
+      while (isEmpty() && shouldWait.getAsBoolean()) {
+        LockSupport.park(this);
+      }
+    } finally {
+      this.waitingConsumer = null;
+    }
+  }
+
+  /**
+   * The same as waitWhileEmpty(shouldWait) except that the consumer gives up waiting after timeoutNanos.
+   *
+   * @param shouldWait Checked after every wake-up to see if the consumer should keep waiting for a message
+   * @param timeoutNanos The longest time to wait
+   */
+  public void waitWhileEmpty(BooleanSupplier shouldWait, long timeoutNanos) {
+    long deadline = System.nanoTime() + timeoutNanos;
+    this.waitingConsumer = Thread.currentThread();
+    try {
+      long remaining = timeoutNanos;
+      while ((remaining > 0) && isEmpty() && shouldWait.getAsBoolean()) {
+        LockSupport.parkNanos(this, remaining);
+        remaining = deadline - System.nanoTime();
+      }
+    } finally {
+      this.waitingConsumer = null;
+    }
+  }
+
+  /**
+   * @return The number of containers in the queue (may briefly include containers still being linked by a producer)
+   */
+  public int size() {
+    return this.size.get();
+  }
+
+  /**
+   * @return The largest size the queue has ever reached
+   */
+  public int getLargestSize() {
+    return this.largestSize.get();
+  }
+
+  /**
+   * Blocks the calling producer while the queue has at least capacity containers in it and shouldWait still returns true.
+   * Can be called from any thread other than the consumer.
+   * Note that this doesn't reserve any space so several producers waking at once can push the queue slightly over capacity.
+   * Anything which changes the answer of shouldWait must call wakeProducers(), after doing so.
+   *
+   * @param capacity The size the queue must drop below before the producer can continue
+   * @param shouldWait Checked after every wake-up to see if the producer should keep waiting for space
+   */
+  public void waitForSpace(int capacity, BooleanSupplier shouldWait) {
+    // We need to register as a waiter BEFORE checking the size so that the consumer can't miss us.
+    this.waitingProducers.incrementAndGet();
+    this.spaceLock.lock();
+    try {
+      while ((this.size.get() >= capacity) && shouldWait.getAsBoolean()) {
+        this.spaceAvailable.awaitUninterruptibly();
+      }
+    } finally {
+      this.spaceLock.unlock();
+      this.waitingProducers.decrementAndGet();
+    }
+  }
+
+  /**
+   * Wakes any producers waiting for space so that they re-check their waiting condition.  Can be called from any thread.
+   */
+  public void wakeProducers() {
+    signalProducers();
+  }
+
+  /**
+   * Unparks the consumer, if it is waiting, so that it re-checks its waiting condition.  Can be called from any thread.
+   */
+  public void wakeConsumer() {
+    Thread waiter = this.waitingConsumer;
+    if (null != waiter) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+  /**
+   * Drops everything in the queue.  Can only be called by the consumer thread (or after it has terminated).
+   */
+  public void clear() {
+    while (null != poll()) {
+      // Just keep dropping.
+    }
+  }
+
+
+  private void signalProducers() {
+    this.spaceLock.lock();
+    try {
+      this.spaceAvailable.signalAll();
+    } finally {
+      this.spaceLock.unlock();
+    }
+  }
+
+
+  private static class Node {
+    public PassthroughMessageContainer container;
+    public volatile Node next;
+
+    public Node(PassthroughMessageContainer container) {
+      this.container = container;
+    }
+  }
+}
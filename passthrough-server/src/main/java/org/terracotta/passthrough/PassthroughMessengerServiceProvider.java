@@ -37,8 +37,7 @@ public class PassthroughMessengerServiceProvider implements PassthroughImplement
     this.timerThread = new PassthroughTimerThread();
     this.passthroughServerProcess = passthroughServerProcess;
     
-    this.timerThread.setName("PassthroughTimerThread");
-    this.timerThread.start();
+    this.timerThread.start(passthroughServerProcess.getThreadFactory(), "PassthroughTimerThread");
   }
 
   @Override
@@ -4,14 +4,12 @@ import org.terracotta.persistence.IPlatformPersistence;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -20,7 +18,7 @@ import java.util.concurrent.TimeoutException;
  */
 public class PassthroughNullPlatformPersistentStorage implements IPlatformPersistence {
   final Map<String, Serializable> nameToDataMap = new HashMap<String, Serializable>();
-  final Map<Long, List<SequenceTuple>> fastSequenceCache = new HashMap<Long, List<SequenceTuple>>();
+  final Map<Long, ArrayDeque<SequenceTuple>> fastSequenceCache = new HashMap<Long, ArrayDeque<SequenceTuple>>();
 
   @Override
   public synchronized Serializable loadDataElement(String name) throws IOException {
@@ -43,52 +41,43 @@ public class PassthroughNullPlatformPersistentStorage implements IPlatformPersis
 
   @Override
   public synchronized Future<Void> fastStoreSequence(long sequenceIndex, SequenceTuple newEntry, long oldestValidSequenceID) {
-    List<SequenceTuple> oldSequence = fastSequenceCache.get(sequenceIndex);
-    List<SequenceTuple> newSequence = new ArrayList<SequenceTuple>();
-    if (null != oldSequence) {
-      for (SequenceTuple tuple : oldSequence) {
-        if (tuple.localSequenceID >= oldestValidSequenceID) {
-          newSequence.add(tuple);
-        }
-      }
-      newSequence.add(newEntry);
+    ArrayDeque<SequenceTuple> sequence = fastSequenceCache.get(sequenceIndex);
+    if (null == sequence) {
+      sequence = new ArrayDeque<SequenceTuple>();
+      fastSequenceCache.put(sequenceIndex, sequence);
     }
-    fastSequenceCache.put(sequenceIndex, newSequence);
-    return new Future<Void>() {
-      @Override
-      public boolean cancel(boolean mayInterruptIfRunning) {
-        return false;
-      }
-
-      @Override
-      public boolean isCancelled() {
-        return false;
-      }
-
-      @Override
-      public boolean isDone() {
-        return true;
-      }
-
-      @Override
-      public Void get() throws InterruptedException, ExecutionException {
-        return null;
-      }
-
-      @Override
-      public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        return null;
-      }
-    };
+    // The sequence is kept ordered by localSequenceID so the invalid entries are always at the head.
+    while (!sequence.isEmpty() && (sequence.peekFirst().localSequenceID < oldestValidSequenceID)) {
+      sequence.pollFirst();
+    }
+    if (sequence.isEmpty() || (sequence.peekLast().localSequenceID <= newEntry.localSequenceID)) {
+      sequence.addLast(newEntry);
+    } else {
+      // Entries normally arrive in order so this is only for the rare one which doesn't.
+      insertInOrder(sequence, newEntry);
+    }
+    return PassthroughCompletedFuture.DONE;
   }
 
   @Override
   public synchronized List<SequenceTuple> loadSequence(long sequenceIndex) {
-    return fastSequenceCache.get(sequenceIndex);
+    ArrayDeque<SequenceTuple> sequence = fastSequenceCache.get(sequenceIndex);
+    return (null != sequence) ? new ArrayList<SequenceTuple>(sequence) : null;
   }
 
   @Override
   public synchronized void deleteSequence(long sequenceIndex) {
     fastSequenceCache.remove(sequenceIndex);
   }
+
+  private static void insertInOrder(ArrayDeque<SequenceTuple> sequence, SequenceTuple newEntry) {
+    List<SequenceTuple> later = new ArrayList<SequenceTuple>();
+    while (!sequence.isEmpty() && (sequence.peekLast().localSequenceID > newEntry.localSequenceID)) {
+      later.add(sequence.pollLast());
+    }
+    sequence.addLast(newEntry);
+    for (int i = later.size() - 1; i >= 0; --i) {
+      sequence.addLast(later.get(i));
+    }
+  }
 }
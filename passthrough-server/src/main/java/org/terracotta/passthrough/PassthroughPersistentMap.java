@@ -0,0 +1,203 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.terracotta.persistence.IPlatformPersistence;
+
+
+/**
+ * A map which is kept in an IPlatformPersistence, such as the catalog of the entities a server has created.
+ * Rather than rewriting the whole map for every change, each change is stored as a small, numbered record.  Once there are
+ * more records than entries in the map (or a minimum number of records), the map is compacted:  the whole map is stored as
+ * a snapshot, which names the first record after it, and the records it covers are deleted.
+ * That keeps the cost of each change constant, amortized, regardless of the size of the map.
+ * On load, the snapshot is read and the records after it are replayed in order.  A map stored in the legacy format (as a
+ * single element) is loaded, through a converter, and then stored in the new format.
+ * Note that records are applied by replacing the whole value for a key so values must never be modified after they are
+ * stored (the in-memory persistence keeps references to them).
+ * This is not thread-safe:  it is only accessed under the monitor of the object which owns it.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class PassthroughPersistentMap<K extends Serializable, V extends Serializable> {
+  // Compact once we have at least this many records, even with fewer entries.
+  private static final int MINIMUM_RECORDS_BEFORE_COMPACTION = 64;
+
+  private final IPlatformPersistence platformPersistence;
+  private final String legacyName;
+  private final String snapshotName;
+  private final String recordPrefix;
+  private final LinkedHashMap<K, V> map;
+  // The first record not covered by the snapshot and the number of the next record we will store.
+  private long firstRecord;
+  private long nextRecord;
+
+  /**
+   * @param platformPersistence The storage for the map
+   * @param legacyName The name of the data element where the whole map was stored, before it was incremental (the
+   * snapshot and records are stored in elements with this as a prefix)
+   */
+  public PassthroughPersistentMap(IPlatformPersistence platformPersistence, String legacyName) {
+    this.platformPersistence = platformPersistence;
+    this.legacyName = legacyName;
+    this.snapshotName = legacyName + ".snapshot";
+    this.recordPrefix = legacyName + ".record.";
+    this.map = new LinkedHashMap<K, V>();
+  }
+
+  /**
+   * Loads the map from storage.  When not loading, anything already in storage is discarded.
+   *
+   * @param shouldLoadStorage True if the stored map should be used
+   * @param legacyConverter Converts what was stored under the legacy name into the entries of the map
+   * @return The live map, in insertion order, which must only be modified through put and remove
+   */
+  @SuppressWarnings("unchecked")
+  public LinkedHashMap<K, V> load(boolean shouldLoadStorage, Function<Object, Map<K, V>> legacyConverter) throws IOException {
+    Snapshot<K, V> snapshot = (Snapshot<K, V>) this.platformPersistence.loadDataElement(this.snapshotName);
+    Object legacy = this.platformPersistence.loadDataElement(this.legacyName);
+    if (null != snapshot) {
+      this.map.putAll(snapshot.map);
+      this.firstRecord = snapshot.firstRecord;
+      // A crash during the last compaction may have left the records it covered.
+      deleteRecords(snapshot.previousFirstRecord, snapshot.firstRecord);
+    } else if (null != legacy) {
+      this.map.putAll(legacyConverter.apply(legacy));
+    }
+    this.nextRecord = this.firstRecord;
+    Record<K, V> record = (Record<K, V>) this.platformPersistence.loadDataElement(this.recordPrefix + this.nextRecord);
+    while (null != record) {
+      apply(record);
+      this.nextRecord += 1;
+      record = (Record<K, V>) this.platformPersistence.loadDataElement(this.recordPrefix + this.nextRecord);
+    }
+    if (!shouldLoadStorage) {
+      this.map.clear();
+    }
+    if (!shouldLoadStorage || (null != legacy)) {
+      // Start over from a snapshot of what we are using (which also drops any legacy map).
+      compact();
+      if (null != legacy) {
+        this.platformPersistence.storeDataElement(this.legacyName, null);
+      }
+    }
+    return this.map;
+  }
+
+  public void put(K key, V value) throws IOException {
+    Assert.assertTrue(null != value);
+    store(new Record<K, V>(key, value, null));
+  }
+
+  public void remove(K key) throws IOException {
+    store(new Record<K, V>(key, null, null));
+  }
+
+  /**
+   * Removes a group of keys and puts a new value, as a single record.
+   *
+   * @param key The key to put
+   * @param value The new value for the key
+   * @param keysToRemove The keys to remove, before the put
+   */
+  public void removeAllAndPut(Collection<K> keysToRemove, K key, V value) throws IOException {
+    Assert.assertTrue(null != value);
+    List<K> removed = keysToRemove.isEmpty() ? null : new ArrayList<K>(keysToRemove);
+    store(new Record<K, V>(key, value, removed));
+  }
+
+
+  private void store(Record<K, V> record) throws IOException {
+    apply(record);
+    this.platformPersistence.storeDataElement(this.recordPrefix + this.nextRecord, record);
+    this.nextRecord += 1;
+    long recordCount = this.nextRecord - this.firstRecord;
+    if (recordCount >= Math.max(MINIMUM_RECORDS_BEFORE_COMPACTION, this.map.size())) {
+      compact();
+    }
+  }
+
+  private void apply(Record<K, V> record) {
+    if (null != record.removed) {
+      for (K key : record.removed) {
+        this.map.remove(key);
+      }
+    }
+    if (null != record.value) {
+      this.map.put(record.key, record.value);
+    } else {
+      this.map.remove(record.key);
+    }
+  }
+
+  private void compact() throws IOException {
+    // The snapshot goes first so that a crash before the records are deleted only leaves records we no longer read.
+    long previousFirstRecord = this.firstRecord;
+    this.platformPersistence.storeDataElement(this.snapshotName, new Snapshot<K, V>(new LinkedHashMap<K, V>(this.map), this.nextRecord, previousFirstRecord));
+    this.firstRecord = this.nextRecord;
+    deleteRecords(previousFirstRecord, this.firstRecord);
+  }
+
+  private void deleteRecords(long first, long end) throws IOException {
+    for (long i = first; i < end; ++i) {
+      this.platformPersistence.storeDataElement(this.recordPrefix + i, null);
+    }
+  }
+
+
+  private static class Snapshot<K extends Serializable, V extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final LinkedHashMap<K, V> map;
+    public final long firstRecord;
+    public final long previousFirstRecord;
+
+    public Snapshot(LinkedHashMap<K, V> map, long firstRecord, long previousFirstRecord) {
+      this.map = map;
+      this.firstRecord = firstRecord;
+      this.previousFirstRecord = previousFirstRecord;
+    }
+  }
+
+
+  /**
+   * A put (with the new value) or a remove (with a null value) of the key, after removing any other keys listed.
+   */
+  private static class Record<K extends Serializable, V extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public final K key;
+    public final V value;
+    public final List<K> removed;
+
+    public Record(K key, V value, List<K> removed) {
+      this.key = key;
+      this.value = value;
+      this.removed = removed;
+    }
+  }
+}
@@ -34,6 +34,8 @@ public class PassthroughPlatformConfiguration implements PlatformConfiguration {
   private final int port;
   private final String serverName;
   private final Collection<Object> extendedConfigurationObjects;
+  // Set by the server process, before it starts, so it is only read once the service providers are initialized.
+  private PassthroughThreadFactory threadFactory = PassthroughThreadFactory.PLATFORM_THREADS;
   
   public PassthroughPlatformConfiguration(String serverName, int port, Collection<Object> extendedConfigurationObjects) {
     this.serverName = serverName;
@@ -56,6 +58,17 @@ public class PassthroughPlatformConfiguration implements PlatformConfiguration {
     return this.port;
   }
 
+  /**
+   * @return The factory the server creates its long-lived threads with (service providers should use it for theirs)
+   */
+  public PassthroughThreadFactory getThreadFactory() {
+    return this.threadFactory;
+  }
+
+  public void setThreadFactory(PassthroughThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
   @Override
   public <T> Collection<T> getExtendedConfiguration(Class<T> type) {
     Collection<T> filtered = new Vector<T>();
@@ -0,0 +1,89 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Records how many replicated messages the active packs into each frame it sends to its passives.
+ * This is only updated by the active's server thread but can be read from any thread.
+ * Note that a frame is counted once, no matter how many passives it is sent to.
+ */
+public class PassthroughReplicationBatchStatistics {
+  private final AtomicLong frameCount = new AtomicLong();
+  private final AtomicLong messageCount = new AtomicLong();
+  private final AtomicLong largestFrame = new AtomicLong();
+  private final AtomicLong fullFrameCount = new AtomicLong();
+
+  void recordFrame(int frameSize, boolean wasFull) {
+    Assert.assertTrue(frameSize > 0);
+    this.frameCount.incrementAndGet();
+    this.messageCount.addAndGet(frameSize);
+    if (frameSize > this.largestFrame.get()) {
+      // Only the server thread writes this so we don't need to loop.
+      this.largestFrame.set(frameSize);
+    }
+    if (wasFull) {
+      this.fullFrameCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return The number of frames sent
+   */
+  public long getFrameCount() {
+    return this.frameCount.get();
+  }
+
+  /**
+   * @return The total number of replicated messages sent in frames
+   */
+  public long getMessageCount() {
+    return this.messageCount.get();
+  }
+
+  /**
+   * @return The largest number of messages sent in a single frame
+   */
+  public long getLargestFrame() {
+    return this.largestFrame.get();
+  }
+
+  /**
+   * @return The number of frames sent because they reached the batch size (the rest were sent early, when the linger
+   * expired or something needed the passives to be caught up)
+   */
+  public long getFullFrameCount() {
+    return this.fullFrameCount.get();
+  }
+
+  /**
+   * @return The average number of messages sent in a single frame (0.0 if nothing has been sent)
+   */
+  public double getAverageFrameSize() {
+    long frames = this.frameCount.get();
+    return (frames > 0) ? ((double)this.messageCount.get() / (double)frames) : 0.0;
+  }
+
+  @Override
+  public String toString() {
+    return "PassthroughReplicationBatchStatistics{frames=" + getFrameCount() + ", messages=" + getMessageCount() + ", largest=" + getLargestFrame() + "}";
+  }
+}
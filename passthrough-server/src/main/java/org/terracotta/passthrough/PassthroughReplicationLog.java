@@ -0,0 +1,105 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+
+/**
+ * The bounded log of the most recent messages an active replicated to its passives, numbered by sequence, so that a passive
+ * which restarts from its own storage can be caught up by replaying the messages it missed, instead of being synchronized
+ * from scratch.
+ * The log is identified by a random ID, chosen by the active process which owns it, so a passive can't be caught up from a
+ * different active's log.  Once the log is full, each new message evicts the oldest one, after which a passive which hadn't
+ * seen that message can only be caught up by a full synchronization.
+ * This is only accessed on the active's server thread.
+ */
+public class PassthroughReplicationLog {
+  private final long logID;
+  private final byte[][] messages;
+  // The sequence number the next appended message will get.  Sequence numbers start at 1 so 0 can mean "none".
+  private long nextSequence;
+
+  public PassthroughReplicationLog(long logID, int capacity) {
+    Assert.assertTrue(0L != logID);
+    Assert.assertTrue(capacity > 0);
+    this.logID = logID;
+    this.messages = new byte[capacity][];
+    this.nextSequence = 1L;
+  }
+
+  public long getLogID() {
+    return this.logID;
+  }
+
+  /**
+   * @return The sequence number of the most recently appended message (0 if the log is empty)
+   */
+  public long getLastSequence() {
+    return this.nextSequence - 1L;
+  }
+
+  /**
+   * Adds a replicated message to the end of the log, evicting the oldest message if the log is full.
+   * 
+   * @param message The message, as it was sent to the passives
+   * @return The sequence number of the message
+   */
+  public long append(byte[] message) {
+    long sequence = this.nextSequence;
+    this.messages[slotFor(sequence)] = message;
+    this.nextSequence += 1L;
+    return sequence;
+  }
+
+  /**
+   * @param logID The ID of the log the passive was following
+   * @param lastAppliedSequence The sequence number of the last message the passive ran from that log
+   * @return True if every message after lastAppliedSequence is still in this log
+   */
+  public boolean canReplayAfter(long logID, long lastAppliedSequence) {
+    return (this.logID == logID)
+        && (lastAppliedSequence <= getLastSequence())
+        && (lastAppliedSequence >= (getOldestSequence() - 1L));
+  }
+
+  /**
+   * Passes every message after lastAppliedSequence to the replayer, in order.  canReplayAfter() must be true.
+   * 
+   * @param lastAppliedSequence The sequence number of the last message the passive ran
+   * @param replayer Called with each message the passive missed
+   */
+  public void replayAfter(long lastAppliedSequence, Replayer replayer) {
+    Assert.assertTrue(canReplayAfter(this.logID, lastAppliedSequence));
+    for (long sequence = lastAppliedSequence + 1L; sequence < this.nextSequence; ++sequence) {
+      replayer.replay(sequence, this.messages[slotFor(sequence)]);
+    }
+  }
+
+  private long getOldestSequence() {
+    return Math.max(1L, this.nextSequence - this.messages.length);
+  }
+
+  private int slotFor(long sequence) {
+    return (int) (sequence % this.messages.length);
+  }
+
+
+  public interface Replayer {
+    void replay(long sequence, byte[] message);
+  }
+}
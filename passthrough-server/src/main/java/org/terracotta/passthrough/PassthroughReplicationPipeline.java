@@ -0,0 +1,247 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import org.terracotta.entity.EntityMessage;
+
+
+/**
+ * Used by the active to replicate invokes to its passives without waiting for them before running the invoke, locally.
+ * The active server thread sends the invoke to every passive and then runs it, right away, using the sender returned by
+ * replicate().  That sender withholds the complete, and holds the retire in the retirement manager, until every passive
+ * has completed the invoke so the client still only sees the response once the invoke has run on the whole stripe.
+ * Since the passives' queues are FIFO and the retirement manager retires in order, the passives still see the invokes in
+ * the order the active received them and the client still sees retires in order.
+ * At most windowSize invokes can be waiting on the passives at any time:  beyond that, the active server thread blocks in
+ * replicate() until the oldest finishes.
+ * Note that only invokes are pipelined.  Life-cycle messages still wait for the passives before running since they need
+ * the passives' results for consensus.
+ * Consecutive invokes are packed into frames of up to batchSize messages, per passive, so that each passive receives and
+ * wakes for the whole frame at once.  A partial frame is sent when flush() is called:  the server thread does that when it
+ * runs out of messages (after lingering, if configured) and before it sends anything else to the passives.
+ * When a passive is detached, removePassive() drops its partial frame and counts every invoke it still owed as completed
+ * since a passive which is stopped never completes what is left in its queue.
+ */
+public class PassthroughReplicationPipeline {
+  private final PassthroughRetirementManager retirementManager;
+  private final Consumer<EntityMessage> retireReadyItems;
+  private final Semaphore window;
+  private final int batchSize;
+  private final PassthroughReplicationBatchStatistics batchStatistics;
+  // Checked, under our monitor, when replicating so that we never send to a passive after removePassive().
+  private final Predicate<PassthroughServerProcess> isAttached;
+  // Everything below is guarded by our monitor since removePassive() isn't called on the server thread.
+  // The frame being built for each passive.
+  private final Map<PassthroughServerProcess, List<PassthroughMessageContainer>> pendingFrames;
+  private int pendingMessageCount;
+  // The replicated invokes each passive hasn't completed yet (including those still in its pending frame).
+  private final Map<PassthroughServerProcess, Set<PassiveCompletion>> outstandingCompletions;
+
+  /**
+   * @param retirementManager The retirement manager of the active
+   * @param retireReadyItems Called to release any retires which were waiting on the given message
+   * @param windowSize The most invokes which can be waiting on the passives
+   * @param batchSize The most invokes to send to the passives in one frame (1 sends each one as soon as it is replicated)
+   * @param batchStatistics Updated with the size of each frame sent
+   * @param isAttached True if the given passive is still attached (false once it has been, or is being, removed)
+   */
+  public PassthroughReplicationPipeline(PassthroughRetirementManager retirementManager, Consumer<EntityMessage> retireReadyItems, int windowSize, int batchSize, PassthroughReplicationBatchStatistics batchStatistics, Predicate<PassthroughServerProcess> isAttached) {
+    Assert.assertTrue(windowSize > 0);
+    Assert.assertTrue(batchSize > 0);
+    this.retirementManager = retirementManager;
+    this.retireReadyItems = retireReadyItems;
+    this.window = new Semaphore(windowSize);
+    this.batchSize = batchSize;
+    this.batchStatistics = batchStatistics;
+    this.isAttached = isAttached;
+    this.pendingFrames = new LinkedHashMap<PassthroughServerProcess, List<PassthroughMessageContainer>>();
+    this.outstandingCompletions = new HashMap<PassthroughServerProcess, Set<PassiveCompletion>>();
+  }
+
+  /**
+   * Sends the given message to all the passives without waiting for them to run it.  Called on the active server thread.
+   * 
+   * @param sender The sender of the message
+   * @param messageToReplicate The message, as the passives should receive it
+   * @param replicationSequence The sequence number of the message in the replication log (0 if it isn't logged)
+   * @param downstreamPassives The passives to send it to
+   * @return The sender to use to run the message, locally
+   */
+  public IMessageSenderWrapper replicate(IMessageSenderWrapper sender, byte[] messageToReplicate, long replicationSequence, Set<PassthroughServerProcess> downstreamPassives) {
+    if (!this.window.tryAcquire()) {
+      // The passives can't free up the window if the invokes they are missing are still in our frames.
+      flush();
+      this.window.acquireUninterruptibly();
+    }
+    PipelinedSender pipelinedSender;
+    synchronized (this) {
+      List<PassthroughServerProcess> targets = new ArrayList<PassthroughServerProcess>(downstreamPassives.size());
+      for (PassthroughServerProcess passive : downstreamPassives) {
+        if (this.isAttached.test(passive)) {
+          targets.add(passive);
+        }
+      }
+      pipelinedSender = new PipelinedSender(sender, targets.size());
+      for (PassthroughServerProcess passive : targets) {
+        PassiveCompletion completion = new PassiveCompletion(passive, pipelinedSender);
+        Set<PassiveCompletion> outstanding = this.outstandingCompletions.get(passive);
+        if (null == outstanding) {
+          outstanding = new LinkedHashSet<PassiveCompletion>();
+          this.outstandingCompletions.put(passive, outstanding);
+        }
+        outstanding.add(completion);
+        PassthroughMessageContainer container = new PassthroughMessageContainer();
+        container.sender = new PassthroughInterserverInterlock(sender, completion, passive.getReplicationStatistics());
+        container.message = messageToReplicate;
+        container.replicationSequence = replicationSequence;
+        List<PassthroughMessageContainer> frame = this.pendingFrames.get(passive);
+        if (null == frame) {
+          frame = new ArrayList<PassthroughMessageContainer>(this.batchSize);
+          this.pendingFrames.put(passive, frame);
+        }
+        frame.add(container);
+      }
+      if (targets.isEmpty()) {
+        // Every passive was removed while we were replicating so nothing will hold this invoke.
+        this.window.release();
+      } else {
+        this.pendingMessageCount += 1;
+        if (this.pendingMessageCount >= this.batchSize) {
+          sendPendingFrames(true);
+        }
+      }
+    }
+    return pipelinedSender;
+  }
+
+  /**
+   * Called when the given passive is detached, on any thread, to drop anything we haven't sent it and to count everything it
+   * still owed as completed, releasing the clients' completes and retires (unless other passives still owe them).
+   * 
+   * @param passive The detached passive
+   */
+  public void removePassive(PassthroughServerProcess passive) {
+    Assert.assertTrue(!this.isAttached.test(passive));
+    Set<PassiveCompletion> outstanding;
+    synchronized (this) {
+      this.pendingFrames.remove(passive);
+      if (this.pendingFrames.isEmpty()) {
+        this.pendingMessageCount = 0;
+      }
+      outstanding = this.outstandingCompletions.remove(passive);
+    }
+    // This may pass on completes and retires so we do it outside of our monitor, like the passive's own completions.
+    if (null != outstanding) {
+      for (PassiveCompletion completion : outstanding) {
+        completion.pipelinedSender.passiveDidComplete();
+      }
+    }
+  }
+
+  /**
+   * @return True if there are replicated invokes which haven't yet been sent to the passives
+   */
+  public synchronized boolean hasPendingFrames() {
+    return (this.pendingMessageCount > 0);
+  }
+
+  /**
+   * Sends any partial frames to the passives.  Called on the active server thread.
+   */
+  public synchronized void flush() {
+    if (this.pendingMessageCount > 0) {
+      sendPendingFrames(false);
+    }
+  }
+
+  private void sendPendingFrames(boolean wasFull) {
+    // The frame is counted before it is sent since the passives can run it, and its clients see their responses, right away.
+    this.batchStatistics.recordFrame(this.pendingMessageCount, wasFull);
+    for (Map.Entry<PassthroughServerProcess, List<PassthroughMessageContainer>> entry : this.pendingFrames.entrySet()) {
+      entry.getKey().sendBatchToServerFromActive(entry.getValue());
+    }
+    this.pendingFrames.clear();
+    this.pendingMessageCount = 0;
+  }
+
+
+  /**
+   * Run, on the passive's thread, when it completes a replicated invoke.  This only counts for the invoke if the passive
+   * hasn't been removed, in which case removePassive() already counted it.
+   */
+  private class PassiveCompletion implements Runnable {
+    private final PassthroughServerProcess passive;
+    private final PipelinedSender pipelinedSender;
+
+    public PassiveCompletion(PassthroughServerProcess passive, PipelinedSender pipelinedSender) {
+      this.passive = passive;
+      this.pipelinedSender = pipelinedSender;
+    }
+
+    @Override
+    public void run() {
+      boolean wasOutstanding;
+      synchronized (PassthroughReplicationPipeline.this) {
+        Set<PassiveCompletion> outstanding = PassthroughReplicationPipeline.this.outstandingCompletions.get(this.passive);
+        wasOutstanding = (null != outstanding) && outstanding.remove(this);
+      }
+      if (wasOutstanding) {
+        this.pipelinedSender.passiveDidComplete();
+      }
+    }
+  }
+
+
+  /**
+   * Stands in for the message's sender while it runs on the active, holding its complete and retire until the passives have
+   * all completed it.
+   */
+  private class PipelinedSender extends PassthroughHeldResponseSender {
+    // Guarded by the monitor.
+    private int outstandingPassives;
+
+    public PipelinedSender(IMessageSenderWrapper sender, int passiveCount) {
+      super(sender, PassthroughReplicationPipeline.this.retirementManager, PassthroughReplicationPipeline.this.retireReadyItems);
+      this.outstandingPassives = passiveCount;
+      if (0 == passiveCount) {
+        release();
+      }
+    }
+
+    public synchronized void passiveDidComplete() {
+      Assert.assertTrue(this.outstandingPassives > 0);
+      this.outstandingPassives -= 1;
+      if (0 == this.outstandingPassives) {
+        PassthroughReplicationPipeline.this.window.release();
+        release();
+      }
+    }
+  }
+}
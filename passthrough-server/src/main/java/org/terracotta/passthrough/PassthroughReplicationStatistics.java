@@ -0,0 +1,200 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Describes how far behind the active a passive is:  the replicated messages it hasn't yet completed, how long messages take
+ * from being replicated by the active to being completed by the passive, and the progress of its synchronization.
+ * Each passive process owns the instance describing it but it is only updated by the active replicating to it (on its
+ * server thread and execution lanes) and by the passive threads completing the messages.  It can be read from any thread.
+ */
+public class PassthroughReplicationStatistics {
+  private final AtomicLong queueDepth = new AtomicLong();
+  private final AtomicLong maxQueueDepth = new AtomicLong();
+  private final AtomicLong completedMessages = new AtomicLong();
+  private final AtomicLong totalLagNanos = new AtomicLong();
+  private final AtomicLong maxLagNanos = new AtomicLong();
+  private volatile boolean isSynchronizing;
+  private final AtomicLong entitiesToSynchronize = new AtomicLong();
+  private final AtomicLong entitiesSynchronized = new AtomicLong();
+  private final AtomicLong keysSynchronized = new AtomicLong();
+  private final AtomicLong bytesSynchronized = new AtomicLong();
+
+  void recordReplicated() {
+    updateMax(this.maxQueueDepth, this.queueDepth.incrementAndGet());
+  }
+
+  void recordCompleted(long replicatedNanos) {
+    long lag = System.nanoTime() - replicatedNanos;
+    this.queueDepth.decrementAndGet();
+    this.completedMessages.incrementAndGet();
+    this.totalLagNanos.addAndGet(lag);
+    updateMax(this.maxLagNanos, lag);
+  }
+
+  void recordSyncStarted(int entityCount) {
+    this.entitiesToSynchronize.set(entityCount);
+    this.isSynchronizing = true;
+  }
+
+  void recordEntitySynchronized() {
+    this.entitiesSynchronized.incrementAndGet();
+  }
+
+  void recordKeySynchronized() {
+    this.keysSynchronized.incrementAndGet();
+  }
+
+  void recordBytesSynchronized(int byteCount) {
+    this.bytesSynchronized.addAndGet(byteCount);
+  }
+
+  void recordSyncFinished() {
+    this.isSynchronizing = false;
+  }
+
+  /**
+   * @return The number of replicated messages sent to the passive (or waiting to be sent in a frame) which it hasn't yet
+   * completed
+   */
+  public long getQueueDepth() {
+    return this.queueDepth.get();
+  }
+
+  /**
+   * @return The largest the queue depth has been
+   */
+  public long getMaxQueueDepth() {
+    return this.maxQueueDepth.get();
+  }
+
+  /**
+   * @return The number of replicated messages the passive has completed
+   */
+  public long getCompletedMessages() {
+    return this.completedMessages.get();
+  }
+
+  /**
+   * @return The mean time, in nanoseconds, from the active replicating a message to the passive completing it (0 if none
+   * have completed)
+   */
+  public long getAverageLagNanos() {
+    long completed = this.completedMessages.get();
+    return (completed > 0) ? (this.totalLagNanos.get() / completed) : 0L;
+  }
+
+  /**
+   * @return The longest time, in nanoseconds, from the active replicating a message to the passive completing it
+   */
+  public long getMaxLagNanos() {
+    return this.maxLagNanos.get();
+  }
+
+  /**
+   * @return True while the active is still synchronizing the passive
+   */
+  public boolean isSynchronizing() {
+    return this.isSynchronizing;
+  }
+
+  /**
+   * @return The number of entities which existed on the active when it started synchronizing the passive
+   */
+  public long getEntitiesToSynchronize() {
+    return this.entitiesToSynchronize.get();
+  }
+
+  /**
+   * @return The number of entities the active has finished synchronizing to the passive
+   */
+  public long getEntitiesSynchronized() {
+    return this.entitiesSynchronized.get();
+  }
+
+  /**
+   * @return The number of concurrency keys the active has finished synchronizing to the passive
+   */
+  public long getKeysSynchronized() {
+    return this.keysSynchronized.get();
+  }
+
+  /**
+   * @return The number of bytes of sync messages the active has sent to the passive
+   */
+  public long getBytesSynchronized() {
+    return this.bytesSynchronized.get();
+  }
+
+  /**
+   * @return An immutable copy of the current values, as published in the monitoring tree
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current = max.get();
+    while ((value > current) && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+
+  public static class Snapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final long queueDepth;
+    public final long maxQueueDepth;
+    public final long completedMessages;
+    public final long averageLagNanos;
+    public final long maxLagNanos;
+    public final boolean isSynchronizing;
+    public final long entitiesToSynchronize;
+    public final long entitiesSynchronized;
+    public final long keysSynchronized;
+    public final long bytesSynchronized;
+
+    private Snapshot(PassthroughReplicationStatistics statistics) {
+      this.queueDepth = statistics.getQueueDepth();
+      this.maxQueueDepth = statistics.getMaxQueueDepth();
+      this.completedMessages = statistics.getCompletedMessages();
+      this.averageLagNanos = statistics.getAverageLagNanos();
+      this.maxLagNanos = statistics.getMaxLagNanos();
+      this.isSynchronizing = statistics.isSynchronizing();
+      this.entitiesToSynchronize = statistics.getEntitiesToSynchronize();
+      this.entitiesSynchronized = statistics.getEntitiesSynchronized();
+      this.keysSynchronized = statistics.getKeysSynchronized();
+      this.bytesSynchronized = statistics.getBytesSynchronized();
+    }
+
+    @Override
+    public String toString() {
+      return "queueDepth=" + this.queueDepth + " maxQueueDepth=" + this.maxQueueDepth + " completed=" + this.completedMessages
+          + " averageLagNanos=" + this.averageLagNanos + " maxLagNanos=" + this.maxLagNanos
+          + " synchronizing=" + this.isSynchronizing + " entities=" + this.entitiesSynchronized + "/" + this.entitiesToSynchronize
+          + " keys=" + this.keysSynchronized + " bytes=" + this.bytesSynchronized;
+    }
+  }
+}
@@ -31,15 +31,15 @@ import org.terracotta.entity.EntityMessage;
 
 
 /**
- * This is a heavily simplified retirement manager which would have to be replaced/extended if we were to switch to a
- * multi-threaded passthrough server.
+ * This is a heavily simplified retirement manager.  It tolerates the server running invokes on execution lanes, since the
+ * deferrals of the "current message" are tracked per-thread, but it still treats retirement ordering as global.
  * Additionally, it is currently very coarse:  on deferred message will block ALL retirement, not just the retirement on its
  * concurrency key.
  */
 public class PassthroughRetirementManager {
 
   // This implementation is VERY simple and makes a few corresponding assumptions about how it is being used:
-  // -only one message is being run at any time
+  // -only one message is being run at any time, on any given thread
   // -it is acceptable to treat the logical ordering constraints as global, instead of just within a key
 
   // The list of blocked tuples.  These represent the "global logical ordering" of retirement.
@@ -47,7 +47,8 @@ public class PassthroughRetirementManager {
   // The messages which are still blocking _some_ tuple in the blockedTuples list.
   private final Set<EntityMessage> blockingMessages;
 
-  private final List<EntityMessage> blockCurrentMessageOn = new LinkedList<>();
+  // The deferrals of the message currently being run by each thread.
+  private final ThreadLocal<List<EntityMessage>> blockCurrentMessageOn = ThreadLocal.withInitial(LinkedList::new);
 
   public PassthroughRetirementManager() {
     this.blockedTuples = new LinkedList<>();
@@ -61,17 +62,18 @@ public class PassthroughRetirementManager {
    * @param blockedOn The message on which the currently executing message must block its retirement
    */
   public synchronized void deferCurrentMessage(EntityMessage blockedOn) {
-    this.blockCurrentMessageOn.add(blockedOn);
+    this.blockCurrentMessageOn.get().add(blockedOn);
   }
   
   public synchronized boolean addRetirementTuple(RetirementTuple tuple) {
     boolean didBlockTuple = false;
-    if (!this.blockedTuples.isEmpty() || !this.blockCurrentMessageOn.isEmpty()) {
-      this.blockingMessages.addAll(this.blockCurrentMessageOn);
-      tuple.blockedOn.addAll(this.blockCurrentMessageOn);
+    List<EntityMessage> currentBlockers = this.blockCurrentMessageOn.get();
+    if (!this.blockedTuples.isEmpty() || !currentBlockers.isEmpty()) {
+      this.blockingMessages.addAll(currentBlockers);
+      tuple.blockedOn.addAll(currentBlockers);
       this.blockedTuples.add(tuple);
       didBlockTuple = true;
-      this.blockCurrentMessageOn.clear();
+      currentBlockers.clear();
     }
     return didBlockTuple;
   }
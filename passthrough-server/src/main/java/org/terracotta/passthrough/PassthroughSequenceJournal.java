@@ -0,0 +1,333 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.terracotta.persistence.IPlatformPersistence.SequenceTuple;
+
+
+/**
+ * The append-only journal behind PassthroughFilePlatformPersistentStorage.fastStoreSequence().
+ * Every change to a sequence is appended as a fixed-size record to the current segment, a memory-mapped file of a fixed
+ * size, and applied to the in-memory copy of the sequences which is used to answer loads.  When a segment is full, the next
+ * one is started.  Once there are several segments, the live sequences are written to a snapshot file (atomically replacing
+ * the previous one) and the old segments are deleted.
+ * On open, the snapshot is read and the segments after it are replayed, in order, stopping at the first empty or corrupt
+ * record of each one (a torn write at the end of a segment is just dropped).  The journal is then compacted so each run
+ * starts with a fresh segment.
+ * This is not thread-safe:  the storage using it synchronizes all calls.
+ */
+public class PassthroughSequenceJournal implements Closeable {
+  private static final byte RECORD_END = 0;
+  private static final byte RECORD_STORE = 1;
+  private static final byte RECORD_DELETE = 2;
+  // The type, the sequence index, the 3 longs of a store (unused by a delete) and a CRC32 of everything before it.
+  private static final int RECORD_SIZE = 1 + (4 * 8) + 4;
+  public static final int MINIMUM_SEGMENT_SIZE = 64 * RECORD_SIZE;
+  // Once this many segments have been written since the last snapshot, we write a new one.
+  private static final int SEGMENTS_PER_SNAPSHOT = 4;
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String SNAPSHOT_FILE_NAME = "journal.snapshot";
+
+  private final File directory;
+  private final int segmentSize;
+  private final boolean shouldForceEachAppend;
+  private final Map<Long, ArrayDeque<SequenceTuple>> sequences = new HashMap<Long, ArrayDeque<SequenceTuple>>();
+  private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+  private final CRC32 crc = new CRC32();
+  // The first segment which isn't covered by the snapshot.
+  private long firstSegmentNumber;
+  private long currentSegmentNumber;
+  // Note that the mapping stays valid after its file is closed so we don't keep the file open.
+  private MappedByteBuffer currentSegment;
+
+  public PassthroughSequenceJournal(File directory, int segmentSize, boolean shouldForceEachAppend) throws IOException {
+    Assert.assertTrue(segmentSize >= MINIMUM_SEGMENT_SIZE);
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.shouldForceEachAppend = shouldForceEachAppend;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory: " + directory);
+    }
+    this.firstSegmentNumber = readSnapshot();
+    long lastSegmentNumber = this.firstSegmentNumber - 1;
+    for (long segmentNumber : listSegmentNumbers()) {
+      if (segmentNumber >= this.firstSegmentNumber) {
+        replaySegment(segmentNumber);
+        lastSegmentNumber = segmentNumber;
+      }
+    }
+    // Start this run with everything in the snapshot, and a fresh segment, so that we never append after a torn record.
+    this.currentSegmentNumber = lastSegmentNumber + 1;
+    writeSnapshot();
+    openCurrentSegment();
+  }
+
+  /**
+   * Drops every entry of the given sequence older than oldestValidSequenceID and adds the new entry.
+   */
+  public void store(long sequenceIndex, SequenceTuple newEntry, long oldestValidSequenceID) throws IOException {
+    applyStore(sequenceIndex, newEntry.localSequenceID, newEntry.globalSequenceID, oldestValidSequenceID);
+    append(RECORD_STORE, sequenceIndex, newEntry.localSequenceID, newEntry.globalSequenceID, oldestValidSequenceID);
+  }
+
+  /**
+   * @return A copy of the given sequence or null, if it doesn't exist
+   */
+  public List<SequenceTuple> load(long sequenceIndex) {
+    ArrayDeque<SequenceTuple> sequence = this.sequences.get(sequenceIndex);
+    return (null != sequence) ? new ArrayList<SequenceTuple>(sequence) : null;
+  }
+
+  public void delete(long sequenceIndex) throws IOException {
+    this.sequences.remove(sequenceIndex);
+    append(RECORD_DELETE, sequenceIndex, 0L, 0L, 0L);
+  }
+
+  /**
+   * @return Forces everything appended to the current segment, so far, to the disk, when run.  Unlike force(), this can be
+   * run without holding the lock which guards the journal since a full segment is forced before it is replaced.
+   */
+  public Runnable getCurrentSegmentForcer() {
+    MappedByteBuffer segment = this.currentSegment;
+    return segment::force;
+  }
+
+  /**
+   * Forces everything appended to the current segment to the disk.
+   */
+  public void force() {
+    this.currentSegment.force();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (null != this.currentSegment) {
+      force();
+      this.currentSegment = null;
+    }
+  }
+
+
+  private void applyStore(long sequenceIndex, long localSequenceID, long globalSequenceID, long oldestValidSequenceID) {
+    ArrayDeque<SequenceTuple> sequence = this.sequences.get(sequenceIndex);
+    if (null == sequence) {
+      sequence = new ArrayDeque<SequenceTuple>();
+      this.sequences.put(sequenceIndex, sequence);
+    }
+    // The sequence is kept ordered by localSequenceID so the invalid entries are always at the head.
+    while (!sequence.isEmpty() && (sequence.peekFirst().localSequenceID < oldestValidSequenceID)) {
+      sequence.pollFirst();
+    }
+    SequenceTuple tuple = new SequenceTuple();
+    tuple.localSequenceID = localSequenceID;
+    tuple.globalSequenceID = globalSequenceID;
+    if (sequence.isEmpty() || (sequence.peekLast().localSequenceID <= localSequenceID)) {
+      sequence.addLast(tuple);
+    } else {
+      // Entries normally arrive in order so this is only for the rare one which doesn't.
+      insertInOrder(sequence, tuple);
+    }
+  }
+
+  private static void insertInOrder(ArrayDeque<SequenceTuple> sequence, SequenceTuple newEntry) {
+    List<SequenceTuple> later = new ArrayList<SequenceTuple>();
+    while (!sequence.isEmpty() && (sequence.peekLast().localSequenceID > newEntry.localSequenceID)) {
+      later.add(sequence.pollLast());
+    }
+    sequence.addLast(newEntry);
+    for (int i = later.size() - 1; i >= 0; --i) {
+      sequence.addLast(later.get(i));
+    }
+  }
+
+  private void append(byte type, long sequenceIndex, long first, long second, long third) throws IOException {
+    if (this.currentSegment.remaining() < RECORD_SIZE) {
+      rollSegment();
+    }
+    this.record.clear();
+    this.record.put(type).putLong(sequenceIndex).putLong(first).putLong(second).putLong(third);
+    this.crc.reset();
+    this.crc.update(this.record.array(), 0, this.record.position());
+    this.record.putInt((int) this.crc.getValue());
+    this.record.flip();
+    this.currentSegment.put(this.record);
+    if (this.shouldForceEachAppend) {
+      force();
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    // A full segment is always forced, whatever the policy, so that the snapshot never has to cover unwritten records.
+    close();
+    this.currentSegmentNumber += 1;
+    if ((this.currentSegmentNumber - this.firstSegmentNumber) >= SEGMENTS_PER_SNAPSHOT) {
+      writeSnapshot();
+    }
+    openCurrentSegment();
+  }
+
+  private void openCurrentSegment() throws IOException {
+    // Note that the file is extended with zeros so everything after the last record reads as RECORD_END.
+    try (RandomAccessFile file = new RandomAccessFile(segmentFile(this.currentSegmentNumber), "rw")) {
+      file.setLength(this.segmentSize);
+      this.currentSegment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+    }
+  }
+
+  private void replaySegment(long segmentNumber) throws IOException {
+    byte[] segment = Files.readAllBytes(segmentFile(segmentNumber).toPath());
+    ByteBuffer buffer = ByteBuffer.wrap(segment);
+    boolean isValid = true;
+    while (isValid && (buffer.remaining() >= RECORD_SIZE)) {
+      int start = buffer.position();
+      byte type = buffer.get();
+      long sequenceIndex = buffer.getLong();
+      long first = buffer.getLong();
+      long second = buffer.getLong();
+      long third = buffer.getLong();
+      this.crc.reset();
+      this.crc.update(segment, start, buffer.position() - start);
+      int expectedCrc = buffer.getInt();
+      if ((RECORD_END == type) || (expectedCrc != (int) this.crc.getValue())) {
+        isValid = false;
+      } else if (RECORD_STORE == type) {
+        applyStore(sequenceIndex, first, second, third);
+      } else if (RECORD_DELETE == type) {
+        this.sequences.remove(sequenceIndex);
+      } else {
+        isValid = false;
+      }
+    }
+  }
+
+  /**
+   * @return The first segment number not covered by the snapshot (0 if there is no snapshot)
+   */
+  private long readSnapshot() throws IOException {
+    long nextSegmentNumber = 0L;
+    File snapshot = new File(this.directory, SNAPSHOT_FILE_NAME);
+    if (snapshot.isFile()) {
+      try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+        nextSegmentNumber = input.readLong();
+        int sequenceCount = input.readInt();
+        for (int i = 0; i < sequenceCount; ++i) {
+          long sequenceIndex = input.readLong();
+          int tupleCount = input.readInt();
+          ArrayDeque<SequenceTuple> sequence = new ArrayDeque<SequenceTuple>(tupleCount);
+          for (int j = 0; j < tupleCount; ++j) {
+            SequenceTuple tuple = new SequenceTuple();
+            tuple.localSequenceID = input.readLong();
+            tuple.globalSequenceID = input.readLong();
+            sequence.add(tuple);
+          }
+          this.sequences.put(sequenceIndex, sequence);
+        }
+      }
+    }
+    return nextSegmentNumber;
+  }
+
+  /**
+   * Writes everything in memory as the new snapshot, covering every segment before the current one, and deletes those
+   * segments.  The snapshot is written to a temporary file, forced and then renamed over the previous one so that a crash
+   * at any point leaves either the old or the new snapshot (with the segments it needs).
+   */
+  private void writeSnapshot() throws IOException {
+    File temp = new File(this.directory, SNAPSHOT_FILE_NAME + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(temp)) {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file));
+      output.writeLong(this.currentSegmentNumber);
+      output.writeInt(this.sequences.size());
+      for (Map.Entry<Long, ArrayDeque<SequenceTuple>> entry : this.sequences.entrySet()) {
+        output.writeLong(entry.getKey());
+        output.writeInt(entry.getValue().size());
+        for (SequenceTuple tuple : entry.getValue()) {
+          output.writeLong(tuple.localSequenceID);
+          output.writeLong(tuple.globalSequenceID);
+        }
+      }
+      output.flush();
+      file.getFD().sync();
+    }
+    Files.move(temp.toPath(), new File(this.directory, SNAPSHOT_FILE_NAME).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    // The old segments are deleted next so the rename must be durable first.
+    forceDirectory(this.directory);
+    this.firstSegmentNumber = this.currentSegmentNumber;
+    for (long segmentNumber : listSegmentNumbers()) {
+      if (segmentNumber < this.firstSegmentNumber) {
+        Files.delete(segmentFile(segmentNumber).toPath());
+      }
+    }
+  }
+
+  /**
+   * Forces the directory entries of the given directory, making a rename within it durable.
+   */
+  static void forceDirectory(File directory) throws IOException {
+    try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (AccessDeniedException e) {
+      // Some platforms (Windows) can't open a directory so there is nothing more we can do.
+    }
+  }
+
+  private List<Long> listSegmentNumbers() {
+    List<Long> numbers = new ArrayList<Long>();
+    String[] names = this.directory.list();
+    if (null != names) {
+      for (String name : names) {
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        }
+      }
+    }
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  private File segmentFile(long segmentNumber) {
+    return new File(this.directory, SEGMENT_PREFIX + String.format("%016d", segmentNumber) + SEGMENT_SUFFIX);
+  }
+}
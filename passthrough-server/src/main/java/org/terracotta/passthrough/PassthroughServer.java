@@ -31,6 +31,7 @@ import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Assert;
@@ -57,6 +58,20 @@ public class PassthroughServer implements PassthroughDumper {
   private String serverName;
   private int bindPort;
   private int groupPort;
+  private int executionLaneCount;
+  private int drainBudget = 1;
+  private int replicationWindow;
+  private int replicationBatchSize = 1;
+  private long replicationLingerNanos;
+  private int syncParallelism = 1;
+  private int replicationLogSize;
+  private boolean isLazyEntityLoading;
+  private int entityWarmerBatchSize;
+  private boolean isStreamingResends;
+  private int inboundQueueCapacity;
+  private PassthroughBackpressurePolicy backpressurePolicy = PassthroughBackpressurePolicy.BLOCK;
+  private PassthroughThreadFactory threadFactory = PassthroughThreadFactory.PLATFORM_THREADS;
+  private PassthroughMessageFidelity messageFidelity = PassthroughMessageFidelity.VERIFY_CODECS;
   
   private boolean isActive;
     
@@ -102,6 +117,196 @@ public class PassthroughServer implements PassthroughDumper {
   public void setGroupPort(int groupPort) {
     this.groupPort = groupPort;
   }
+
+  /**
+   * Opts in to running invokes on a pool of per-concurrency-key execution lanes, instead of directly on the server thread.
+   * Invokes on the same key are still run in order but invokes on different keys can run concurrently.  Life-cycle messages
+   * and invokes on MANAGEMENT_KEY or UNIVERSAL_KEY act as barriers across all lanes.
+   * 
+   * @param executionLaneCount The number of lanes to use (0, the default, runs everything on the server thread)
+   */
+  public void setExecutionLaneCount(int executionLaneCount) {
+    Assert.assertTrue(executionLaneCount >= 0);
+    this.executionLaneCount = executionLaneCount;
+  }
+
+  /**
+   * Sets the most messages the server thread will take from its inbound queue, each time it wakes up, and process
+   * back-to-back.
+   * 
+   * @param drainBudget The number of messages per drain (1, the default, processes one message per wake-up)
+   */
+  public void setServerThreadDrainBudget(int drainBudget) {
+    Assert.assertTrue(drainBudget > 0);
+    this.drainBudget = drainBudget;
+  }
+
+  /**
+   * Opts in to pipelining replication:  the active sends each invoke to its passives and runs it without waiting for them.
+   * The response and retire of the invoke are still withheld until every passive has run it, so clients see the same
+   * results, but the active server thread only blocks once this many invokes are waiting on the passives.
+   * 
+   * @param replicationWindow The most invokes waiting on the passives (0, the default, waits for the passives before
+   * running each invoke)
+   */
+  public void setReplicationWindow(int replicationWindow) {
+    Assert.assertTrue(replicationWindow >= 0);
+    this.replicationWindow = replicationWindow;
+  }
+
+  /**
+   * Packs consecutive pipelined invokes into frames so that each passive receives, and wakes up for, many of them at once.
+   * This only applies when the replication window is non-zero.
+   * 
+   * @param batchSize The most invokes per frame (1, the default, sends each one as soon as it is replicated)
+   * @param linger How long the active waits for more messages, once it has nothing left to run, before sending a partial
+   * frame (0 sends it right away)
+   * @param unit The unit of linger
+   */
+  public void setReplicationBatching(int batchSize, long linger, TimeUnit unit) {
+    Assert.assertTrue(batchSize > 0);
+    Assert.assertTrue(linger >= 0);
+    this.replicationBatchSize = batchSize;
+    this.replicationLingerNanos = unit.toNanos(linger);
+  }
+
+  /**
+   * Sets how many concurrency keys, across all entities, this server synchronizes at once when a passive attaches to it.
+   * Each key is synchronized on the execution lane which owns it so this only applies when there are execution lanes.
+   * 
+   * @param syncParallelism The most keys in flight (1, the default, synchronizes one key at a time)
+   */
+  public void setPassiveSyncParallelism(int syncParallelism) {
+    Assert.assertTrue(syncParallelism > 0);
+    this.syncParallelism = syncParallelism;
+  }
+
+  /**
+   * Keeps the most recently replicated messages, while active, so that a passive which is restarted can be caught up by
+   * replaying the messages it missed, from its own storage, instead of being synchronized from scratch.  A passive which
+   * missed more than this many messages (or was following a different active) is still fully synchronized.
+   * 
+   * @param replicationLogSize The number of messages kept (0, the default, keeps no log)
+   */
+  public void setReplicationLogSize(int replicationLogSize) {
+    Assert.assertTrue(replicationLogSize >= 0);
+    this.replicationLogSize = replicationLogSize;
+  }
+
+  /**
+   * Makes the entities a restarted server restores from storage load on first use (fetch, invoke, reconnect or a life-cycle
+   * operation) instead of all of them being loaded before the server starts, so that restart time doesn't grow with the
+   * number of entities.  Synchronizing a passive, or promoting this server to active, still loads every entity.
+   * 
+   * @param isLazy True if entities should be loaded lazily (false, the default, loads them all on start)
+   * @param warmerBatchSize If greater than 0, the server thread also loads the remaining entities in batches of this many,
+   * between the messages it handles (0, the default, only loads them on use)
+   */
+  public void setLazyEntityLoading(boolean isLazy, int warmerBatchSize) {
+    Assert.assertTrue(warmerBatchSize >= 0);
+    this.isLazyEntityLoading = isLazy;
+    this.entityWarmerBatchSize = warmerBatchSize;
+  }
+
+  /**
+   * Makes a server which becomes active, on fail-over, run each re-sent transaction as soon as everything before it, in the
+   * order the transactions were originally received, has either been re-sent or won't be (since its client finished
+   * re-sending), so that recovery overlaps with the other clients still re-sending.  The default collects every re-send
+   * before running any of them.
+   * 
+   * @param isStreaming True if re-sends should be streamed
+   */
+  public void setStreamingResends(boolean isStreaming) {
+    this.isStreamingResends = isStreaming;
+  }
+
+  /**
+   * When this server is active, describes how far behind it each of its passives is:  the replicated messages they
+   * haven't yet completed, how long messages take to complete on them and the progress of their synchronization.
+   * The same values are published in the platform monitoring tree, under "replication", refreshed at most once a second.
+   * 
+   * @return The replication statistics of each attached passive, by server name
+   */
+  public Map<String, PassthroughReplicationStatistics> getPassiveReplicationStatistics() {
+    return this.serverProcess.getPassiveReplicationStatistics();
+  }
+
+  /**
+   * @return The replication frame statistics of the currently running server process
+   */
+  public PassthroughReplicationBatchStatistics getReplicationBatchStatistics() {
+    return this.serverProcess.getReplicationBatchStatistics();
+  }
+
+  /**
+   * Bounds the number of messages client connections can have waiting for the server thread.  Once that many are queued,
+   * further client sends are blocked or refused, according to the policy.
+   * 
+   * @param capacity The capacity of the inbound queue (0, the default, means unbounded)
+   * @param policy What to do with client sends when the queue is full
+   */
+  public void setInboundQueueCapacity(int capacity, PassthroughBackpressurePolicy policy) {
+    Assert.assertTrue(capacity >= 0);
+    Assert.assertTrue(null != policy);
+    this.inboundQueueCapacity = capacity;
+    this.backpressurePolicy = policy;
+  }
+
+  /**
+   * @return The inbound queue depth and backpressure counters of the currently running server process
+   */
+  public PassthroughInboundQueueStatistics getInboundQueueStatistics() {
+    return this.serverProcess.getInboundQueueStatistics();
+  }
+
+  /**
+   * Opts in to creating the server thread, timer thread, and all client connection reader threads as virtual threads.  This
+   * allows very large numbers of clients to be simulated in one VM.
+   * Virtual threads require Java 21+ so, when running on an older VM, this logs a warning and platform threads are used.
+   * 
+   * @param useVirtualThreads True if virtual threads should be used (false, the default, uses platform threads)
+   */
+  public void setUseVirtualThreads(boolean useVirtualThreads) {
+    Assert.assertFalse(this.hasStarted);
+    this.threadFactory = PassthroughThreadFactory.forThreadType(useVirtualThreads);
+  }
+
+  /**
+   * @return True if this server is creating its threads as virtual threads
+   */
+  public boolean isUsingVirtualThreads() {
+    return this.threadFactory.isUsingVirtualThreads();
+  }
+
+  /**
+   * Sets how invokes from the clients of this server are carried to it.  The default, VERIFY_CODECS, runs every invoke and
+   * response through the entity's MessageCodec while OBJECT_LANE hands them over by reference, which is much faster when
+   * the test is only interested in the entity itself.
+   * 
+   * @param messageFidelity The fidelity used by all clients subsequently connected to this server
+   */
+  public void setMessageFidelity(PassthroughMessageFidelity messageFidelity) {
+    Assert.assertTrue(null != messageFidelity);
+    this.messageFidelity = messageFidelity;
+  }
+
+  public PassthroughMessageFidelity getMessageFidelity() {
+    return this.messageFidelity;
+  }
+
+  /**
+   * @return The drain statistics of the currently running server process
+   */
+  public PassthroughDrainStatistics getDrainStatistics() {
+    return this.serverProcess.getDrainStatistics();
+  }
+
+  /**
+   * @return The number of entities the currently running server process restored from storage but hasn't loaded yet
+   */
+  public int getUnloadedEntityCount() {
+    return this.serverProcess.getUnloadedEntityCount();
+  }
    
   public void registerServerEntityService(EntityServerService<?, ?> service) {
     Assert.assertFalse(this.hasStarted);
@@ -135,7 +340,8 @@ public class PassthroughServer implements PassthroughDumper {
     };
     String readerThreadName = "Client connection " + thisConnectionID;
     PassthroughConnection connection = new PassthroughConnection(connectionName, readerThreadName, this.serverProcess, this.entityClientServices, onClose, thisConnectionID, endpointConnector);
-    connection.startProcessingRequests();
+    connection.setMessageFidelity(this.messageFidelity);
+    connection.startProcessingRequests(this.threadFactory);
     this.serverProcess.connectConnection(connection, thisConnectionID);
     this.savedClientConnections.put(thisConnectionID, connection);
     return connection;
@@ -152,7 +358,7 @@ public class PassthroughServer implements PassthroughDumper {
     };
     String readerThreadName = "Pseudo-connection " + thisConnectionID;
     PassthroughConnection passthroughConnection = new PassthroughConnection("internal pseudo-connection", readerThreadName, this.serverProcess, this.entityClientServices, onClose, thisConnectionID);
-    passthroughConnection.startProcessingRequests();
+    passthroughConnection.startProcessingRequests(this.threadFactory);
     return passthroughConnection;
   }
 
@@ -197,6 +403,16 @@ public class PassthroughServer implements PassthroughDumper {
 
   private void bootstrapProcess(boolean active) {
     this.serverProcess = new PassthroughServerProcess(serverName, bindPort, groupPort, this.extendedConfigurationObjects, active, this.crasher);
+    this.serverProcess.setExecutionLaneCount(this.executionLaneCount);
+    this.serverProcess.setDrainBudget(this.drainBudget);
+    this.serverProcess.setReplicationWindow(this.replicationWindow);
+    this.serverProcess.setReplicationBatching(this.replicationBatchSize, this.replicationLingerNanos);
+    this.serverProcess.setSyncParallelism(this.syncParallelism);
+    this.serverProcess.setReplicationLogSize(this.replicationLogSize);
+    this.serverProcess.setLazyEntityLoading(this.isLazyEntityLoading, this.entityWarmerBatchSize);
+    this.serverProcess.setStreamingResends(this.isStreamingResends);
+    this.serverProcess.setThreadFactory(this.threadFactory);
+    this.serverProcess.setInboundQueueCapacity(this.inboundQueueCapacity, this.backpressurePolicy);
 
     // Populate the server with its services.
     for (EntityServerService<?, ?> serverEntityService : this.savedServerEntityServices) {
@@ -233,6 +449,9 @@ public class PassthroughServer implements PassthroughDumper {
   }
 
   private void internalStop() {
+    // A passive's server thread records how far it got in the active's replication log, as it exits, so it is stopped while
+    // the storage is still open.
+    this.serverProcess.stopPassiveServerThread();
     this.serverProcess.shutdownServices();
     this.serverProcess.stop();
     this.monitoringProducer.serverDidStop();
@@ -264,19 +483,58 @@ public class PassthroughServer implements PassthroughDumper {
     this.extendedConfigurationObjects.add(extendedConfigObject);
   }
 
-  public void attachDownstreamPassive(PassthroughServer passiveServer) {
+  /**
+   * Attaches the given passive, which was started without its storage, synchronizing it from scratch.
+   * 
+   * @param passiveServer The started passive
+   * @return True if the passive was attached, false if either server was stopped before the passive was synchronized
+   */
+  public boolean attachDownstreamPassive(PassthroughServer passiveServer) {
     // Before we attach the downstream to the server process, thus causing the sync, we need to attach the monitoring
     //  producer, since it needs to know where to forward data to the upstream active.
     // NOTE:  This will currently call directly since it simplifies the message flow, for now, but this will likely change
     //  once we have a better sense of how to organize these message channels between the passthrough server processes.
     passiveServer.monitoringProducer.setUpstreamActive(this.monitoringProducer, passiveServer.serverProcess.getServerInfo());
-    this.serverProcess.addDownstreamPassiveServerProcess(passiveServer.serverProcess);
+    return this.serverProcess.addDownstreamPassiveServerProcess(passiveServer.serverProcess);
+  }
+
+  /**
+   * Starts a passive which was stopped and attaches it to this active.  If we keep a replication log, the passive is first
+   * started from its storage and caught up by replaying what it missed.  If that isn't possible, it is restarted without its
+   * storage and synchronized from scratch.
+   * 
+   * @param passiveServer The stopped passive
+   */
+  public void startAndAttachRestartedPassive(PassthroughServer passiveServer) {
+    boolean didCatchUp = false;
+    if (this.replicationLogSize > 0) {
+      passiveServer.start(false, true, Collections.<Long>emptySet());
+      didCatchUp = this.serverProcess.catchUpDownstreamPassiveServerProcess(passiveServer.serverProcess);
+      if (didCatchUp) {
+        // The passive only joins the monitoring once we know it is staying (what it published while it was caught up was
+        // cached and is flushed to us now).
+        passiveServer.monitoringProducer.setUpstreamActive(this.monitoringProducer, passiveServer.serverProcess.getServerInfo());
+      } else {
+        passiveServer.stop();
+      }
+    }
+    if (!didCatchUp) {
+      passiveServer.start(false, false, Collections.<Long>emptySet());
+      attachDownstreamPassive(passiveServer);
+    }
   }
 
   public void detachDownstreamPassive(PassthroughServer passiveServer) {
     this.serverProcess.removeDownstreamPassiveServerProcess(passiveServer.serverProcess);
   }
 
+  /**
+   * @return The snapshot of the attached passive server processes which the server thread currently replicates to
+   */
+  Set<PassthroughServerProcess> getDownstreamPassives() {
+    return this.serverProcess.getDownstreamPassives();
+  }
+
   public void connectSavedClientsTo(PassthroughServer newActive) {
     for(Map.Entry<Long, PassthroughConnection> connection : this.savedClientConnections.entrySet()) {
       newActive.failOverReconnect(connection.getKey(), connection.getValue());
@@ -284,6 +542,8 @@ public class PassthroughServer implements PassthroughDumper {
     newActive.serverProcess.beginReceivingResends();
     for(Map.Entry<Long, PassthroughConnection> connection : this.savedClientConnections.entrySet()) {
       connection.getValue().finishReconnect();
+      // The re-sends are sent synchronously so this connection won't re-send anything else.
+      newActive.serverProcess.finishedReceivingResendsFrom(connection.getKey());
     }
     newActive.serverProcess.endReceivingResends();
 
@@ -18,50 +18,96 @@
  */
 package org.terracotta.passthrough;
 
+import org.terracotta.entity.EntityResponse;
 import org.terracotta.exception.EntityException;
 import org.terracotta.exception.EntityServerException;
 import org.terracotta.passthrough.PassthroughMessage.Type;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 
 /**
  * A helper class which decodes a message, on the server, deciding if it needs to be replicated to a passive and translating
  * it into high-level operations on the server.
- * One instance of this is created for every message processed by a server.
- * It is used entirely on the server thread.
+ * One instance of this is owned by the server thread and reused for every message it processes.
+ * It is used entirely on the server thread, except for fetch and invoke completions which can arrive later (from the
+ * read-lock or an execution lane) so anything they need is captured per-message, never read from the fields.
  */
 public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.Decoder<Void> {
   private final PassthroughServerProcess thisServer;
   private final MessageHandler messageHandler;
   private final PassthroughTransactionOrderManager transactionOrderManager;
   private final LifeCycleMessageHandler lifeCycleMessageHandler;
-  private final Set<PassthroughServerProcess> downstreamPassives = new HashSet<PassthroughServerProcess>();
-  private final IMessageSenderWrapper sender;
   private final IAsynchronousServerCrasher crasher;
-  private final byte[] message;
+  // Null unless the active was asked to pipeline replicated invokes, instead of waiting for the passives to run them.
+  private final PassthroughReplicationPipeline replicationPipeline;
+  // Null unless the active's persistence commits in groups, in which case client responses wait for their commit.
+  private final PassthroughGroupCommitGate groupCommitGate;
+  // The state of the message currently being handled, only set for the duration of handleMessage().
+  private IMessageSenderWrapper currentSender;
+  private byte[] currentMessage;
+  // Non-null only for an invoke which came in on the object lane, in which case it is the EntityMessage itself.
+  private Object currentAttachment;
+  private Set<PassthroughServerProcess> currentPassives;
 
-  public PassthroughServerMessageDecoder(PassthroughServerProcess thisServer, MessageHandler messageHandler, PassthroughTransactionOrderManager transactionOrderManager, LifeCycleMessageHandler lifeCycleMessageHandler, Set<PassthroughServerProcess> downstreamPassives, IMessageSenderWrapper sender, IAsynchronousServerCrasher crasher, byte[] message) {
+  public PassthroughServerMessageDecoder(PassthroughServerProcess thisServer, MessageHandler messageHandler, PassthroughTransactionOrderManager transactionOrderManager, LifeCycleMessageHandler lifeCycleMessageHandler, IAsynchronousServerCrasher crasher, PassthroughReplicationPipeline replicationPipeline, PassthroughGroupCommitGate groupCommitGate) {
     this.thisServer = thisServer;
     this.messageHandler = messageHandler;
     this.transactionOrderManager = transactionOrderManager;
     this.lifeCycleMessageHandler = lifeCycleMessageHandler;
-    this.downstreamPassives.addAll(downstreamPassives);
-    this.sender = sender;
     this.crasher = crasher;
-    this.message = message;
+    this.replicationPipeline = replicationPipeline;
+    this.groupCommitGate = groupCommitGate;
   }
+
+  /**
+   * Decodes and runs one message.  Must be called on the server thread.
+   * 
+   * @param sender The sender of the message
+   * @param message The serialized message
+   * @param attachment The EntityMessage of an invoke which came in on the object lane, or null
+   * @param downstreamPassives An immutable snapshot of the passives the message should be replicated to
+   */
+  public void handleMessage(IMessageSenderWrapper sender, byte[] message, Object attachment, Set<PassthroughServerProcess> downstreamPassives) {
+    this.currentSender = sender;
+    this.currentMessage = message;
+    this.currentAttachment = attachment;
+    this.currentPassives = downstreamPassives;
+    try {
+      PassthroughMessageCodec.decodeRawMessage(this, message);
+    } finally {
+      // Don't hold the last message until the next one arrives.
+      this.currentSender = null;
+      this.currentMessage = null;
+      this.currentAttachment = null;
+      this.currentPassives = null;
+    }
+  }
+
   @Override
   public Void decode(Type type, boolean shouldReplicate, final long transactionID, final long oldestTransactionID, DataInputStream input) throws IOException {
+    // Take the per-message state into locals since the completion callbacks may run after we move on to the next message.
+    final IMessageSenderWrapper receivedSender = this.currentSender;
+    final byte[] message = this.currentMessage;
+    final Object attachment = this.currentAttachment;
+    final Set<PassthroughServerProcess> attachedPassives = this.currentPassives;
+    
     // First step, update our persistence.
-    long originID = this.sender.getClientOriginID();
+    long originID = receivedSender.getClientOriginID();
     // Negative origin IDs are for internal messages - we don't want to track them.
     if ((null != this.transactionOrderManager) && (originID >= 0)) {
       this.transactionOrderManager.updateTracking(originID, transactionID, oldestTransactionID);
     }
+    // With group commit, the client only sees the complete and retire once everything the message stores is durable.
+    final IMessageSenderWrapper sender = ((null != this.groupCommitGate) && (originID >= 0))
+        ? this.groupCommitGate.holdUntilDurable(receivedSender)
+        : receivedSender;
     
     // Next, send the ack.
     PassthroughMessage ack = PassthroughMessageCodec.createAckMessage();
@@ -75,22 +121,46 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
     // In order to implement the consensus model, we also need to see if the passives experienced success or failure when running the replicated message.
     // Either all the servers need to succeed, all them need to fail, or any failing servers must be crashed.
     // (note that we only use this in the create/reconfigure cases, for now).
+    // When pipelining, invokes don't wait at all:  they are run right away and their response is sent through a sender which
+    // holds it until the passives are done.
     Set<PassthroughServerProcess> failingServers = new HashSet<PassthroughServerProcess>();
-    if (shouldReplicate && this.downstreamPassives.size() > 0) {
-      for (PassthroughServerProcess passive : downstreamPassives) {
-        PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(this.sender);
-        passive.sendMessageToServerFromActive(wrapper, message);
-        boolean didSucceed = wrapper.waitForComplete();
-        if (!didSucceed) {
-          failingServers.add(passive);
+    byte[] messageToReplicate = null;
+    long replicationSequence = 0L;
+    Set<PassthroughServerProcess> replicationTargets = attachedPassives;
+    Map<PassthroughServerProcess, PassthroughInterserverInterlock> heldInterlocks = Collections.emptyMap();
+    // Even with no passives attached, the message must go in the replication log (if we keep one) so that a passive which
+    // is currently down can be caught up.
+    if (shouldReplicate && ((attachedPassives.size() > 0) || this.thisServer.isKeepingReplicationLog())) {
+      // Entity handles only mean something to this server so the passives need the invoke in its named form (and encoded, if
+      // it came in on the object lane).
+      messageToReplicate = (Type.INVOKE_ON_SERVER == type)
+          ? this.thisServer.convertInvokeForReplication(message, attachment)
+          : message;
+      replicationSequence = this.thisServer.logReplicatedMessage(messageToReplicate);
+      // Passives which are still synchronizing don't need messages for what they haven't been sent yet (or get them later).
+      heldInterlocks = new HashMap<PassthroughServerProcess, PassthroughInterserverInterlock>();
+      replicationTargets = this.thisServer.passivesToReplicateTo(type, messageToReplicate, attachment, attachedPassives, sender, heldInterlocks);
+    }
+    final Set<PassthroughServerProcess> downstreamPassives = replicationTargets;
+    IMessageSenderWrapper replicatedSender = sender;
+    if (shouldReplicate && ((downstreamPassives.size() > 0) || !heldInterlocks.isEmpty())) {
+      // An invoke held for a synchronizing passive isn't pipelined:  it waits for that passive like for the others.
+      if ((Type.INVOKE_ON_SERVER == type) && (null != this.replicationPipeline) && heldInterlocks.isEmpty()) {
+        replicatedSender = this.replicationPipeline.replicate(sender, messageToReplicate, replicationSequence, downstreamPassives);
+      } else {
+        if (null != this.replicationPipeline) {
+          // Anything pipelined before this must reach the passives first.
+          this.replicationPipeline.flush();
         }
+        sendToPassivesAndWait(sender, messageToReplicate, replicationSequence, downstreamPassives, heldInterlocks, failingServers);
       }
     }
+    final IMessageSenderWrapper invokeSender = replicatedSender;
     
     // Now, decode the message and interpret it.
     switch (type) {
       case CREATE_ENTITY: {
-        long clientOriginID = this.sender.getClientOriginID();
+        long clientOriginID = sender.getClientOriginID();
         String entityClassName = input.readUTF();
         String entityName = input.readUTF();
         long version = input.readLong();
@@ -128,14 +198,14 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
           }
         }
         // Before sending the complete, determine how to handle the case where there is an inconsistency across the stripe.
-        boolean shouldSendResponse = handleConsensus(failingServers, error);
+        boolean shouldSendResponse = handleConsensus(downstreamPassives, failingServers, error);
         if (shouldSendResponse) {
           sendCompleteResponse(sender, transactionID, response, error);
         }
         break;
       }
       case RECONFIGURE_ENTITY: {
-        long clientOriginID = this.sender.getClientOriginID();
+        long clientOriginID = sender.getClientOriginID();
         String entityClassName = input.readUTF();
         String entityName = input.readUTF();
         long version = input.readLong();
@@ -175,14 +245,14 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
           }
         }
         // Before sending the complete, determine how to handle the case where there is an inconsistency across the stripe.
-        boolean shouldSendResponse = handleConsensus(failingServers, error);
+        boolean shouldSendResponse = handleConsensus(downstreamPassives, failingServers, error);
         if (shouldSendResponse) {
           sendCompleteResponse(sender, transactionID, response, error);
         }
         break;
       }      
       case DESTROY_ENTITY: {
-        long clientOriginID = this.sender.getClientOriginID();
+        long clientOriginID = sender.getClientOriginID();
         String entityClassName = input.readUTF();
         String entityName = input.readUTF();
         byte[] response = null;
@@ -284,30 +354,45 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         break;
       }
       case INVOKE_ON_SERVER: {
-        String entityClassName = input.readUTF();
-        String entityName = input.readUTF();
+        // Clients send invokes with the handle they got from the fetch while internal invokes still use the names.
+        final long entityHandle = input.readLong();
+        final String entityClassName = (PassthroughMessageCodec.NO_ENTITY_HANDLE == entityHandle) ? input.readUTF() : null;
+        final String entityName = (PassthroughMessageCodec.NO_ENTITY_HANDLE == entityHandle) ? input.readUTF() : null;
         long clientInstanceID = input.readLong();
         byte[] payload = new byte[input.readInt()];
         input.readFully(payload);
-        byte[] response = null;
-        EntityException error = null;
+        // Note that the invoke is asynchronous since it may be run on an execution lane, instead of this thread.
+        IInvokeResult onInvoke = new IInvokeResult() {
+          @Override
+          public void onInvokeComplete(byte[] response, EntityException error) {
+            sendCompleteResponse(invokeSender, transactionID, response, error);
+          }
+          @Override
+          public void onInvokeCompleteWithObject(EntityResponse response) {
+            sendCompleteResponse(invokeSender, transactionID, response);
+          }
+        };
         try {
-          // We respond with the config, if found.
-          response = this.messageHandler.invoke(sender,
-                                                clientInstanceID,
-                                                transactionID,
-                                                oldestTransactionID,
-                                                entityClassName,
-                                                entityName,
-                                                payload);
+          this.messageHandler.invoke(invokeSender,
+                                     clientInstanceID,
+                                     transactionID,
+                                     oldestTransactionID,
+                                     entityHandle,
+                                     entityClassName,
+                                     entityName,
+                                     payload,
+                                     attachment,
+                                     onInvoke);
         } catch (EntityException e) {
-          error = e;
+          onInvoke.onInvokeComplete(null, e);
         } catch (RuntimeException e) {
           e.printStackTrace();
           // Just wrap this as a user exception since it was unexpected.
-          error = new EntityServerException(entityClassName, entityName, e.getLocalizedMessage(), e);
+          PassthroughEntityTuple names = (PassthroughMessageCodec.NO_ENTITY_HANDLE != entityHandle)
+              ? this.messageHandler.entityNamesForHandle(entityHandle)
+              : new PassthroughEntityTuple(entityClassName, entityName);
+          onInvoke.onInvokeComplete(null, new EntityServerException(names.entityClassName, names.entityName, e.getLocalizedMessage(), e));
         }
-        sendCompleteResponse(sender, transactionID, response, error);
         break;
       }
       case ACK_FROM_SERVER:
@@ -332,9 +417,9 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
         byte[] response = null;
         EntityException error = null;
         try {
-          this.messageHandler.reconnect(sender, clientInstanceID, entityClassName, entityName, extendedData);
-          // No response;
-          response = new byte[0];
+          long entityHandle = this.messageHandler.reconnect(sender, clientInstanceID, entityClassName, entityName, extendedData);
+          // The response is the entity's handle on this server (the one the client had is for the server it lost).
+          response = PassthroughMessageCodec.encodeEntityHandleResponse(entityHandle, null);
         } catch (RuntimeException e) {
           // Just wrap this as a user exception since it was unexpected.
           error = new EntityServerException(entityClassName, entityName, e.getLocalizedMessage(), e);
@@ -444,13 +529,32 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
     return null;
   }
 
+  private void sendToPassivesAndWait(IMessageSenderWrapper sender, byte[] messageToReplicate, long replicationSequence, Set<PassthroughServerProcess> downstreamPassives, Map<PassthroughServerProcess, PassthroughInterserverInterlock> heldInterlocks, Set<PassthroughServerProcess> failingServers) {
+    // Send to every passive before waiting on any of them so that they all run the message concurrently:  we only wait as
+    // long as the slowest passive, not the sum of all of them.
+    // The passives the message was held for will be sent it by their synchronization but we wait on them the same way.
+    Map<PassthroughServerProcess, PassthroughInterserverInterlock> interlocks = new HashMap<PassthroughServerProcess, PassthroughInterserverInterlock>(heldInterlocks);
+    for (PassthroughServerProcess passive : downstreamPassives) {
+      PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(sender, null, passive.getReplicationStatistics());
+      passive.sendMessageToServerFromActive(wrapper, messageToReplicate, replicationSequence);
+      interlocks.put(passive, wrapper);
+    }
+    for (Map.Entry<PassthroughServerProcess, PassthroughInterserverInterlock> entry : interlocks.entrySet()) {
+      boolean didSucceed = entry.getValue().waitForComplete();
+      if (!didSucceed) {
+        failingServers.add(entry.getKey());
+      }
+    }
+  }
+
   /**
    * 
+   * @param downstreamPassives
    * @param failingServers
    * @param error
    * @return True if the response should be sent (false implies that we are the one being crashed so we shouldn't respond).
    */
-  private boolean handleConsensus(Set<PassthroughServerProcess> failingServers, EntityException error) {
+  private boolean handleConsensus(Set<PassthroughServerProcess> downstreamPassives, Set<PassthroughServerProcess> failingServers, EntityException error) {
     boolean shouldSendResponse = true;
     if (null == error) {
       // This was a success so kill any other servers which don't agree.
@@ -459,7 +563,7 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
       }
     } else {
       // This was a failure so see if everyone failed.  If anyone succeeded, kill all failing servers and then ourself.
-      if (this.downstreamPassives.size() != failingServers.size()) {
+      if (downstreamPassives.size() != failingServers.size()) {
         for (PassthroughServerProcess serverProcess : failingServers) {
           this.crasher.terminateServerProcess(serverProcess);
           shouldSendResponse = false;
@@ -476,6 +580,19 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
       error.printStackTrace();
     }
     PassthroughMessage complete = PassthroughMessageCodec.createCompleteMessage(response, error);
+    sendCompleteAndRetire(sender, transactionID, complete);
+  }
+
+  private void sendCompleteResponse(IMessageSenderWrapper sender, long transactionID, EntityResponse response) {
+    // The object lane:  the complete carries no response bytes, just the response object attached by reference.
+    byte[] noEncodedResponse = null;
+    EntityException noError = null;
+    PassthroughMessage complete = PassthroughMessageCodec.createCompleteMessage(noEncodedResponse, noError);
+    complete.setAttachment(response);
+    sendCompleteAndRetire(sender, transactionID, complete);
+  }
+
+  private void sendCompleteAndRetire(IMessageSenderWrapper sender, long transactionID, PassthroughMessage complete) {
     // The oldestTransactionID isn't relevant when sent back.
     long oldestTransactionID = -1;
     complete.setTransactionTracking(transactionID, oldestTransactionID);
@@ -501,14 +618,23 @@ public class PassthroughServerMessageDecoder implements PassthroughMessageCodec.
     boolean destroy(String entityClassName, String entityName) throws EntityException;
     void fetch(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName, long version, IFetchResult onFetch);
     void release(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName) throws EntityException;
-    byte[] invoke(IMessageSenderWrapper sender,
-                  long clientInstanceID,
-                  long transactionId,
-                  long eldestTransactionId,
-                  String entityClassName,
-                  String entityName,
-                  byte[] payload) throws EntityException;
-    void reconnect(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName, byte[] extendedData);
+    // The entity is described by entityHandle, if it isn't NO_ENTITY_HANDLE (in which case the names are null), or by name.
+    // The message is the payloadObject, if it came in on the object lane (in which case the payload is empty), or the
+    // encoded payload.
+    void invoke(IMessageSenderWrapper sender,
+                long clientInstanceID,
+                long transactionId,
+                long eldestTransactionId,
+                long entityHandle,
+                String entityClassName,
+                String entityName,
+                byte[] payload,
+                Object payloadObject,
+                IInvokeResult onInvoke) throws EntityException;
+    // Returns the names of the entity the handle was issued for (even if it has since been destroyed).
+    PassthroughEntityTuple entityNamesForHandle(long entityHandle);
+    // Returns the entity handle the reconnected end-point should use on this server.
+    long reconnect(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName, byte[] extendedData);
     void syncEntityStart(IMessageSenderWrapper sender, String entityClassName, String entityName) throws EntityException;
     void syncEntityEnd(IMessageSenderWrapper sender, String entityClassName, String entityName) throws EntityException;
     void syncEntityKeyStart(IMessageSenderWrapper sender, String entityClassName, String entityName, int concurrencyKey) throws EntityException;
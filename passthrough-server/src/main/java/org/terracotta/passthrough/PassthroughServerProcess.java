@@ -35,6 +35,7 @@ import org.terracotta.entity.PassiveServerEntity;
 import org.terracotta.entity.ReconnectRejectedException;
 import org.terracotta.entity.ServiceException;
 import org.terracotta.entity.ServiceProvider;
+import org.terracotta.entity.ServiceProviderCleanupException;
 import org.terracotta.entity.ServiceProviderConfiguration;
 import org.terracotta.entity.SyncMessageCodec;
 import org.terracotta.exception.EntityAlreadyExistsException;
@@ -62,17 +63,26 @@ import java.io.Serializable;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import org.terracotta.entity.ActiveServerEntity.ReconnectHandler;
 import org.terracotta.entity.IEntityMessenger.MessageResponse;
@@ -86,6 +96,12 @@ import org.terracotta.entity.IEntityMessenger.MessageResponse;
  */
 public class PassthroughServerProcess implements MessageHandler, PassthroughDumper {
   private static final String ENTITIES_FILE_NAME = "entities.map";
+  private static final String REPLICATION_POSITION_FILE_NAME = "replication.position";
+  // The platform sub-tree where an active publishes the replication statistics of each of its passives, by server name.
+  private static final String REPLICATION_ROOT_NAME = "replication";
+  private static final String[] REPLICATION_PATH = appendToPath(PlatformMonitoringConstants.PLATFORM_PATH, REPLICATION_ROOT_NAME);
+  // How often the active refreshes those statistics in the platform tree, while it is handling messages.
+  private static final long REPLICATION_STATISTICS_PUBLISH_NANOS = TimeUnit.SECONDS.toNanos(1);
   
   private final String serverName;
   private final int bindPort;
@@ -95,10 +111,36 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   private static final AtomicInteger CLIENT_PORT = new AtomicInteger(49152);  //  current recommended start value of ephemeral ports
   
   private final int processID;
-  private boolean isRunning;
+  // Note that this is volatile since the senders check it without taking the monitor.
+  private volatile boolean isRunning;
   private final List<EntityServerService<?, ?>> entityServices;
   private Thread serverThread;
-  private final List<PassthroughMessageContainer> messageQueue;
+  // The number of execution lanes to use for invokes.  0 means that invokes are run directly on the server thread.
+  private int executionLaneCount;
+  private PassthroughExecutionLanes executionLanes;
+  // Used to create the server thread and any other long-lived threads owned by this process (the timer, for example).
+  private PassthroughThreadFactory threadFactory;
+  private final PassthroughMessageQueue messageQueue;
+  // The most messages the server thread will take from the queue, each time it wakes up.
+  private int drainBudget;
+  private final PassthroughDrainStatistics drainStatistics;
+  // The most replicated invokes which can be waiting on the passives, when active.  0 means the active waits for each one.
+  private int replicationWindow;
+  // The most pipelined invokes sent to each passive in one frame and how long the server thread waits for more messages
+  // before sending a partial frame.
+  private int replicationBatchSize;
+  private long replicationLingerNanos;
+  private final PassthroughReplicationBatchStatistics replicationBatchStatistics;
+  // The pipeline owned by the server thread, if the window is non-zero, which is also told when a passive is removed.
+  private volatile PassthroughReplicationPipeline replicationPipeline;
+  // When passive, describes how far behind the active we are.  This is only updated by the active and the completions of
+  // the messages it sent us.
+  private final PassthroughReplicationStatistics replicationStatistics;
+  private long lastReplicationStatisticsPublishNanos;
+  // The most messages client connections can have queued before the backpressure policy applies.  0 means unbounded.
+  private int inboundQueueCapacity;
+  private PassthroughBackpressurePolicy backpressurePolicy;
+  private PassthroughInboundQueueStatistics inboundQueueStatistics;
   // Currently, for simplicity, we will resolve entities by name.
   // Technically, these should be resolved by class+name.
   // Note that only ONE of the active or passive entities will be non-null.
@@ -107,6 +149,12 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   //  is why create/destroy/attachPassive are synchronized since they all directly interact with this entry set.
   private Map<PassthroughEntityTuple, CreationData<?, ?>> activeEntities;
   private Map<PassthroughEntityTuple, CreationData<?, ?>> passiveEntities;
+  // The same entities as in activeEntities or passiveEntities, indexed by consumerID, so that invokes can find them by the
+  // entity handle returned from fetch/reconnect (see entityHandleFor()) without building and hashing a tuple of names.
+  private final ArrayList<CreationData<?, ?>> entitiesByConsumerID;
+  // The names of every entity which was given a handle, by consumerID, which are kept after it is destroyed so that an invoke
+  // with a stale handle can still fail with an EntityNotFoundException naming the entity.
+  private final ArrayList<PassthroughEntityTuple> entityNamesByConsumerID;
   private final Map<Long, DeferredEntityContainer> consumerToLiveContainerMap;
   // The service providers offered by the user.
   private final List<ServiceProvider> serviceProviders;
@@ -114,13 +162,44 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   private final List<PassthroughImplementationProvidedServiceProvider> implementationProvidedServiceProviders;
   // Note that we will set the service provider collections into a read-only mode as we try to create a registry over them, to catch bugs.
   private boolean serviceProvidersReadOnly;
-  private Set<PassthroughServerProcess> downstreamPassives = new HashSet<>();
+  // Copy-on-write:  this set is never modified, only replaced, so the server thread can use it for each message without
+  // copying it or taking the monitor.
+  private volatile Set<PassthroughServerProcess> downstreamPassives = Collections.emptySet();
+  // The passives which are attached but still being synchronized.  Only accessed on the server thread.
+  private final Map<PassthroughServerProcess, PassiveSynchronization> synchronizingPassives;
+  // The synchronizations, of passives we are synchronizing or of us by our active, which haven't finished.  Guarded by our
+  // monitor so that stop() can fail them.
+  private final Set<PassiveSynchronization> pendingSynchronizations;
+  // The most concurrency keys which can be in flight while synchronizing a passive (only more than 1 with execution lanes).
+  private int syncParallelism;
+  // The number of recently replicated messages an active keeps in its log, so that restarted passives can be caught up
+  // (0 means no log).  The log itself is only accessed on the server thread.
+  private int replicationLogSize;
+  private PassthroughReplicationLog replicationLog;
+  // When passive, the ID of the active's log we are following and the sequence number of the last message we ran from it.
+  // The log ID is 0 when we have no position in any log (we haven't finished synchronizing, for example).
+  private volatile long followedReplicationLogID;
+  private volatile long lastAppliedReplicationSequence;
+  // The position loaded from our storage, when restarted as a passive, which the active can use to catch us up.
+  private long[] recoveredReplicationPosition;
+  // When entities are loaded lazily, on restart, each is only loaded on its first use (or by the warmer, if the batch size is
+  // greater than 0).
+  private boolean isLazyEntityLoading;
+  private int entityWarmerBatchSize;
+  // The persisted entities which haven't been loaded yet, by name, or null once there are none.  Only modified under the
+  // monitor.
+  private volatile Map<PassthroughEntityTuple, Long> unloadedEntities;
   private long nextConsumerID;
   private IPlatformPersistence platformPersistence;
-  private HashMap<Long, EntityData> persistedEntitiesByConsumerIDMap;
+  // The catalog of our entities, in storage, and its live contents (only modified through the catalog).
+  private PassthroughPersistentMap<Long, EntityData> entityCatalog;
+  private LinkedHashMap<Long, EntityData> persistedEntitiesByConsumerIDMap;
   private LifeCycleMessageHandler lifeCycleMessageHandler;
   private final PassthroughRetirementManager retirementManager;
   private PassthroughTransactionOrderManager transactionOrderManager;
+  // When streaming re-sends, each is queued as soon as everything before it, in the persisted order, has been queued (or
+  // won't be re-sent) instead of waiting for all of them.
+  private boolean isStreamingResends;
   private final IAsynchronousServerCrasher crasher;
   
   private static final AtomicInteger processIdGen = new AtomicInteger(0);
@@ -130,7 +209,8 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   private PlatformServer serverInfo;
   
   // Special flag used to change behavior when we are receiving re-sends:  we don't want to run them until we seem them all.
-  private boolean isHandlingResends;
+  // This is read without the monitor, on the send path, but is only changed (and re-checked) while holding it.
+  private volatile boolean isHandlingResends;
 
 
   public PassthroughServerProcess(String serverName, int bindPort, int groupPort, Collection<Object> extendedConfigurationObjects, boolean isActiveMode, IAsynchronousServerCrasher crasher) {
@@ -139,10 +219,23 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     this.groupPort = groupPort;
     this.platformConfiguration = new PassthroughPlatformConfiguration(serverName, bindPort, extendedConfigurationObjects);
     this.entityServices = new Vector<>();
-    this.messageQueue = new Vector<>();
+    this.messageQueue = new PassthroughMessageQueue();
+    this.drainBudget = 1;
+    this.threadFactory = PassthroughThreadFactory.PLATFORM_THREADS;
+    this.drainStatistics = new PassthroughDrainStatistics();
+    this.replicationBatchSize = 1;
+    this.replicationBatchStatistics = new PassthroughReplicationBatchStatistics();
+    this.replicationStatistics = new PassthroughReplicationStatistics();
+    this.backpressurePolicy = PassthroughBackpressurePolicy.BLOCK;
+    this.inboundQueueStatistics = new PassthroughInboundQueueStatistics(this.messageQueue, 0, this.backpressurePolicy);
     this.activeEntities = (isActiveMode ? new LinkedHashMap<>() : null);
     this.passiveEntities = (isActiveMode ? null : new LinkedHashMap<>());
+    this.entitiesByConsumerID = new ArrayList<>();
+    this.entityNamesByConsumerID = new ArrayList<>();
     this.consumerToLiveContainerMap = new HashMap<>();
+    this.synchronizingPassives = new HashMap<>();
+    this.pendingSynchronizations = new HashSet<>();
+    this.syncParallelism = 1;
     this.serviceProviders = new Vector<>();
     this.implementationProvidedServiceProviders = new Vector<>();
     // Consumer IDs start at 0 since that is the one the platform gives itself.
@@ -154,7 +247,205 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   }
   
   public boolean isServerThread() {
-    return serverThread == Thread.currentThread();
+    return (serverThread == Thread.currentThread()) || ((null != this.executionLanes) && this.executionLanes.isLaneThread());
+  }
+
+  /**
+   * Sets the number of execution lanes used to run invokes.  When this is non-zero, INVOKE_ON_SERVER messages are routed
+   * to a lane based on their concurrency key, such that messages on the same key are run in order but those on different
+   * keys can run concurrently.  Anything other than such an invoke acts as a barrier, waiting for all lanes to drain.
+   * This can only be called before the server is started.
+   * 
+   * @param executionLaneCount The number of lanes (0 to run everything on the server thread)
+   */
+  public void setExecutionLaneCount(int executionLaneCount) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(executionLaneCount >= 0);
+    this.executionLaneCount = executionLaneCount;
+  }
+
+  /**
+   * Sets the most messages the server thread will drain from its queue, each time it wakes up, to process back-to-back.
+   * This can only be called before the server is started.
+   * 
+   * @param drainBudget The number of messages per drain (must be at least 1, which is the default)
+   */
+  public void setDrainBudget(int drainBudget) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(drainBudget > 0);
+    this.drainBudget = drainBudget;
+  }
+
+  public PassthroughDrainStatistics getDrainStatistics() {
+    return this.drainStatistics;
+  }
+
+  /**
+   * Sets how many replicated invokes the active can have waiting on its passives while it continues running other messages.
+   * Their responses and retires are still held until the passives have run them.
+   * This can only be called before the server is started.
+   * 
+   * @param replicationWindow The most invokes waiting on the passives (0, the default, waits for the passives before
+   * running each invoke)
+   */
+  public void setReplicationWindow(int replicationWindow) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(replicationWindow >= 0);
+    this.replicationWindow = replicationWindow;
+  }
+
+  /**
+   * Sets how many pipelined invokes are sent to each passive in one frame.  This only applies when the replication window is
+   * non-zero.
+   * This can only be called before the server is started.
+   * 
+   * @param batchSize The most invokes per frame (must be at least 1, which is the default)
+   * @param lingerNanos How long the server thread waits for more messages, once its queue is empty, before sending a
+   * partial frame
+   */
+  public void setReplicationBatching(int batchSize, long lingerNanos) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(batchSize > 0);
+    Assert.assertTrue(lingerNanos >= 0);
+    this.replicationBatchSize = batchSize;
+    this.replicationLingerNanos = lingerNanos;
+  }
+
+  /**
+   * Sets how many concurrency keys can be synchronized at once, across all entities, when a passive attaches to this
+   * active.  Since keys are synchronized on the execution lanes which own them, this only applies when there are lanes.
+   * This can only be called before the server is started.
+   * 
+   * @param syncParallelism The most keys in flight (must be at least 1, which is the default)
+   */
+  public void setSyncParallelism(int syncParallelism) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(syncParallelism > 0);
+    this.syncParallelism = syncParallelism;
+  }
+
+  /**
+   * Sets how many of the most recently replicated messages are kept, when active, so that a passive which restarts from its
+   * storage can be caught up by replaying the messages it missed instead of being synchronized from scratch.
+   * This can only be called before the server is started.
+   * 
+   * @param replicationLogSize The number of messages kept (0, the default, keeps no log)
+   */
+  public void setReplicationLogSize(int replicationLogSize) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(replicationLogSize >= 0);
+    this.replicationLogSize = replicationLogSize;
+  }
+
+  /**
+   * Makes the entities restored from storage load on their first fetch, invoke, reconnect or life-cycle operation, instead
+   * of all of them being loaded before the server starts.  Anything which needs every entity (synchronizing a passive or
+   * promoting to active) loads the rest first.
+   * This can only be called before the server is started.
+   * 
+   * @param isLazy True if entities should be loaded lazily
+   * @param warmerBatchSize If greater than 0, the server thread loads the remaining entities in batches of this many,
+   * between the messages it handles, until they are all loaded
+   */
+  public void setLazyEntityLoading(boolean isLazy, int warmerBatchSize) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(warmerBatchSize >= 0);
+    this.isLazyEntityLoading = isLazy;
+    this.entityWarmerBatchSize = warmerBatchSize;
+  }
+
+  /**
+   * Makes the re-sends received during fail-over run as soon as they are next in the persisted order, while other clients
+   * are still re-sending, instead of only once every client has re-sent.
+   * This can only be called before the server is started.
+   * 
+   * @param isStreaming True if re-sends should be streamed
+   */
+  public void setStreamingResends(boolean isStreaming) {
+    Assert.assertTrue(null == this.serverThread);
+    this.isStreamingResends = isStreaming;
+  }
+
+  /**
+   * @return The number of entities restored from storage which haven't been loaded yet
+   */
+  public synchronized int getUnloadedEntityCount() {
+    return (null != this.unloadedEntities) ? this.unloadedEntities.size() : 0;
+  }
+
+  public PassthroughReplicationBatchStatistics getReplicationBatchStatistics() {
+    return this.replicationBatchStatistics;
+  }
+
+  /**
+   * @return When passive, how far behind the active we are
+   */
+  public PassthroughReplicationStatistics getReplicationStatistics() {
+    return this.replicationStatistics;
+  }
+
+  /**
+   * @return When active, the replication statistics of each attached passive, by server name
+   */
+  public Map<String, PassthroughReplicationStatistics> getPassiveReplicationStatistics() {
+    Map<String, PassthroughReplicationStatistics> statistics = new HashMap<>();
+    for (PassthroughServerProcess passive : this.downstreamPassives) {
+      statistics.put(passive.getSafeServerName(), passive.replicationStatistics);
+    }
+    return statistics;
+  }
+
+  /**
+   * Bounds the number of messages client connections can have waiting in the inbound queue.  Once the queue holds capacity
+   * messages, further client sends are handled according to the given policy.  Messages from the active, or generated
+   * within this server, are never refused.
+   * This can only be called before the server is started.
+   * 
+   * @param capacity The capacity of the queue (0, the default, means unbounded)
+   * @param policy What to do with client sends when the queue is full
+   */
+  public void setInboundQueueCapacity(int capacity, PassthroughBackpressurePolicy policy) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(capacity >= 0);
+    Assert.assertTrue(null != policy);
+    this.inboundQueueCapacity = capacity;
+    this.backpressurePolicy = policy;
+    this.inboundQueueStatistics = new PassthroughInboundQueueStatistics(this.messageQueue, capacity, policy);
+  }
+
+  public PassthroughInboundQueueStatistics getInboundQueueStatistics() {
+    return this.inboundQueueStatistics;
+  }
+
+  /**
+   * Called by a client connection before it sends a message (and before it takes any locks the server thread may need) in
+   * order to wait for space in the inbound queue, if it is full and the BLOCK policy is in use.  This returns immediately
+   * for any other policy, for the server's own threads, or if the server is stopping.
+   */
+  public void waitForInboundCapacity() {
+    if ((this.inboundQueueCapacity > 0) && (PassthroughBackpressurePolicy.BLOCK == this.backpressurePolicy) && !isServerThread()) {
+      if (this.messageQueue.size() >= this.inboundQueueCapacity) {
+        this.inboundQueueStatistics.recordBlockedSend();
+        this.messageQueue.waitForSpace(this.inboundQueueCapacity, () -> this.isRunning);
+      }
+    }
+  }
+
+  /**
+   * Sets the factory used to create the server thread and the other long-lived threads of this process.
+   * This can only be called before the server is started.
+   * 
+   * @param threadFactory The factory to use
+   */
+  public void setThreadFactory(PassthroughThreadFactory threadFactory) {
+    Assert.assertTrue(null == this.serverThread);
+    Assert.assertTrue(null != threadFactory);
+    this.threadFactory = threadFactory;
+    this.platformConfiguration.setThreadFactory(threadFactory);
+  }
+
+  public PassthroughThreadFactory getThreadFactory() {
+    return this.threadFactory;
   }
 
   public PassthroughRetirementManager getRetirementManager() {
@@ -168,7 +459,15 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     for (ServiceProvider provider : this.serviceProviders) {
       if (provider.getProvidedServiceTypes().contains(IPlatformPersistence.class)) {
         isStorageInstalled = true;
-        break;
+        if (!shouldLoadStorage && (null != this.passiveEntities)) {
+          // A passive which isn't using its storage is about to be synchronized so anything it had stored (on disk, for
+          // example) is discarded, as the multi-process server does.
+          try {
+            provider.prepareForSynchronization();
+          } catch (ServiceProviderCleanupException e) {
+            Assert.unexpected(e);
+          }
+        }
       }
     }
     if (!isStorageInstalled) {
@@ -191,52 +490,36 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     Assert.assertTrue(null != this.platformPersistence);
     // Note that we may want to persist the version, as well, but we currently have no way of exposing that difference,
     // within the passthrough system, and it would require the creation of an almost completely-redundant container class.
+    this.entityCatalog = new PassthroughPersistentMap<>(platformPersistence, ENTITIES_FILE_NAME);
     try {
-      this.persistedEntitiesByConsumerIDMap = (LinkedHashMap<Long, EntityData>) (shouldLoadStorage ? platformPersistence.loadDataElement(ENTITIES_FILE_NAME) : null);
+      // This is empty if there was nothing stored or we shouldn't load.
+      this.persistedEntitiesByConsumerIDMap = this.entityCatalog.load(shouldLoadStorage, (legacy) -> (LinkedHashMap<Long, EntityData>) legacy);
     } catch (IOException e1) {
       Assert.unexpected(e1);
     }
-    // This could be null if there was no file or we shouldn't load.
-    if (null == this.persistedEntitiesByConsumerIDMap) {
-      this.persistedEntitiesByConsumerIDMap = new LinkedHashMap<>();
+    
+    // A passive restarted from its storage may be able to catch up from where it left off in the active's replication log.
+    try {
+      this.recoveredReplicationPosition = (long[]) (shouldLoadStorage ? platformPersistence.loadDataElement(REPLICATION_POSITION_FILE_NAME) : null);
+    } catch (IOException e) {
+      Assert.unexpected(e);
+    }
+    if (null != this.recoveredReplicationPosition) {
+      this.followedReplicationLogID = this.recoveredReplicationPosition[0];
+      this.lastAppliedReplicationSequence = this.recoveredReplicationPosition[1];
     }
     
     // Load the transaction order.
     this.transactionOrderManager = new PassthroughTransactionOrderManager(platformPersistence, shouldLoadStorage, savedClientConnections);
     
-    // Load the entities.
+    // Load the entities (or just note which ones exist, if they are loaded lazily).
+    Map<PassthroughEntityTuple, Long> entitiesToLoadLazily = this.isLazyEntityLoading ? new LinkedHashMap<>() : null;
     for (long consumerID : this.persistedEntitiesByConsumerIDMap.keySet()) {
-      // This is an entity consumer so we use the deferred container.
-      DeferredEntityContainer container = new DeferredEntityContainer();
-      this.consumerToLiveContainerMap.put(consumerID, container);
-      EntityData entityData = this.persistedEntitiesByConsumerIDMap.get(consumerID);
-      // Create the registry for the entity.
-      PassthroughServiceRegistry registry = new PassthroughServiceRegistry(entityData.className, entityData.entityName, consumerID, this.serviceProviders, this.implementationProvidedServiceProviders, container);
-      // Construct the entity.
-      EntityServerService<?, ?> service = null;
-      try {
-        service = getServerEntityServiceForVersion(entityData.className, entityData.entityName, entityData.version);
-      } catch (Exception e) {
-        // We don't expect a version mismatch here or other failure in this test system.
-        Assert.unexpected(e);
-      }
-      // We know the codec, immediately, so pass that in.  We will need to register the entity instance after it is
-      // created.
-      container.codec = service.getMessageCodec();
-      
-      PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityData.className, entityData.entityName);
-      CommonServerEntity<?, ?> newEntity = null;
-      try {
-        newEntity = createAndStoreEntity(entityData.className, entityData.entityName, entityData.version, entityData.configuration, entityTuple, service, registry, consumerID);
-      } catch (ConfigurationException e) {
-        // Passthrough doesn't support failures of entity load.
-        Assert.unexpected(e);
-      }
-      // We can now store the entity into the deferred container.
-      container.setEntity(newEntity);
-      // Tell the entity to load itself from storage.
-      if (newEntity instanceof ActiveServerEntity) {
-        ((ActiveServerEntity<?, ?>)newEntity).loadExisting();
+      if (null != entitiesToLoadLazily) {
+        EntityData entityData = this.persistedEntitiesByConsumerIDMap.get(consumerID);
+        entitiesToLoadLazily.put(new PassthroughEntityTuple(entityData.className, entityData.entityName), consumerID);
+      } else {
+        loadPersistedEntity(consumerID);
       }
       
       // See if we need to bump up the next consumerID for future entities.
@@ -244,6 +527,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
         this.nextConsumerID = consumerID + 1;
       }
     }
+    this.unloadedEntities = ((null != entitiesToLoadLazily) && !entitiesToLoadLazily.isEmpty()) ? entitiesToLoadLazily : null;
     
     // We want to create the tracking for life-cycle transactions, so that we correctly handle duplicated re-sends.
     this.lifeCycleMessageHandler = new PassthroughLifeCycleHandler(platformPersistence, shouldLoadStorage);
@@ -261,9 +545,15 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       this.serviceInterface.addNode(PlatformMonitoringConstants.PLATFORM_PATH, PlatformMonitoringConstants.CLIENTS_ROOT_NAME, null);
       // Create the root of the entity subtree.
       this.serviceInterface.addNode(PlatformMonitoringConstants.PLATFORM_PATH, PlatformMonitoringConstants.ENTITIES_ROOT_NAME, null);
+      // Create the root of the replication subtree (only populated while we are active).
+      this.serviceInterface.addNode(PlatformMonitoringConstants.PLATFORM_PATH, REPLICATION_ROOT_NAME, null);
       // Create the root of the client-entity fetch subtree.
       this.serviceInterface.addNode(PlatformMonitoringConstants.PLATFORM_PATH, PlatformMonitoringConstants.FETCHED_ROOT_NAME, null);
     }
+    // The warmer loads the remaining lazy entities, a batch at a time, between the messages the server thread handles.
+    if ((null != this.unloadedEntities) && (this.entityWarmerBatchSize > 0)) {
+      enqueueServerThreadTask(this::warmUnloadedEntities);
+    }
     // And start the server thread.
     startServerThreadRunning();
   }
@@ -275,8 +565,12 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   private void startServerThreadRunning() {
     Assert.assertTrue(null == this.serverThread);
     Assert.assertTrue(!this.isRunning);
-    this.serverThread = new Thread(this::runServerThread);
-    this.serverThread.setUncaughtExceptionHandler(PassthroughUncaughtExceptionHandler.sharedInstance);
+    this.serverThread = this.threadFactory.newThread(this::runServerThread, "Server thread (" + getSafeServerName() + ")");
+
+    if (this.executionLaneCount > 0) {
+      this.executionLanes = new PassthroughExecutionLanes(getSafeServerName(), this.threadFactory, this.executionLaneCount);
+      this.executionLanes.start();
+    }
 
     this.isRunning = true;
     // We want to now set the server info for this instance.
@@ -305,6 +599,13 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     return serverName == null ? "server" + processID : serverName;
   }
   
+  private void setStatePassive(IMonitoringProducer tracker) {
+    if (tracker != null) {
+      long timestamp = System.currentTimeMillis();
+      tracker.addNode(PlatformMonitoringConstants.PLATFORM_PATH, PlatformMonitoringConstants.STATE_NODE_NAME, new ServerState(PlatformMonitoringConstants.SERVER_STATE_PASSIVE, timestamp, timestamp));
+    }
+  }
+
   private void setStateSynchronizing(IMonitoringProducer tracker) {
 // Set state.
     if (tracker != null) {
@@ -326,6 +627,32 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     // Shutdown can't happen while handling resends.
     Assert.assertTrue(!this.isHandlingResends);
     
+    stopServerThread();
+    // Once the server thread is gone, nothing else can be enqueued on the lanes so we can stop them.
+    if (null != this.executionLanes) {
+      this.executionLanes.stop();
+      this.executionLanes = null;
+    }
+    // We also want to clear the message queue, in case anything else is still sitting there.
+    this.messageQueue.clear();
+    this.serverThread = null;
+    // Whatever was left of any synchronization we were part of was just dropped so it can never finish.
+    failPendingSynchronizations();
+  }
+
+  /**
+   * Called on a passive, before its services are shut down, to stop its server thread once it has run everything in its
+   * queue.  As its last act, the thread stores the passive's position in the active's replication log, while the storage is
+   * still open, so that the passive can be caught up from there if it is restarted from its storage.  Does nothing on an
+   * active.
+   */
+  public void stopPassiveServerThread() {
+    if (null != this.passiveEntities) {
+      stopServerThread();
+    }
+  }
+
+  private void stopServerThread() {
     // TODO:  Find a way to cut the connections of any current task so that they can't send a response to the client.
     synchronized(this) {
       this.isRunning = false;
@@ -333,8 +660,9 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       if (null != this.serviceInterface) {
         this.serviceInterface.removeNode(PlatformMonitoringConstants.PLATFORM_PATH, PlatformMonitoringConstants.STATE_NODE_NAME);
       }
-      this.notifyAll();
     }
+    this.messageQueue.wakeConsumer();
+    this.messageQueue.wakeProducers();
     try {
 // multiple paths to shutdown.  This can happen multiple times without a new thread being created
       if (this.serverThread != null) {
@@ -343,9 +671,28 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     } catch (InterruptedException e) {
       Assert.unexpected(e);
     }
-    // We also want to clear the message queue, in case anything else is still sitting there.
-    this.messageQueue.clear();
-    this.serverThread = null;
+  }
+
+  private synchronized boolean addPendingSynchronization(PassiveSynchronization synchronization) {
+    if (this.isRunning) {
+      this.pendingSynchronizations.add(synchronization);
+    }
+    return this.isRunning;
+  }
+
+  private synchronized void removePendingSynchronization(PassiveSynchronization synchronization) {
+    this.pendingSynchronizations.remove(synchronization);
+  }
+
+  private void failPendingSynchronizations() {
+    List<PassiveSynchronization> toFail;
+    synchronized (this) {
+      toFail = new ArrayList<>(this.pendingSynchronizations);
+    }
+    // Failing them calls back into removePendingSynchronization() so this is done outside of our monitor.
+    for (PassiveSynchronization synchronization : toFail) {
+      synchronization.finish(false);
+    }
   }
 
   public void shutdownServices() {
@@ -383,7 +730,18 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     }
   }
 
-  public synchronized void sendMessageToServer(final PassthroughConnection sender, byte[] message) {
+  public void sendMessageToServer(final PassthroughConnection sender, byte[] message) {
+    sendMessageToServer(sender, message, null);
+  }
+
+  /**
+   * Sends a message from a client connection to this server.
+   * 
+   * @param sender The connection which sent the message
+   * @param message The serialized message
+   * @param attachment The EntityMessage of an invoke sent on the object lane, or null
+   */
+  public void sendMessageToServer(final PassthroughConnection sender, byte[] message, Object attachment) {
     // If the server shut down, throw IllegalStateException
     if (!this.isRunning) {
       throw new IllegalStateException("Connection already closed");
@@ -403,7 +761,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       }
       @Override
       public void sendComplete(PassthroughMessage complete, boolean last) {
-        sender.sendMessageToClient(PassthroughServerProcess.this, complete.asSerializedBytes());
+        sender.sendMessageToClient(PassthroughServerProcess.this, complete.asSerializedBytes(), complete.getAttachment());
       }
       @Override
       public synchronized void sendRetire(PassthroughMessage retired) {
@@ -430,17 +788,46 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       }
     };
     container.message = message;
+    container.attachment = attachment;
+    boolean didHandleAsResend = false;
     if (this.isHandlingResends) {
-      long connectionID = sender.getNewInstanceID();
-      long transactionID = PassthroughMessageCodec.decodeTransactionIDFromRawMessage(message);
-      this.transactionOrderManager.handleResend(connectionID, transactionID, container);
-    } else {
-      this.messageQueue.add(container);
-      this.notifyAll();
+      // This is the uncommon case so we take the monitor to check again and interact with the order manager.
+      synchronized (this) {
+        if (this.isHandlingResends) {
+          // This must be the same ID the transaction was tracked under (see getClientOriginID(), above).
+          long connectionID = sender.getUniqueConnectionID();
+          long transactionID = PassthroughMessageCodec.decodeTransactionIDFromRawMessage(message);
+          this.transactionOrderManager.handleResend(connectionID, transactionID, container);
+          if (this.isStreamingResends) {
+            queueReadyResends();
+          }
+          didHandleAsResend = true;
+        }
+      }
+    }
+    if (!didHandleAsResend) {
+      checkInboundCapacity(message);
+      this.messageQueue.offer(container);
     }
   }
 
-  public synchronized void sendMessageToActiveFromInsideActive(final EntityMessage newMessage, PassthroughMessage passthroughMessage, Consumer<PassthroughMessage> result) {
+  private void checkInboundCapacity(byte[] message) {
+    // Note that BLOCK already waited in waitForInboundCapacity(), outside of the connection's lock, so it is just admitted.
+    if ((this.inboundQueueCapacity > 0) && (this.messageQueue.size() >= this.inboundQueueCapacity) && !isServerThread()) {
+      if (PassthroughBackpressurePolicy.FAIL_FAST == this.backpressurePolicy) {
+        this.inboundQueueStatistics.recordRejectedSend();
+        throw new IllegalStateException("Server inbound queue full (capacity " + this.inboundQueueCapacity + ")");
+      } else if (PassthroughBackpressurePolicy.SHED_NON_REPLICATED_INVOKES == this.backpressurePolicy) {
+        if ((PassthroughMessage.Type.INVOKE_ON_SERVER == PassthroughMessageCodec.decodeTypeFromRawMessage(message))
+            && !PassthroughMessageCodec.decodeShouldReplicateFromRawMessage(message)) {
+          this.inboundQueueStatistics.recordShedInvoke();
+          throw new IllegalStateException("Server inbound queue full (capacity " + this.inboundQueueCapacity + "):  non-replicated invoke shed");
+        }
+      }
+    }
+  }
+
+  public void sendMessageToActiveFromInsideActive(final EntityMessage newMessage, PassthroughMessage passthroughMessage, Consumer<PassthroughMessage> result) {
     // It is possible that this happens when we have already been told to shut down so we want to drop it, in that case.
     if (this.isRunning) {
       // This can only be called on the active server.
@@ -481,8 +868,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
         }
       };
       container.message = passthroughMessage.asSerializedBytes();
-      this.messageQueue.add(container);
-      this.notifyAll();
+      this.messageQueue.offer(container);
     } else {
       System.err.println("WARNING:  Dropping internally-generated message since server is shutting down");
     }
@@ -512,122 +898,265 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     }
   }
 
-  public synchronized void sendMessageToServerFromActive(IMessageSenderWrapper senderCallback, byte[] message) {
+  public void sendMessageToServerFromActive(IMessageSenderWrapper senderCallback, byte[] message) {
+    sendMessageToServerFromActive(senderCallback, message, 0L);
+  }
+
+  /**
+   * Sends a replicated message from the active to this passive.
+   * 
+   * @param senderCallback Notified when the message has been run
+   * @param message The replicated message
+   * @param replicationSequence The sequence number of the message in the active's replication log (0 if it isn't logged)
+   */
+  public void sendMessageToServerFromActive(IMessageSenderWrapper senderCallback, byte[] message, long replicationSequence) {
     // Passives don't care whether a message is a re-send, or not.
     Assert.assertTrue(!this.isHandlingResends);
     
     PassthroughMessageContainer container = new PassthroughMessageContainer();
     container.sender = senderCallback;
     container.message = message;
-    this.messageQueue.add(container);
-    this.notifyAll();
+    container.replicationSequence = replicationSequence;
+    this.messageQueue.offer(container);
+  }
+
+  /**
+   * Sends a frame of consecutive messages from the active to this passive, as a single entry in its queue.
+   * 
+   * @param frame The replicated messages, in order, each with the sender to notify when it is run
+   */
+  public void sendBatchToServerFromActive(List<PassthroughMessageContainer> frame) {
+    Assert.assertTrue(!this.isHandlingResends);
+    
+    PassthroughMessageContainer container;
+    if (1 == frame.size()) {
+      container = frame.get(0);
+    } else {
+      container = new PassthroughMessageContainer();
+      container.replicatedBatch = frame;
+    }
+    this.messageQueue.offer(container);
+  }
+
+  /**
+   * Runs the given task on the server thread, after the messages already queued.  Note that, unlike messages, tasks don't
+   * wait for the execution lanes to be idle.
+   */
+  private void enqueueServerThreadTask(Runnable task) {
+    PassthroughMessageContainer container = new PassthroughMessageContainer();
+    container.task = task;
+    this.messageQueue.offer(container);
   }
 
   private void runServerThread() {
     Thread.currentThread().setName("Server thread isActive: " + ((null != this.activeEntities) ? "active" : "passive"));
-    PassthroughMessageContainer toRun = getNextMessage();
-    while (null != toRun) {
-      IMessageSenderWrapper sender = toRun.sender;
-      byte[] message = toRun.message;
-      serverThreadHandleMessage(sender, message);
+    List<PassthroughMessageContainer> batch = new ArrayList<>();
+    // The decoder is owned by this thread and reused for every message.
+    PassthroughReplicationPipeline replicationPipeline = (this.replicationWindow > 0)
+        ? new PassthroughReplicationPipeline(this.retirementManager, this::retireReadyItems, this.replicationWindow, this.replicationBatchSize, this.replicationBatchStatistics, (passive) -> this.downstreamPassives.contains(passive))
+        : null;
+    this.replicationPipeline = replicationPipeline;
+    if ((this.replicationLogSize > 0) && (null != this.activeEntities)) {
+      // Each active process starts its own log so a passive can never replay from one it wasn't following.
+      this.replicationLog = new PassthroughReplicationLog(ThreadLocalRandom.current().nextLong(1L, Long.MAX_VALUE), this.replicationLogSize);
+    }
+    PassthroughGroupCommitGate groupCommitGate = ((null != this.activeEntities) && (this.platformPersistence instanceof IGroupCommitPersistence) && ((IGroupCommitPersistence) this.platformPersistence).isCommittingInGroups())
+        ? new PassthroughGroupCommitGate(this.retirementManager, this::retireReadyItems, (IGroupCommitPersistence) this.platformPersistence)
+        : null;
+    PassthroughServerMessageDecoder decoder = new PassthroughServerMessageDecoder(this, this, this.transactionOrderManager, this.lifeCycleMessageHandler, this.crasher, replicationPipeline, groupCommitGate);
+    int drained = drainNextMessages(batch, replicationPipeline);
+    while (drained > 0) {
+      for (PassthroughMessageContainer toRun : batch) {
+        if (null != toRun.task) {
+          if (null != replicationPipeline) {
+            replicationPipeline.flush();
+          }
+          toRun.task.run();
+        } else if (null != toRun.replicatedBatch) {
+          for (PassthroughMessageContainer replicated : toRun.replicatedBatch) {
+            serverThreadHandleMessage(decoder, replicated.sender, replicated.message, replicated.attachment);
+            recordAppliedReplication(replicated.replicationSequence);
+          }
+        } else {
+          IMessageSenderWrapper sender = toRun.sender;
+          byte[] message = toRun.message;
+          serverThreadHandleMessage(decoder, sender, message, toRun.attachment);
+          recordAppliedReplication(toRun.replicationSequence);
+        }
+      }
+      batch.clear();
+      publishReplicationStatistics();
       
-      toRun = getNextMessage();
+      drained = drainNextMessages(batch, replicationPipeline);
+    }
+    // We were stopped and have run everything we were sent so, as our last act, a passive stores how far it got.
+    if (null != this.passiveEntities) {
+      storeReplicationPosition();
     }
   }
   
-  private synchronized PassthroughMessageContainer getNextMessage() {
-    PassthroughMessageContainer toRun = null;
-    while (this.isRunning && this.messageQueue.isEmpty()) {
-      try {
-        this.wait();
-      } catch (InterruptedException e) {
-        Assert.unexpected(e);
+  private int drainNextMessages(List<PassthroughMessageContainer> batch, PassthroughReplicationPipeline replicationPipeline) {
+    if ((null != replicationPipeline) && replicationPipeline.hasPendingFrames()) {
+      // Give more invokes a chance to join the partial frame but send it before we wait indefinitely.
+      if (this.replicationLingerNanos > 0) {
+        this.messageQueue.waitWhileEmpty(() -> this.isRunning, this.replicationLingerNanos);
+      }
+      if (this.messageQueue.isEmpty()) {
+        replicationPipeline.flush();
       }
     }
-    if (!this.messageQueue.isEmpty()) {
-      toRun = this.messageQueue.remove(0);
+    // Note that we still drain anything left in the queue, after being told to stop.
+    this.messageQueue.waitWhileEmpty(() -> this.isRunning);
+    int drained = this.messageQueue.drainTo(batch, this.drainBudget);
+    if (drained > 0) {
+      this.drainStatistics.recordDrain(drained);
     }
-    return toRun;
+    return drained;
   }
   
-  private void serverThreadHandleMessage(IMessageSenderWrapper sender, byte[] message) {
+  private void publishReplicationStatistics() {
+    long now = System.nanoTime();
+    if ((null != this.serviceInterface) && ((now - this.lastReplicationStatisticsPublishNanos) >= REPLICATION_STATISTICS_PUBLISH_NANOS)) {
+      this.lastReplicationStatisticsPublishNanos = now;
+      for (PassthroughServerProcess passive : this.downstreamPassives) {
+        this.serviceInterface.addNode(REPLICATION_PATH, passive.getSafeServerName(), passive.replicationStatistics.snapshot());
+      }
+    }
+  }
+
+  private static String[] appendToPath(String[] path, String name) {
+    String[] newPath = Arrays.copyOf(path, path.length + 1);
+    newPath[path.length] = name;
+    return newPath;
+  }
+
+  private void recordAppliedReplication(long replicationSequence) {
+    if (replicationSequence > 0L) {
+      this.lastAppliedReplicationSequence = replicationSequence;
+    }
+  }
+
+  /**
+   * Called on the active server thread when a message is replicated, whether or not any passives are attached, so that it
+   * can be replayed to passives which are currently down.
+   * 
+   * @param messageToReplicate The message, as it is sent to the passives
+   * @return The sequence number of the message in our replication log (0 if we don't keep one)
+   */
+  public long logReplicatedMessage(byte[] messageToReplicate) {
+    return (null != this.replicationLog) ? this.replicationLog.append(messageToReplicate) : 0L;
+  }
+
+  /**
+   * @return True if replicated messages must be logged even when there are no passives to send them to
+   */
+  public boolean isKeepingReplicationLog() {
+    return (null != this.replicationLog);
+  }
+
+  private void serverThreadHandleMessage(PassthroughServerMessageDecoder decoder, IMessageSenderWrapper sender, byte[] message, Object attachment) {
     // Called on the server thread to handle a message.
-    PassthroughMessageCodec.Decoder<Void> decoder = new PassthroughServerMessageDecoder(this, this, this.transactionOrderManager, this.lifeCycleMessageHandler, this.downstreamPassives, sender, this.crasher, message);
-    PassthroughMessageCodec.decodeRawMessage(decoder, message);
+    if ((null != this.executionLanes) && (PassthroughMessage.Type.INVOKE_ON_SERVER != PassthroughMessageCodec.decodeTypeFromRawMessage(message))) {
+      // Anything other than an invoke is a barrier so wait for the lanes to drain before we run it.
+      this.executionLanes.waitForIdle();
+    }
+    decoder.handleMessage(sender, message, attachment, this.downstreamPassives);
   }
 
   @Override
-  public byte[] invoke(IMessageSenderWrapper sender,
-                       long clientInstanceID,
-                       long transactionId,
-                       long eldestTransactionId,
-                       String entityClassName,
-                       String entityName,
-                       byte[] payload) throws EntityException {
-    final PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
-    byte[] response = null;
-    if (null != this.activeEntities) {
-      // Invoke on active.
-      CreationData<?, ?> data = this.activeEntities.get(entityTuple);
-      if (null != data) {
-        PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
-        response = sendActiveInvocation(sender, entityClassName,
-                                        entityName,
-                                        clientDescriptor,
-                                        transactionId,
-                                        eldestTransactionId,
-                                        data,
-                                        payload);
-      } else {
-        throw new EntityNotFoundException(entityClassName, entityName);
+  public void invoke(IMessageSenderWrapper sender,
+                     long clientInstanceID,
+                     long transactionId,
+                     long eldestTransactionId,
+                     long entityHandle,
+                     String entityClassName,
+                     String entityName,
+                     byte[] payload,
+                     Object payloadObject,
+                     IInvokeResult onInvoke) throws EntityException {
+    if (PassthroughMessageCodec.NO_ENTITY_HANDLE != entityHandle) {
+      // This is the common case, from a client:  the handle gives us the entity directly.
+      CreationData<?, ?> data = resolveEntityHandle(entityHandle);
+      if (null == data) {
+        PassthroughEntityTuple names = entityNamesForHandle(entityHandle);
+        throw new EntityNotFoundException(names.entityClassName, names.entityName);
       }
+      invokeOnEntity(sender, clientInstanceID, transactionId, eldestTransactionId, data, payload, payloadObject, onInvoke);
     } else {
-      // Invoke on passive.
-      CreationData<?, ?> data = this.passiveEntities.get(entityTuple);
-      if (null != data) {
-        //TODO: Passthrough server process is not correct for this descriptor but this is not a problem as it is
-        //TODO: passed to passive entity only - no client communicator service is available on passive
-        PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
-
-        // There is no return type in the passive case.
-        sendPassiveInvocation(entityClassName,
-                              entityName,
-                              clientDescriptor,
-                              transactionId,
-                              eldestTransactionId,
-                              data,
-                              payload);
-      } else {
+      final PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
+      loadIfUnloaded(entityTuple);
+      CreationData<?, ?> data = (null != this.activeEntities) ? this.activeEntities.get(entityTuple) : this.passiveEntities.get(entityTuple);
+      if (null == data) {
         throw new EntityNotFoundException(entityClassName, entityName);
       }
+      invokeOnEntity(sender, clientInstanceID, transactionId, eldestTransactionId, data, payload, payloadObject, onInvoke);
     }
-    return response;
   }
 
-  private <M extends EntityMessage, R extends EntityResponse> byte[] sendActiveInvocation(IMessageSenderWrapper sender, String className,
-                                                                                          String entityName,
-                                                                                          ClientDescriptor clientDescriptor,
-                                                                                          long transactionId,
-                                                                                          long eldestTransactionId,
-                                                                                          CreationData<M, R> data,
-                                                                                          byte[] payload) throws EntityException {
+  private void invokeOnEntity(IMessageSenderWrapper sender,
+                              long clientInstanceID,
+                              long transactionId,
+                              long eldestTransactionId,
+                              CreationData<?, ?> data,
+                              byte[] payload,
+                              Object payloadObject,
+                              IInvokeResult onInvoke) throws EntityException {
+    PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
+    if (null != this.activeEntities) {
+      // Invoke on active.
+      sendActiveInvocation(sender, data.entityClassName,
+                           data.entityName,
+                           clientDescriptor,
+                           transactionId,
+                           eldestTransactionId,
+                           data,
+                           payload,
+                           payloadObject,
+                           onInvoke);
+    } else {
+      // Invoke on passive.
+      //TODO: Passthrough server process is not correct for this descriptor but this is not a problem as it is
+      //TODO: passed to passive entity only - no client communicator service is available on passive
+      // There is no return type in the passive case.
+      sendPassiveInvocation(data.entityClassName,
+                            data.entityName,
+                            clientDescriptor,
+                            transactionId,
+                            eldestTransactionId,
+                            data,
+                            payload,
+                            payloadObject,
+                            onInvoke);
+    }
+  }
+
+  private <M extends EntityMessage, R extends EntityResponse> void sendActiveInvocation(IMessageSenderWrapper sender, String className,
+                                                                                        String entityName,
+                                                                                        ClientDescriptor clientDescriptor,
+                                                                                        long transactionId,
+                                                                                        long eldestTransactionId,
+                                                                                        CreationData<M, R> data,
+                                                                                        byte[] payload,
+                                                                                        Object payloadObject,
+                                                                                        IInvokeResult onInvoke) throws EntityException {
     ActiveServerEntity<M, R> entity = data.getActive();
     MessageCodec<M, R> codec = data.messageCodec;
-    M msg = deserialize(className, entityName, codec, payload);
+    boolean isObjectLane = (null != payloadObject);
+    M msg = isObjectLane ? messageFromObjectLane(payloadObject) : deserialize(className, entityName, codec, payload);
     if (data.executionStrategy.getExecutionLocation(msg).runOnActive()) {
-      try {
-        int cKey = data.concurrency.concurrencyKey(msg);
+      int cKey = data.concurrency.concurrencyKey(msg);
+      runInvokeOnKey(cKey, className, entityName, onInvoke, isObjectLane, () -> {
         R response = entity.invokeActive(new PassThroughServerActiveInvokeContext<>(msg, clientDescriptor,
                                                                                   cKey,
                                                                                   transactionId,
                                                                                   eldestTransactionId, sender, retirementManager, codec),
                                          msg);
-        return serializeResponse(className, entityName, codec, response);
-      } catch (EntityUserException eu) {
-        throw new EntityServerException(className, entityName, eu.getLocalizedMessage(), eu);
-      }
+        return isObjectLane ? response : serializeResponse(className, entityName, codec, response);
+      });
+    } else if (isObjectLane) {
+      onInvoke.onInvokeCompleteWithObject(null);
     } else {
-      return new byte[0];
+      onInvoke.onInvokeComplete(new byte[0], null);
     }
   }
 
@@ -637,20 +1166,64 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
                                                                                          long transactionId,
                                                                                          long eldestTransactionId,
                                                                                          CreationData<M, R> data,
-                                                                                         byte[] payload) throws EntityException {
+                                                                                         byte[] payload,
+                                                                                         Object payloadObject,
+                                                                                         IInvokeResult onInvoke) throws EntityException {
     PassiveServerEntity<M, R> entity = data.getPassive();
     MessageCodec<M, R> codec = data.messageCodec;
-    M msg = deserialize(className, entityName, codec, payload);
+    M msg = (null != payloadObject) ? messageFromObjectLane(payloadObject) : deserialize(className, entityName, codec, payload);
     int cKey = data.concurrency.concurrencyKey(msg);
     if (data.executionStrategy.getExecutionLocation(msg).runOnPassive()) {
-      try {
+      // There is no response from a passive, so it is never encoded.
+      boolean isObjectLane = false;
+      runInvokeOnKey(cKey, className, entityName, onInvoke, isObjectLane, () -> {
         entity.invokePassive(new PassThroughServerInvokeContext(clientDescriptor.getSourceId(), cKey,
                                                                 transactionId,
                                                                 eldestTransactionId),
                              msg);
-      } catch (EntityUserException eu) {
-        throw new EntityServerException(className, entityName, eu.getLocalizedMessage(), eu);
+        // There is no response from a passive.
+        return null;
+      });
+    } else {
+      onInvoke.onInvokeComplete(null, null);
+    }
+  }
+
+  private interface InvokeTask {
+    // Returns the encoded byte[] response or, on the object lane, the EntityResponse itself.
+    Object run() throws EntityException, EntityUserException;
+  }
+
+  private void runInvokeOnKey(int concurrencyKey, String className, String entityName, IInvokeResult onInvoke, boolean isObjectLane, InvokeTask task) {
+    if ((null != this.executionLanes) && (ConcurrencyStrategy.MANAGEMENT_KEY != concurrencyKey) && (ConcurrencyStrategy.UNIVERSAL_KEY != concurrencyKey)) {
+      this.executionLanes.execute(concurrencyKey, () -> completeInvokeTask(className, entityName, onInvoke, isObjectLane, task));
+    } else {
+      if (null != this.executionLanes) {
+        // MANAGEMENT_KEY and UNIVERSAL_KEY act as barriers so everything already in the lanes must finish, first.
+        this.executionLanes.waitForIdle();
       }
+      completeInvokeTask(className, entityName, onInvoke, isObjectLane, task);
+    }
+  }
+
+  private void completeInvokeTask(String className, String entityName, IInvokeResult onInvoke, boolean isObjectLane, InvokeTask task) {
+    Object response = null;
+    EntityException error = null;
+    try {
+      response = task.run();
+    } catch (EntityUserException eu) {
+      error = new EntityServerException(className, entityName, eu.getLocalizedMessage(), eu);
+    } catch (EntityException e) {
+      error = e;
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      // Just wrap this as a user exception since it was unexpected.
+      error = new EntityServerException(className, entityName, e.getLocalizedMessage(), e);
+    }
+    if (isObjectLane && (null == error)) {
+      onInvoke.onInvokeCompleteWithObject((EntityResponse) response);
+    } else {
+      onInvoke.onInvokeComplete((byte[]) response, error);
     }
   }
 
@@ -675,6 +1248,12 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     return runWithHelper(className, entityName, () -> codec.decode(concurrencyKey, payload));
   }
   
+  @SuppressWarnings("unchecked")
+  private static <M extends EntityMessage> M messageFromObjectLane(Object payloadObject) {
+    // The client-side end-point only attaches messages of the type its entity's codec handles so this is the same M.
+    return (M) payloadObject;
+  }
+
   private <M extends EntityMessage, R extends EntityResponse> byte[] serializeResponse(String className, String entityName, final MessageCodec<M, R> codec, final R response) throws EntityException {
     return runWithHelper(className, entityName, () -> codec.encodeResponse(response));
   }
@@ -714,6 +1293,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     EntityException error = null;
     // Fetch should never be replicated and only handled on the active.
     Assert.assertTrue(null != PassthroughServerProcess.this.activeEntities);
+    loadIfUnloaded(entityTuple);
     CreationData<?, ?> entityData = PassthroughServerProcess.this.activeEntities.get(entityTuple);
     PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
     if (null != entityData && entityData.reference(clientDescriptor)) {
@@ -721,7 +1301,8 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       EntityServerService<?, ?> service = getEntityServiceForClassName(entityClassName);
       long expectedVersion = service.getVersion();
       if (expectedVersion == version) {
-        config = entityData.configuration;
+        // The client gets the handle it will use for its invokes along with the configuration.
+        config = PassthroughMessageCodec.encodeEntityHandleResponse(entityHandleFor(entityData), entityData.configuration);
 
         if (null != PassthroughServerProcess.this.serviceInterface) {
           // Record that this entity has been fetched by this client.
@@ -751,6 +1332,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   public void release(IMessageSenderWrapper sender, long clientInstanceID, String entityClassName, String entityName) throws EntityException {
     final PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
     if(this.activeEntities != null) {
+      loadIfUnloaded(entityTuple);
       CreationData<?, ?> data = this.activeEntities.get(entityTuple);
       if (null != data) {
         ActiveServerEntity<?, ?> entity = data.getActive();
@@ -775,6 +1357,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   @Override
   public synchronized void create(String entityClassName, String entityName, long version, byte[] serializedConfiguration) throws EntityException {
     PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
+    loadIfUnloaded(entityTuple);
     if (this.activeEntities != null) {
       CreationData<?, ?> shell = this.activeEntities.get(entityTuple);
       if (shell != null && !shell.isDestroyed) {
@@ -809,6 +1392,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       } else {
         passiveEntities.remove(entityTuple);
       }
+      clearEntityHandle(consumerID);
       // Wrap this and re-throw.
       throw new EntityConfigurationException(entityClassName, entityName, e);
     }
@@ -829,9 +1413,9 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     data.version = version;
     data.entityName = entityName;
     data.configuration = serializedConfiguration;
-    this.persistedEntitiesByConsumerIDMap.put(consumerID, data);
     try {
-      this.platformPersistence.storeDataElement(ENTITIES_FILE_NAME, this.persistedEntitiesByConsumerIDMap);
+      Assert.assertTrue(!this.persistedEntitiesByConsumerIDMap.containsKey(consumerID));
+      this.entityCatalog.put(consumerID, data);
     } catch (IOException e) {
       Assert.unexpected(e);
     }
@@ -840,6 +1424,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   @Override
   public byte[] reconfigure(String entityClassName, String entityName, long version, byte[] serializedConfiguration) throws EntityException {
     PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
+    loadIfUnloaded(entityTuple);
     CreationData<?, ?> entityData = (this.activeEntities != null) ? this.activeEntities.get(entityTuple) : this.passiveEntities.get(entityTuple);
     
     // Make sure that we update the node in monitoring.
@@ -853,9 +1438,14 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       byte[] reconfigured = entityData.reconfigure(serializedConfiguration);
       EntityData data = this.persistedEntitiesByConsumerIDMap.get(entityData.consumerID);
       Assert.assertTrue(data != null);
-      data.configuration = serializedConfiguration;
+      // The catalog's values are never modified, once recorded, so record a new one.
+      EntityData newData = new EntityData();
+      newData.className = data.className;
+      newData.version = data.version;
+      newData.entityName = data.entityName;
+      newData.configuration = serializedConfiguration;
       try {
-        this.platformPersistence.storeDataElement(ENTITIES_FILE_NAME, this.persistedEntitiesByConsumerIDMap);
+        this.entityCatalog.put(entityData.consumerID, newData);
       } catch (IOException e) {
         Assert.unexpected(e);
       }
@@ -870,6 +1460,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   public synchronized boolean destroy(String entityClassName, String entityName) throws EntityException {
     PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
     boolean success;
+    loadIfUnloaded(entityTuple);
 // Look up the entity.
     CreationData<?, ?> entityData;
     if (null != this.activeEntities) {
@@ -886,9 +1477,10 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
         Assert.assertTrue(entityData.consumerID > 0);
         DeferredEntityContainer container = this.consumerToLiveContainerMap.remove(entityData.consumerID);
         Assert.assertTrue(null != container);
-        Assert.assertTrue(this.persistedEntitiesByConsumerIDMap.remove(entityData.consumerID) != null);
+        Assert.assertTrue(this.persistedEntitiesByConsumerIDMap.containsKey(entityData.consumerID));
+        clearEntityHandle(entityData.consumerID);
         try {
-          this.platformPersistence.storeDataElement(ENTITIES_FILE_NAME, this.persistedEntitiesByConsumerIDMap);
+          this.entityCatalog.remove(entityData.consumerID);
         } catch (IOException e) {
           Assert.unexpected(e);
         }
@@ -915,11 +1507,12 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
   }
 
   @Override
-  public void reconnect(final IMessageSenderWrapper sender, final long clientInstanceID, final String entityClassName, final String entityName, final byte[] extendedData) {
+  public long reconnect(final IMessageSenderWrapper sender, final long clientInstanceID, final String entityClassName, final String entityName, final byte[] extendedData) {
     final PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityClassName, entityName);
     // Fetch the entity now that we have the read lock on the name.
     // Fetch should never be replicated and only handled on the active.
     Assert.assertTrue(null != PassthroughServerProcess.this.activeEntities);
+    loadIfUnloaded(entityTuple);
     CreationData<?, ?> entityData = PassthroughServerProcess.this.activeEntities.get(entityTuple);
     if (null != entityData) {
       PassthroughClientDescriptor clientDescriptor = sender.clientDescriptorForID(clientInstanceID);
@@ -931,6 +1524,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     } else {
       Assert.unexpected(new Exception("Entity not found in reconnect"));
     }
+    return entityHandleFor(entityData);
   }
 
   @Override
@@ -1047,65 +1641,179 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     }
   }
 
-  public synchronized void addDownstreamPassiveServerProcess(PassthroughServerProcess serverProcess) {
+  /**
+   * Attaches the given passive, synchronizing it from scratch.
+   * 
+   * @param serverProcess The passive, started without its storage
+   * @return True if the passive was synchronized, false if either of us was stopped before it finished (in which case the
+   * passive is no longer attached)
+   */
+  public boolean addDownstreamPassiveServerProcess(PassthroughServerProcess serverProcess) {
     // Make sure that we are active and they are passive.
     Assert.assertTrue(null != this.activeEntities);
     Assert.assertTrue(null != serverProcess.passiveEntities);
-    this.downstreamPassives.add(serverProcess);
     // Set our state synchronizing.
     serverProcess.setStateSynchronizing(serverProcess.serviceInterface);
-    // Synchronize any entities we have.
-    // NOTE:  This synchronization implementation is relatively simplistic and we may require a more substantial
-    // implementation, in the future, to support concurrent replication/synchronization ordering concerns, multiple
-    // concurrency queues/threads, and the ordering corner-cases which arise with those concerns.
-    for (Map.Entry<PassthroughEntityTuple, CreationData<?, ?>> entry : this.activeEntities.entrySet()) {
-      CreationData<?, ?> value = entry.getValue();
-      final String entityClassName = value.entityClassName;
-      final String entityName = value.entityName;
-      // State that we will start to synchronize the entity.
-      PassthroughMessage entityStart = PassthroughMessageCodec.createSyncEntityStartMessage(entityClassName, entityName, value.version, value.configuration);
-      PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(null);
-      serverProcess.sendMessageToServerFromActive(wrapper, entityStart.asSerializedBytes());
-      wrapper.waitForComplete();
-      // Walk all the concurrency keys for this entity.
-      for (final Integer oneKey : value.getConcurrency().getKeysForSynchronization()) {
-        // State that we will start to synchronize the key.
-        PassthroughMessage keyStart = PassthroughMessageCodec.createSyncEntityKeyStartMessage(entityClassName, entityName, oneKey);
-        wrapper = new PassthroughInterserverInterlock(null);
-        serverProcess.sendMessageToServerFromActive(wrapper, keyStart.asSerializedBytes());
-        wrapper.waitForComplete();
-        // Send all the data.
-        value.synchronizeToPassive(serverProcess, oneKey);
-        // State that we are done synchronizing the key.
-        PassthroughMessage keyEnd = PassthroughMessageCodec.createSyncEntityKeyEndMessage(entityClassName, entityName, oneKey);
-        wrapper = new PassthroughInterserverInterlock(null);
-        serverProcess.sendMessageToServerFromActive(wrapper, keyEnd.asSerializedBytes());
-        wrapper.waitForComplete();
-      }
-      // State that we are done synchronizing the entity.
-      PassthroughMessage entityEnd = PassthroughMessageCodec.createSyncEntityEndMessage(entityClassName, entityName);
-      wrapper = new PassthroughInterserverInterlock(null);
-      serverProcess.sendMessageToServerFromActive(wrapper, entityEnd.asSerializedBytes());
-      wrapper.waitForComplete();
-    }
-    // Restore our state to active.
-    if (null != serverProcess.serviceInterface) {
-      long timestamp = System.currentTimeMillis();
-      serverProcess.serviceInterface.addNode(PlatformMonitoringConstants.PLATFORM_PATH, PlatformMonitoringConstants.STATE_NODE_NAME, new ServerState(PlatformMonitoringConstants.SERVER_STATE_PASSIVE, timestamp, timestamp));
+    // The synchronization is driven by our server thread, a few entity keys at a time, between the messages it is handling so
+    // that our clients aren't stalled while the passive catches up.  We just wait for the passive to finish.
+    // Note that we can't hold our monitor while waiting since the server thread may need it.
+    // If either of us stops before the passive is synchronized, the stop fails the synchronization instead.
+    PassiveSynchronization synchronization = new PassiveSynchronization(serverProcess);
+    if (addPendingSynchronization(synchronization) && serverProcess.addPendingSynchronization(synchronization)) {
+      enqueueServerThreadTask(synchronization::begin);
+    } else {
+      synchronization.finish(false);
+    }
+    boolean didSynchronize = synchronization.waitForFinished();
+    if (didSynchronize) {
+      // Restore our state to active.
+      serverProcess.setStatePassive(serverProcess.serviceInterface);
+    } else {
+      // The passive won't get anything else from us so it can't stay attached (it may already have been detached).
+      detachDownstreamPassive(serverProcess);
+    }
+    return didSynchronize;
+  }
+
+  /**
+   * Attaches a passive, which was restarted from its storage, by replaying the messages it missed from our replication log
+   * instead of synchronizing it from scratch.
+   * 
+   * @param serverProcess The passive, started with its storage loaded
+   * @return True if the passive was attached, false if our log doesn't have everything it missed (in which case it must be
+   * restarted without its storage and attached with addDownstreamPassiveServerProcess())
+   */
+  public boolean catchUpDownstreamPassiveServerProcess(PassthroughServerProcess serverProcess) {
+    Assert.assertTrue(null != this.activeEntities);
+    Assert.assertTrue(null != serverProcess.passiveEntities);
+    final long[] position = serverProcess.recoveredReplicationPosition;
+    boolean didCatchUp = false;
+    if (null != position) {
+      // The replay must happen on our server thread so that nothing is replicated between the tail of the log and the first
+      // message sent to the passive as an attached passive.
+      final ServerThreadResult caughtUp = new ServerThreadResult();
+      enqueueServerThreadTask(() -> {
+        if ((null != this.replicationLog) && this.replicationLog.canReplayAfter(position[0], position[1])) {
+          synchronized (this) {
+            Set<PassthroughServerProcess> newPassives = new HashSet<>(this.downstreamPassives);
+            newPassives.add(serverProcess);
+            this.downstreamPassives = Collections.unmodifiableSet(newPassives);
+          }
+          this.replicationLog.replayAfter(position[1], (sequence, message) -> serverProcess.sendMessageToServerFromActive(new PassthroughInterserverInterlock(null, null, serverProcess.replicationStatistics), message, sequence));
+          // We are done once the passive has run the replayed messages.
+          serverProcess.enqueueServerThreadTask(() -> caughtUp.complete(true));
+        } else {
+          caughtUp.complete(false);
+        }
+      });
+      didCatchUp = caughtUp.waitForResult();
+    }
+    if (didCatchUp) {
+      serverProcess.setStatePassive(serverProcess.serviceInterface);
     }
+    return didCatchUp;
   }
 
-  public synchronized void removeDownstreamPassiveServerProcess(PassthroughServerProcess serverProcess) {
-    boolean didRemove = this.downstreamPassives.remove(serverProcess);
+  /**
+   * Called on a passive's server thread, once it has exited its loop, to store its position in the active's replication log
+   * so that it can be caught up from there if it is restarted from its storage.
+   */
+  private void storeReplicationPosition() {
+    if (null != this.executionLanes) {
+      // The position must also cover the invokes still running on the lanes.
+      this.executionLanes.waitForIdle();
+    }
+    long[] position = (0L != this.followedReplicationLogID)
+        ? new long[] { this.followedReplicationLogID, this.lastAppliedReplicationSequence }
+        : null;
+    try {
+      this.platformPersistence.storeDataElement(REPLICATION_POSITION_FILE_NAME, position);
+    } catch (IOException e) {
+      Assert.unexpected(e);
+    }
+  }
+
+  /**
+   * Called on the server thread, when replicating a message, to find which of the passives should receive it.  Passives
+   * which are still synchronizing don't get messages for entities, or keys, they haven't yet been sent since the
+   * synchronization will carry the effect of the message.
+   * 
+   * @param type The type of the message
+   * @param messageToReplicate The message, as it will be replicated
+   * @param attachment The EntityMessage of an invoke which came in on the object lane, or null
+   * @param downstreamPassives All the attached passives
+   * @param sender The sender of the message
+   * @param heldInterlocks Populated with the interlock of each passive for which the message was held, instead (the caller
+   * must wait on these, like it does for the passives it sends the message to)
+   * @return The passives which should receive the message
+   */
+  public Set<PassthroughServerProcess> passivesToReplicateTo(PassthroughMessage.Type type, byte[] messageToReplicate, Object attachment, Set<PassthroughServerProcess> downstreamPassives, IMessageSenderWrapper sender, Map<PassthroughServerProcess, PassthroughInterserverInterlock> heldInterlocks) {
+    Set<PassthroughServerProcess> targets = downstreamPassives;
+    if (!this.synchronizingPassives.isEmpty()) {
+      PassthroughEntityTuple entityTuple = PassthroughMessageCodec.decodeEntityTupleFromReplicatedMessage(messageToReplicate);
+      for (PassiveSynchronization synchronization : this.synchronizingPassives.values()) {
+        if (targets.contains(synchronization.passive) && !synchronization.shouldReplicate(type, entityTuple, messageToReplicate, attachment, sender, heldInterlocks)) {
+          if (targets == downstreamPassives) {
+            targets = new HashSet<>(downstreamPassives);
+          }
+          targets.remove(synchronization.passive);
+        }
+      }
+    }
+    return targets;
+  }
+
+  public void removeDownstreamPassiveServerProcess(PassthroughServerProcess serverProcess) {
+    boolean didRemove = detachDownstreamPassive(serverProcess);
     // We expect the passive to have been attached, if we are removing it.
     Assert.assertTrue(didRemove);
   }
 
+  /**
+   * @return True if the passive was attached (false if it had already been detached)
+   */
+  private boolean detachDownstreamPassive(PassthroughServerProcess serverProcess) {
+    boolean didRemove;
+    synchronized (this) {
+      Set<PassthroughServerProcess> newPassives = new HashSet<>(this.downstreamPassives);
+      didRemove = newPassives.remove(serverProcess);
+      this.downstreamPassives = Collections.unmodifiableSet(newPassives);
+      if (didRemove && (null != this.serviceInterface)) {
+        this.serviceInterface.removeNode(REPLICATION_PATH, serverProcess.getSafeServerName());
+      }
+    }
+    // The passive will be stopped without running what is left in its queue so the pipelined invokes it still owes must not
+    // keep waiting for it.  This is done outside of our monitor since it can pass on completes and retires.
+    PassthroughReplicationPipeline pipeline = this.replicationPipeline;
+    if (didRemove && (null != pipeline)) {
+      pipeline.removePassive(serverProcess);
+    }
+    return didRemove;
+  }
+
+  /**
+   * Called by the active synchronizing us to send a sync message, counting its size in our replication statistics.
+   */
+  private void sendSyncMessageFromActive(byte[] message) {
+    this.replicationStatistics.recordBytesSynchronized(message.length);
+    sendMessageToServerFromActive(new PassthroughInterserverInterlock(null), message);
+  }
+
+  /**
+   * @return The current snapshot of the attached passives (it is replaced, never modified, when passives come and go)
+   */
+  Set<PassthroughServerProcess> getDownstreamPassives() {
+    return this.downstreamPassives;
+  }
+
   public void promoteToActive() {
     // Make sure that we are currently passive.
     Assert.assertTrue(null != this.passiveEntities);
     // Make us active and promote all passive entities.
-    this.downstreamPassives.clear();
+    this.downstreamPassives = Collections.emptySet();
+    this.followedReplicationLogID = 0L;
+    // Every entity is promoted so any which weren't loaded are loaded now, as passive entities.
+    loadAllUnloadedEntities();
     this.activeEntities = new HashMap<>();
     
     // We need to create the entities as active but note that we would already have persisted this data so only create the
@@ -1121,6 +1829,7 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       }
       newData.getActive().loadExisting();
       this.activeEntities.put(entry.getKey(), newData);
+      installEntityHandle(newData);
     }
 //  show promotion in monitoring    
     if (this.serviceInterface != null) {
@@ -1185,14 +1894,37 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     }
   }
 
+  /**
+   * Called once the given connection has re-sent everything it is going to, so that its transactions which weren't re-sent
+   * don't hold up those of other connections.
+   * 
+   * @param connectionID The unique connection ID of the client
+   */
+  public synchronized void finishedReceivingResendsFrom(long connectionID) {
+    if (this.isHandlingResends) {
+      this.transactionOrderManager.finishedResendsFrom(connectionID);
+      if (this.isStreamingResends) {
+        queueReadyResends();
+      }
+    }
+  }
+
+  private void queueReadyResends() {
+    Assert.assertTrue(Thread.holdsLock(this));
+    for (PassthroughMessageContainer container : this.transactionOrderManager.takeReadyResends()) {
+      this.messageQueue.offer(container);
+    }
+  }
+
   public synchronized void endReceivingResends() {
     // We can only exit specialized re-send processing mode if we have order persistence.
     if (null != this.transactionOrderManager) {
       Assert.assertTrue(this.isHandlingResends);
       List<PassthroughMessageContainer> list = this.transactionOrderManager.stopHandlingResends();
-      this.messageQueue.addAll(list);
+      for (PassthroughMessageContainer container : list) {
+        this.messageQueue.offer(container);
+      }
       this.isHandlingResends = false;
-      this.notifyAll();
     }
   }
 
@@ -1230,6 +1962,85 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     return service;
   }
 
+  /**
+   * Creates the instance of an entity from the catalog, when restarted from storage, and tells it to load its existing
+   * state.
+   */
+  private void loadPersistedEntity(long consumerID) {
+    // This is an entity consumer so we use the deferred container.
+    DeferredEntityContainer container = new DeferredEntityContainer();
+    this.consumerToLiveContainerMap.put(consumerID, container);
+    EntityData entityData = this.persistedEntitiesByConsumerIDMap.get(consumerID);
+    // Create the registry for the entity.
+    PassthroughServiceRegistry registry = new PassthroughServiceRegistry(entityData.className, entityData.entityName, consumerID, this.serviceProviders, this.implementationProvidedServiceProviders, container);
+    // Construct the entity.
+    EntityServerService<?, ?> service = null;
+    try {
+      service = getServerEntityServiceForVersion(entityData.className, entityData.entityName, entityData.version);
+    } catch (Exception e) {
+      // We don't expect a version mismatch here or other failure in this test system.
+      Assert.unexpected(e);
+    }
+    // We know the codec, immediately, so pass that in.  We will need to register the entity instance after it is
+    // created.
+    container.codec = service.getMessageCodec();
+    
+    PassthroughEntityTuple entityTuple = new PassthroughEntityTuple(entityData.className, entityData.entityName);
+    CommonServerEntity<?, ?> newEntity = null;
+    try {
+      newEntity = createAndStoreEntity(entityData.className, entityData.entityName, entityData.version, entityData.configuration, entityTuple, service, registry, consumerID);
+    } catch (ConfigurationException e) {
+      // Passthrough doesn't support failures of entity load.
+      Assert.unexpected(e);
+    }
+    // We can now store the entity into the deferred container.
+    container.setEntity(newEntity);
+    // Tell the entity to load itself from storage.
+    if (newEntity instanceof ActiveServerEntity) {
+      ((ActiveServerEntity<?, ?>)newEntity).loadExisting();
+    }
+  }
+
+  /**
+   * Loads the named entity if it was restored from storage but hasn't been loaded, yet.  Called before looking it up.
+   */
+  private void loadIfUnloaded(PassthroughEntityTuple entityTuple) {
+    // We only need the monitor while there are entities left to load.
+    if (null != this.unloadedEntities) {
+      synchronized (this) {
+        if ((null != this.unloadedEntities) && this.unloadedEntities.containsKey(entityTuple)) {
+          loadUnloadedEntity(entityTuple);
+        }
+      }
+    }
+  }
+
+  private synchronized void loadAllUnloadedEntities() {
+    while (null != this.unloadedEntities) {
+      loadUnloadedEntity(this.unloadedEntities.keySet().iterator().next());
+    }
+  }
+
+  private void warmUnloadedEntities() {
+    synchronized (this) {
+      for (int i = 0; (null != this.unloadedEntities) && (i < this.entityWarmerBatchSize); ++i) {
+        loadUnloadedEntity(this.unloadedEntities.keySet().iterator().next());
+      }
+    }
+    if ((null != this.unloadedEntities) && this.isRunning) {
+      // Go to the back of the queue so that the messages which arrived while we were loading can run.
+      enqueueServerThreadTask(this::warmUnloadedEntities);
+    }
+  }
+
+  private void loadUnloadedEntity(PassthroughEntityTuple entityTuple) {
+    long consumerID = this.unloadedEntities.remove(entityTuple);
+    if (this.unloadedEntities.isEmpty()) {
+      this.unloadedEntities = null;
+    }
+    loadPersistedEntity(consumerID);
+  }
+
   private <M extends EntityMessage, R extends EntityResponse> CommonServerEntity<M, R> createAndStoreEntity(String entityClassName, String entityName, long version, byte[] serializedConfiguration, PassthroughEntityTuple entityTuple, EntityServerService<M, R> service, PassthroughServiceRegistry registry, long consumerID) throws ConfigurationException {
     CommonServerEntity<M, R> newEntity;
     boolean isActive = (null != this.activeEntities);
@@ -1241,9 +2052,93 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
       this.passiveEntities.put(entityTuple, data);
       newEntity = data.getPassive();
     }
+    installEntityHandle(data);
     return newEntity;
   }
 
+  /**
+   * An entity handle is only meaningful to the server process which issued it:  the high word is our processID (so a handle
+   * from a restarted or failed-over server is never mistaken for one of ours) and the low word is the consumerID.
+   */
+  private long entityHandleFor(CreationData<?, ?> data) {
+    Assert.assertTrue((data.consumerID >= 0) && (data.consumerID <= Integer.MAX_VALUE));
+    return (((long) this.processID) << 32) | data.consumerID;
+  }
+
+  private CreationData<?, ?> resolveEntityHandle(long entityHandle) {
+    CreationData<?, ?> data = null;
+    if ((int) (entityHandle >>> 32) == this.processID) {
+      int index = (int) entityHandle;
+      if ((index >= 0) && (index < this.entitiesByConsumerID.size())) {
+        data = this.entitiesByConsumerID.get(index);
+      }
+    }
+    return data;
+  }
+
+  @Override
+  public PassthroughEntityTuple entityNamesForHandle(long entityHandle) {
+    PassthroughEntityTuple names = null;
+    if ((int) (entityHandle >>> 32) == this.processID) {
+      int index = (int) entityHandle;
+      if ((index >= 0) && (index < this.entityNamesByConsumerID.size())) {
+        names = this.entityNamesByConsumerID.get(index);
+      }
+    }
+    // Clients get new handles when they reconnect so we shouldn't see another server's handle but we can't name it.
+    return (null != names) ? names : new PassthroughEntityTuple(null, null);
+  }
+
+  private void installEntityHandle(CreationData<?, ?> data) {
+    int index = (int) data.consumerID;
+    while (this.entitiesByConsumerID.size() <= index) {
+      this.entitiesByConsumerID.add(null);
+      this.entityNamesByConsumerID.add(null);
+    }
+    this.entitiesByConsumerID.set(index, data);
+    this.entityNamesByConsumerID.set(index, new PassthroughEntityTuple(data.entityClassName, data.entityName));
+  }
+
+  private void clearEntityHandle(long consumerID) {
+    if (consumerID < this.entitiesByConsumerID.size()) {
+      this.entitiesByConsumerID.set((int) consumerID, null);
+    }
+  }
+
+  /**
+   * Called by the decoder when replicating an invoke:  passives don't know our entity handles so an invoke which uses one is
+   * converted to name the entity.
+   * 
+   * @param rawInvoke The serialized INVOKE_ON_SERVER
+   * @return The invoke to send to the passives
+   */
+  public byte[] convertInvokeForReplication(byte[] rawInvoke, Object payloadObject) {
+    byte[] converted = rawInvoke;
+    long entityHandle = PassthroughMessageCodec.decodeEntityHandleFromRawInvoke(rawInvoke);
+    if (PassthroughMessageCodec.NO_ENTITY_HANDLE != entityHandle) {
+      CreationData<?, ?> data = resolveEntityHandle(entityHandle);
+      // If the handle is stale, we will fail the invoke, locally, so the passive can get it as-is and fail it, too.
+      if (null != data) {
+        // An invoke from the object lane has no payload so this is where it finally gets encoded:  the passive needs its
+        // own copy of the message.
+        byte[] payload = (null != payloadObject) ? encodeForReplication(data, payloadObject) : null;
+        converted = PassthroughMessageCodec.convertRawInvokeToNameForm(rawInvoke, data.entityClassName, data.entityName, payload);
+      }
+    }
+    return converted;
+  }
+
+  private <M extends EntityMessage, R extends EntityResponse> byte[] encodeForReplication(CreationData<M, R> data, Object payloadObject) {
+    byte[] payload = null;
+    try {
+      payload = data.messageCodec.encodeMessage(messageFromObjectLane(payloadObject));
+    } catch (MessageCodecException e) {
+      // Not expected (implies there is a serious bug in the entity being tested - try VERIFY_CODECS to find it).
+      Assert.unexpected(e);
+    }
+    return payload;
+  }
+
 
   private static class EntityData implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -1359,19 +2254,34 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     }
     
     public void synchronizeToPassive(final PassthroughServerProcess passive, final int key) {
+      // Note that we don't wait for the passive to run these since its queue will keep them in order with everything else we
+      // send it.
       getActive().prepareKeyForSynchronizeOnPassive(payload -> {
         PassthroughMessage payloadMessage = PassthroughMessageCodec.createSyncPayloadMessage(entityClassName, entityName, key, serialize(key, payload));
-        PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(null);
-        passive.sendMessageToServerFromActive(wrapper, payloadMessage.asSerializedBytes());
-        wrapper.waitForComplete();
+        passive.sendSyncMessageFromActive(payloadMessage.asSerializedBytes());
       }, key);
       getActive().synchronizeKeyToPassive(payload -> {
         PassthroughMessage payloadMessage = PassthroughMessageCodec.createSyncPayloadMessage(entityClassName, entityName, key, serialize(key, payload));
-        PassthroughInterserverInterlock wrapper = new PassthroughInterserverInterlock(null);
-        passive.sendMessageToServerFromActive(wrapper, payloadMessage.asSerializedBytes());
-        wrapper.waitForComplete();
+        passive.sendSyncMessageFromActive(payloadMessage.asSerializedBytes());
       }, key);
     }
+
+    /**
+     * Used to decide whether a replicated invoke touches a key which a synchronizing passive hasn't yet been sent.
+     * 
+     * @return The concurrency key of the invoke or null, if it couldn't be decoded
+     */
+    @SuppressWarnings("unchecked")
+    public Integer concurrencyKeyForReplicatedInvoke(byte[] payload, Object payloadObject) {
+      Integer key = null;
+      try {
+        M message = (null != payloadObject) ? (M) payloadObject : this.messageCodec.decodeMessage(payload);
+        key = this.concurrency.concurrencyKey(message);
+      } catch (MessageCodecException e) {
+        // The invoke will fail on the active, too, so it doesn't matter where it goes.
+      }
+      return key;
+    }
     
     private byte[] serialize(int key, M message) {
       try {
@@ -1382,4 +2292,400 @@ public class PassthroughServerProcess implements MessageHandler, PassthroughDump
     }
   }
 
+
+  /**
+   * Lets another thread wait for the result of a task it enqueued on a server thread.
+   */
+  private static class ServerThreadResult {
+    // A lock, instead of the monitor, so that waiting for the result doesn't pin a virtual thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition wasCompleted = this.lock.newCondition();
+    private boolean isDone;
+    private boolean result;
+
+    public void complete(boolean result) {
+      this.lock.lock();
+      try {
+        this.result = result;
+        this.isDone = true;
+        this.wasCompleted.signalAll();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    public boolean waitForResult() {
+      this.lock.lock();
+      try {
+        while (!this.isDone) {
+          try {
+            this.wasCompleted.await();
+          } catch (InterruptedException e) {
+            Assert.unexpected(e);
+          }
+        }
+        return this.result;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+  }
+
+
+  /**
+   * The state of a passive being synchronized by this active.  This is driven by our server thread:  each step starts as
+   * many concurrency keys as the sync parallelism allows (starting, and ending, entities as it goes) and the rest of the
+   * work is queued behind whatever messages arrived in the meantime.
+   * With execution lanes, each key is synchronized on the lane which owns it, so it is ordered with the invokes on that key,
+   * and several keys can be in flight at once.  Since the passive expects each entity's keys one after the other, only one key
+   * of each entity is in flight at a time so the parallelism is across entities.  Without lanes, one key is synchronized per
+   * step, on the server thread.
+   * An invoke on MANAGEMENT_KEY or UNIVERSAL_KEY touches every key of its entity so, if the entity is partially synchronized,
+   * it acts as a barrier:  the rest of the entity's keys are synchronized, right away, before the invoke is replicated.
+   * Entities which are destroyed before we get to them are just skipped.
+   */
+  private class PassiveSynchronization {
+    public final PassthroughServerProcess passive;
+    private final LinkedHashMap<PassthroughEntityTuple, CreationData<?, ?>> unstartedEntities = new LinkedHashMap<>();
+    // The entities which have been started, but not ended, on the passive.
+    private final LinkedHashMap<PassthroughEntityTuple, EntitySync> startedEntities = new LinkedHashMap<>();
+    private int keysInFlight;
+    // Guarded by the lock since they are set on the passive's server thread (or by whichever of us is stopped) and waited on
+    // by the thread attaching it.  This is a lock, instead of the monitor, so that the waiting doesn't pin a virtual thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition syncFinished = this.lock.newCondition();
+    private boolean isFinished;
+    private boolean didSucceed;
+    // The keys which haven't been sent, also guarded by the lock, so that a failure can release the invokes they hold.
+    private final Set<KeySync> unsentKeys = new HashSet<>();
+
+    public PassiveSynchronization(PassthroughServerProcess passive) {
+      this.passive = passive;
+    }
+
+    public void begin() {
+      synchronized (PassthroughServerProcess.this) {
+        Set<PassthroughServerProcess> newPassives = new HashSet<>(downstreamPassives);
+        newPassives.add(this.passive);
+        downstreamPassives = Collections.unmodifiableSet(newPassives);
+      }
+      // The passive needs every entity.
+      loadAllUnloadedEntities();
+      this.unstartedEntities.putAll(activeEntities);
+      this.passive.replicationStatistics.recordSyncStarted(this.unstartedEntities.size());
+      synchronizingPassives.put(this.passive, this);
+      runNextStep();
+    }
+
+    /**
+     * Called when replicating a message to decide if this passive should receive it now.  Note that invokes on keys which
+     * are currently being synchronized are held and sent once the key has been sent, in which case this returns false and
+     * the interlock the held invoke will be sent with is added to heldInterlocks.
+     */
+    public boolean shouldReplicate(PassthroughMessage.Type type, PassthroughEntityTuple entityTuple, byte[] messageToReplicate, Object attachment, IMessageSenderWrapper sender, Map<PassthroughServerProcess, PassthroughInterserverInterlock> heldInterlocks) {
+      boolean shouldReplicate = true;
+      CreationData<?, ?> unstarted = this.unstartedEntities.get(entityTuple);
+      EntitySync started = this.startedEntities.get(entityTuple);
+      if (null != unstarted) {
+        if (isStale(entityTuple, unstarted)) {
+          // This is for a new entity with the same name so the passive needs it.
+          this.unstartedEntities.remove(entityTuple);
+        } else {
+          // The passive will get this entity's state when we synchronize it.
+          shouldReplicate = false;
+        }
+      } else if ((null != started) && (PassthroughMessage.Type.INVOKE_ON_SERVER == type) && !isStale(entityTuple, started.data)) {
+        Integer key = started.data.concurrencyKeyForReplicatedInvoke((null == attachment) ? PassthroughMessageCodec.decodePayloadFromRawNamedInvoke(messageToReplicate) : null, attachment);
+        KeySync inFlight = started.keysInFlight.get(key);
+        if ((null != key) && ((ConcurrencyStrategy.MANAGEMENT_KEY == key) || (ConcurrencyStrategy.UNIVERSAL_KEY == key))) {
+          // Some keys already have what this invoke did before while others will get its effect, if they are synchronized
+          // after it runs, so we finish the entity and replicate the invoke after it.
+          synchronizeRemainingKeys(started);
+        } else if (started.unsyncedKeys.contains(key)) {
+          // The invoke will be run before we synchronize its key so the passive will get its effect then.
+          shouldReplicate = false;
+        } else if (null != inFlight) {
+          PassthroughInterserverInterlock interlock = new PassthroughInterserverInterlock(sender, null, this.passive.replicationStatistics);
+          shouldReplicate = !inFlight.holdUntilSent(interlock, messageToReplicate);
+          if (!shouldReplicate) {
+            heldInterlocks.put(this.passive, interlock);
+          }
+        }
+      }
+      return shouldReplicate;
+    }
+
+    /**
+     * @return True if the passive was synchronized, false if it was detached or either of us was stopped, first
+     */
+    public boolean waitForFinished() {
+      this.lock.lock();
+      try {
+        while (!this.isFinished) {
+          try {
+            this.syncFinished.await();
+          } catch (InterruptedException e) {
+            Assert.unexpected(e);
+          }
+        }
+        return this.didSucceed;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+
+    /**
+     * Called on any thread.  Only the first call counts.
+     */
+    public void finish(boolean didSucceed) {
+      boolean wasFinished;
+      List<KeySync> toAbandon = Collections.emptyList();
+      this.lock.lock();
+      try {
+        wasFinished = this.isFinished;
+        if (!wasFinished) {
+          this.isFinished = true;
+          this.didSucceed = didSucceed;
+          toAbandon = new ArrayList<>(this.unsentKeys);
+          this.unsentKeys.clear();
+          // Recorded before waking the attaching thread so it never sees the passive as still synchronizing.
+          this.passive.replicationStatistics.recordSyncFinished();
+          this.syncFinished.signalAll();
+        }
+      } finally {
+        this.lock.unlock();
+      }
+      if (!wasFinished) {
+        removePendingSynchronization(this);
+        this.passive.removePendingSynchronization(this);
+      }
+      // The passive may never get these keys so the invokes they hold must stop waiting for it.
+      for (KeySync key : toAbandon) {
+        key.abandon();
+      }
+    }
+
+    private void runNextStep() {
+      if (!downstreamPassives.contains(this.passive)) {
+        // The passive was detached so there is nothing more to do (anything still in flight will just be dropped).
+        synchronizingPassives.remove(this.passive);
+        finish(false);
+      } else {
+        boolean shouldContinue = true;
+        while (shouldContinue && (this.keysInFlight < syncParallelism)) {
+          KeySync next = nextKeyToSync();
+          if (null == next) {
+            shouldContinue = false;
+          } else if (null != executionLanes) {
+            this.keysInFlight += 1;
+            executionLanes.execute(next.key, () -> {
+              try {
+                next.send();
+              } finally {
+                enqueueServerThreadTask(() -> {
+                  this.keysInFlight -= 1;
+                  keyWasSent(next);
+                  runNextStep();
+                });
+              }
+            });
+          } else {
+            // We only do one key per step, on the server thread, so that client messages can be run between them.
+            next.send();
+            keyWasSent(next);
+            enqueueServerThreadTask(this::runNextStep);
+            return;
+          }
+        }
+        if ((0 == this.keysInFlight) && this.startedEntities.isEmpty() && this.unstartedEntities.isEmpty()) {
+          // Everything has been sent so the passive now gets every replicated message.  We are finished once the passive
+          // has run everything we sent it, at which point it is also caught up to the end of our replication log.
+          synchronizingPassives.remove(this.passive);
+          final long logID = (null != replicationLog) ? replicationLog.getLogID() : 0L;
+          final long lastSequence = (null != replicationLog) ? replicationLog.getLastSequence() : 0L;
+          this.passive.enqueueServerThreadTask(() -> {
+            this.passive.followedReplicationLogID = logID;
+            this.passive.lastAppliedReplicationSequence = lastSequence;
+            finish(true);
+          });
+        }
+      }
+    }
+
+    /**
+     * Finds the next key to synchronize, starting the next entity if the started ones have no keys left to send (and ending
+     * any entity with no keys).
+     */
+    private KeySync nextKeyToSync() {
+      KeySync next = null;
+      Iterator<EntitySync> started = this.startedEntities.values().iterator();
+      while ((null == next) && started.hasNext()) {
+        EntitySync entity = started.next();
+        if (isStale(entity.tuple, entity.data)) {
+          // The entity was destroyed (and the passive was sent the destroy) so abandon it.
+          entity.unsyncedKeys.clear();
+          if (entity.keysInFlight.isEmpty()) {
+            started.remove();
+          }
+        } else if (!entity.unsyncedKeys.isEmpty() && entity.keysInFlight.isEmpty()) {
+          // The passive only synchronizes one key of an entity at a time so the next key waits for the one in flight.
+          Integer key = entity.unsyncedKeys.iterator().next();
+          entity.unsyncedKeys.remove(key);
+          next = new KeySync(entity, key);
+          entity.keysInFlight.put(key, next);
+        }
+      }
+      while ((null == next) && !this.unstartedEntities.isEmpty()) {
+        Iterator<Map.Entry<PassthroughEntityTuple, CreationData<?, ?>>> unstarted = this.unstartedEntities.entrySet().iterator();
+        Map.Entry<PassthroughEntityTuple, CreationData<?, ?>> candidate = unstarted.next();
+        unstarted.remove();
+        if (!isStale(candidate.getKey(), candidate.getValue())) {
+          CreationData<?, ?> data = candidate.getValue();
+          EntitySync entity = new EntitySync(candidate.getKey(), data);
+          sendSyncMessage(PassthroughMessageCodec.createSyncEntityStartMessage(data.entityClassName, data.entityName, data.version, data.configuration));
+          if (entity.unsyncedKeys.isEmpty()) {
+            sendSyncMessage(PassthroughMessageCodec.createSyncEntityEndMessage(data.entityClassName, data.entityName));
+            this.passive.replicationStatistics.recordEntitySynchronized();
+          } else {
+            this.startedEntities.put(entity.tuple, entity);
+            Integer key = entity.unsyncedKeys.iterator().next();
+            entity.unsyncedKeys.remove(key);
+            next = new KeySync(entity, key);
+            entity.keysInFlight.put(key, next);
+          }
+        }
+      }
+      return next;
+    }
+
+    /**
+     * Called on the server thread to synchronize the rest of the given entity's keys before an invoke which touches all of
+     * them.
+     */
+    private void synchronizeRemainingKeys(EntitySync entity) {
+      if (null != executionLanes) {
+        // The key in flight is sent by its lane (the task which counts it as sent is already behind us on the server thread).
+        executionLanes.waitForIdle();
+      }
+      while (!entity.unsyncedKeys.isEmpty()) {
+        Integer key = entity.unsyncedKeys.iterator().next();
+        entity.unsyncedKeys.remove(key);
+        KeySync next = new KeySync(entity, key);
+        entity.keysInFlight.put(key, next);
+        next.send();
+        keyWasSent(next);
+      }
+    }
+
+    private void keyWasSent(KeySync sent) {
+      EntitySync entity = sent.entity;
+      entity.keysInFlight.remove(sent.key);
+      this.passive.replicationStatistics.recordKeySynchronized();
+      if (entity.keysInFlight.isEmpty() && entity.unsyncedKeys.isEmpty() && (this.startedEntities.get(entity.tuple) == entity)) {
+        this.startedEntities.remove(entity.tuple);
+        if (!isStale(entity.tuple, entity.data)) {
+          sendSyncMessage(PassthroughMessageCodec.createSyncEntityEndMessage(entity.data.entityClassName, entity.data.entityName));
+          this.passive.replicationStatistics.recordEntitySynchronized();
+        }
+      }
+    }
+
+    private boolean isStale(PassthroughEntityTuple entityTuple, CreationData<?, ?> data) {
+      return data.isDestroyed || (activeEntities.get(entityTuple) != data);
+    }
+
+    private void sendSyncMessage(PassthroughMessage message) {
+      this.passive.sendSyncMessageFromActive(message.asSerializedBytes());
+    }
+
+
+    private class EntitySync {
+      public final PassthroughEntityTuple tuple;
+      public final CreationData<?, ?> data;
+      public final LinkedHashSet<Integer> unsyncedKeys;
+      public final Map<Integer, KeySync> keysInFlight = new HashMap<>();
+
+      public EntitySync(PassthroughEntityTuple tuple, CreationData<?, ?> data) {
+        this.tuple = tuple;
+        this.data = data;
+        this.unsyncedKeys = new LinkedHashSet<>(data.getConcurrency().getKeysForSynchronization());
+      }
+    }
+
+
+    /**
+     * One key being synchronized.  Invokes on the key which are replicated while it is in flight are held and sent to the
+     * passive right after the key, under the monitor, so that they can't be sent before it.  Each is held with the interlock
+     * its replicating thread waits on so its client still only sees the response once the passive has run it.
+     */
+    private class KeySync {
+      public final EntitySync entity;
+      public final int key;
+      private final List<PassthroughMessageContainer> heldMessages = new ArrayList<>();
+      private boolean wasSent;
+
+      public KeySync(EntitySync entity, int key) {
+        this.entity = entity;
+        this.key = key;
+        lock.lock();
+        try {
+          unsentKeys.add(this);
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      public void send() {
+        CreationData<?, ?> data = this.entity.data;
+        sendSyncMessage(PassthroughMessageCodec.createSyncEntityKeyStartMessage(data.entityClassName, data.entityName, this.key));
+        data.synchronizeToPassive(passive, this.key);
+        synchronized (this) {
+          // If the synchronization failed in the meantime, the held invokes were already released.
+          if (!this.wasSent) {
+            sendSyncMessage(PassthroughMessageCodec.createSyncEntityKeyEndMessage(data.entityClassName, data.entityName, this.key));
+            for (PassthroughMessageContainer held : this.heldMessages) {
+              passive.sendMessageToServerFromActive(held.sender, held.message);
+            }
+            this.heldMessages.clear();
+            this.wasSent = true;
+          }
+        }
+        lock.lock();
+        try {
+          unsentKeys.remove(this);
+        } finally {
+          lock.unlock();
+        }
+      }
+
+      /**
+       * Called when the synchronization fails before the key was sent:  the held invokes are completed, without being sent,
+       * like the pipelined invokes a detached passive still owed.
+       */
+      public void abandon() {
+        List<PassthroughMessageContainer> toRelease;
+        synchronized (this) {
+          this.wasSent = true;
+          toRelease = new ArrayList<>(this.heldMessages);
+          this.heldMessages.clear();
+        }
+        for (PassthroughMessageContainer held : toRelease) {
+          held.sender.sendComplete(PassthroughMessageCodec.createCompleteMessage(null, null), true);
+        }
+      }
+
+      /**
+       * @return True if the message was held, false if the key has already been sent so the message can be sent now
+       */
+      public synchronized boolean holdUntilSent(PassthroughInterserverInterlock interlock, byte[] message) {
+        if (!this.wasSent) {
+          PassthroughMessageContainer held = new PassthroughMessageContainer();
+          held.sender = interlock;
+          held.message = message;
+          this.heldMessages.add(held);
+        }
+        return !this.wasSent;
+      }
+    }
+  }
 }
@@ -0,0 +1,125 @@
+/*
+ *
+ *  The contents of this file are subject to the Terracotta Public License Version
+ *  2.0 (the "License"); You may not use this file except in compliance with the
+ *  License. You may obtain a copy of the License at
+ *
+ *  http://terracotta.org/legal/terracotta-public-license.
+ *
+ *  Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ *  the specific language governing rights and limitations under the License.
+ *
+ *  The Covered Software is Entity API.
+ *
+ *  The Initial Developer of the Covered Software is
+ *  Terracotta, Inc., a Software AG company
+ *
+ */
+package org.terracotta.passthrough;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+
+/**
+ * Creates the long-lived threads of the passthrough system (server threads, client connection reader threads, the timer
+ * thread, etc).
+ * By default, these are normal platform threads but the factory can be asked to create virtual threads, instead, allowing
+ * very large numbers of simulated clients to run in a single VM.  Since we still build for Java 8, the virtual thread
+ * support is looked up reflectively and is only available when actually running on a JDK which supports it (21+).  If it
+ * isn't available, we fall back to platform threads.
+ * Note that the waits these threads perform (PassthroughWait, PassthroughConnectionState, the message queues, etc) are
+ * built on java.util.concurrent locks or LockSupport, not monitors, so they don't pin a virtual thread to its carrier.
+ */
+public class PassthroughThreadFactory {
+  public static final PassthroughThreadFactory PLATFORM_THREADS = new PassthroughThreadFactory(false);
+
+  // These are null if virtual threads aren't supported by the running VM.
+  private static final Method OF_VIRTUAL;
+  private static final Method BUILDER_NAME;
+  private static final Method BUILDER_UNSTARTED;
+  static {
+    Method ofVirtual = null;
+    Method builderName = null;
+    Method builderUnstarted = null;
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builderName = builderClass.getMethod("name", String.class);
+      builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+      // On some JDKs, this exists as a preview feature, so make sure that we can actually use it.
+      ofVirtual.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      ofVirtual = null;
+      builderName = null;
+      builderUnstarted = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    BUILDER_NAME = builderName;
+    BUILDER_UNSTARTED = builderUnstarted;
+  }
+
+  /**
+   * @return True if the running VM can create virtual threads.
+   */
+  public static boolean areVirtualThreadsSupported() {
+    return (null != OF_VIRTUAL);
+  }
+
+  /**
+   * Returns a factory for the requested kind of thread.  Note that asking for virtual threads on a VM which doesn't support
+   * them will log a warning and return the platform thread factory.
+   * 
+   * @param useVirtualThreads True if virtual threads should be used
+   * @return The factory
+   */
+  public static PassthroughThreadFactory forThreadType(boolean useVirtualThreads) {
+    PassthroughThreadFactory factory = PLATFORM_THREADS;
+    if (useVirtualThreads) {
+      if (areVirtualThreadsSupported()) {
+        factory = new PassthroughThreadFactory(true);
+      } else {
+        System.err.println("WARNING:  Virtual threads requested but not supported by this VM (requires Java 21+) - using platform threads");
+      }
+    }
+    return factory;
+  }
+
+
+  private final boolean useVirtualThreads;
+
+  private PassthroughThreadFactory(boolean useVirtualThreads) {
+    this.useVirtualThreads = useVirtualThreads;
+  }
+
+  public boolean isUsingVirtualThreads() {
+    return this.useVirtualThreads;
+  }
+
+  /**
+   * Creates a new, unstarted, thread with the given name and the shared PassthroughUncaughtExceptionHandler.
+   * 
+   * @param runnable The body of the thread
+   * @param name The name of the thread
+   * @return The unstarted thread
+   */
+  public Thread newThread(Runnable runnable, String name) {
+    Thread thread = null;
+    if (this.useVirtualThreads) {
+      try {
+        Object builder = OF_VIRTUAL.invoke(null);
+        builder = BUILDER_NAME.invoke(builder, name);
+        thread = (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        // We already verified that this works so this isn't expected.
+        Assert.unexpected(e);
+      }
+    } else {
+      thread = new Thread(runnable);
+      thread.setName(name);
+    }
+    thread.setUncaughtExceptionHandler(PassthroughUncaughtExceptionHandler.sharedInstance);
+    return thread;
+  }
+}
@@ -20,99 +20,140 @@ package org.terracotta.passthrough;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
-public class PassthroughTimerThread extends Thread {
+/**
+ * The timer used to run delayed and periodic messenger service sends.
+ * Note that this is a Runnable, which starts its own thread via a PassthroughThreadFactory, so that it can be run on a
+ * virtual thread.  For that reason, it waits on a ReentrantLock, not the monitor.
+ */
+public class PassthroughTimerThread implements Runnable {
   private boolean shouldRun = true;
   private final AtomicLong nextNumber = new AtomicLong(1L);
   private final List<ListElement> queue = new ArrayList<ListElement>();
+  // Guards shouldRun and the queue.  The condition is signalled whenever either of them changes.
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition queueChanged = this.lock.newCondition();
+  private Thread thread;
+
+  public void start(PassthroughThreadFactory threadFactory, String name) {
+    Assert.assertTrue(null == this.thread);
+    this.thread = threadFactory.newThread(this, name);
+    this.thread.start();
+  }
+
+  public void join() throws InterruptedException {
+    this.thread.join();
+  }
 
   @Override
   public void run() {
-    boolean keepRunning = true;
-    while (keepRunning) {
-      NextIntent intent = getNextIntent();
-      keepRunning = intent.keepRunning;
-      if (keepRunning) {
-        Runnable toRun = intent.toRun;
-        if (null != toRun) {
-          try {
-            toRun.run();
-          } catch (Throwable t) {
-            System.err.println("Unexpected exception in timer thread (timed events may be dropped)");
-            t.printStackTrace();
-          }
-        } else {
-          synchronized (this) {
-            try {
-              this.wait(intent.millisToSleep);
-            } catch (InterruptedException e) {
-              // We never interrupt this, internally.
-              Assert.unexpected(e);
-            }
-          }
-        }
+    Runnable toRun = getNextToRun();
+    while (null != toRun) {
+      try {
+        toRun.run();
+      } catch (Throwable t) {
+        System.err.println("Unexpected exception in timer thread (timed events may be dropped)");
+        t.printStackTrace();
       }
+      toRun = getNextToRun();
     }
   }
 
-  public synchronized void shutdown() {
-    this.shouldRun = false;
-    this.notifyAll();
+  public void shutdown() {
+    this.lock.lock();
+    try {
+      this.shouldRun = false;
+      this.queueChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized long scheduleAfterDelay(Runnable runnable, long millisBeforeSend) {
-    long currentTime = System.currentTimeMillis();
-    long nextId = this.nextNumber.getAndIncrement();
-    ListElement element = new ListElement(nextId, runnable, currentTime + millisBeforeSend, 0);
-    enqueueInList(element);
-    return nextId;
+  public long scheduleAfterDelay(Runnable runnable, long millisBeforeSend) {
+    this.lock.lock();
+    try {
+      long currentTime = System.currentTimeMillis();
+      long nextId = this.nextNumber.getAndIncrement();
+      ListElement element = new ListElement(nextId, runnable, currentTime + millisBeforeSend, 0);
+      enqueueInList(element);
+      return nextId;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized long schedulePeriodically(Runnable runnable, long millisBetweenSends) {
-    long currentTime = System.currentTimeMillis();
-    long nextId = this.nextNumber.getAndIncrement();
-    ListElement element = new ListElement(nextId, runnable, currentTime + millisBetweenSends, millisBetweenSends);
-    enqueueInList(element);
-    return nextId;
+  public long schedulePeriodically(Runnable runnable, long millisBetweenSends) {
+    this.lock.lock();
+    try {
+      long currentTime = System.currentTimeMillis();
+      long nextId = this.nextNumber.getAndIncrement();
+      ListElement element = new ListElement(nextId, runnable, currentTime + millisBetweenSends, millisBetweenSends);
+      enqueueInList(element);
+      return nextId;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void cancelMessage(long token) {
-    // Walk the queue and remove this element, if we find it (it might already be gone).
-    int indexToDrop = -1;
-    for (int i = 0; ((-1 == indexToDrop) && (i < this.queue.size())); ++i) {
-      if (this.queue.get(i).id == token) {
-        indexToDrop = i;
+  public void cancelMessage(long token) {
+    this.lock.lock();
+    try {
+      // Walk the queue and remove this element, if we find it (it might already be gone).
+      int indexToDrop = -1;
+      for (int i = 0; ((-1 == indexToDrop) && (i < this.queue.size())); ++i) {
+        if (this.queue.get(i).id == token) {
+          indexToDrop = i;
+        }
       }
-    }
-    if (-1 != indexToDrop) {
-      this.queue.remove(indexToDrop);
+      if (-1 != indexToDrop) {
+        this.queue.remove(indexToDrop);
+      }
+    } finally {
+      this.lock.unlock();
     }
   }
 
 
-  private synchronized NextIntent getNextIntent() {
-    long currentTime = System.currentTimeMillis();
-    boolean shouldContinue = this.shouldRun;
-    Runnable toRun = null;
-    long millisToSleep = 0;
-    if (shouldContinue) {
-      if (!this.queue.isEmpty()) {
-        ListElement firstInList = this.queue.get(0);
-        if (firstInList.timeToRun <= currentTime) {
-          this.queue.remove(0);
-          toRun = firstInList.toRun;
-          long reschedulePeriod = firstInList.reschedulePeriod;
-          if (reschedulePeriod > 0) {
-            enqueueInList(new ListElement(firstInList.id, toRun, currentTime + reschedulePeriod, reschedulePeriod));
-          }
+  /**
+   * Waits until the first element in the queue is due and returns it, or returns null if we were shut down.
+   * Note that the wait happens while still holding the lock, so we can't miss a change to the queue between deciding to
+   * sleep and sleeping.
+   */
+  private Runnable getNextToRun() {
+    this.lock.lock();
+    try {
+      Runnable toRun = null;
+      while (this.shouldRun && (null == toRun)) {
+        long currentTime = System.currentTimeMillis();
+        if (this.queue.isEmpty()) {
+          this.queueChanged.await();
         } else {
-          millisToSleep = (firstInList.timeToRun - currentTime);
+          ListElement firstInList = this.queue.get(0);
+          if (firstInList.timeToRun <= currentTime) {
+            this.queue.remove(0);
+            toRun = firstInList.toRun;
+            long reschedulePeriod = firstInList.reschedulePeriod;
+            if (reschedulePeriod > 0) {
+              enqueueInList(new ListElement(firstInList.id, toRun, currentTime + reschedulePeriod, reschedulePeriod));
+            }
+          } else {
+            this.queueChanged.await(firstInList.timeToRun - currentTime, TimeUnit.MILLISECONDS);
+          }
         }
       }
+      return toRun;
+    } catch (InterruptedException e) {
+      // We never interrupt this, internally.
+      Assert.unexpected(e);
+      return null;
+    } finally {
+      this.lock.unlock();
     }
-    return new NextIntent(shouldContinue, toRun, millisToSleep);
   }
 
   private void enqueueInList(ListElement element) {
@@ -125,7 +166,7 @@ public class PassthroughTimerThread extends Thread {
       }
     }
     this.queue.add(indexToInsert, element);
-    this.notifyAll();
+    this.queueChanged.signalAll();
   }
 
 
@@ -134,7 +175,7 @@ public class PassthroughTimerThread extends Thread {
     public final Runnable toRun;
     public final long timeToRun;
     public final long reschedulePeriod;
-    
+
     public ListElement(long id, Runnable toRun, long timeToRun, long reschedulePeriod) {
       this.id = id;
       this.toRun = toRun;
@@ -142,17 +183,4 @@ public class PassthroughTimerThread extends Thread {
       this.reschedulePeriod = reschedulePeriod;
     }
   }
-
-
-  private static class NextIntent {
-    public final boolean keepRunning;
-    public final Runnable toRun;
-    public final long millisToSleep;
-    
-    public NextIntent(boolean keepRunning, Runnable toRun, long millisToSleep) {
-      this.keepRunning = keepRunning;
-      this.toRun = toRun;
-      this.millisToSleep = millisToSleep;
-    }
-  }
-}
\ No newline at end of file
+}
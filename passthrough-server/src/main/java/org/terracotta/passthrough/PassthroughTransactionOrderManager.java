@@ -19,27 +19,38 @@
 package org.terracotta.passthrough;
 
 import java.io.IOException;
-import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.Vector;
 
 import org.terracotta.persistence.IPlatformPersistence;
 
 
+/**
+ * Tracks the order in which client transactions were received, in the platform persistence, so that the re-sends after a
+ * restart can be run in that same order.
+ * The persisted order is loaded as a sorted array of transaction IDs, and the matching global sequence numbers, for each
+ * connection so that a re-send can find its position with a binary search.  The re-sends are then released by merging the
+ * connections' arrays, in global order, using a priority queue of the connections.
+ * Re-sends can either all be released once they have all arrived (stopHandlingResends()) or streamed:  takeReadyResends()
+ * releases each one as soon as everything before it, in global order, has either arrived or will never arrive (because
+ * its connection has finished re-sending).
+ */
 public class PassthroughTransactionOrderManager {
   private final IPlatformPersistence platformPersistence;
 
-  private List<ClientTransaction> clientTransactionList;
+  // This map is only available until the re-sends have been handled.
+  private Map<Long, ClientSequence> persistedOrderByConnection;
   private long receivedTransactionCount;
   
-  // This map is only available while handling re-sends.
-  private Map<ClientTransaction, PassthroughMessageContainer> collectedResends;
+  // These are only available while handling re-sends:  the connections with persisted transactions still to release,
+  // ordered by the global sequence number of the next one, and the re-sends which weren't in the persisted order.
+  private PriorityQueue<ClientSequence> releaseOrder;
+  private List<PassthroughMessageContainer> unorderedResends;
 
   public PassthroughTransactionOrderManager(IPlatformPersistence platformPersistence, boolean shouldLoadStorage, Set<Long> savedClientConnections) {
     this.platformPersistence = platformPersistence;
@@ -57,44 +68,96 @@ public class PassthroughTransactionOrderManager {
   }
 
   public void startHandlingResends() {
-    Assert.assertTrue(null == this.collectedResends);
-    this.collectedResends = new HashMap<ClientTransaction, PassthroughMessageContainer>();
+    Assert.assertTrue(null == this.releaseOrder);
+    Assert.assertTrue(null != this.persistedOrderByConnection);
+    this.releaseOrder = new PriorityQueue<ClientSequence>(Math.max(1, this.persistedOrderByConnection.size()), (one, two) -> Long.compare(one.nextGlobalSequenceID(), two.nextGlobalSequenceID()));
+    this.releaseOrder.addAll(this.persistedOrderByConnection.values());
+    this.unorderedResends = new ArrayList<PassthroughMessageContainer>();
   }
 
+  /**
+   * @param connectionID The unique connection ID of the client (the same ID used to track its transactions)
+   * @param transactionID The transaction being re-sent
+   * @param container The message to run, once it is released
+   */
   public void handleResend(long connectionID, long transactionID, PassthroughMessageContainer container) {
-    Assert.assertTrue(null != this.collectedResends);
-    ClientTransaction fakeTransaction = new ClientTransaction();
-    fakeTransaction.connectionID = connectionID;
-    fakeTransaction.transactionID = transactionID;
-    this.collectedResends.put(fakeTransaction, container);
+    Assert.assertTrue(null != this.releaseOrder);
+    ClientSequence sequence = this.persistedOrderByConnection.get(connectionID);
+    boolean didOrder = (null != sequence) && sequence.resendArrived(transactionID, container);
+    if (!didOrder) {
+      this.unorderedResends.add(container);
+    }
+  }
+
+  /**
+   * Called once a connection has re-sent everything it is going to so that its persisted transactions which weren't re-sent
+   * (since they already completed, for example) don't hold up the others.
+   * 
+   * @param connectionID The unique connection ID of the client
+   */
+  public void finishedResendsFrom(long connectionID) {
+    Assert.assertTrue(null != this.releaseOrder);
+    ClientSequence sequence = this.persistedOrderByConnection.get(connectionID);
+    if (null != sequence) {
+      sequence.isFinished = true;
+    }
+  }
+
+  /**
+   * Used when streaming re-sends:  releases the re-sends which can run now, without waiting for any others.
+   * 
+   * @return The re-sends which are next in the persisted order, in the order they must run (often empty)
+   */
+  public List<PassthroughMessageContainer> takeReadyResends() {
+    Assert.assertTrue(null != this.releaseOrder);
+    List<PassthroughMessageContainer> ready = new ArrayList<PassthroughMessageContainer>();
+    release(ready, false);
+    return ready;
   }
 
+  /**
+   * @return The re-sends not yet released:  those in the persisted order, in that order, and then the others, in the order
+   * they arrived
+   */
   public List<PassthroughMessageContainer> stopHandlingResends() {
-    Assert.assertTrue(null != this.collectedResends);
-    Assert.assertTrue(null != this.clientTransactionList);
-    List<PassthroughMessageContainer> orderToExecute = new Vector<PassthroughMessageContainer>();
+    Assert.assertTrue(null != this.releaseOrder);
+    List<PassthroughMessageContainer> orderToExecute = new ArrayList<PassthroughMessageContainer>();
+    release(orderToExecute, true);
+    orderToExecute.addAll(this.unorderedResends);
     
-    // First, walk the transaction order list, extracting any matches from the collectedResends.
-    for (ClientTransaction transaction : clientTransactionList) {
-      PassthroughMessageContainer container = this.collectedResends.remove(transaction);
+    this.releaseOrder = null;
+    this.unorderedResends = null;
+    this.persistedOrderByConnection = null;
+    return orderToExecute;
+  }
+
+  /**
+   * Merges the connections' re-sends in global order, stopping at the first transaction which hasn't arrived but still
+   * might (unless this is the final release, where nothing else can arrive).
+   */
+  private void release(List<PassthroughMessageContainer> target, boolean isFinal) {
+    while (!this.releaseOrder.isEmpty()) {
+      ClientSequence next = this.releaseOrder.peek();
+      PassthroughMessageContainer container = next.resends[next.nextToRelease];
+      if ((null == container) && !isFinal && !next.isFinished) {
+        break;
+      }
+      this.releaseOrder.poll();
       if (null != container) {
-        orderToExecute.add(container);
+        target.add(container);
+        next.resends[next.nextToRelease] = null;
+      }
+      next.nextToRelease += 1;
+      if (next.nextToRelease < next.resends.length) {
+        this.releaseOrder.add(next);
       }
     }
-    
-    // Then, walk the remaining resends, adding them to the list in an arbitrary order.
-    for (PassthroughMessageContainer container : this.collectedResends.values()) {
-      orderToExecute.add(container);
-    }
-    
-    this.collectedResends = null;
-    this.clientTransactionList = null;
-    return orderToExecute;
   }
 
   private void buildClientTransactionList(Set<Long> savedClientConnections, boolean shouldLoadStorage) {
+    this.persistedOrderByConnection = new HashMap<Long, ClientSequence>();
+    long lastGlobalSequenceID = 0L;
     if(shouldLoadStorage) {
-      TreeMap<Long, ClientTransaction> sortMap = new TreeMap<Long, ClientTransaction>();
       for (long clientID : savedClientConnections) {
         List<IPlatformPersistence.SequenceTuple> transactions = null;
         try {
@@ -102,42 +165,82 @@ public class PassthroughTransactionOrderManager {
         } catch (IOException e) {
           Assert.unexpected(e);
         }
-        if (transactions != null) {
-          for (IPlatformPersistence.SequenceTuple tuple : transactions) {
-            ClientTransaction transaction = new ClientTransaction();
-            transaction.connectionID = clientID;
-            transaction.transactionID = tuple.localSequenceID;
-            sortMap.put(tuple.globalSequenceID, transaction);
-          }
+        if ((transactions != null) && !transactions.isEmpty()) {
+          ClientSequence sequence = new ClientSequence(transactions);
+          this.persistedOrderByConnection.put(clientID, sequence);
+          lastGlobalSequenceID = Math.max(lastGlobalSequenceID, sequence.lastGlobalSequenceID);
         }
       }
-      clientTransactionList = Collections.unmodifiableList(new ArrayList<ClientTransaction>(sortMap.values()));
-      receivedTransactionCount = sortMap.size() != 0 ? sortMap.lastKey() : new Long(0L);
-    } else {
-      clientTransactionList = Collections.emptyList();
-      receivedTransactionCount = 0L;
     }
+    receivedTransactionCount = lastGlobalSequenceID;
   }
 
-  private static class ClientTransaction implements Serializable {
-    private static final long serialVersionUID = 1L;
-    
-    public long connectionID;
-    public long transactionID;
-    
-    @Override
-    public boolean equals(Object obj) {
-      boolean doesMatch = (this == obj);
-      if (!doesMatch && (null != obj) && (getClass() == obj.getClass())) {
-        ClientTransaction other = (ClientTransaction) obj;
-        doesMatch = (connectionID == other.connectionID)
-            && (transactionID == other.transactionID);
+
+  /**
+   * The persisted transactions of one connection, sorted by transaction ID, with the global sequence number of each and the
+   * re-send of each, once it arrives.
+   * Note that transaction IDs only ever increase on a connection so sorting by transaction ID also sorts by global sequence
+   * number, which the merge relies on.
+   */
+  private static class ClientSequence {
+    private final long[] transactionIDs;
+    private final long[] globalSequenceIDs;
+    private final long lastGlobalSequenceID;
+    // Only used while handling re-sends.
+    private final PassthroughMessageContainer[] resends;
+    private int nextToRelease;
+    private boolean isFinished;
+
+    public ClientSequence(List<IPlatformPersistence.SequenceTuple> transactions) {
+      int size = transactions.size();
+      long[] transactionIDs = new long[size];
+      long[] globalSequenceIDs = new long[size];
+      long lastGlobalSequenceID = 0L;
+      boolean isSorted = true;
+      int i = 0;
+      for (IPlatformPersistence.SequenceTuple tuple : transactions) {
+        transactionIDs[i] = tuple.localSequenceID;
+        globalSequenceIDs[i] = tuple.globalSequenceID;
+        lastGlobalSequenceID = Math.max(lastGlobalSequenceID, tuple.globalSequenceID);
+        isSorted = isSorted && ((0 == i) || (transactionIDs[i - 1] < transactionIDs[i]));
+        i += 1;
       }
-      return doesMatch;
+      if (!isSorted) {
+        // The sequence is stored in the order received so this would only happen if something odd was stored.
+        Integer[] order = new Integer[size];
+        for (i = 0; i < size; ++i) {
+          order[i] = i;
+        }
+        Arrays.sort(order, (one, two) -> Long.compare(transactionIDs[one], transactionIDs[two]));
+        this.transactionIDs = new long[size];
+        this.globalSequenceIDs = new long[size];
+        for (i = 0; i < size; ++i) {
+          this.transactionIDs[i] = transactionIDs[order[i]];
+          this.globalSequenceIDs[i] = globalSequenceIDs[order[i]];
+        }
+      } else {
+        this.transactionIDs = transactionIDs;
+        this.globalSequenceIDs = globalSequenceIDs;
+      }
+      this.lastGlobalSequenceID = lastGlobalSequenceID;
+      this.resends = new PassthroughMessageContainer[size];
+    }
+
+    public long nextGlobalSequenceID() {
+      return this.globalSequenceIDs[this.nextToRelease];
     }
-    @Override
-    public int hashCode() {
-      return ((int)connectionID << 16) | (int)transactionID;
+
+    /**
+     * @return True if the transaction was persisted and not yet released, in which case the re-send is held in its
+     * position
+     */
+    public boolean resendArrived(long transactionID, PassthroughMessageContainer container) {
+      int index = Arrays.binarySearch(this.transactionIDs, transactionID);
+      boolean isHeld = (index >= this.nextToRelease);
+      if (isHeld) {
+        this.resends[index] = container;
+      }
+      return isHeld;
     }
   }
-}
\ No newline at end of file
+}
@@ -24,6 +24,8 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.terracotta.exception.ConnectionClosedException;
 import org.terracotta.exception.EntityException;
@@ -34,10 +36,12 @@ import org.terracotta.exception.RuntimeEntityException;
  * Used by the client-side message processing to handle the synchronous nature of the messaging system.  This expects the
  * client code's thread to block on acks or completion, and be unblocked by the client-send message processing thread
  * processing the corresponding acks and completion messages.
+ * Note that this uses a ReentrantLock, instead of the monitor, so that blocking in here doesn't pin a virtual thread.
  */
 public class PassthroughWait implements Future<byte[]> {
   // Save the information used to reset this object on resend.
   private byte[] rawMessageForResend;
+  private Object attachmentForResend;
   private final boolean shouldWaitForReceived;
   private final boolean shouldWaitForCompleted;
   private final boolean shouldWaitForRetired;
@@ -55,9 +59,14 @@ public class PassthroughWait implements Future<byte[]> {
   private boolean canGetReturn;
   private boolean canChangeResponse;
   private byte[] response;
+  // The response object, when the invoke was sent on the object lane.
+  private Object responseObject;
   private EntityException checkedException;
   private RuntimeEntityException uncheckedException;
   private PassthroughMonitor monitor;
+  // All the state above is guarded by this lock and any change to it signals stateChanged.
+  private final ReentrantLock lock;
+  private final Condition stateChanged;
 
   public PassthroughWait(boolean shouldWaitForSent, boolean shouldWaitForReceived, boolean shouldWaitForCompleted, boolean shouldWaitForRetired, boolean forceGetToBlockOnRetire, boolean deferred, PassthroughMonitor monitor) {
     this.shouldWaitForReceived = shouldWaitForReceived;
@@ -76,6 +85,8 @@ public class PassthroughWait implements Future<byte[]> {
     this.canChangeResponse = true;
     this.response = null;
     this.monitor = monitor;
+    this.lock = new ReentrantLock();
+    this.stateChanged = this.lock.newCondition();
   }
 
   @Override
@@ -89,30 +100,37 @@ public class PassthroughWait implements Future<byte[]> {
     return false;
   }
   
-  public synchronized void waitForAck() {
-    boolean interrupted = false;
-    while (this.waitingForSent || this.waitingForReceive || this.waitingForComplete || this.waitingForRetired) {
-      try {
-        wait();
-      } catch (InterruptedException e) {
-        // Note that we can't be interrupted when waiting for acks 
-        interrupted = true;
+  public void waitForAck() {
+    this.lock.lock();
+    try {
+      while (this.waitingForSent || this.waitingForReceive || this.waitingForComplete || this.waitingForRetired) {
+        // Note that we can't be interrupted when waiting for acks (the interrupted state is restored on return).
+        this.stateChanged.awaitUninterruptibly();
       }
-    }
-    if (interrupted) {
-      Thread.currentThread().interrupt();
+    } finally {
+      this.lock.unlock();
     }
   }
 
-  public synchronized void interrupt() {
-    for (Thread waitingThread : this.waitingThreads) {
-      waitingThread.interrupt();
+  public void interrupt() {
+    this.lock.lock();
+    try {
+      for (Thread waitingThread : this.waitingThreads) {
+        waitingThread.interrupt();
+      }
+    } finally {
+      this.lock.unlock();
     }
   }
 
   @Override
-  public synchronized boolean isDone() {
-    return this.canGetReturn;
+  public boolean isDone() {
+    this.lock.lock();
+    try {
+      return this.canGetReturn;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   @Override
@@ -127,30 +145,41 @@ public class PassthroughWait implements Future<byte[]> {
     }
   }
   
-  private synchronized byte[] waitForCompletion(long timeout, TimeUnit unit) throws InterruptedException, EntityException, TimeoutException {
-    Thread callingThread = Thread.currentThread();
-    boolean didAdd = this.waitingThreads.add(callingThread);
-    // We can't have already been waiting.
-    Assert.assertTrue(didAdd);
-    long end = (timeout > 0) ? System.currentTimeMillis() + unit.toMillis(timeout) : Long.MAX_VALUE;
+  private byte[] waitForCompletion(long timeout, TimeUnit unit) throws InterruptedException, EntityException, TimeoutException {
+    this.lock.lock();
     try {
-      while (!this.canGetReturn && System.currentTimeMillis() < end) {
-        this.wait(unit.toMillis(timeout));
+      Thread callingThread = Thread.currentThread();
+      boolean didAdd = this.waitingThreads.add(callingThread);
+      // We can't have already been waiting.
+      Assert.assertTrue(didAdd);
+      long end = (timeout > 0) ? System.currentTimeMillis() + unit.toMillis(timeout) : Long.MAX_VALUE;
+      try {
+        long now = System.currentTimeMillis();
+        while (!this.canGetReturn && now < end) {
+          if (timeout > 0) {
+            this.stateChanged.await(end - now, TimeUnit.MILLISECONDS);
+          } else {
+            this.stateChanged.await();
+          }
+          now = System.currentTimeMillis();
+        }
+        if (!this.canGetReturn) {
+          throw new TimeoutException();
+        }
+      } finally {
+        // We will hit this path on interrupt, for example.
+        this.waitingThreads.remove(callingThread);
+      }
+      if (null != this.checkedException) {
+        throw this.checkedException;
       }
-      if (!this.canGetReturn) {
-        throw new TimeoutException();
+      if (null != this.uncheckedException) {
+        throw this.uncheckedException;
       }
+      return this.response;
     } finally {
-      // We will hit this path on interrupt, for example.
-      this.waitingThreads.remove(callingThread);
+      this.lock.unlock();
     }
-    if (null != this.checkedException) {
-      throw this.checkedException;
-    }
-    if (null != this.uncheckedException) {
-      throw this.uncheckedException;
-    }
-    return this.response;
   }
 
   public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
@@ -161,74 +190,141 @@ public class PassthroughWait implements Future<byte[]> {
     }
   }
 
-  public synchronized void sent() {
-    this.waitingForSent = false;
-    notifyAll();
+  public void sent() {
+    this.lock.lock();
+    try {
+      this.waitingForSent = false;
+      this.stateChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  public void handleAck() {
+    this.lock.lock();
+    try {
+      this.waitingForReceive = false;
+      this.stateChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void handleAck() {
-    this.waitingForReceive = false;
-    notifyAll();
+  public void handleComplete(byte[] result, EntityException error) {
+    handleComplete(result, null, error);
   }
 
-  public synchronized void handleComplete(byte[] result, EntityException error) {
-    this.waitingForComplete = false;
-    if (deferred && error == null) {
-      if (monitor != null && this.response != null) {
-        monitor.sendResponse(this.response);
+  public void handleComplete(byte[] result, Object resultObject, EntityException error) {
+    this.lock.lock();
+    try {
+      this.waitingForComplete = false;
+      if (deferred && error == null) {
+        if (monitor != null && this.response != null) {
+          monitor.sendResponse(this.response);
+        }
+        this.response = result;
+      } else if (this.canChangeResponse) {
+        this.response = result;
+        this.responseObject = resultObject;
+        this.checkedException = error;
+        // We will only allow more changes to this response if we are blocking the get on the retire.  Otherwise, we only
+        // want to return the first value.
+        this.canChangeResponse = this.forceGetToBlockOnRetire;
       }
-      this.response = result;
-    } else if (this.canChangeResponse) {
-      this.response = result;
-      this.checkedException = error;
-      // We will only allow more changes to this response if we are blocking the get on the retire.  Otherwise, we only
-      // want to return the first value.
-      this.canChangeResponse = this.forceGetToBlockOnRetire;
-    }
-    if (!this.forceGetToBlockOnRetire) {
-      this.canGetReturn = true;
+      if (!this.forceGetToBlockOnRetire) {
+        this.canGetReturn = true;
+      }
+      this.stateChanged.signalAll();
+    } finally {
+      this.lock.unlock();
     }
-    notifyAll();
   }
   
-  public synchronized void handleMonitor(byte[] result, EntityException error) {
-    if (error != null || deferred) {
-      handleComplete(result, error);
-    } else {
-      if (result != null) monitor.sendResponse(result);
+  public void handleMonitor(byte[] result, EntityException error) {
+    this.lock.lock();
+    try {
+      if (error != null || deferred) {
+        handleComplete(result, error);
+      } else {
+        if (result != null) monitor.sendResponse(result);
+      }
+    } finally {
+      this.lock.unlock();
     }
   }
   
-  public synchronized void handleRetire() {
-    this.waitingForRetired = false;
-    // The retire is the last message so we want to set us to done.
-    this.canGetReturn = true;
-    notifyAll();
+  public void handleRetire() {
+    this.lock.lock();
+    try {
+      this.waitingForRetired = false;
+      // The retire is the last message so we want to set us to done.
+      this.canGetReturn = true;
+      this.stateChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Only meaningful once get() has returned without an exception.
+   * 
+   * @return The response object handed back, by reference, for an invoke sent on the object lane
+   */
+  public Object getResponseObject() {
+    this.lock.lock();
+    try {
+      return this.responseObject;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  public byte[] getRawMessageForResend() {
+    return this.rawMessageForResend;
   }
 
   public void saveRawMessageForResend(byte[] raw) {
     this.rawMessageForResend = raw;
   }
 
+  public Object getAttachmentForResend() {
+    return this.attachmentForResend;
+  }
+
+  public void saveAttachmentForResend(Object attachment) {
+    this.attachmentForResend = attachment;
+  }
+
   /**
    * Resets the ACK wait state for the receiver and returns the raw message for the caller to re-send.
    */
-  public synchronized byte[] resetAndGetMessageForResend() {
-    this.waitingForReceive = this.shouldWaitForReceived;
-    this.waitingForComplete = this.shouldWaitForCompleted;
-    this.waitingForRetired = this.shouldWaitForRetired;
-    this.canGetReturn = false;
-    this.canChangeResponse = true;
-    this.response = null;
-    this.checkedException = null;
-    return this.rawMessageForResend;
+  public byte[] resetAndGetMessageForResend() {
+    this.lock.lock();
+    try {
+      this.waitingForReceive = this.shouldWaitForReceived;
+      this.waitingForComplete = this.shouldWaitForCompleted;
+      this.waitingForRetired = this.shouldWaitForRetired;
+      this.canGetReturn = false;
+      this.canChangeResponse = true;
+      this.response = null;
+      this.responseObject = null;
+      this.checkedException = null;
+      return this.rawMessageForResend;
+    } finally {
+      this.lock.unlock();
+    }
   }
 
-  public synchronized void forceDisconnect() {
-    this.waitingForComplete = false;
-    this.uncheckedException = new ConnectionClosedException("Connection closed");
-    this.canGetReturn = true;
-    notifyAll();
+  public void forceDisconnect() {
+    this.lock.lock();
+    try {
+      this.waitingForComplete = false;
+      this.uncheckedException = new ConnectionClosedException("Connection closed");
+      this.canGetReturn = true;
+      this.stateChanged.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
   }
 
   public void blockGetOnRetire() {
@@ -16,7 +16,7 @@ public class PassthroughConnectionStateTest {
     PassthroughServerProcess passthroughServer = mock(PassthroughServerProcess.class);
     PassthroughConnectionState passthroughConnectionState = new PassthroughConnectionState(passthroughServer);
     ArgumentCaptor<byte[]> byteArgumentCaptor = ArgumentCaptor.forClass(byte[].class);
-    doNothing().when(passthroughServer).sendMessageToServer(ArgumentCaptor.forClass(PassthroughConnection.class).capture(), byteArgumentCaptor.capture());
+    doNothing().when(passthroughServer).sendMessageToServer(ArgumentCaptor.forClass(PassthroughConnection.class).capture(), byteArgumentCaptor.capture(), ArgumentCaptor.forClass(Object.class).capture());
 
     //send some messages and verify
     for(int i = 1; i <= 20; i++) {
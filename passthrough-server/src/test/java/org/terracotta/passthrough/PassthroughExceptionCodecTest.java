@@ -0,0 +1,41 @@
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.terracotta.exception.EntityException;
+import org.terracotta.exception.EntityNotFoundException;
+import org.terracotta.exception.EntityServerException;
+import org.terracotta.exception.EntityVersionMismatchException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughExceptionCodecTest {
+  @Test
+  public void testCompactRoundTrip() throws Exception {
+    EntityException decoded = PassthroughExceptionCodec.decode(PassthroughExceptionCodec.encode(new EntityNotFoundException("class", "name")));
+    assertEquals(EntityNotFoundException.class, decoded.getClass());
+    assertEquals("class", decoded.getClassName());
+    assertEquals("name", decoded.getEntityName());
+    assertNull(decoded.getCause());
+  }
+
+  @Test
+  public void testCompactWithCauseAndNullNames() throws Exception {
+    IllegalStateException cause = new IllegalStateException("cause");
+    EntityException decoded = PassthroughExceptionCodec.decode(PassthroughExceptionCodec.encode(new EntityServerException(null, null, "description", cause)));
+    assertEquals(EntityServerException.class, decoded.getClass());
+    assertNull(decoded.getClassName());
+    assertEquals("description", decoded.getDescription());
+    assertEquals(IllegalStateException.class, decoded.getCause().getClass());
+    assertEquals("cause", decoded.getCause().getMessage());
+  }
+
+  @Test
+  public void testUnknownTypeFallsBackToSerialization() throws Exception {
+    byte[] encoded = PassthroughExceptionCodec.encode(new EntityVersionMismatchException("class", "name", 1, 2));
+    EntityException decoded = PassthroughExceptionCodec.decode(encoded);
+    assertTrue(decoded instanceof EntityVersionMismatchException);
+    assertEquals("name", decoded.getEntityName());
+  }
+}
@@ -0,0 +1,111 @@
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PassthroughExecutionLanesTest {
+  @Test
+  public void testTasksForOneKeyRunInOrder() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test", PassthroughThreadFactory.PLATFORM_THREADS, 4);
+    lanes.start();
+    List<List<Integer>> runs = new ArrayList<List<Integer>>();
+    for (int key = 0; key < 8; ++key) {
+      runs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+    for (int i = 0; i < 1000; ++i) {
+      for (int key = 0; key < 8; ++key) {
+        List<Integer> run = runs.get(key);
+        int value = i;
+        // Negative keys are also valid.
+        lanes.execute(key - 4, () -> run.add(value));
+      }
+    }
+    lanes.waitForIdle();
+    for (List<Integer> run : runs) {
+      assertEquals(1000, run.size());
+      for (int i = 0; i < 1000; ++i) {
+        assertEquals(Integer.valueOf(i), run.get(i));
+      }
+    }
+    lanes.stop();
+  }
+
+  @Test
+  public void testKeysRunConcurrently() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test", PassthroughThreadFactory.PLATFORM_THREADS, 2);
+    lanes.start();
+    // Each task waits for the other so this only finishes if they run on different lanes at the same time.
+    CountDownLatch bothRunning = new CountDownLatch(2);
+    AtomicInteger onLaneThread = new AtomicInteger();
+    for (int key = 0; key < 2; ++key) {
+      lanes.execute(key, () -> {
+        if (lanes.isLaneThread()) {
+          onLaneThread.incrementAndGet();
+        }
+        bothRunning.countDown();
+        try {
+          bothRunning.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      });
+    }
+    lanes.waitForIdle();
+    assertEquals(2, onLaneThread.get());
+    assertFalse(lanes.isLaneThread());
+    lanes.stop();
+  }
+
+  @Test
+  public void testWaitForIdleIsBarrier() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test", PassthroughThreadFactory.PLATFORM_THREADS, 3);
+    lanes.start();
+    AtomicInteger finished = new AtomicInteger();
+    for (int i = 0; i < 30; ++i) {
+      lanes.execute(i, () -> {
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        finished.incrementAndGet();
+      });
+    }
+    lanes.waitForIdle();
+    assertEquals(30, finished.get());
+    // Waiting with nothing enqueued returns immediately.
+    lanes.waitForIdle();
+    lanes.stop();
+  }
+
+  @Test
+  public void testStopRunsEnqueuedTasks() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test", PassthroughThreadFactory.PLATFORM_THREADS, 2);
+    lanes.start();
+    AtomicInteger finished = new AtomicInteger();
+    for (int i = 0; i < 100; ++i) {
+      lanes.execute(i, () -> finished.incrementAndGet());
+    }
+    lanes.stop();
+    assertEquals(100, finished.get());
+  }
+
+  @Test
+  public void testLaneThreadsComeFromFactory() throws Exception {
+    PassthroughExecutionLanes lanes = new PassthroughExecutionLanes("test", PassthroughThreadFactory.PLATFORM_THREADS, 1);
+    lanes.start();
+    List<String> names = new ArrayList<String>();
+    lanes.execute(0, () -> names.add(Thread.currentThread().getName()));
+    lanes.waitForIdle();
+    assertEquals("Server execution lane 0 (test)", names.get(0));
+    lanes.stop();
+  }
+}
@@ -0,0 +1,136 @@
+package org.terracotta.passthrough;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.terracotta.persistence.IPlatformPersistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughFilePlatformPersistentStorageTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testDataElementsSurviveReopen() throws Exception {
+    File directory = this.folder.newFolder();
+    PassthroughFilePlatformPersistentStorage storage = new PassthroughFilePlatformPersistentStorage(directory, PassthroughFsyncPolicy.ALWAYS, PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    HashMap<String, Long> map = new HashMap<String, Long>();
+    map.put("first", 1L);
+    storage.storeDataElement("entities.map", map);
+    map.put("second", 2L);
+    storage.storeDataElement("entities.map", map);
+    storage.storeDataElement("other/name", "value");
+    storage.storeDataElement("other/name", null);
+    storage.close();
+
+    storage = new PassthroughFilePlatformPersistentStorage(directory, PassthroughFsyncPolicy.ALWAYS, PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    assertEquals(map, storage.loadDataElement("entities.map"));
+    assertNull(storage.loadDataElement("other/name"));
+    storage.close();
+  }
+
+  @Test
+  public void testSequencesSurviveReopenAcrossSegments() throws Exception {
+    File directory = this.folder.newFolder();
+    PassthroughFilePlatformPersistentStorage storage = new PassthroughFilePlatformPersistentStorage(directory, PassthroughFsyncPolicy.NEVER, PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    // Enough records to fill several segments, and trigger a snapshot, while only keeping the last 3 of each sequence.
+    for (long i = 1; i <= 1000; ++i) {
+      storage.fastStoreSequence(i % 2, tuple(i, i * 10), i - 4).get();
+    }
+    storage.fastStoreSequence(2L, tuple(1L, 1L), 0L).get();
+    storage.deleteSequence(2L);
+    storage.close();
+
+    storage = new PassthroughFilePlatformPersistentStorage(directory, PassthroughFsyncPolicy.NEVER, PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    List<IPlatformPersistence.SequenceTuple> even = storage.loadSequence(0L);
+    assertEquals(3, even.size());
+    assertEquals(996L, even.get(0).localSequenceID);
+    assertEquals(10000L, even.get(2).globalSequenceID);
+    assertEquals(995L, storage.loadSequence(1L).get(0).localSequenceID);
+    assertNull(storage.loadSequence(2L));
+    storage.close();
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    File directory = this.folder.newFolder();
+    PassthroughFilePlatformPersistentStorage storage = new PassthroughFilePlatformPersistentStorage(directory, PassthroughFsyncPolicy.GROUP_COMMIT, PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    assertTrue(storage.isCommittingInGroups());
+    Future<Void> last = null;
+    for (long i = 1; i <= 200; ++i) {
+      storage.storeDataElement("element", Long.valueOf(i));
+      // Loads see the stored element even if it hasn't been committed yet.
+      assertEquals(Long.valueOf(i), storage.loadDataElement("element"));
+      last = storage.fastStoreSequence(0L, tuple(i, i), i - 2);
+    }
+    last.get();
+    assertTrue(storage.getDurabilityBarrier().isDone());
+    // Nothing is committed while nothing is written and one write takes exactly one more commit.
+    long commits = storage.getGroupCommitCount();
+    assertTrue(commits >= 1);
+    storage.getDurabilityBarrier().get();
+    assertEquals(commits, storage.getGroupCommitCount());
+    storage.storeDataElement("element", Long.valueOf(200L));
+    storage.getDurabilityBarrier().get();
+    assertEquals(commits + 1, storage.getGroupCommitCount());
+    storage.storeDataElement("deleted", "value");
+    storage.storeDataElement("deleted", null);
+    storage.getDurabilityBarrier().get();
+    storage.close();
+
+    storage = new PassthroughFilePlatformPersistentStorage(directory, PassthroughFsyncPolicy.GROUP_COMMIT, PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    assertEquals(Long.valueOf(200L), storage.loadDataElement("element"));
+    assertNull(storage.loadDataElement("deleted"));
+    assertEquals(198L, storage.loadSequence(0L).get(0).localSequenceID);
+    storage.close();
+  }
+
+  @Test
+  public void testFailedGroupCommitRetriesElements() throws Exception {
+    File directory = this.folder.newFolder();
+    PassthroughFilePlatformPersistentStorage storage = new PassthroughFilePlatformPersistentStorage(directory, PassthroughFsyncPolicy.GROUP_COMMIT, PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    storage.storeDataElement("element", Long.valueOf(1L));
+    storage.getDurabilityBarrier().get();
+
+    // Moving the directory away makes the next commit fail to write the element.
+    File moved = new File(directory.getPath() + ".moved");
+    assertTrue(directory.renameTo(moved));
+    storage.storeDataElement("element", Long.valueOf(2L));
+    boolean didFail = false;
+    try {
+      storage.getDurabilityBarrier().get();
+    } catch (ExecutionException e) {
+      didFail = true;
+    }
+    assertTrue(didFail);
+    assertEquals(Long.valueOf(2L), storage.loadDataElement("element"));
+
+    // The next commit writes it, along with what it was asked to commit.
+    assertTrue(moved.renameTo(directory));
+    storage.storeDataElement("other", "value");
+    storage.getDurabilityBarrier().get();
+    assertEquals(Long.valueOf(2L), storage.loadDataElement("element"));
+    storage.close();
+
+    storage = new PassthroughFilePlatformPersistentStorage(directory, PassthroughFsyncPolicy.GROUP_COMMIT, PassthroughSequenceJournal.MINIMUM_SEGMENT_SIZE);
+    assertEquals(Long.valueOf(2L), storage.loadDataElement("element"));
+    assertEquals("value", storage.loadDataElement("other"));
+    storage.close();
+  }
+
+  private static IPlatformPersistence.SequenceTuple tuple(long local, long global) {
+    IPlatformPersistence.SequenceTuple tuple = new IPlatformPersistence.SequenceTuple();
+    tuple.localSequenceID = local;
+    tuple.globalSequenceID = global;
+    return tuple;
+  }
+}
@@ -0,0 +1,117 @@
+package org.terracotta.passthrough;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+import org.terracotta.entity.EntityMessage;
+
+import static org.junit.Assert.assertEquals;
+
+public class PassthroughGroupCommitGateTest {
+  private final PassthroughRetirementManager retirementManager = new PassthroughRetirementManager();
+  private final List<String> sent = new ArrayList<String>();
+  private CompletableFuture<Void> barrier = new CompletableFuture<Void>();
+  private final PassthroughGroupCommitGate gate = new PassthroughGroupCommitGate(this.retirementManager, this::retireReadyItems, new IGroupCommitPersistence() {
+    @Override
+    public boolean isCommittingInGroups() {
+      return true;
+    }
+    @Override
+    public CompletableFuture<Void> getDurabilityBarrier() {
+      return PassthroughGroupCommitGateTest.this.barrier;
+    }
+  });
+
+  @Test
+  public void testResponsesHeldUntilDurable() throws Exception {
+    IMessageSenderWrapper held = this.gate.holdUntilDurable(new RecordingSender("message"));
+    held.sendAck(PassthroughMessageCodec.createAckMessage());
+    held.sendComplete(PassthroughMessageCodec.createCompleteMessage(null, null), true);
+    held.sendRetire(PassthroughMessageCodec.createRetireMessage());
+    // Only the ack gets through before the commit.
+    assertEquals(Arrays.asList("message ack"), this.sent);
+
+    this.barrier.complete(null);
+    assertEquals(Arrays.asList("message ack", "message complete", "message retire"), this.sent);
+  }
+
+  @Test
+  public void testLaterRetireWaitsForHeldMessage() throws Exception {
+    IMessageSenderWrapper first = this.gate.holdUntilDurable(new RecordingSender("first"));
+    first.sendComplete(PassthroughMessageCodec.createCompleteMessage(null, null), true);
+    first.sendRetire(PassthroughMessageCodec.createRetireMessage());
+
+    // The second message is already durable so its complete is sent but it can't retire before the first.
+    CompletableFuture<Void> firstBarrier = this.barrier;
+    this.barrier = CompletableFuture.completedFuture(null);
+    IMessageSenderWrapper second = this.gate.holdUntilDurable(new RecordingSender("second"));
+    second.sendComplete(PassthroughMessageCodec.createCompleteMessage(null, null), true);
+    second.sendRetire(PassthroughMessageCodec.createRetireMessage());
+    assertEquals(Arrays.asList("second complete"), this.sent);
+
+    firstBarrier.complete(null);
+    assertEquals(Arrays.asList("second complete", "first complete", "first retire", "second retire"), this.sent);
+  }
+
+  @Test
+  public void testFailedCommitStillReleasesResponses() throws Exception {
+    IMessageSenderWrapper held = this.gate.holdUntilDurable(new RecordingSender("message"));
+    held.sendComplete(PassthroughMessageCodec.createCompleteMessage(null, null), true);
+    held.sendRetire(PassthroughMessageCodec.createRetireMessage());
+    assertEquals(Collections.emptyList(), this.sent);
+
+    this.barrier.completeExceptionally(new IOException("test"));
+    assertEquals(Arrays.asList("message complete", "message retire"), this.sent);
+  }
+
+  // Like the server, retires go through the retirement manager so those blocked behind a held message are sent once it is
+  // released.
+  private void retireReadyItems(EntityMessage messageRun) {
+    for (PassthroughRetirementManager.RetirementTuple tuple : this.retirementManager.retireableListAfterMessageDone(messageRun)) {
+      this.sent.add(new String(tuple.response));
+    }
+  }
+
+
+  private class RecordingSender implements IMessageSenderWrapper {
+    private final String name;
+
+    public RecordingSender(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void sendAck(PassthroughMessage ack) {
+      PassthroughGroupCommitGateTest.this.sent.add(this.name + " ack");
+    }
+
+    @Override
+    public void sendComplete(PassthroughMessage complete, boolean last) {
+      PassthroughGroupCommitGateTest.this.sent.add(this.name + " complete");
+    }
+
+    @Override
+    public void sendRetire(PassthroughMessage retire) {
+      String description = this.name + " retire";
+      PassthroughRetirementManager.RetirementTuple tuple = new PassthroughRetirementManager.RetirementTuple(null, description.getBytes());
+      if (!PassthroughGroupCommitGateTest.this.retirementManager.addRetirementTuple(tuple)) {
+        PassthroughGroupCommitGateTest.this.sent.add(description);
+      }
+    }
+
+    @Override
+    public PassthroughClientDescriptor clientDescriptorForID(long clientInstanceID) {
+      return null;
+    }
+
+    @Override
+    public long getClientOriginID() {
+      return 0L;
+    }
+  }
+}
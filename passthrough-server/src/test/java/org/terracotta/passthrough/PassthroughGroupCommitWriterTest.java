@@ -0,0 +1,90 @@
+package org.terracotta.passthrough;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughGroupCommitWriterTest {
+  // Each commit releases a commitStarted permit and then blocks until the test releases a finishCommit permit.
+  private final Semaphore commitStarted = new Semaphore(0);
+  private final Semaphore finishCommit = new Semaphore(0);
+  private volatile boolean shouldFail;
+
+  @Test(timeout = 10000)
+  public void testWritesDuringCommitShareNextCommit() throws Exception {
+    PassthroughGroupCommitWriter writer = startWriter();
+    CompletableFuture<Void> first = writer.didWrite();
+    this.commitStarted.acquire();
+
+    // Everything written while the first commit runs joins the next one.
+    CompletableFuture<Void> second = writer.didWrite();
+    assertNotSame(first, second);
+    assertSame(second, writer.didWrite());
+    assertSame(second, writer.didWrite());
+    assertSame(second, writer.getDurabilityBarrier());
+    assertFalse(first.isDone());
+
+    this.finishCommit.release();
+    first.get();
+    this.commitStarted.acquire();
+    assertFalse(second.isDone());
+    this.finishCommit.release();
+    second.get();
+    assertEquals(2L, writer.getCommitCount());
+    assertTrue(writer.getDurabilityBarrier().isDone());
+    writer.shutdown();
+  }
+
+  @Test(timeout = 10000)
+  public void testFailedCommitReportedUntilNextWrite() throws Exception {
+    PassthroughGroupCommitWriter writer = startWriter();
+    this.shouldFail = true;
+    CompletableFuture<Void> failed = writer.didWrite();
+    this.commitStarted.acquire();
+    this.finishCommit.release();
+    assertTrue(completedExceptionally(failed));
+    // Nothing it wrote is durable so the barrier stays failed, even once the writer is idle.
+    assertTrue(completedExceptionally(writer.getDurabilityBarrier()));
+
+    // The next write gets a new commit.
+    this.shouldFail = false;
+    CompletableFuture<Void> retry = writer.didWrite();
+    assertNotSame(failed, retry);
+    this.commitStarted.acquire();
+    this.finishCommit.release();
+    retry.get();
+    assertTrue(writer.getDurabilityBarrier().isDone());
+    assertFalse(completedExceptionally(writer.getDurabilityBarrier()));
+    writer.shutdown();
+  }
+
+  private PassthroughGroupCommitWriter startWriter() {
+    PassthroughGroupCommitWriter writer = new PassthroughGroupCommitWriter(() -> {
+      this.commitStarted.release();
+      this.finishCommit.acquireUninterruptibly();
+      if (this.shouldFail) {
+        throw new IOException("test failure");
+      }
+    });
+    writer.start(PassthroughThreadFactory.PLATFORM_THREADS, "Test group commit writer");
+    return writer;
+  }
+
+  private static boolean completedExceptionally(CompletableFuture<Void> future) {
+    boolean didFail = false;
+    try {
+      future.get();
+    } catch (Exception e) {
+      didFail = true;
+    }
+    return didFail;
+  }
+}
@@ -0,0 +1,102 @@
+package org.terracotta.passthrough;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class PassthroughLazyEntityLoadingTest {
+  private static final String[] ENTITY_NAMES = { "counter1", "counter2", "counter3" };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final PassthroughTestCounter.RunningServers servers = new PassthroughTestCounter.RunningServers();
+
+  @Before
+  public void clearStoredCounters() {
+    PassthroughTestCounter.ServerService.clearStoredCounters();
+  }
+
+  @After
+  public void stopServers() {
+    this.servers.stopAll();
+  }
+
+  @Test(timeout = 20000)
+  public void testEntityLoadedOnFirstUse() throws Exception {
+    File directory = createStoredEntities();
+    PassthroughTestCounter.ServerService service = new PassthroughTestCounter.ServerService("server");
+    PassthroughServer server = PassthroughTestCounter.createServer("server", service, directory);
+    server.setLazyEntityLoading(true, 0);
+    this.servers.start(server, true, true);
+    // Nothing is loaded on start.
+    assertEquals(3, server.getUnloadedEntityCount());
+    assertEquals(0, service.activeEntities.size());
+
+    // Fetching an entity loads just that one, before it runs the invoke.
+    PassthroughConnection connection = server.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.fetchCounter(connection, "counter2");
+    assertEquals(2, server.getUnloadedEntityCount());
+    assertEquals(1, service.activeEntities.size());
+    assertEquals(1L, counter.add(1, 1L));
+    assertEquals(2, server.getUnloadedEntityCount());
+
+    counter.close();
+    connection.close();
+  }
+
+  @Test(timeout = 20000)
+  public void testWarmerLoadsRemainingEntities() throws Exception {
+    File directory = createStoredEntities();
+    PassthroughTestCounter.ServerService service = new PassthroughTestCounter.ServerService("server");
+    PassthroughServer server = PassthroughTestCounter.createServer("server", service, directory);
+    server.setLazyEntityLoading(true, 1);
+    this.servers.start(server, true, true);
+    while (server.getUnloadedEntityCount() > 0) {
+      Thread.sleep(10);
+    }
+    assertEquals(3, service.activeEntities.size());
+  }
+
+  @Test(timeout = 20000)
+  public void testPromotionLoadsEveryEntity() throws Exception {
+    File directory = createStoredEntities();
+    PassthroughTestCounter.ServerService service = new PassthroughTestCounter.ServerService("server");
+    PassthroughServer server = PassthroughTestCounter.createServer("server", service, directory);
+    server.setLazyEntityLoading(true, 0);
+    this.servers.start(server, false, true);
+    assertEquals(3, server.getUnloadedEntityCount());
+    assertEquals(0, service.passiveEntities.size());
+
+    // Every entity is promoted so each must be loaded first.
+    server.promoteToActive();
+    assertEquals(0, server.getUnloadedEntityCount());
+    assertEquals(3, service.activeEntities.size());
+    PassthroughConnection connection = server.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.fetchCounter(connection, "counter3");
+    assertEquals(1L, counter.add(1, 1L));
+
+    counter.close();
+    connection.close();
+  }
+
+  private File createStoredEntities() throws Exception {
+    File directory = this.folder.newFolder();
+    PassthroughServer server = PassthroughTestCounter.createServer("server", new PassthroughTestCounter.ServerService("server"), directory);
+    this.servers.start(server, true, false);
+    PassthroughConnection connection = server.connectNewClient("client");
+    for (String name : ENTITY_NAMES) {
+      connection.getEntityRef(PassthroughTestCounter.class, PassthroughTestCounter.VERSION, name).create(1);
+    }
+    connection.close();
+    this.servers.stop(server);
+    PassthroughTestCounter.ServerService.clearStoredCounters();
+    return directory;
+  }
+}
@@ -0,0 +1,41 @@
+package org.terracotta.passthrough;
+
+import org.junit.Test;
+import org.terracotta.exception.EntityNotFoundException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PassthroughLifeCycleHandlerTest {
+  @Test
+  public void testRecordsAreTrimmedAndReloaded() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    PassthroughLifeCycleHandler handler = new PassthroughLifeCycleHandler(storage, true);
+    handler.successInMessage(1L, 1L, 1L, new byte[] { 1 });
+    handler.failureInMessage(1L, 2L, 1L, new EntityNotFoundException("class", "name"));
+    handler.successInMessage(2L, 1L, 1L, new byte[] { 2 });
+    assertTrue(handler.didAlreadyHandle(1L, 1L));
+    assertArrayEquals(new byte[] { 2 }, handler.didAlreadyHandleResult(2L, 1L));
+    assertFalse(handler.didAlreadyHandle(1L, 3L));
+
+    // Client 1 no longer cares about anything before transaction 2.
+    handler.successInMessage(1L, 3L, 2L, new byte[] { 3 });
+    assertFalse(handler.didAlreadyHandle(1L, 1L));
+
+    PassthroughLifeCycleHandler reloaded = new PassthroughLifeCycleHandler(storage, true);
+    assertNull(reloaded.didAlreadyHandleResult(1L, 1L));
+    assertArrayEquals(new byte[] { 3 }, reloaded.didAlreadyHandleResult(1L, 3L));
+    assertArrayEquals(new byte[] { 2 }, reloaded.didAlreadyHandleResult(2L, 1L));
+    try {
+      reloaded.didAlreadyHandle(1L, 2L);
+      fail();
+    } catch (EntityNotFoundException e) {
+      // Expected.
+    }
+
+    assertFalse(new PassthroughLifeCycleHandler(storage, false).didAlreadyHandle(2L, 1L));
+  }
+}
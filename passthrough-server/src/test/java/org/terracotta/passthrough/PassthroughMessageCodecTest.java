@@ -0,0 +1,100 @@
+package org.terracotta.passthrough;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PassthroughMessageCodecTest {
+  @Test
+  public void testHandleInvokeConvertsToNameForm() throws Exception {
+    byte[] payload = new byte[] { 1, 2, 3 };
+    PassthroughMessage message = PassthroughMessageCodec.createInvokeMessage(() -> 0x500000007L, 9L, payload, true);
+    message.setTransactionTracking(5L, 2L);
+    byte[] raw = message.asSerializedBytes();
+    assertEquals(0x500000007L, PassthroughMessageCodec.decodeEntityHandleFromRawInvoke(raw));
+    assertEquals(9L, PassthroughMessageCodec.decodeClientInstanceIDFromRawHandleInvoke(raw));
+
+    byte[] named = PassthroughMessageCodec.convertRawInvokeToNameForm(raw, "class", "name");
+    assertEquals(PassthroughMessageCodec.NO_ENTITY_HANDLE, PassthroughMessageCodec.decodeEntityHandleFromRawInvoke(named));
+    assertEquals(5L, PassthroughMessageCodec.decodeTransactionIDFromRawMessage(named));
+    PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      assertEquals(true, shouldReplicate);
+      assertEquals(2L, oldestTransactionID);
+      input.readLong();
+      assertEquals("class", input.readUTF());
+      assertEquals("name", input.readUTF());
+      assertEquals(9L, input.readLong());
+      byte[] decodedPayload = new byte[input.readInt()];
+      input.readFully(decodedPayload);
+      assertArrayEquals(payload, decodedPayload);
+      return null;
+    }, named);
+  }
+
+  @Test
+  public void testNameFormConversionCanReplacePayload() throws Exception {
+    // Invokes from the object lane carry no payload until they are encoded for replication.
+    PassthroughMessage message = PassthroughMessageCodec.createInvokeMessage(() -> 0x100000002L, 3L, new byte[0], true);
+    byte[] named = PassthroughMessageCodec.convertRawInvokeToNameForm(message.asSerializedBytes(), "class", "name", new byte[] { 6 });
+    PassthroughMessageCodec.decodeRawMessage((type, shouldReplicate, transactionID, oldestTransactionID, input) -> {
+      assertEquals(PassthroughMessageCodec.NO_ENTITY_HANDLE, input.readLong());
+      input.readUTF();
+      input.readUTF();
+      assertEquals(3L, input.readLong());
+      assertEquals(1, input.readInt());
+      assertEquals(6, input.readByte());
+      return null;
+    }, named);
+  }
+
+  @Test
+  public void testReplaceEntityHandleCopies() throws Exception {
+    PassthroughMessage message = PassthroughMessageCodec.createInvokeMessage(() -> 0x100000001L, 3L, new byte[0], false);
+    byte[] raw = message.asSerializedBytes();
+    byte[] replaced = PassthroughMessageCodec.replaceEntityHandleInRawInvoke(raw, 0x200000001L);
+    assertEquals(0x100000001L, PassthroughMessageCodec.decodeEntityHandleFromRawInvoke(raw));
+    assertEquals(0x200000001L, PassthroughMessageCodec.decodeEntityHandleFromRawInvoke(replaced));
+    assertEquals(3L, PassthroughMessageCodec.decodeClientInstanceIDFromRawHandleInvoke(replaced));
+  }
+
+  @Test
+  public void testEntityHandleResponse() throws Exception {
+    byte[] config = new byte[] { 4, 5 };
+    byte[] response = PassthroughMessageCodec.encodeEntityHandleResponse(0x300000002L, config);
+    assertEquals(0x300000002L, PassthroughMessageCodec.decodeEntityHandleFromResponse(response));
+    assertArrayEquals(config, PassthroughMessageCodec.decodeConfigurationFromResponse(response));
+  }
+
+  @Test
+  public void testEncoderMatchesDataOutputStream() throws Exception {
+    final byte[] payload = new byte[] { 7, 8, 9 };
+    // Include characters which need 1, 2 and 3 bytes in modified UTF-8 (and the 2-byte form of NUL).
+    final String name = "name-\u0000-\u00e9-\u4e2d";
+    PassthroughMessage message = PassthroughMessageCodec.createInvokeMessage("class", name, 11L, payload, true);
+    message.setTransactionTracking(6L, 4L);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeInt(PassthroughMessage.Type.INVOKE_ON_SERVER.ordinal());
+    output.writeBoolean(true);
+    output.writeLong(6L);
+    output.writeLong(4L);
+    output.writeLong(PassthroughMessageCodec.NO_ENTITY_HANDLE);
+    output.writeUTF("class");
+    output.writeUTF(name);
+    output.writeLong(11L);
+    output.writeInt(payload.length);
+    output.write(payload);
+    output.close();
+
+    byte[] raw = message.asSerializedBytes();
+    assertArrayEquals(bytes.toByteArray(), raw);
+    assertEquals(PassthroughMessage.Type.INVOKE_ON_SERVER, PassthroughMessageCodec.decodeTypeFromRawMessage(raw));
+    assertEquals(true, PassthroughMessageCodec.decodeShouldReplicateFromRawMessage(raw));
+    assertEquals(6L, PassthroughMessageCodec.decodeTransactionIDFromRawMessage(raw));
+  }
+}
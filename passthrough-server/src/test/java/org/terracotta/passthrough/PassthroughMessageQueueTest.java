@@ -0,0 +1,151 @@
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughMessageQueueTest {
+  @Test
+  public void testFifoOrder() throws Exception {
+    PassthroughMessageQueue queue = new PassthroughMessageQueue();
+    assertTrue(queue.isEmpty());
+    assertNull(queue.poll());
+
+    PassthroughMessageContainer first = new PassthroughMessageContainer();
+    PassthroughMessageContainer second = new PassthroughMessageContainer();
+    queue.offer(first);
+    queue.offer(second);
+    assertFalse(queue.isEmpty());
+    assertSame(first, queue.poll());
+    assertSame(second, queue.poll());
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testMultipleProducersKeepTheirOrder() throws Exception {
+    final PassthroughMessageQueue queue = new PassthroughMessageQueue();
+    final int producerCount = 4;
+    final int messagesPerProducer = 10000;
+    List<Thread> producers = new ArrayList<Thread>();
+    for (int i = 0; i < producerCount; ++i) {
+      final int producerIndex = i;
+      Thread producer = new Thread(() -> {
+        for (int j = 0; j < messagesPerProducer; ++j) {
+          PassthroughMessageContainer container = new PassthroughMessageContainer();
+          // Encode the producer and its sequence number in the message so the consumer can check ordering.
+          container.message = new byte[] { (byte) producerIndex, (byte) (j >> 24), (byte) (j >> 16), (byte) (j >> 8), (byte) j };
+          queue.offer(container);
+        }
+      });
+      producers.add(producer);
+      producer.start();
+    }
+
+    int[] nextExpected = new int[producerCount];
+    int received = 0;
+    while (received < (producerCount * messagesPerProducer)) {
+      queue.waitWhileEmpty(() -> true);
+      PassthroughMessageContainer container = queue.poll();
+      while (null != container) {
+        byte[] message = container.message;
+        int producerIndex = message[0];
+        int sequence = ((message[1] & 0xff) << 24) | ((message[2] & 0xff) << 16) | ((message[3] & 0xff) << 8) | (message[4] & 0xff);
+        assertEquals(nextExpected[producerIndex], sequence);
+        nextExpected[producerIndex] += 1;
+        received += 1;
+        container = queue.poll();
+      }
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testDrainToRespectsBudget() throws Exception {
+    PassthroughMessageQueue queue = new PassthroughMessageQueue();
+    List<PassthroughMessageContainer> sent = new ArrayList<PassthroughMessageContainer>();
+    for (int i = 0; i < 5; ++i) {
+      PassthroughMessageContainer container = new PassthroughMessageContainer();
+      sent.add(container);
+      queue.offer(container);
+    }
+    List<PassthroughMessageContainer> batch = new ArrayList<PassthroughMessageContainer>();
+    assertEquals(3, queue.drainTo(batch, 3));
+    assertEquals(sent.subList(0, 3), batch);
+    assertEquals(2, queue.drainTo(batch, 3));
+    assertEquals(sent, batch);
+    assertEquals(0, queue.drainTo(batch, 3));
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testWakeConsumerEndsWait() throws Exception {
+    final PassthroughMessageQueue queue = new PassthroughMessageQueue();
+    final boolean[] shouldWait = { true };
+    Thread consumer = new Thread(() -> queue.waitWhileEmpty(() -> {
+      synchronized (shouldWait) {
+        return shouldWait[0];
+      }
+    }));
+    consumer.start();
+    synchronized (shouldWait) {
+      shouldWait[0] = false;
+    }
+    queue.wakeConsumer();
+    consumer.join();
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testSizeTracking() throws Exception {
+    PassthroughMessageQueue queue = new PassthroughMessageQueue();
+    queue.offer(new PassthroughMessageContainer());
+    queue.offer(new PassthroughMessageContainer());
+    queue.offer(new PassthroughMessageContainer());
+    assertEquals(3, queue.size());
+    queue.poll();
+    assertEquals(2, queue.size());
+    queue.offer(new PassthroughMessageContainer());
+    queue.clear();
+    assertEquals(0, queue.size());
+    assertEquals(3, queue.getLargestSize());
+  }
+
+  @Test
+  public void testWaitForSpaceReleasedByConsumer() throws Exception {
+    final PassthroughMessageQueue queue = new PassthroughMessageQueue();
+    queue.offer(new PassthroughMessageContainer());
+    queue.offer(new PassthroughMessageContainer());
+    Thread producer = new Thread(() -> {
+      queue.waitForSpace(2, () -> true);
+      queue.offer(new PassthroughMessageContainer());
+    });
+    producer.start();
+    // The producer can't get past the capacity until we consume something.
+    producer.join(100);
+    assertTrue(producer.isAlive());
+    assertEquals(2, queue.size());
+    queue.poll();
+    producer.join();
+    assertEquals(2, queue.size());
+  }
+
+  @Test
+  public void testTimedWaitGivesUp() throws Exception {
+    PassthroughMessageQueue queue = new PassthroughMessageQueue();
+    long start = System.nanoTime();
+    queue.waitWhileEmpty(() -> true, 20_000_000L);
+    assertTrue((System.nanoTime() - start) >= 20_000_000L);
+    assertTrue(queue.isEmpty());
+  }
+}
@@ -0,0 +1,47 @@
+package org.terracotta.passthrough;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.terracotta.persistence.IPlatformPersistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PassthroughNullPlatformPersistentStorageTest {
+  @Test
+  public void testSequenceKeepsFirstEntryAndTrimsHead() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    storage.fastStoreSequence(1L, tuple(1L, 1L), 0L);
+    storage.fastStoreSequence(1L, tuple(2L, 2L), 0L);
+    storage.fastStoreSequence(1L, tuple(3L, 3L), 2L);
+    List<IPlatformPersistence.SequenceTuple> sequence = storage.loadSequence(1L);
+    assertEquals(2, sequence.size());
+    assertEquals(2L, sequence.get(0).localSequenceID);
+    assertEquals(3L, sequence.get(1).localSequenceID);
+  }
+
+  @Test
+  public void testOutOfOrderEntryIsStillTrimmed() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    storage.fastStoreSequence(1L, tuple(5L, 1L), 0L);
+    storage.fastStoreSequence(1L, tuple(3L, 2L), 0L);
+    storage.fastStoreSequence(1L, tuple(6L, 3L), 4L);
+    List<IPlatformPersistence.SequenceTuple> sequence = storage.loadSequence(1L);
+    assertEquals(2, sequence.size());
+    assertEquals(5L, sequence.get(0).localSequenceID);
+  }
+
+  @Test
+  public void testStoresShareCompletedFuture() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    assertSame(storage.fastStoreSequence(1L, tuple(1L, 1L), 0L), storage.fastStoreSequence(1L, tuple(2L, 2L), 0L));
+  }
+
+  private static IPlatformPersistence.SequenceTuple tuple(long local, long global) {
+    IPlatformPersistence.SequenceTuple tuple = new IPlatformPersistence.SequenceTuple();
+    tuple.localSequenceID = local;
+    tuple.globalSequenceID = global;
+    return tuple;
+  }
+}
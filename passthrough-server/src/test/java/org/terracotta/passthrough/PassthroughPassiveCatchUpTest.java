@@ -0,0 +1,76 @@
+package org.terracotta.passthrough;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughPassiveCatchUpTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final PassthroughTestCounter.RunningServers servers = new PassthroughTestCounter.RunningServers();
+
+  @Before
+  public void clearStoredCounters() {
+    PassthroughTestCounter.ServerService.clearStoredCounters();
+  }
+
+  @After
+  public void stopServers() {
+    this.servers.stopAll();
+  }
+
+  @Test(timeout = 30000)
+  public void testRestartedPassiveCaughtUpFromLog() throws Exception {
+    File directory = this.folder.newFolder();
+    PassthroughTestCounter.ServerService activeService = new PassthroughTestCounter.ServerService("active");
+    PassthroughTestCounter.ServerService passiveService = new PassthroughTestCounter.ServerService("passive");
+    PassthroughServer active = PassthroughTestCounter.createServer("active", activeService, directory);
+    PassthroughServer passive = PassthroughTestCounter.createServer("passive", passiveService, directory);
+    active.setReplicationLogSize(8);
+    this.servers.start(active, true, false);
+    this.servers.start(passive, false, false);
+    assertTrue(active.attachDownstreamPassive(passive));
+    PassthroughConnection connection = active.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 2);
+    addToBothKeys(counter, 3);
+
+    // The passive misses fewer messages than the log keeps so it is restarted from its storage and only sent those.
+    active.detachDownstreamPassive(passive);
+    this.servers.stop(passive);
+    addToBothKeys(counter, 2);
+    this.servers.startAndAttachRestartedPassive(active, passive);
+    assertEquals(0L, active.getPassiveReplicationStatistics().get("passive").getEntitiesToSynchronize());
+    // Nothing it ran before it was stopped was run twice.
+    assertEquals(activeService.storedCounters(), passiveService.storedCounters());
+    addToBothKeys(counter, 1);
+    assertEquals(activeService.storedCounters(), passiveService.storedCounters());
+
+    // This time, the passive misses more than the log keeps so it has to be synchronized from scratch.
+    active.detachDownstreamPassive(passive);
+    this.servers.stop(passive);
+    addToBothKeys(counter, 5);
+    this.servers.startAndAttachRestartedPassive(active, passive);
+    assertEquals(1L, active.getPassiveReplicationStatistics().get("passive").getEntitiesToSynchronize());
+    assertEquals(activeService.storedCounters(), passiveService.storedCounters());
+    addToBothKeys(counter, 1);
+    assertEquals(activeService.storedCounters(), passiveService.storedCounters());
+
+    counter.close();
+    connection.close();
+  }
+
+  private static void addToBothKeys(PassthroughTestCounter counter, int times) throws Exception {
+    for (int i = 0; i < times; ++i) {
+      counter.add(1, 1L);
+      counter.add(2, 10L);
+    }
+  }
+}
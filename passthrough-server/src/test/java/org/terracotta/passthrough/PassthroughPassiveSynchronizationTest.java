@@ -0,0 +1,154 @@
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terracotta.entity.ConcurrencyStrategy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughPassiveSynchronizationTest {
+  private final PassthroughTestCounter.RunningServers servers = new PassthroughTestCounter.RunningServers();
+
+  @Before
+  public void clearStoredCounters() {
+    PassthroughTestCounter.ServerService.clearStoredCounters();
+  }
+
+  @After
+  public void stopServers() {
+    this.servers.stopAll();
+  }
+
+  @Test(timeout = 20000)
+  public void testHeldInvokeWaitsForPassive() throws Exception {
+    PassthroughTestCounter.ServerService activeService = new PassthroughTestCounter.ServerService("active");
+    PassthroughTestCounter.ServerService passiveService = new PassthroughTestCounter.ServerService("passive");
+    PassthroughServer active = PassthroughTestCounter.createServer("active", activeService, 4, 4, null);
+    PassthroughServer passive = PassthroughTestCounter.createServer("passive", passiveService, 4, 4, null);
+    this.servers.start(active, true, false);
+    this.servers.start(passive, false, false);
+    PassthroughConnection connection = active.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 1);
+    counter.add(1, 1L);
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    activeService.syncGate = new CountDownLatch(1);
+    Future<Boolean> attach = executor.submit(() -> active.attachDownstreamPassive(passive));
+    waitForKeysAtSyncGate(activeService, 1);
+    // The key is in flight so this invoke is held until it has been sent to the passive.
+    Future<Long> invoke = executor.submit(() -> counter.add(1, 2L));
+    Thread.sleep(100);
+    // Neither server has run it and the passive doesn't have the key yet (it only has the entity, with its counter at 0).
+    assertFalse(invoke.isDone());
+    assertEquals(1L, (long) activeService.storedCounters().get(1));
+    assertEquals(0L, (long) passiveService.storedCounters().get(1));
+    activeService.syncGate.countDown();
+    assertEquals(3L, (long) invoke.get());
+    // The client only sees the response once the passive has also run the held invoke.
+    assertEquals(3L, (long) passiveService.storedCounters().get(1));
+    assertEquals(true, attach.get());
+
+    counter.close();
+    connection.close();
+    executor.shutdown();
+  }
+
+  @Test(timeout = 20000)
+  public void testStoppedPassiveFailsSynchronization() throws Exception {
+    PassthroughTestCounter.ServerService activeService = new PassthroughTestCounter.ServerService("active");
+    PassthroughServer active = PassthroughTestCounter.createServer("active", activeService, 4, 4, null);
+    PassthroughServer passive = PassthroughTestCounter.createServer("passive", new PassthroughTestCounter.ServerService("passive"), 4, 4, null);
+    this.servers.start(active, true, false);
+    this.servers.start(passive, false, false);
+    PassthroughConnection connection = active.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 2);
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    activeService.syncGate = new CountDownLatch(1);
+    Future<Boolean> attach = executor.submit(() -> active.attachDownstreamPassive(passive));
+    waitForKeysAtSyncGate(activeService, 1);
+    // The synchronization can never finish so the attach must give up, instead of waiting forever.
+    this.servers.stop(passive);
+    assertFalse(attach.get());
+    activeService.syncGate.countDown();
+
+    // The active keeps running without the passive.
+    assertEquals(5L, counter.add(2, 5L));
+    counter.close();
+    connection.close();
+    executor.shutdown();
+  }
+
+  @Test(timeout = 30000)
+  public void testMultiKeyEntitySynchronizedWithConcurrentInvokes() throws Exception {
+    PassthroughTestCounter.ServerService activeService = new PassthroughTestCounter.ServerService("active");
+    PassthroughTestCounter.ServerService passiveService = new PassthroughTestCounter.ServerService("passive");
+    PassthroughServer active = PassthroughTestCounter.createServer("active", activeService, 4, 4, null);
+    PassthroughServer passive = PassthroughTestCounter.createServer("passive", passiveService, 4, 4, null);
+    this.servers.start(active, true, false);
+    this.servers.start(passive, false, false);
+    PassthroughConnection connection = active.connectNewClient("client");
+    int keyCount = 8;
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, keyCount);
+    for (int key = 1; key <= keyCount; ++key) {
+      counter.add(key, key);
+    }
+
+    // Slow the synchronization down so that plenty of invokes, on every key and on all of them, run while it is going on.
+    activeService.syncDelayMillis = 20;
+    ExecutorService executor = Executors.newCachedThreadPool();
+    AtomicBoolean isAttaching = new AtomicBoolean(true);
+    List<Future<Integer>> invokers = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 2; ++i) {
+      final int seed = i;
+      invokers.add(executor.submit(() -> {
+        Random random = new Random(seed);
+        int count = 0;
+        while (isAttaching.get()) {
+          int key = (0 == (count % 5)) ? ConcurrencyStrategy.UNIVERSAL_KEY : (1 + random.nextInt(keyCount));
+          counter.add(key, 1L);
+          count += 1;
+        }
+        return count;
+      }));
+    }
+    Thread.sleep(20);
+    boolean didAttach = active.attachDownstreamPassive(passive);
+    isAttaching.set(false);
+    for (Future<Integer> invoker : invokers) {
+      assertTrue(invoker.get() > 0);
+    }
+    assertTrue(didAttach);
+
+    // The passive got each key once, without interleaving, and every invoke exactly once (before or after its key).
+    assertEquals(activeService.storedCounters(), passiveService.storedCounters());
+    for (PassthroughTestCounter.ServerService.PassiveCounter entity : passiveService.passiveEntities) {
+      assertEquals(Collections.emptyList(), entity.errors);
+    }
+
+    counter.close();
+    connection.close();
+    executor.shutdown();
+  }
+
+
+
+  private static void waitForKeysAtSyncGate(PassthroughTestCounter.ServerService service, int count) throws InterruptedException {
+    while (service.keysAtSyncGate.get() < count) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.terracotta.passthrough;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughPersistentMapTest {
+  @Test
+  public void testReplayAcrossCompactions() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    PassthroughPersistentMap<Long, String> catalog = new PassthroughPersistentMap<Long, String>(storage, "entities.map");
+    assertTrue(catalog.load(true, null).isEmpty());
+    // Enough operations to compact a few times and leave some records after the last snapshot.
+    for (long i = 1; i <= 200; ++i) {
+      catalog.put(i, "entity" + i);
+    }
+    for (long i = 1; i <= 200; i += 2) {
+      catalog.remove(i);
+    }
+    catalog.put(2L, "reconfigured");
+
+    Map<Long, String> loaded = new PassthroughPersistentMap<Long, String>(storage, "entities.map").load(true, null);
+    assertEquals(100, loaded.size());
+    assertEquals("reconfigured", loaded.get(2L));
+    assertEquals("entity200", loaded.get(200L));
+    assertNull(loaded.get(199L));
+    // Creation order is kept.
+    assertEquals(Long.valueOf(2L), loaded.keySet().iterator().next());
+  }
+
+  @Test
+  public void testLegacyCatalogIsConverted() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    LinkedHashMap<Long, String> legacy = new LinkedHashMap<Long, String>();
+    legacy.put(1L, "legacy");
+    storage.storeDataElement("entities.map", legacy);
+
+    PassthroughPersistentMap<Long, String> catalog = new PassthroughPersistentMap<Long, String>(storage, "entities.map");
+    assertEquals("legacy", catalog.load(true, (stored) -> castLegacy(stored)).get(1L));
+    assertNull(storage.loadDataElement("entities.map"));
+    catalog.put(2L, "new");
+    assertEquals(2, new PassthroughPersistentMap<Long, String>(storage, "entities.map").load(true, null).size());
+  }
+
+  @Test
+  public void testNotLoadingDiscardsStoredCatalog() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    PassthroughPersistentMap<Long, String> catalog = new PassthroughPersistentMap<Long, String>(storage, "entities.map");
+    catalog.load(true, null);
+    catalog.put(1L, "old");
+
+    catalog = new PassthroughPersistentMap<Long, String>(storage, "entities.map");
+    assertTrue(catalog.load(false, null).isEmpty());
+    catalog.put(2L, "new");
+    Map<Long, String> loaded = new PassthroughPersistentMap<Long, String>(storage, "entities.map").load(true, null);
+    assertEquals(1, loaded.size());
+    assertEquals("new", loaded.get(2L));
+  }
+
+  @Test
+  public void testRemoveAllAndPutIsOneRecord() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    PassthroughPersistentMap<Long, String> map = new PassthroughPersistentMap<Long, String>(storage, "records");
+    map.load(true, null);
+    map.put(1L, "one");
+    map.put(2L, "two");
+    map.removeAllAndPut(Arrays.asList(1L, 2L), 3L, "three");
+    assertNull(storage.loadDataElement("records.record.3"));
+
+    Map<Long, String> loaded = new PassthroughPersistentMap<Long, String>(storage, "records").load(true, null);
+    assertEquals(1, loaded.size());
+    assertEquals("three", loaded.get(3L));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<Long, String> castLegacy(Object stored) {
+    return (Map<Long, String>) stored;
+  }
+}
@@ -0,0 +1,48 @@
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughReplicationLogTest {
+  @Test
+  public void testReplayTail() throws Exception {
+    PassthroughReplicationLog log = new PassthroughReplicationLog(7L, 4);
+    assertEquals(0L, log.getLastSequence());
+    assertTrue(log.canReplayAfter(7L, 0L));
+    for (int i = 1; i <= 3; ++i) {
+      assertEquals(i, log.append(new byte[] { (byte) i }));
+    }
+    final List<Long> sequences = new ArrayList<Long>();
+    log.replayAfter(1L, (sequence, message) -> {
+      assertEquals(sequence, message[0]);
+      sequences.add(sequence);
+    });
+    assertEquals(2, sequences.size());
+    assertEquals(2L, (long) sequences.get(0));
+    assertEquals(3L, (long) sequences.get(1));
+    // A different log, or a position we haven't reached, can't be replayed.
+    assertFalse(log.canReplayAfter(8L, 1L));
+    assertFalse(log.canReplayAfter(7L, 4L));
+  }
+
+  @Test
+  public void testEvictedPositionCannotReplay() throws Exception {
+    PassthroughReplicationLog log = new PassthroughReplicationLog(7L, 4);
+    for (int i = 1; i <= 10; ++i) {
+      log.append(new byte[] { (byte) i });
+    }
+    // Messages 7 to 10 are left so a passive which ran 6 can still catch up but one which ran 5 can't.
+    assertTrue(log.canReplayAfter(7L, 6L));
+    assertFalse(log.canReplayAfter(7L, 5L));
+    final List<Long> sequences = new ArrayList<Long>();
+    log.replayAfter(6L, (sequence, message) -> sequences.add(sequence));
+    assertEquals(4, sequences.size());
+    assertEquals(10L, (long) sequences.get(3));
+  }
+}
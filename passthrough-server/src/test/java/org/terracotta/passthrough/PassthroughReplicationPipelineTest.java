@@ -0,0 +1,108 @@
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.terracotta.entity.EntityMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughReplicationPipelineTest {
+  @Test(timeout = 10000)
+  public void testRemovedPassiveReleasesInFlightInvokes() throws Exception {
+    PassthroughServerProcess first = createPassive("first");
+    PassthroughServerProcess second = createPassive("second");
+    Set<PassthroughServerProcess> attached = new HashSet<PassthroughServerProcess>(Arrays.asList(first, second));
+    List<EntityMessage> readyBarriers = new ArrayList<EntityMessage>();
+    // A window of 1 means the next invoke can only be replicated once the passives have released the first.
+    PassthroughReplicationPipeline pipeline = new PassthroughReplicationPipeline(new PassthroughRetirementManager(), readyBarriers::add, 1, 1, new PassthroughReplicationBatchStatistics(), attached::contains);
+
+    RecordingSender client = new RecordingSender();
+    IMessageSenderWrapper pipelined = pipeline.replicate(client, new byte[0], 0L, new HashSet<PassthroughServerProcess>(attached));
+    pipelined.sendComplete(PassthroughMessageCodec.createCompleteMessage(null, null), true);
+    pipelined.sendRetire(PassthroughMessageCodec.createRetireMessage());
+    assertEquals(0, client.completes);
+    assertEquals(1, client.retires);
+
+    // The passives are stopped without running their queues so only removing them can release the invoke.
+    attached.remove(first);
+    pipeline.removePassive(first);
+    assertEquals(0, client.completes);
+    attached.remove(second);
+    pipeline.removePassive(second);
+    assertEquals(1, client.completes);
+    assertEquals(1, readyBarriers.size());
+
+    // The window permit was also released (otherwise, this would block).
+    pipelined = pipeline.replicate(client, new byte[0], 0L, Collections.singleton(first));
+    pipelined.sendComplete(PassthroughMessageCodec.createCompleteMessage(null, null), true);
+    assertEquals(2, client.completes);
+  }
+
+  @Test(timeout = 10000)
+  public void testRemovedPassiveDropsPendingFrame() throws Exception {
+    PassthroughServerProcess passive = createPassive("passive");
+    Set<PassthroughServerProcess> attached = new HashSet<PassthroughServerProcess>(Collections.singleton(passive));
+    PassthroughReplicationBatchStatistics statistics = new PassthroughReplicationBatchStatistics();
+    PassthroughReplicationPipeline pipeline = new PassthroughReplicationPipeline(new PassthroughRetirementManager(), (barrier) -> {}, 2, 4, statistics, attached::contains);
+
+    RecordingSender client = new RecordingSender();
+    for (int i = 0; i < 2; ++i) {
+      IMessageSenderWrapper pipelined = pipeline.replicate(client, new byte[0], 0L, Collections.singleton(passive));
+      pipelined.sendComplete(PassthroughMessageCodec.createCompleteMessage(null, null), true);
+    }
+    assertTrue(pipeline.hasPendingFrames());
+    assertEquals(0, client.completes);
+
+    attached.remove(passive);
+    pipeline.removePassive(passive);
+    assertFalse(pipeline.hasPendingFrames());
+    assertEquals(2, client.completes);
+    // Nothing is sent to the removed passive.
+    pipeline.flush();
+    assertEquals(0, statistics.getFrameCount());
+  }
+
+  private static PassthroughServerProcess createPassive(String name) {
+    return new PassthroughServerProcess(name, 0, 0, Collections.emptyList(), false, (victim) -> {});
+  }
+
+
+  private static class RecordingSender implements IMessageSenderWrapper {
+    public int completes;
+    public int retires;
+
+    @Override
+    public void sendAck(PassthroughMessage ack) {
+    }
+
+    @Override
+    public void sendComplete(PassthroughMessage complete, boolean last) {
+      if (last) {
+        this.completes += 1;
+      }
+    }
+
+    @Override
+    public void sendRetire(PassthroughMessage retire) {
+      this.retires += 1;
+    }
+
+    @Override
+    public PassthroughClientDescriptor clientDescriptorForID(long clientInstanceID) {
+      return null;
+    }
+
+    @Override
+    public long getClientOriginID() {
+      return 0L;
+    }
+  }
+}
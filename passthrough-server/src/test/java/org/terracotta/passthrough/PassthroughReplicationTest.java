@@ -0,0 +1,307 @@
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughReplicationTest {
+  private final PassthroughTestCounter.RunningServers servers = new PassthroughTestCounter.RunningServers();
+
+  @Before
+  public void clearStoredCounters() {
+    PassthroughTestCounter.ServerService.clearStoredCounters();
+  }
+
+  @After
+  public void stopServers() {
+    this.servers.stopAll();
+  }
+
+  @Test(timeout = 20000)
+  public void testPassiveSnapshotReplacedOnAttachAndDetach() throws Exception {
+    PassthroughServer active = PassthroughTestCounter.createServer("active", new PassthroughTestCounter.ServerService("active"));
+    PassthroughServer passive1 = PassthroughTestCounter.createServer("passive1", new PassthroughTestCounter.ServerService("passive1"));
+    PassthroughTestCounter.ServerService passive2Service = new PassthroughTestCounter.ServerService("passive2");
+    PassthroughServer passive2 = PassthroughTestCounter.createServer("passive2", passive2Service);
+    this.servers.start(active, true, false);
+    this.servers.start(passive1, false, false);
+    this.servers.start(passive2, false, false);
+    PassthroughConnection connection = active.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 1);
+
+    Set<PassthroughServerProcess> none = active.getDownstreamPassives();
+    assertTrue(active.attachDownstreamPassive(passive1));
+    Set<PassthroughServerProcess> one = active.getDownstreamPassives();
+    assertTrue(active.attachDownstreamPassive(passive2));
+    Set<PassthroughServerProcess> two = active.getDownstreamPassives();
+    // Each attach replaced the snapshot, leaving the one a message may still be using as it was.
+    assertNotSame(none, one);
+    assertNotSame(one, two);
+    assertEquals(0, none.size());
+    assertEquals(1, one.size());
+    assertEquals(2, two.size());
+    boolean didReject = false;
+    try {
+      two.clear();
+    } catch (UnsupportedOperationException e) {
+      didReject = true;
+    }
+    assertTrue(didReject);
+
+    // Replicating messages reads the snapshot, rather than copying it.
+    counter.add(1, 1L);
+    assertSame(two, active.getDownstreamPassives());
+
+    active.detachDownstreamPassive(passive1);
+    Set<PassthroughServerProcess> afterDetach = active.getDownstreamPassives();
+    assertEquals(1, afterDetach.size());
+    assertEquals(2, two.size());
+    counter.add(1, 1L);
+    assertEquals(2L, (long) passive2Service.storedCounters().get(1));
+
+    counter.close();
+    connection.close();
+  }
+
+  @Test(timeout = 30000)
+  public void testEachResponseMatchesItsInvoke() throws Exception {
+    PassthroughTestCounter.ServerService activeService = new PassthroughTestCounter.ServerService("active");
+    PassthroughTestCounter.ServerService passiveService = new PassthroughTestCounter.ServerService("passive");
+    PassthroughServer active = PassthroughTestCounter.createServer("active", activeService, 4, 1, null);
+    PassthroughServer passive = PassthroughTestCounter.createServer("passive", passiveService);
+    active.setReplicationWindow(16);
+    this.servers.start(active, true, false);
+    this.servers.start(passive, false, false);
+    assertTrue(active.attachDownstreamPassive(passive));
+    int keyCount = 4;
+    List<PassthroughConnection> connections = new ArrayList<PassthroughConnection>();
+    List<PassthroughTestCounter> counters = new ArrayList<PassthroughTestCounter>();
+    PassthroughConnection creator = active.connectNewClient("creator");
+    PassthroughTestCounter.createCounter(creator, keyCount).close();
+    for (int key = 1; key <= keyCount; ++key) {
+      PassthroughConnection connection = active.connectNewClient("client" + key);
+      connections.add(connection);
+      counters.add(PassthroughTestCounter.fetchCounter(connection, "counter"));
+    }
+
+    // The one decoder handles every message while the completions of earlier ones are still running so each client must
+    // still get the response to its own invoke.
+    ExecutorService executor = Executors.newCachedThreadPool();
+    List<Future<?>> invokers = new ArrayList<Future<?>>();
+    for (int i = 0; i < keyCount; ++i) {
+      final int key = i + 1;
+      final PassthroughTestCounter counter = counters.get(i);
+      invokers.add(executor.submit(() -> {
+        for (long expected = key; expected <= (100L * key); expected += key) {
+          assertEquals(expected, counter.add(key, key));
+        }
+        return null;
+      }));
+    }
+    for (Future<?> invoker : invokers) {
+      invoker.get();
+    }
+    assertEquals(activeService.storedCounters(), passiveService.storedCounters());
+
+    for (int i = 0; i < keyCount; ++i) {
+      counters.get(i).close();
+      connections.get(i).close();
+    }
+    creator.close();
+    executor.shutdown();
+  }
+
+  @Test(timeout = 20000)
+  public void testReplicatedInvokeSentToEveryPassiveBeforeWaiting() throws Exception {
+    PassthroughTestCounter.ServerService passive1Service = new PassthroughTestCounter.ServerService("passive1");
+    PassthroughTestCounter.ServerService passive2Service = new PassthroughTestCounter.ServerService("passive2");
+    PassthroughServer active = PassthroughTestCounter.createServer("active", new PassthroughTestCounter.ServerService("active"));
+    PassthroughServer passive1 = PassthroughTestCounter.createServer("passive1", passive1Service);
+    PassthroughServer passive2 = PassthroughTestCounter.createServer("passive2", passive2Service);
+    this.servers.start(active, true, false);
+    this.servers.start(passive1, false, false);
+    this.servers.start(passive2, false, false);
+    assertTrue(active.attachDownstreamPassive(passive1));
+    assertTrue(active.attachDownstreamPassive(passive2));
+    PassthroughConnection connection = active.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 1);
+
+    // Both passives block in the invoke so, if the active waited on one before sending to the next, only one would get it.
+    CountDownLatch gate = new CountDownLatch(1);
+    passive1Service.invokeGate = gate;
+    passive2Service.invokeGate = gate;
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<Long> invoke = executor.submit(() -> counter.add(1, 1L));
+    while ((passive1Service.invokesAtInvokeGate.get() < 1) || (passive2Service.invokesAtInvokeGate.get() < 1)) {
+      Thread.sleep(10);
+    }
+    // The client only gets its response once both have run it.
+    Thread.sleep(50);
+    assertFalse(invoke.isDone());
+    gate.countDown();
+    assertEquals(1L, (long) invoke.get());
+    assertEquals(1L, (long) passive1Service.storedCounters().get(1));
+    assertEquals(1L, (long) passive2Service.storedCounters().get(1));
+
+    counter.close();
+    connection.close();
+    executor.shutdown();
+  }
+
+  @Test(timeout = 20000)
+  public void testFramesSentWhenFullOrAfterLinger() throws Exception {
+    PassthroughTestCounter.ServerService activeService = new PassthroughTestCounter.ServerService("active");
+    PassthroughTestCounter.ServerService passiveService = new PassthroughTestCounter.ServerService("passive");
+    PassthroughServer active = PassthroughTestCounter.createServer("active", activeService);
+    PassthroughServer passive = PassthroughTestCounter.createServer("passive", passiveService);
+    active.setReplicationWindow(64);
+    active.setReplicationBatching(4, 50, TimeUnit.MILLISECONDS);
+    this.servers.start(active, true, false);
+    this.servers.start(passive, false, false);
+    assertTrue(active.attachDownstreamPassive(passive));
+    PassthroughConnection connection = active.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 1);
+    PassthroughReplicationBatchStatistics statistics = active.getReplicationBatchStatistics();
+
+    // One invoke at a time never fills a frame so each is only sent once the linger expires.
+    for (int i = 0; i < 3; ++i) {
+      counter.add(1, 1L);
+    }
+    assertEquals(3L, statistics.getFrameCount());
+    assertEquals(3L, statistics.getMessageCount());
+    assertEquals(0L, statistics.getFullFrameCount());
+
+    // Block the server thread in an invoke while 8 more queue up so that they are replicated back-to-back.
+    ExecutorService executor = Executors.newCachedThreadPool();
+    activeService.invokeGate = new CountDownLatch(1);
+    List<Future<Long>> invokes = new ArrayList<Future<Long>>();
+    invokes.add(executor.submit(() -> counter.add(1, 1L)));
+    while (activeService.invokesAtInvokeGate.get() < 1) {
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 8; ++i) {
+      invokes.add(executor.submit(() -> counter.add(1, 1L)));
+    }
+    while (active.getInboundQueueStatistics().getCurrentDepth() < 8) {
+      Thread.sleep(10);
+    }
+    activeService.invokeGate.countDown();
+    for (Future<Long> invoke : invokes) {
+      invoke.get();
+    }
+    // The 9 invokes went out as 2 full frames and the partial one left over, once the linger expired.
+    assertEquals(6L, statistics.getFrameCount());
+    assertEquals(12L, statistics.getMessageCount());
+    assertEquals(2L, statistics.getFullFrameCount());
+    assertEquals(4L, statistics.getLargestFrame());
+    assertEquals(12L, (long) passiveService.storedCounters().get(1));
+
+    counter.close();
+    connection.close();
+    executor.shutdown();
+  }
+
+  @Test(timeout = 20000)
+  public void testFrameSentWhenWindowExhausted() throws Exception {
+    PassthroughTestCounter.ServerService activeService = new PassthroughTestCounter.ServerService("active");
+    PassthroughTestCounter.ServerService passiveService = new PassthroughTestCounter.ServerService("passive");
+    PassthroughServer active = PassthroughTestCounter.createServer("active", activeService);
+    PassthroughServer passive = PassthroughTestCounter.createServer("passive", passiveService);
+    // The frames are bigger than the window so they can never fill.
+    active.setReplicationWindow(2);
+    active.setReplicationBatching(8, 100, TimeUnit.MILLISECONDS);
+    this.servers.start(active, true, false);
+    this.servers.start(passive, false, false);
+    assertTrue(active.attachDownstreamPassive(passive));
+    PassthroughConnection connection = active.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 1);
+    PassthroughReplicationBatchStatistics statistics = active.getReplicationBatchStatistics();
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    activeService.invokeGate = new CountDownLatch(1);
+    List<Future<Long>> invokes = new ArrayList<Future<Long>>();
+    invokes.add(executor.submit(() -> counter.add(1, 1L)));
+    while (activeService.invokesAtInvokeGate.get() < 1) {
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 4; ++i) {
+      invokes.add(executor.submit(() -> counter.add(1, 1L)));
+    }
+    while (active.getInboundQueueStatistics().getCurrentDepth() < 4) {
+      Thread.sleep(10);
+    }
+    activeService.invokeGate.countDown();
+    // Each time the window is exhausted, the partial frame holding the invokes the passive owes must be sent, or the server
+    // thread would wait for the passive forever.
+    for (Future<Long> invoke : invokes) {
+      invoke.get();
+    }
+    assertEquals(5L, statistics.getMessageCount());
+    assertEquals(0L, statistics.getFullFrameCount());
+    assertEquals(2L, statistics.getLargestFrame());
+    assertEquals(5L, (long) passiveService.storedCounters().get(1));
+
+    counter.close();
+    connection.close();
+    executor.shutdown();
+  }
+
+  @Test(timeout = 20000)
+  public void testPassiveStatisticsCountedUntilDetached() throws Exception {
+    PassthroughServer active = PassthroughTestCounter.createServer("active", new PassthroughTestCounter.ServerService("active"));
+    PassthroughServer passive = PassthroughTestCounter.createServer("passive", new PassthroughTestCounter.ServerService("passive"));
+    this.servers.start(active, true, false);
+    this.servers.start(passive, false, false);
+    PassthroughConnection connection = active.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 3);
+    counter.add(1, 1L);
+    assertTrue(active.getPassiveReplicationStatistics().isEmpty());
+
+    // The synchronization is counted once it is done.
+    assertTrue(active.attachDownstreamPassive(passive));
+    PassthroughReplicationStatistics statistics = active.getPassiveReplicationStatistics().get("passive");
+    assertFalse(statistics.isSynchronizing());
+    assertEquals(1L, statistics.getEntitiesToSynchronize());
+    assertEquals(1L, statistics.getEntitiesSynchronized());
+    assertEquals(3L, statistics.getKeysSynchronized());
+    assertTrue(statistics.getBytesSynchronized() > 0L);
+
+    // Each replicated invoke is counted once the passive completes it.
+    long completedBefore = statistics.getCompletedMessages();
+    for (int i = 0; i < 5; ++i) {
+      counter.add(2, 1L);
+    }
+    while (statistics.getCompletedMessages() < (completedBefore + 5)) {
+      Thread.sleep(10);
+    }
+    assertEquals(completedBefore + 5, statistics.getCompletedMessages());
+    assertEquals(0L, statistics.getQueueDepth());
+    assertTrue(statistics.getMaxQueueDepth() >= 1L);
+    assertTrue(statistics.getMaxLagNanos() > 0L);
+    assertTrue(statistics.getAverageLagNanos() <= statistics.getMaxLagNanos());
+
+    // A detached passive is no longer reported.
+    active.detachDownstreamPassive(passive);
+    assertTrue(active.getPassiveReplicationStatistics().isEmpty());
+    counter.add(2, 1L);
+    assertEquals(completedBefore + 5, statistics.getCompletedMessages());
+
+    counter.close();
+    connection.close();
+  }
+}
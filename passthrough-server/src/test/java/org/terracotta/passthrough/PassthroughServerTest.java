@@ -0,0 +1,70 @@
+package org.terracotta.passthrough;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughServerTest {
+  private final PassthroughTestCounter.RunningServers servers = new PassthroughTestCounter.RunningServers();
+
+  @Before
+  public void clearStoredCounters() {
+    PassthroughTestCounter.ServerService.clearStoredCounters();
+  }
+
+  @After
+  public void stopServers() {
+    this.servers.stopAll();
+  }
+
+  @Test(timeout = 20000)
+  public void testDrainBudgetLimitsEachWakeUp() throws Exception {
+    PassthroughTestCounter.ServerService service = new PassthroughTestCounter.ServerService("server");
+    PassthroughServer server = PassthroughTestCounter.createServer("server", service);
+    server.setServerThreadDrainBudget(4);
+    this.servers.start(server, true, false);
+    PassthroughConnection connection = server.connectNewClient("client");
+    PassthroughTestCounter counter = PassthroughTestCounter.createCounter(connection, 1);
+
+    // Block the server thread in an invoke while 12 more queue up behind it.
+    ExecutorService executor = Executors.newCachedThreadPool();
+    service.invokeGate = new CountDownLatch(1);
+    List<Future<Long>> invokes = new ArrayList<Future<Long>>();
+    invokes.add(executor.submit(() -> counter.add(1, 1L)));
+    while (service.invokesAtInvokeGate.get() < 1) {
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 12; ++i) {
+      invokes.add(executor.submit(() -> counter.add(1, 1L)));
+    }
+    while (server.getInboundQueueStatistics().getCurrentDepth() < 12) {
+      Thread.sleep(10);
+    }
+    long drainsBefore = server.getDrainStatistics().getDrainCount();
+    service.invokeGate.countDown();
+    for (Future<Long> invoke : invokes) {
+      invoke.get();
+    }
+
+    // The backlog was run 4 at a time so it took at least 3 wake-ups, rather than 1 or 12.
+    PassthroughDrainStatistics statistics = server.getDrainStatistics();
+    assertEquals(4L, statistics.getLargestDrain());
+    assertTrue((statistics.getDrainCount() - drainsBefore) >= 3);
+    assertTrue(statistics.getDrainSizeHistogram()[2] >= 3);
+    assertEquals(13L, (long) service.storedCounters().get(1));
+
+    counter.close();
+    connection.close();
+    executor.shutdown();
+  }
+}
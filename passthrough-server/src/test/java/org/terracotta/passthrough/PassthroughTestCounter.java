@@ -0,0 +1,487 @@
+package org.terracotta.passthrough;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.terracotta.connection.entity.Entity;
+import org.terracotta.connection.entity.EntityRef;
+import org.terracotta.entity.ActiveInvokeContext;
+import org.terracotta.entity.ActiveServerEntity;
+import org.terracotta.entity.ClientDescriptor;
+import org.terracotta.entity.CommonServerEntity;
+import org.terracotta.entity.ConcurrencyStrategy;
+import org.terracotta.entity.EntityClientEndpoint;
+import org.terracotta.entity.EntityClientService;
+import org.terracotta.entity.EntityMessage;
+import org.terracotta.entity.EntityResponse;
+import org.terracotta.entity.EntityServerService;
+import org.terracotta.entity.ExecutionStrategy;
+import org.terracotta.entity.InvokeContext;
+import org.terracotta.entity.MessageCodec;
+import org.terracotta.entity.MessageCodecException;
+import org.terracotta.entity.PassiveServerEntity;
+import org.terracotta.entity.PassiveSynchronizationChannel;
+import org.terracotta.entity.ServiceRegistry;
+import org.terracotta.entity.SyncMessageCodec;
+import org.terracotta.exception.EntityException;
+
+/**
+ * A small entity used by the tests which run real servers:  it keeps one counter per concurrency key (1 to the key count in
+ * its configuration) and each message adds to one counter or, sent on UNIVERSAL_KEY, to all of them.  Each key is
+ * synchronized as a single message setting its counter.
+ * Since storage isn't the point of these tests, the counters are kept in memory, by server name, so a server restarted from
+ * its storage finds them where it left them.  This means that each server only has one of these entities.
+ * The static helpers create servers running this entity, and the entity itself, the same way in each test.
+ */
+public class PassthroughTestCounter implements Entity {
+  public static final long VERSION = 1L;
+
+  private final EntityClientEndpoint<CounterMessage, CounterResponse> endpoint;
+
+  public PassthroughTestCounter(EntityClientEndpoint<CounterMessage, CounterResponse> endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * @return The new value of the counter (of the last key, when adding to all of them)
+   */
+  public long add(int key, long delta) throws EntityException, InterruptedException, MessageCodecException {
+    return this.endpoint.beginInvoke().message(new CounterMessage(key, delta, false)).replicate(true).invoke().get().value;
+  }
+
+  @Override
+  public void close() {
+    this.endpoint.close();
+  }
+
+  /**
+   * Creates, but doesn't start, a server with the default execution lanes and sync parallelism, keeping its storage in
+   * memory.
+   */
+  public static PassthroughServer createServer(String name, ServerService service) {
+    return createServer(name, service, 0, 1, null);
+  }
+
+  /**
+   * Creates, but doesn't start, a server with the default execution lanes and sync parallelism, storing to the given
+   * directory.
+   */
+  public static PassthroughServer createServer(String name, ServerService service, File storageDirectory) {
+    return createServer(name, service, 0, 1, storageDirectory);
+  }
+
+  /**
+   * Creates, but doesn't start, a server running this entity.
+   *
+   * @param laneCount The number of execution lanes (0 runs invokes on the server thread)
+   * @param syncParallelism The number of concurrency keys synchronized to a new passive at once
+   * @param storageDirectory The directory to store to or null, to keep the storage in memory
+   */
+  public static PassthroughServer createServer(String name, ServerService service, int laneCount, int syncParallelism, File storageDirectory) {
+    PassthroughServer server = new PassthroughServer();
+    server.setServerName(name);
+    server.registerServerEntityService(service);
+    server.registerClientEntityService(new ClientService());
+    server.registerAsynchronousServerCrasher((victim) -> {});
+    server.setExecutionLaneCount(laneCount);
+    server.setPassiveSyncParallelism(syncParallelism);
+    if (null != storageDirectory) {
+      server.registerServiceProvider(new PassthroughFilePlatformStorageServiceProvider(), new PassthroughFilePlatformStorageConfiguration(storageDirectory));
+    }
+    return server;
+  }
+
+  /**
+   * Creates the entity, named "counter", and fetches it.
+   */
+  public static PassthroughTestCounter createCounter(PassthroughConnection connection, int keyCount) throws Exception {
+    EntityRef<PassthroughTestCounter, Integer, Void> ref = connection.getEntityRef(PassthroughTestCounter.class, VERSION, "counter");
+    ref.create(keyCount);
+    return ref.fetchEntity(null);
+  }
+
+  public static PassthroughTestCounter fetchCounter(PassthroughConnection connection, String name) throws Exception {
+    EntityRef<PassthroughTestCounter, Integer, Void> ref = connection.getEntityRef(PassthroughTestCounter.class, VERSION, name);
+    return ref.fetchEntity(null);
+  }
+
+
+  public static class CounterMessage implements EntityMessage {
+    public final int key;
+    public final long value;
+    // Set for sync messages, which replace the counter instead of adding to it.
+    public final boolean isSet;
+
+    public CounterMessage(int key, long value, boolean isSet) {
+      this.key = key;
+      this.value = value;
+      this.isSet = isSet;
+    }
+  }
+
+
+  public static class CounterResponse implements EntityResponse {
+    public final long value;
+
+    public CounterResponse(long value) {
+      this.value = value;
+    }
+  }
+
+
+  public static class Codec implements MessageCodec<CounterMessage, CounterResponse>, SyncMessageCodec<CounterMessage> {
+    @Override
+    public byte[] encodeMessage(CounterMessage message) {
+      return ByteBuffer.allocate(13).putInt(message.key).putLong(message.value).put((byte) (message.isSet ? 1 : 0)).array();
+    }
+
+    @Override
+    public CounterMessage decodeMessage(byte[] payload) {
+      ByteBuffer buffer = ByteBuffer.wrap(payload);
+      return new CounterMessage(buffer.getInt(), buffer.getLong(), (1 == buffer.get()));
+    }
+
+    @Override
+    public byte[] encodeResponse(CounterResponse response) {
+      return ByteBuffer.allocate(8).putLong(response.value).array();
+    }
+
+    @Override
+    public CounterResponse decodeResponse(byte[] payload) {
+      return new CounterResponse(ByteBuffer.wrap(payload).getLong());
+    }
+
+    @Override
+    public byte[] encode(int concurrencyKey, CounterMessage message) {
+      return encodeMessage(message);
+    }
+
+    @Override
+    public CounterMessage decode(int concurrencyKey, byte[] payload) {
+      return decodeMessage(payload);
+    }
+  }
+
+
+  public static class ClientService implements EntityClientService<PassthroughTestCounter, Integer, CounterMessage, CounterResponse, Void> {
+    @Override
+    public boolean handlesEntityType(Class<PassthroughTestCounter> cls) {
+      return PassthroughTestCounter.class == cls;
+    }
+
+    @Override
+    public byte[] serializeConfiguration(Integer keyCount) {
+      return ByteBuffer.allocate(4).putInt(keyCount).array();
+    }
+
+    @Override
+    public Integer deserializeConfiguration(byte[] configuration) {
+      return ByteBuffer.wrap(configuration).getInt();
+    }
+
+    @Override
+    public PassthroughTestCounter create(EntityClientEndpoint<CounterMessage, CounterResponse> endpoint, Void userData) {
+      return new PassthroughTestCounter(endpoint);
+    }
+
+    @Override
+    public MessageCodec<CounterMessage, CounterResponse> getMessageCodec() {
+      return new Codec();
+    }
+  }
+
+
+  /**
+   * The servers a test started, so that its @After can stop whichever are still running, even if the test failed.
+   */
+  public static class RunningServers {
+    // In the order they were started.
+    private final List<PassthroughServer> servers = new ArrayList<PassthroughServer>();
+
+    public void start(PassthroughServer server, boolean isActive, boolean shouldLoadStorage) {
+      server.start(isActive, shouldLoadStorage);
+      this.servers.add(server);
+    }
+
+    public void startAndAttachRestartedPassive(PassthroughServer active, PassthroughServer passive) {
+      active.startAndAttachRestartedPassive(passive);
+      this.servers.add(passive);
+    }
+
+    public void stop(PassthroughServer server) {
+      this.servers.remove(server);
+      server.stop();
+    }
+
+    /**
+     * Stops every server still running, the last one started first, so passives are stopped before their active.
+     */
+    public void stopAll() {
+      while (!this.servers.isEmpty()) {
+        stop(this.servers.get(this.servers.size() - 1));
+      }
+    }
+  }
+
+
+  /**
+   * Keeps the entities it creates so the tests can look at the counters of each server.
+   */
+  public static class ServerService implements EntityServerService<CounterMessage, CounterResponse> {
+    // The counters of each server, by server name.
+    private static final Map<String, Map<Integer, Long>> STORED_COUNTERS = new ConcurrentHashMap<String, Map<Integer, Long>>();
+
+    private final String serverName;
+    public final List<ActiveCounter> activeEntities = Collections.synchronizedList(new ArrayList<ActiveCounter>());
+    public final List<PassiveCounter> passiveEntities = Collections.synchronizedList(new ArrayList<PassiveCounter>());
+    // How long each key takes to synchronize so that the tests can send invokes while a passive is synchronized.
+    public volatile long syncDelayMillis;
+    // If set, each key's synchronization waits on this latch.
+    public volatile CountDownLatch syncGate;
+    // The number of keys which waited on the sync gate.
+    public final AtomicInteger keysAtSyncGate = new AtomicInteger();
+    // If set, each invoke (on the active or, when replicated, on a passive) waits on this latch.
+    public volatile CountDownLatch invokeGate;
+    // The number of invokes which waited on the invoke gate.
+    public final AtomicInteger invokesAtInvokeGate = new AtomicInteger();
+
+    public ServerService(String serverName) {
+      this.serverName = serverName;
+    }
+
+    /**
+     * Forgets the counters of every server, so that each test starts from scratch.
+     */
+    public static void clearStoredCounters() {
+      STORED_COUNTERS.clear();
+    }
+
+    public Map<Integer, Long> storedCounters() {
+      return STORED_COUNTERS.computeIfAbsent(this.serverName, (name) -> new ConcurrentHashMap<Integer, Long>());
+    }
+
+    @Override
+    public long getVersion() {
+      return VERSION;
+    }
+
+    @Override
+    public boolean handlesEntityType(String typeName) {
+      return PassthroughTestCounter.class.getName().equals(typeName);
+    }
+
+    @Override
+    public ActiveServerEntity<CounterMessage, CounterResponse> createActiveEntity(ServiceRegistry registry, byte[] configuration) {
+      ActiveCounter entity = new ActiveCounter(ByteBuffer.wrap(configuration).getInt());
+      this.activeEntities.add(entity);
+      return entity;
+    }
+
+    @Override
+    public PassiveServerEntity<CounterMessage, CounterResponse> createPassiveEntity(ServiceRegistry registry, byte[] configuration) {
+      PassiveCounter entity = new PassiveCounter(ByteBuffer.wrap(configuration).getInt());
+      this.passiveEntities.add(entity);
+      return entity;
+    }
+
+    @Override
+    public <AP extends CommonServerEntity<CounterMessage, CounterResponse>> AP reconfigureEntity(ServiceRegistry registry, AP oldEntity, byte[] configuration) {
+      return oldEntity;
+    }
+
+    @Override
+    public ConcurrencyStrategy<CounterMessage> getConcurrencyStrategy(byte[] configuration) {
+      final int keyCount = ByteBuffer.wrap(configuration).getInt();
+      return new ConcurrencyStrategy<CounterMessage>() {
+        @Override
+        public int concurrencyKey(CounterMessage message) {
+          return message.key;
+        }
+
+        @Override
+        public Set<Integer> getKeysForSynchronization() {
+          Set<Integer> keys = new HashSet<Integer>();
+          for (int i = 1; i <= keyCount; ++i) {
+            keys.add(i);
+          }
+          return keys;
+        }
+      };
+    }
+
+    @Override
+    public ExecutionStrategy<CounterMessage> getExecutionStrategy(byte[] configuration) {
+      return (message) -> ExecutionStrategy.Location.BOTH;
+    }
+
+    @Override
+    public MessageCodec<CounterMessage, CounterResponse> getMessageCodec() {
+      return new Codec();
+    }
+
+    @Override
+    public SyncMessageCodec<CounterMessage> getSyncMessageCodec() {
+      return new Codec();
+    }
+
+    private void waitAtInvokeGate() {
+      CountDownLatch gate = this.invokeGate;
+      if (null != gate) {
+        this.invokesAtInvokeGate.incrementAndGet();
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+
+
+    private abstract class Counter {
+      private final int keyCount;
+      protected final Map<Integer, Long> counters = storedCounters();
+
+      public Counter(int keyCount) {
+        this.keyCount = keyCount;
+      }
+
+      public void createNew() {
+        this.counters.clear();
+        for (int i = 1; i <= this.keyCount; ++i) {
+          this.counters.put(i, 0L);
+        }
+      }
+
+      public void loadExisting() {
+      }
+
+      public void destroy() {
+      }
+
+      public Map<Integer, Long> getCounters() {
+        return this.counters;
+      }
+
+      protected long add(CounterMessage message) {
+        long value = 0L;
+        if (ConcurrencyStrategy.UNIVERSAL_KEY == message.key) {
+          for (int key = 1; key <= this.keyCount; ++key) {
+            value = this.counters.merge(key, message.value, Long::sum);
+          }
+        } else {
+          value = this.counters.merge(message.key, message.value, Long::sum);
+        }
+        return value;
+      }
+    }
+
+
+    public class ActiveCounter extends Counter implements ActiveServerEntity<CounterMessage, CounterResponse> {
+      public ActiveCounter(int keyCount) {
+        super(keyCount);
+      }
+
+      @Override
+      public void connected(ClientDescriptor clientDescriptor) {
+      }
+
+      @Override
+      public void disconnected(ClientDescriptor clientDescriptor) {
+      }
+
+      @Override
+      public CounterResponse invokeActive(ActiveInvokeContext<CounterResponse> context, CounterMessage message) {
+        waitAtInvokeGate();
+        return new CounterResponse(add(message));
+      }
+
+      @Override
+      public ReconnectHandler startReconnect() {
+        return new ReconnectHandler() {
+          @Override
+          public void handleReconnect(ClientDescriptor clientDescriptor, byte[] extendedReconnectData) {
+          }
+        };
+      }
+
+      @Override
+      public void synchronizeKeyToPassive(PassiveSynchronizationChannel<CounterMessage> syncChannel, int concurrencyKey) {
+        try {
+          CountDownLatch gate = ServerService.this.syncGate;
+          if (null != gate) {
+            ServerService.this.keysAtSyncGate.incrementAndGet();
+            gate.await();
+          }
+          Thread.sleep(ServerService.this.syncDelayMillis);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        Long value = this.counters.get(concurrencyKey);
+        syncChannel.synchronizeToPassive(new CounterMessage(concurrencyKey, (null != value) ? value : 0L, true));
+      }
+    }
+
+
+    public class PassiveCounter extends Counter implements PassiveServerEntity<CounterMessage, CounterResponse> {
+      // Only touched on the passive's server thread.
+      private final Set<Integer> keysBeingSynchronized = new HashSet<Integer>();
+      // Anything the passive saw which an active must never send it.
+      public final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+      public PassiveCounter(int keyCount) {
+        super(keyCount);
+      }
+
+      @Override
+      public void invokePassive(InvokeContext context, CounterMessage message) {
+        if (message.isSet) {
+          if (!this.keysBeingSynchronized.contains(message.key)) {
+            this.errors.add("Payload for key " + message.key + " outside of its synchronization");
+          }
+          this.counters.put(message.key, message.value);
+        } else {
+          if (this.keysBeingSynchronized.contains(message.key) || ((ConcurrencyStrategy.UNIVERSAL_KEY == message.key) && !this.keysBeingSynchronized.isEmpty())) {
+            this.errors.add("Invoke on key " + message.key + " during its synchronization");
+          }
+          waitAtInvokeGate();
+          add(message);
+        }
+      }
+
+      @Override
+      public void startSyncEntity() {
+      }
+
+      @Override
+      public void endSyncEntity() {
+        if (!this.keysBeingSynchronized.isEmpty()) {
+          this.errors.add("Entity ended while synchronizing keys " + this.keysBeingSynchronized);
+        }
+      }
+
+      @Override
+      public void startSyncConcurrencyKey(int concurrencyKey) {
+        if (!this.keysBeingSynchronized.isEmpty()) {
+          this.errors.add("Key " + concurrencyKey + " started while synchronizing keys " + this.keysBeingSynchronized);
+        }
+        this.keysBeingSynchronized.add(concurrencyKey);
+      }
+
+      @Override
+      public void endSyncConcurrencyKey(int concurrencyKey) {
+        if (!this.keysBeingSynchronized.remove(concurrencyKey)) {
+          this.errors.add("Key " + concurrencyKey + " ended without being started");
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package org.terracotta.passthrough;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class PassthroughThreadFactoryTest {
+  private final PassthroughTestCounter.RunningServers servers = new PassthroughTestCounter.RunningServers();
+
+  @After
+  public void stopServers() {
+    this.servers.stopAll();
+  }
+
+  @Test
+  public void testVirtualThreadsFallBackWhenUnsupported() throws Exception {
+    PassthroughThreadFactory factory = PassthroughThreadFactory.forThreadType(true);
+    // We get virtual threads only if the running VM has them, else the platform thread factory.
+    assertEquals(PassthroughThreadFactory.areVirtualThreadsSupported(), factory.isUsingVirtualThreads());
+    if (!PassthroughThreadFactory.areVirtualThreadsSupported()) {
+      assertSame(PassthroughThreadFactory.PLATFORM_THREADS, factory);
+    }
+    assertSame(PassthroughThreadFactory.PLATFORM_THREADS, PassthroughThreadFactory.forThreadType(false));
+    assertFalse(PassthroughThreadFactory.PLATFORM_THREADS.isUsingVirtualThreads());
+  }
+
+  @Test
+  public void testNewThreadIsNamedAndUnstarted() throws Exception {
+    for (boolean useVirtualThreads : new boolean[] { false, true }) {
+      PassthroughThreadFactory factory = PassthroughThreadFactory.forThreadType(useVirtualThreads);
+      CountDownLatch didRun = new CountDownLatch(1);
+      Thread thread = factory.newThread(didRun::countDown, "test thread");
+      assertEquals("test thread", thread.getName());
+      assertSame(PassthroughUncaughtExceptionHandler.sharedInstance, thread.getUncaughtExceptionHandler());
+      assertEquals(Thread.State.NEW, thread.getState());
+      thread.start();
+      didRun.await();
+      thread.join();
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testServerRunsWithVirtualThreadsRequested() throws Exception {
+    PassthroughServer server = PassthroughTestCounter.createServer("server", new PassthroughTestCounter.ServerService("server"));
+    server.setUseVirtualThreads(true);
+    this.servers.start(server, true, false);
+    assertEquals(PassthroughThreadFactory.areVirtualThreadsSupported(), server.isUsingVirtualThreads());
+    PassthroughConnection connection = server.connectNewClient("client");
+    connection.close();
+  }
+}
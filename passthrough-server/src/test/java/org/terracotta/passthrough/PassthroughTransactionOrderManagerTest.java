@@ -0,0 +1,86 @@
+package org.terracotta.passthrough;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughTransactionOrderManagerTest {
+  @Test
+  public void testResendsRunInReceivedOrder() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    PassthroughTransactionOrderManager before = new PassthroughTransactionOrderManager(storage, false, new HashSet<Long>());
+    // Interleave 3 connections:  1, 2, 1, 3, 2, 1.
+    before.updateTracking(1L, 10L, 10L);
+    before.updateTracking(2L, 5L, 5L);
+    before.updateTracking(1L, 11L, 10L);
+    before.updateTracking(3L, 7L, 7L);
+    before.updateTracking(2L, 6L, 5L);
+    before.updateTracking(1L, 12L, 10L);
+
+    PassthroughTransactionOrderManager after = new PassthroughTransactionOrderManager(storage, true, new HashSet<Long>(Arrays.asList(1L, 2L, 3L)));
+    PassthroughMessageContainer[] expected = new PassthroughMessageContainer[6];
+    for (int i = 0; i < expected.length; ++i) {
+      expected[i] = new PassthroughMessageContainer();
+    }
+    PassthroughMessageContainer unknown = new PassthroughMessageContainer();
+    after.startHandlingResends();
+    // Each connection re-sends in order but the connections arrive one after another.
+    after.handleResend(3L, 7L, expected[3]);
+    after.handleResend(2L, 5L, expected[1]);
+    after.handleResend(2L, 6L, expected[4]);
+    after.handleResend(4L, 1L, unknown);
+    after.handleResend(1L, 10L, expected[0]);
+    after.handleResend(1L, 12L, expected[5]);
+    after.handleResend(1L, 11L, expected[2]);
+    List<PassthroughMessageContainer> order = after.stopHandlingResends();
+
+    assertEquals(7, order.size());
+    for (int i = 0; i < expected.length; ++i) {
+      assertSame(expected[i], order.get(i));
+    }
+    assertSame(unknown, order.get(6));
+  }
+
+  @Test
+  public void testStreamedResendsReleasedInReceivedOrder() throws Exception {
+    PassthroughNullPlatformPersistentStorage storage = new PassthroughNullPlatformPersistentStorage();
+    PassthroughTransactionOrderManager before = new PassthroughTransactionOrderManager(storage, false, new HashSet<Long>());
+    // Interleave 2 connections:  1, 2, 1, 2, 1.
+    before.updateTracking(1L, 10L, 10L);
+    before.updateTracking(2L, 5L, 5L);
+    before.updateTracking(1L, 11L, 10L);
+    before.updateTracking(2L, 6L, 5L);
+    before.updateTracking(1L, 12L, 10L);
+
+    PassthroughTransactionOrderManager after = new PassthroughTransactionOrderManager(storage, true, new HashSet<Long>(Arrays.asList(1L, 2L)));
+    PassthroughMessageContainer first10 = new PassthroughMessageContainer();
+    PassthroughMessageContainer first12 = new PassthroughMessageContainer();
+    PassthroughMessageContainer second5 = new PassthroughMessageContainer();
+    PassthroughMessageContainer second6 = new PassthroughMessageContainer();
+    PassthroughMessageContainer unknown = new PassthroughMessageContainer();
+    after.startHandlingResends();
+    // Nothing can run until the first transaction arrives.
+    after.handleResend(2L, 5L, second5);
+    assertTrue(after.takeReadyResends().isEmpty());
+    after.handleResend(1L, 10L, first10);
+    assertEquals(Arrays.asList(first10, second5), after.takeReadyResends());
+    // 11 already completed so isn't re-sent:  12 waits until the connection says it is finished.
+    after.handleResend(1L, 12L, first12);
+    after.handleResend(3L, 1L, unknown);
+    assertTrue(after.takeReadyResends().isEmpty());
+    after.finishedResendsFrom(1L);
+    assertTrue(after.takeReadyResends().isEmpty());
+    after.handleResend(2L, 6L, second6);
+    assertEquals(Arrays.asList(second6, first12), after.takeReadyResends());
+    // Only the unknown re-send is left for the end.
+    List<PassthroughMessageContainer> order = after.stopHandlingResends();
+    assertEquals(1, order.size());
+    assertSame(unknown, order.get(0));
+  }
+}
@@ -0,0 +1,97 @@
+package org.terracotta.passthrough;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PassthroughWaitTest {
+  @Test(timeout = 10000)
+  public void testGetWaitsForComplete() throws Exception {
+    PassthroughWait wait = new PassthroughWait(true, true, true, false, false, false, null);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<byte[]> getter = executor.submit(() -> wait.get());
+    Thread.sleep(50);
+    assertFalse(getter.isDone());
+    assertFalse(wait.isDone());
+    byte[] response = new byte[] { 1, 2, 3 };
+    wait.handleComplete(response, null);
+    assertArrayEquals(response, getter.get());
+    assertTrue(wait.isDone());
+    executor.shutdown();
+  }
+
+  @Test(timeout = 10000)
+  public void testWaitForAckWaitsForEveryAck() throws Exception {
+    PassthroughWait wait = new PassthroughWait(true, true, true, true, false, false, null);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<?> waiter = executor.submit(() -> wait.waitForAck());
+    wait.sent();
+    wait.handleAck();
+    wait.handleComplete(null, null);
+    Thread.sleep(50);
+    // Still waiting for the retire.
+    assertFalse(waiter.isDone());
+    wait.handleRetire();
+    waiter.get();
+    executor.shutdown();
+  }
+
+  @Test(timeout = 10000)
+  public void testGetBlockedOnRetire() throws Exception {
+    PassthroughWait wait = new PassthroughWait(true, true, true, true, true, false, null);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<byte[]> getter = executor.submit(() -> wait.get());
+    wait.handleComplete(new byte[] { 1 }, null);
+    Thread.sleep(50);
+    assertFalse(getter.isDone());
+    wait.handleRetire();
+    assertArrayEquals(new byte[] { 1 }, getter.get());
+    executor.shutdown();
+  }
+
+  @Test(timeout = 10000)
+  public void testTimedGetGivesUp() throws Exception {
+    PassthroughWait wait = new PassthroughWait(true, true, true, false, false, false, null);
+    boolean didTimeOut = false;
+    try {
+      wait.get(20, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      didTimeOut = true;
+    }
+    assertTrue(didTimeOut);
+    // The timed out thread is no longer counted as waiting so it can wait again.
+    wait.handleComplete(null, null);
+    assertEquals(null, wait.get(20, TimeUnit.MILLISECONDS));
+  }
+
+  @Test(timeout = 10000)
+  public void testInterruptWakesWaitingGet() throws Exception {
+    PassthroughWait wait = new PassthroughWait(true, true, true, false, false, false, null);
+    final boolean[] wasInterrupted = { false };
+    Thread getter = new Thread(() -> {
+      try {
+        wait.get();
+      } catch (InterruptedException e) {
+        wasInterrupted[0] = true;
+      } catch (Exception e) {
+        throw new AssertionError(e);
+      }
+    });
+    getter.start();
+    while (Thread.State.WAITING != getter.getState()) {
+      Thread.sleep(10);
+    }
+    wait.interrupt();
+    getter.join();
+    assertTrue(wasInterrupted[0]);
+  }
+}